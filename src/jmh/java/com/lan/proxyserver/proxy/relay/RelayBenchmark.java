@@ -0,0 +1,174 @@
+package com.lan.proxyserver.proxy.relay;
+
+import com.lan.proxyserver.bench.EchoDestination;
+import com.lan.proxyserver.proxy.socks.SocksServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trips of a payload through a CONNECT tunnel of a socks server to a loopback echo
+ * destination, per relay engine, payload size and number of concurrent tunnels (one per benchmark
+ * thread). Throughput is in round trips, i.e. twice the payload size relayed, latency percentiles
+ * come from the sample time mode.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"--add-exports", "java.base/sun.nio.ch=ALL-UNNAMED"})
+public class RelayBenchmark {
+  @State(Scope.Benchmark)
+  public static class Proxy {
+    // Keep a strong reference, loggers are only weakly held by the log manager
+    private static final java.util.logging.Logger proxyLogger =
+        java.util.logging.Logger.getLogger("com.lan.proxyserver");
+
+    @Param({"blocking", "nio", "splice"})
+    public String engine;
+
+    private EchoDestination dest;
+    private SocksServer socksServer;
+    private InetSocketAddress address;
+
+    @Setup
+    public void setup() throws IOException {
+      // Read once the configuration is first needed, which is right below in a fresh fork
+      System.setProperty("proxy_server.socks.5.auth.method.no_auth.enable", "true");
+      System.setProperty("proxy_server.socks.relay.engine", engine);
+      proxyLogger.setLevel(Level.WARNING);
+
+      dest = new EchoDestination(64 * 1024);
+      dest.start();
+      int port;
+      try (ServerSocket ss = new ServerSocket(0)) {
+        port = ss.getLocalPort();
+      }
+      socksServer = new SocksServer(port);
+      if (engine.equals("splice") && !(socksServer.getRelay() instanceof SpliceRelay)) {
+        socksServer.stop();
+        dest.terminate();
+        throw new IllegalStateException("Splice engine fell back to " + socksServer.getRelay());
+      }
+      new Thread(socksServer, "SocksServer").start();
+      address = new InetSocketAddress("127.0.0.1", port);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+      socksServer.stop();
+      dest.terminate();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Tunnel {
+    @Param({"64", "1024", "16384", "65536"})
+    public int payloadSize;
+
+    private SocketChannel channel;
+    private ByteBuffer out;
+    private ByteBuffer in;
+
+    @Setup
+    public void setup(Proxy proxy) throws IOException {
+      channel = connect(proxy.address, proxy.dest.getPort());
+      out = ByteBuffer.allocateDirect(payloadSize);
+      in = ByteBuffer.allocateDirect(payloadSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+      channel.close();
+    }
+
+    int roundTrip() throws IOException {
+      out.clear();
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+      in.clear();
+      while (in.hasRemaining()) {
+        if (channel.read(in) < 0) {
+          throw new IOException("Tunnel closed while echoing");
+        }
+      }
+      return in.position();
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int roundTrip1(Tunnel tunnel) throws IOException {
+    return tunnel.roundTrip();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public int roundTrip16(Tunnel tunnel) throws IOException {
+    return tunnel.roundTrip();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public int roundTrip64(Tunnel tunnel) throws IOException {
+    return tunnel.roundTrip();
+  }
+
+  private static SocketChannel connect(InetSocketAddress proxy, int destPort) throws IOException {
+    SocketChannel client = SocketChannel.open(proxy);
+    try {
+      client.socket().setTcpNoDelay(true);
+      write(client, new byte[] {5, 1, 0});
+      expect(client, 2);
+      write(
+          client,
+          new byte[] {5, 1, 0, 1, 127, 0, 0, 1, (byte) (destPort >> Byte.SIZE), (byte) destPort});
+      byte[] reply = expect(client, 10);
+      if (reply[1] != 0) {
+        throw new IOException("Proxy replied " + Arrays.toString(reply));
+      }
+    } catch (IOException e) {
+      client.close();
+      throw e;
+    }
+    return client;
+  }
+
+  private static void write(SocketChannel channel, byte[] data) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static byte[] expect(SocketChannel channel, int len) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(len);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new IOException("Proxy closed the connection");
+      }
+    }
+    return buffer.array();
+  }
+}
@@ -0,0 +1,97 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.socks.auth.UsernamePassword;
+import com.lan.proxyserver.proxy.socks.handshake.Handshake;
+import com.lan.proxyserver.proxy.socks.handshake.HandshakeOutput;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Processing of a whole socks 5 handshake (method selection, sub-negotiation and CONNECT request)
+ * already received, per authentication method, either in a single read or one octet per read.
+ * GSSAPI isn't covered, its sub-negotiation needs a KDC.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+  // Version octet of the method selection message excluded, as Socks5 consumes it
+  private static final byte[] noAuthOctets = {
+    1, 0, //
+    5, 1, 0, 1, 127, 0, 0, 1, 0x1F, (byte) 0x90
+  };
+  private static final byte[] usrPwdOctets = {
+    1, 2, //
+    1, 8, 'u', 's', 'e', 'r', 'n', 'a', 'm', 'e', 8, 'p', 'a', 's', 's', 'w', 'o', 'r', 'd', //
+    5, 1, 0, 1, 127, 0, 0, 1, 0x1F, (byte) 0x90
+  };
+  private static final byte[] domainNameOctets = {
+    1, 0, //
+    5, 1, 0, 3, 11, 'e', 'x', 'a', 'm', 'p', 'l', 'e', '.', 'c', 'o', 'm', 1, (byte) 0xBB
+  };
+
+  @Param({"NO_AUTH", "USR_PWD", "NO_AUTH_DOMAINNAME"})
+  public String handshake;
+
+  private byte[] octets;
+  private ByteBuffer in;
+
+  @Setup
+  public void setup() {
+    System.setProperty("proxy_server.socks.5.auth.method.no_auth.enable", "true");
+    System.setProperty("proxy_server.socks.5.auth.method.usr_pwd.enable", "true");
+    UsernamePassword.init();
+    octets =
+        switch (handshake) {
+          case "NO_AUTH" -> noAuthOctets;
+          case "USR_PWD" -> usrPwdOctets;
+          case "NO_AUTH_DOMAINNAME" -> domainNameOctets;
+          default -> throw new IllegalArgumentException(handshake);
+        };
+    in = ByteBuffer.wrap(octets);
+    if (wholeHandshake() != Handshake.Status.DONE) {
+      throw new IllegalStateException("Handshake " + handshake + " doesn't succeed");
+    }
+  }
+
+  @Benchmark
+  public Handshake.Status wholeHandshake() {
+    in.clear();
+    return advance(new Socks5Handshake(), in, new HandshakeOutput());
+  }
+
+  @Benchmark
+  public Handshake.Status octetPerRead() {
+    Socks5Handshake socks5Handshake = new Socks5Handshake();
+    HandshakeOutput out = new HandshakeOutput();
+    Handshake.Status status = Handshake.Status.NEED_MORE;
+    for (int i = 0; i < octets.length && status == Handshake.Status.NEED_MORE; i++) {
+      in.limit(i + 1).position(i);
+      status = advance(socks5Handshake, in, out);
+    }
+    return status;
+  }
+
+  /** Runs blocking steps inline, as a handler thread does */
+  private static Handshake.Status advance(Handshake handshake, ByteBuffer in, HandshakeOutput out) {
+    Handshake.Status status;
+    while ((status = handshake.advance(in, out)) == Handshake.Status.BLOCKING) {
+      handshake.runBlocking();
+    }
+    return status;
+  }
+}
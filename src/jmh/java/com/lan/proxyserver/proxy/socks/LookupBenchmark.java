@@ -0,0 +1,50 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.socks.auth.AuthMethod;
+import com.lan.proxyserver.proxy.socks.command.Command;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups of the protocol constants read off the wire, by a few codes known to some of the enums
+ * and unknown to the others (which then scan all of their constants)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+  @Param({"1", "3", "5", "127"})
+  public byte code;
+
+  @Benchmark
+  public AddressType addressType() {
+    return AddressType.get(code);
+  }
+
+  @Benchmark
+  public Command command() {
+    return Command.get(code);
+  }
+
+  @Benchmark
+  public AuthMethod authMethod() {
+    return AuthMethod.get(code);
+  }
+
+  @Benchmark
+  public SocksVersion socksVersion() {
+    return SocksVersion.get(code);
+  }
+}
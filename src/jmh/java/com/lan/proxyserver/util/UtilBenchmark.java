@@ -0,0 +1,67 @@
+package com.lan.proxyserver.util;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The {@link Util} helpers run on every request, and the hex dump of payload tracing */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+  @Param({"16", "1024"})
+  public int payloadSize;
+
+  private final byte[] ipV4Octets = {127, 0, 0, 1};
+  private final byte[] ipV6Octets = new byte[16];
+  private final byte[] portOctets = {0x1F, (byte) 0x90};
+  private final byte[] methods = {0, 1, 2};
+  private byte[] payload;
+
+  @Setup
+  public void setup() {
+    ipV6Octets[15] = 1;
+    payload = new byte[payloadSize];
+    for (int i = 0; i < payload.length; i++) {
+      payload[i] = (byte) i;
+    }
+  }
+
+  @Benchmark
+  public InetAddress getInetAddressV4() {
+    return Util.getInetAddress(ipV4Octets);
+  }
+
+  @Benchmark
+  public InetAddress getInetAddressV6() {
+    return Util.getInetAddress(ipV6Octets);
+  }
+
+  @Benchmark
+  public int getPort() {
+    return Util.getPort(portOctets);
+  }
+
+  @Benchmark
+  public String join() {
+    return Util.join(methods, ", ");
+  }
+
+  @Benchmark
+  public String toHexString() {
+    return Util.toHexString(payload, " ");
+  }
+}
@@ -0,0 +1,524 @@
+package com.lan.proxyserver;
+
+import com.lan.proxyserver.lifecycle.ProxyServerLifecycleBean;
+import com.lan.proxyserver.proxy.connect.DestinationConnector.Failure;
+import com.lan.proxyserver.proxy.metrics.OpenMetricsWriter;
+import com.lan.proxyserver.proxy.metrics.OpenMetricsWriter.Type;
+import com.lan.proxyserver.proxy.relay.MemoryBudget;
+import com.lan.proxyserver.proxy.shaping.TokenBucket;
+import com.lan.proxyserver.proxy.socks.SessionTimer.Reason;
+import com.lan.proxyserver.proxy.socks.SocksServerStat;
+import com.lan.proxyserver.proxy.socks.SocksServerStat.Latency;
+import com.lan.proxyserver.proxy.socks.auth.AuthMethod;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The statistics of {@link ProxyServerStatResource} for machines, in the OpenMetrics text format,
+ * e.g. for Prometheus to scrape {@code /proxyserver/metrics}. Every value is read from counters
+ * the proxy aggregates anyway, a scrape only sums them.
+ */
+@Path("/proxyserver/metrics")
+public class ProxyServerMetricsResource {
+  // Some 18 KiB when idle, more with the families that have a sample per user or address
+  private static final int INITIAL_CAPACITY = 24 * 1024;
+  private static final String[] LATENCIES = labelValues(Latency.values());
+  private static final String[] AUTH_METHODS = labelValues(AuthMethod.values());
+  private static final String[] FAILURES = labelValues(Failure.values());
+  private static final String[] REASONS = labelValues(Reason.values());
+  private static final String[] RANKS = {"1", "2", "3", "4", "5", "6", "7", "8", "9", "10"};
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  // The builder only grows while the exposition does, a quarter past the largest one seen
+  private static volatile int capacity = INITIAL_CAPACITY;
+
+  @GET
+  @Produces(OpenMetricsWriter.CONTENT_TYPE)
+  public String metrics() {
+    SocksServerStat stat = ProxyServerLifecycleBean.getProxyServerStat();
+    StringBuilder sb = new StringBuilder(capacity);
+    OpenMetricsWriter out = new OpenMetricsWriter(sb);
+
+    out.single(
+            "proxyserver_connections_accepted",
+            Type.COUNTER,
+            null,
+            "Connections accepted.",
+            "proxyserver_connections_accepted_total",
+            stat.getTotalAcceptedConnections())
+        .single(
+            "proxyserver_connections",
+            Type.GAUGE,
+            null,
+            "Connections open.",
+            "proxyserver_connections",
+            stat.getCurrentConnections())
+        .family("proxyserver_relayed_bytes", Type.COUNTER, "bytes", "Octets relayed.")
+        .sample(
+            "proxyserver_relayed_bytes_total",
+            "direction",
+            "forward",
+            stat.getForwardedBytes())
+        .sample(
+            "proxyserver_relayed_bytes_total",
+            "direction",
+            "backward",
+            stat.getBackwardedBytes())
+        .single(
+            "proxyserver_relay_writes",
+            Type.COUNTER,
+            null,
+            "Writes of relayed octets to sockets.",
+            "proxyserver_relay_writes_total",
+            stat.getRelayWrites())
+        .single(
+            "proxyserver_relay_written_bytes",
+            Type.COUNTER,
+            "bytes",
+            "Octets written by relay writes, over writes the mean octets per write.",
+            "proxyserver_relay_written_bytes_total",
+            stat.getRelayWrittenBytes());
+
+    out.family(
+        "proxyserver_latency_seconds",
+        Type.HISTOGRAM,
+        "seconds",
+        "Latencies of the phases of sessions.");
+    for (Latency latency : Latency.values()) {
+      out.histogram(
+          "proxyserver_latency_seconds",
+          "phase",
+          LATENCIES[latency.ordinal()],
+          stat.getLatency(latency));
+    }
+
+    out.family(
+        "proxyserver_auth",
+        Type.COUNTER,
+        null,
+        "Authentication outcomes per method, method none when no offered method is supported.");
+    for (AuthMethod method : AuthMethod.values()) {
+      String label = AUTH_METHODS[method.ordinal()];
+      out.sample(
+              "proxyserver_auth_total",
+              "method",
+              label,
+              "outcome",
+              "success",
+              stat.getAuthSuccesses(method))
+          .sample(
+              "proxyserver_auth_total",
+              "method",
+              label,
+              "outcome",
+              "failure",
+              stat.getAuthFailures(method));
+    }
+    out.sample(
+        "proxyserver_auth_total",
+        "method",
+        "none",
+        "outcome",
+        "failure",
+        stat.getNoAcceptableAuthMethod());
+
+    out.single(
+            "proxyserver_credential_users",
+            Type.GAUGE,
+            null,
+            "Users of the username/password credential store.",
+            "proxyserver_credential_users",
+            stat.getCredentialUsers())
+        .single(
+            "proxyserver_credential_cache_entries",
+            Type.GAUGE,
+            null,
+            "Username/password verifications cached.",
+            "proxyserver_credential_cache_entries",
+            stat.getCredentialCacheSize())
+        .family(
+            "proxyserver_credential_verifications",
+            Type.COUNTER,
+            null,
+            "Username/password verifications, by whether they were served from the cache.")
+        .sample(
+            "proxyserver_credential_verifications_total",
+            "cache",
+            "hit",
+            stat.getCredentialCacheHits())
+        .sample(
+            "proxyserver_credential_verifications_total",
+            "cache",
+            "miss",
+            stat.getCredentialCacheMisses())
+        .family(
+            "proxyserver_credential_verification_seconds",
+            Type.HISTOGRAM,
+            "seconds",
+            "Latencies of username/password verifications, by whether they were served from the"
+                + " cache.")
+        .histogram(
+            "proxyserver_credential_verification_seconds",
+            "cache",
+            "hit",
+            stat.getCredentialVerificationLatency(true))
+        .histogram(
+            "proxyserver_credential_verification_seconds",
+            "cache",
+            "miss",
+            stat.getCredentialVerificationLatency(false));
+
+    out.single(
+            "proxyserver_connect_attempts",
+            Type.COUNTER,
+            null,
+            "Connections attempted to destinations.",
+            "proxyserver_connect_attempts_total",
+            stat.getConnectAttempts())
+        .single(
+            "proxyserver_connect_successes",
+            Type.COUNTER,
+            null,
+            "Connections established to destinations.",
+            "proxyserver_connect_successes_total",
+            stat.getConnectSuccesses());
+    out.family(
+        "proxyserver_connect_failures",
+        Type.COUNTER,
+        null,
+        "Connections to destinations failed, per reason.");
+    for (Failure failure : Failure.values()) {
+      out.sample(
+          "proxyserver_connect_failures_total",
+          "reason",
+          FAILURES[failure.ordinal()],
+          stat.getConnectFailures(failure));
+    }
+    out.single(
+        "proxyserver_connect_negative_cache_hits",
+        Type.COUNTER,
+        null,
+        "Connections failed from the negative cache without being attempted.",
+        "proxyserver_connect_negative_cache_hits_total",
+        stat.getConnectNegativeCacheHits());
+
+    out.single(
+            "proxyserver_binds",
+            Type.COUNTER,
+            null,
+            "BIND listeners opened.",
+            "proxyserver_binds_total",
+            stat.getBinds())
+        .single(
+            "proxyserver_bind_exhaustions",
+            Type.COUNTER,
+            null,
+            "BIND listeners not opened for lack of free port.",
+            "proxyserver_bind_exhaustions_total",
+            stat.getBindExhaustions())
+        .single(
+            "proxyserver_bind_listeners",
+            Type.GAUGE,
+            null,
+            "BIND listeners open.",
+            "proxyserver_bind_listeners",
+            stat.getBindListeners())
+        .single(
+            "proxyserver_bind_accepts",
+            Type.COUNTER,
+            null,
+            "Incoming connections accepted for BIND requests.",
+            "proxyserver_bind_accepts_total",
+            stat.getBindAccepts())
+        .single(
+            "proxyserver_bind_timeouts",
+            Type.COUNTER,
+            null,
+            "BIND listeners closed without incoming connection in time.",
+            "proxyserver_bind_timeouts_total",
+            stat.getBindTimeouts());
+
+    out.single(
+            "proxyserver_udp_associations",
+            Type.GAUGE,
+            null,
+            "UDP associations open.",
+            "proxyserver_udp_associations",
+            stat.getUdpAssociations())
+        .family("proxyserver_udp_datagrams", Type.COUNTER, null, "Datagrams relayed.")
+        .sample(
+            "proxyserver_udp_datagrams_total",
+            "source",
+            "client",
+            stat.getUdpClientDatagrams())
+        .sample(
+            "proxyserver_udp_datagrams_total",
+            "source",
+            "remote",
+            stat.getUdpRemoteDatagrams())
+        .single(
+            "proxyserver_udp_dropped_datagrams",
+            Type.COUNTER,
+            null,
+            "Datagrams dropped.",
+            "proxyserver_udp_dropped_datagrams_total",
+            stat.getUdpDroppedDatagrams());
+
+    out.single(
+            "proxyserver_admission_handshakes",
+            Type.GAUGE,
+            null,
+            "Connections admitted whose request isn't received yet.",
+            "proxyserver_admission_handshakes",
+            stat.getAdmittedHandshakes())
+        .single(
+            "proxyserver_admission_queued_handshakes",
+            Type.GAUGE,
+            null,
+            "Connections accepted waiting for a handshake slot.",
+            "proxyserver_admission_queued_handshakes",
+            stat.getQueuedHandshakes())
+        .single(
+            "proxyserver_admission_sessions",
+            Type.GAUGE,
+            null,
+            "Sessions admitted.",
+            "proxyserver_admission_sessions",
+            stat.getAdmittedSessions())
+        .family(
+            "proxyserver_admission_rejections",
+            Type.COUNTER,
+            null,
+            "Connections and requests refused.")
+        .sample(
+            "proxyserver_admission_rejections_total",
+            "stage",
+            "handshake",
+            stat.getRejectedHandshakes())
+        .sample(
+            "proxyserver_admission_rejections_total",
+            "stage",
+            "session",
+            stat.getRejectedSessions())
+        .single(
+            "proxyserver_admission_source_rejections",
+            Type.COUNTER,
+            null,
+            "Refusals due to a limit per source address.",
+            "proxyserver_admission_source_rejections_total",
+            stat.getAdmissionSourceRejections())
+        .single(
+            "proxyserver_admission_waits",
+            Type.COUNTER,
+            null,
+            "Connections that waited for a slot.",
+            "proxyserver_admission_waits_total",
+            stat.getAdmissionWaits())
+        .single(
+            "proxyserver_accept_stalls",
+            Type.COUNTER,
+            null,
+            "Times acceptors stopped accepting.",
+            "proxyserver_accept_stalls_total",
+            stat.getAcceptStalls());
+
+    out.single(
+            "proxyserver_timed_sessions",
+            Type.GAUGE,
+            null,
+            "Sessions with a timeout pending.",
+            "proxyserver_timed_sessions",
+            stat.getTimedSessions())
+        .family(
+            "proxyserver_session_expirations",
+            Type.COUNTER,
+            null,
+            "Sessions closed by a timeout, per reason.");
+    for (Reason reason : Reason.values()) {
+      out.sample(
+          "proxyserver_session_expirations_total",
+          "reason",
+          REASONS[reason.ordinal()],
+          stat.getSessionExpirations(reason));
+    }
+
+    out.single(
+            "proxyserver_buffer_pool_hits",
+            Type.COUNTER,
+            null,
+            "Buffers served from the pool.",
+            "proxyserver_buffer_pool_hits_total",
+            stat.getBufferPoolHits())
+        .single(
+            "proxyserver_buffer_pool_misses",
+            Type.COUNTER,
+            null,
+            "Buffers allocated, the pool having none.",
+            "proxyserver_buffer_pool_misses_total",
+            stat.getBufferPoolMisses())
+        .single(
+            "proxyserver_buffer_pool_outstanding_bytes",
+            Type.GAUGE,
+            "bytes",
+            "Octets of the buffers acquired and not released yet.",
+            "proxyserver_buffer_pool_outstanding_bytes",
+            stat.getBufferPoolOutstandingBytes());
+
+    out.family(
+        "proxyserver_relay_buffers", Type.GAUGE, null, "Relay buffers in use, by size in octets.");
+    int[] sizes = stat.getRelayBufferSizes();
+    long[] buffers = stat.getRelayBuffers();
+    for (int i = 0; i < sizes.length; i++) {
+      out.sample("proxyserver_relay_buffers", "size", Integer.toString(sizes[i]), buffers[i]);
+    }
+
+    out.single(
+            "proxyserver_relay_buffered_bytes",
+            Type.GAUGE,
+            "bytes",
+            "Octets relays read and didn't write yet.",
+            "proxyserver_relay_buffered_bytes",
+            stat.getRelayBufferedBytes())
+        .single(
+            "proxyserver_relay_paused_sessions",
+            Type.GAUGE,
+            null,
+            "Sessions paused by their high watermark of octets in flight.",
+            "proxyserver_relay_paused_sessions",
+            stat.getRelayPausedSessions())
+        .single(
+            "proxyserver_relay_slow_consumers",
+            Type.COUNTER,
+            null,
+            "Sessions paused for longer than the slow consumer delay.",
+            "proxyserver_relay_slow_consumers_total",
+            stat.getSlowConsumers())
+        .single(
+            "proxyserver_relay_slow_consumer_evictions",
+            Type.COUNTER,
+            null,
+            "Slow consumers closed.",
+            "proxyserver_relay_slow_consumer_evictions_total",
+            stat.getSlowConsumerEvictions());
+    List<MemoryBudget.Account> topBuffered = stat.getTopBufferedSessions(RANKS.length);
+    if (!topBuffered.isEmpty()) {
+      out.family(
+          "proxyserver_relay_session_buffered_bytes",
+          Type.GAUGE,
+          "bytes",
+          "Octets in flight of the sessions holding the most, by rank (their ids are on the stat"
+              + " page).");
+      // Ranked rather than labelled by session id, which would make a series per session
+      for (int i = 0; i < topBuffered.size(); i++) {
+        out.sample(
+            "proxyserver_relay_session_buffered_bytes",
+            "rank",
+            RANKS[i],
+            topBuffered.get(i).getBuffered());
+      }
+    }
+
+    List<TokenBucket.Stats> shaping = stat.getShapingStats();
+    if (!shaping.isEmpty()) {
+      out.family(
+          "proxyserver_shaping_bytes",
+          Type.COUNTER,
+          "bytes",
+          "Octets taken from token buckets, per level and key (user or source address).");
+      for (TokenBucket.Stats bucket : shaping) {
+        out.sample(
+            "proxyserver_shaping_bytes_total",
+            "level",
+            bucket.getLevel(),
+            "key",
+            bucket.getKey(),
+            bucket.getBytes());
+      }
+      out.family(
+          "proxyserver_shaping_throttles",
+          Type.COUNTER,
+          null,
+          "Times token buckets held relaying back.");
+      for (TokenBucket.Stats bucket : shaping) {
+        out.sample(
+            "proxyserver_shaping_throttles_total",
+            "level",
+            bucket.getLevel(),
+            "key",
+            bucket.getKey(),
+            bucket.getThrottles());
+      }
+      out.family(
+          "proxyserver_shaping_throttled_seconds",
+          Type.COUNTER,
+          "seconds",
+          "Time token buckets held relaying back.");
+      for (TokenBucket.Stats bucket : shaping) {
+        out.sample(
+            "proxyserver_shaping_throttled_seconds_total",
+            "level",
+            bucket.getLevel(),
+            "key",
+            bucket.getKey(),
+            bucket.getThrottledNanos() / 1e9);
+      }
+      out.family(
+          "proxyserver_shaping_rate_bytes",
+          Type.GAUGE,
+          "bytes",
+          "Octets per second token buckets are filled at.");
+      for (TokenBucket.Stats bucket : shaping) {
+        out.sample(
+            "proxyserver_shaping_rate_bytes",
+            "level",
+            bucket.getLevel(),
+            "key",
+            bucket.getKey(),
+            bucket.getRate());
+      }
+    }
+
+    // The handler pool is only known to be a pool of platform threads
+    if (stat.getPoolThreads() >= 0) {
+      out.single(
+              "proxyserver_handler_threads",
+              Type.GAUGE,
+              null,
+              "Threads of the handler pool.",
+              "proxyserver_handler_threads",
+              stat.getPoolThreads())
+          .single(
+              "proxyserver_handler_active_threads",
+              Type.GAUGE,
+              null,
+              "Threads of the handler pool running a handler.",
+              "proxyserver_handler_active_threads",
+              stat.getPoolActiveThreads());
+    }
+    out.single(
+            "proxyserver_jvm_threads",
+            Type.GAUGE,
+            null,
+            "Live platform threads of the JVM.",
+            "proxyserver_jvm_threads",
+            threads.getThreadCount())
+        .eof();
+    if (sb.length() > capacity) {
+      capacity = sb.length() + sb.length() / 4;
+    }
+    return sb.toString();
+  }
+
+  private static String[] labelValues(Enum<?>[] values) {
+    String[] labels = new String[values.length];
+    for (Enum<?> value : values) {
+      labels[value.ordinal()] = value.name().toLowerCase(Locale.ROOT);
+    }
+    return labels;
+  }
+}
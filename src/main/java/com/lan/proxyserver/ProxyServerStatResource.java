@@ -1,7 +1,13 @@
 package com.lan.proxyserver;
 
 import com.lan.proxyserver.lifecycle.ProxyServerLifecycleBean;
+import com.lan.proxyserver.proxy.connect.DestinationConnector.Failure;
+import com.lan.proxyserver.proxy.metrics.LatencyHistogram;
+import com.lan.proxyserver.proxy.relay.MemoryBudget;
+import com.lan.proxyserver.proxy.shaping.TokenBucket;
+import com.lan.proxyserver.proxy.socks.SessionTimer.Reason;
 import com.lan.proxyserver.proxy.socks.SocksServerStat;
+import com.lan.proxyserver.proxy.socks.SocksServerStat.Latency;
 import io.quarkus.qute.Location;
 import io.quarkus.qute.Template;
 import io.quarkus.qute.TemplateInstance;
@@ -9,6 +15,8 @@ import jakarta.ws.rs.GET;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.core.MediaType;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
 
 @Path("/proxyserver/stat")
 public class ProxyServerStatResource {
@@ -23,6 +31,152 @@ public class ProxyServerStatResource {
     return stat.data(
             "totolAcceptedConnections",
             String.format("%,d", socksServerStat.getTotalAcceptedConnections()))
-        .data("currentConnections", String.format("%,d", socksServerStat.getCurrentConnections()));
+        .data("currentConnections", String.format("%,d", socksServerStat.getCurrentConnections()))
+        .data("forwardedBytes", String.format("%,d", socksServerStat.getForwardedBytes()))
+        .data("backwardedBytes", String.format("%,d", socksServerStat.getBackwardedBytes()))
+        .data("relayWrites", String.format("%,d", socksServerStat.getRelayWrites()))
+        .data("bytesPerWrite", bytesPerWrite(socksServerStat))
+        .data("handshakeLatency", latency(socksServerStat.getLatency(Latency.HANDSHAKE)))
+        .data("authLatency", latency(socksServerStat.getLatency(Latency.AUTH)))
+        .data("credentialUsers", String.format("%,d", socksServerStat.getCredentialUsers()))
+        .data(
+            "credentialCacheHits", String.format("%,d", socksServerStat.getCredentialCacheHits()))
+        .data(
+            "credentialCacheMisses",
+            String.format("%,d", socksServerStat.getCredentialCacheMisses()))
+        .data("credentialCacheSize", String.format("%,d", socksServerStat.getCredentialCacheSize()))
+        .data(
+            "credentialHitLatency",
+            latency(socksServerStat.getCredentialVerificationLatency(true)))
+        .data(
+            "credentialMissLatency",
+            latency(socksServerStat.getCredentialVerificationLatency(false)))
+        .data("connectTime", latency(socksServerStat.getLatency(Latency.CONNECT)))
+        .data("firstByteLatency", latency(socksServerStat.getLatency(Latency.FIRST_BYTE)))
+        .data("sessionDuration", latency(socksServerStat.getLatency(Latency.SESSION)))
+        .data("bufferPoolHits", String.format("%,d", socksServerStat.getBufferPoolHits()))
+        .data("bufferPoolMisses", String.format("%,d", socksServerStat.getBufferPoolMisses()))
+        .data(
+            "bufferPoolOutstandingBytes",
+            String.format("%,d", socksServerStat.getBufferPoolOutstandingBytes()))
+        .data("relayBuffers", relayBuffers(socksServerStat))
+        .data("relayBufferedBytes", String.format("%,d", socksServerStat.getRelayBufferedBytes()))
+        .data(
+            "relayPausedSessions", String.format("%,d", socksServerStat.getRelayPausedSessions()))
+        .data("slowConsumers", String.format("%,d", socksServerStat.getSlowConsumers()))
+        .data(
+            "slowConsumerEvictions",
+            String.format("%,d", socksServerStat.getSlowConsumerEvictions()))
+        .data("topBufferedSessions", topBufferedSessions(socksServerStat))
+        .data("connectAttempts", String.format("%,d", socksServerStat.getConnectAttempts()))
+        .data("connectSuccesses", String.format("%,d", socksServerStat.getConnectSuccesses()))
+        .data("connectFailures", connectFailures(socksServerStat))
+        .data(
+            "connectNegativeCacheHits",
+            String.format("%,d", socksServerStat.getConnectNegativeCacheHits()))
+        .data(
+            "connectMeanLatency",
+            String.format("%,d", socksServerStat.getConnectMeanLatencyMicros()))
+        .data(
+            "connectMaxLatency",
+            String.format("%,d", socksServerStat.getConnectMaxLatencyMicros()))
+        .data("binds", String.format("%,d", socksServerStat.getBinds()))
+        .data("bindExhaustions", String.format("%,d", socksServerStat.getBindExhaustions()))
+        .data("bindListeners", String.format("%,d", socksServerStat.getBindListeners()))
+        .data("bindAccepts", String.format("%,d", socksServerStat.getBindAccepts()))
+        .data("bindTimeouts", String.format("%,d", socksServerStat.getBindTimeouts()))
+        .data("bindMeanWait", String.format("%,d", socksServerStat.getBindMeanWaitMillis()))
+        .data("bindMaxWait", String.format("%,d", socksServerStat.getBindMaxWaitMillis()))
+        .data("udpAssociations", String.format("%,d", socksServerStat.getUdpAssociations()))
+        .data(
+            "udpClientDatagrams", String.format("%,d", socksServerStat.getUdpClientDatagrams()))
+        .data(
+            "udpRemoteDatagrams", String.format("%,d", socksServerStat.getUdpRemoteDatagrams()))
+        .data(
+            "udpDroppedDatagrams", String.format("%,d", socksServerStat.getUdpDroppedDatagrams()))
+        .data("handshakes", String.format("%,d", socksServerStat.getAdmittedHandshakes()))
+        .data("queuedHandshakes", String.format("%,d", socksServerStat.getQueuedHandshakes()))
+        .data("sessions", String.format("%,d", socksServerStat.getAdmittedSessions()))
+        .data("rejectedHandshakes", String.format("%,d", socksServerStat.getRejectedHandshakes()))
+        .data("rejectedSessions", String.format("%,d", socksServerStat.getRejectedSessions()))
+        .data(
+            "sourceRejections",
+            String.format("%,d", socksServerStat.getAdmissionSourceRejections()))
+        .data("admissionWaits", String.format("%,d", socksServerStat.getAdmissionWaits()))
+        .data("acceptStalls", String.format("%,d", socksServerStat.getAcceptStalls()))
+        .data("timedSessions", String.format("%,d", socksServerStat.getTimedSessions()))
+        .data("sessionExpirations", sessionExpirations(socksServerStat))
+        .data("shaping", shaping(socksServerStat));
+  }
+
+  private static String latency(LatencyHistogram.Snapshot snapshot) {
+    return String.format(
+        "p50 %,d us, p99 %,d us, p999 %,d us, max %,d us (%,d sessions)",
+        snapshot.getQuantile(0.5),
+        snapshot.getQuantile(0.99),
+        snapshot.getQuantile(0.999),
+        snapshot.getMax(),
+        snapshot.getCount());
+  }
+
+  private static String bytesPerWrite(SocksServerStat socksServerStat) {
+    long writes = socksServerStat.getRelayWrites();
+    return String.format("%,d", writes > 0 ? socksServerStat.getRelayWrittenBytes() / writes : 0);
+  }
+
+  private static String relayBuffers(SocksServerStat socksServerStat) {
+    int[] sizes = socksServerStat.getRelayBufferSizes();
+    long[] buffers = socksServerStat.getRelayBuffers();
+    StringJoiner distribution = new StringJoiner(", ");
+    for (int i = 0; i < sizes.length; i++) {
+      if (buffers[i] > 0) {
+        distribution.add(String.format("%,d bytes %,d", sizes[i], buffers[i]));
+      }
+    }
+    return distribution.length() > 0 ? distribution.toString() : "none";
+  }
+
+  private static String topBufferedSessions(SocksServerStat socksServerStat) {
+    StringJoiner sessions = new StringJoiner(", ");
+    for (MemoryBudget.Account account : socksServerStat.getTopBufferedSessions(10)) {
+      sessions.add(
+          String.format(
+              "session %d from %s %,d bytes",
+              account.getSessionId(), account.getClient(), account.getBuffered()));
+    }
+    return sessions.length() > 0 ? sessions.toString() : "none";
+  }
+
+  private static String sessionExpirations(SocksServerStat socksServerStat) {
+    StringJoiner expirations = new StringJoiner(", ");
+    for (Reason reason : Reason.values()) {
+      expirations.add(
+          String.format("%s %,d", reason, socksServerStat.getSessionExpirations(reason)));
+    }
+    return expirations.toString();
+  }
+
+  private static String shaping(SocksServerStat socksServerStat) {
+    StringJoiner buckets = new StringJoiner(", ");
+    for (TokenBucket.Stats stats : socksServerStat.getShapingStats()) {
+      buckets.add(
+          String.format(
+              "%s%s %,d bytes at %,d bytes/s, throttled %,d times for %,d ms",
+              stats.getLevel(),
+              stats.getKey().isEmpty() ? "" : " " + stats.getKey(),
+              stats.getBytes(),
+              stats.getRate(),
+              stats.getThrottles(),
+              TimeUnit.NANOSECONDS.toMillis(stats.getThrottledNanos())));
+    }
+    return buckets.length() > 0 ? buckets.toString() : "none";
+  }
+
+  private static String connectFailures(SocksServerStat socksServerStat) {
+    StringJoiner failures = new StringJoiner(", ");
+    for (Failure failure : Failure.values()) {
+      failures.add(String.format("%s %,d", failure, socksServerStat.getConnectFailures(failure)));
+    }
+    return failures.toString();
   }
 }
@@ -0,0 +1,163 @@
+package com.lan.proxyserver;
+
+import com.lan.proxyserver.config.Configer;
+import com.lan.proxyserver.lifecycle.ProxyServerLifecycleBean;
+import com.lan.proxyserver.proxy.trace.PayloadTracer;
+import com.lan.proxyserver.proxy.trace.TraceRule;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.net.SocketAddress;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.ServiceUnavailableException;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Switches payload tracing on and off at runtime, e.g. {@code POST
+ * /proxyserver/trace?client=10.0.0.7&max_bytes=1024} traces the first KiB of each direction of
+ * every tunnel of that client, including the ones already established
+ *
+ * <p>Traces dump payloads, so they are only managed by local clients, or by those presenting the
+ * token set as {@code proxy_server.socks.trace.token} ({@code Authorization: Bearer <token>}).
+ * Addresses are IP literals, never looked up.
+ */
+@Path("/proxyserver/trace")
+@Produces(MediaType.TEXT_PLAIN)
+public class ProxyServerTraceResource {
+  private static final Pattern IP_V4 =
+      Pattern.compile("(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})");
+  // Starting with a hex digit or a colon, which InetAddress parses as a literal and doesn't look up
+  private static final Pattern IP_V6 = Pattern.compile("[0-9A-Fa-f]*:[0-9A-Fa-f:.]*(%[\\w.-]+)?");
+
+  @GET
+  public String rules(@Context HttpServerRequest request) {
+    checkAccess(request);
+    PayloadTracer tracer = getPayloadTracer();
+    StringBuilder sb = new StringBuilder();
+    for (TraceRule rule : tracer.getRules()) {
+      sb.append(rule).append('\n');
+    }
+    sb.append(String.format("Dropped records: %,d%n", tracer.getDropped()));
+    return sb.toString();
+  }
+
+  @POST
+  public String addRule(
+      @Context HttpServerRequest request,
+      @QueryParam("session") Long sessionId,
+      @QueryParam("client") String clientAddress,
+      @QueryParam("dest") String destAddress,
+      @QueryParam("port") @DefaultValue("0") int destPort,
+      @QueryParam("sample") @DefaultValue("1") double sampleRate,
+      @QueryParam("max_bytes") @DefaultValue("4096") int maxBytes) {
+    checkAccess(request);
+    PayloadTracer tracer = getPayloadTracer();
+    TraceRule rule;
+    try {
+      rule =
+          new TraceRule(
+              sessionId,
+              toInetAddress(clientAddress),
+              toInetAddress(destAddress),
+              destPort,
+              sampleRate,
+              maxBytes);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(e.getMessage());
+    }
+    tracer.addRule(rule);
+    return rule + "\n";
+  }
+
+  @DELETE
+  @Path("{id}")
+  public String removeRule(@Context HttpServerRequest request, @PathParam("id") long id) {
+    checkAccess(request);
+    if (!getPayloadTracer().removeRule(id)) {
+      throw new NotFoundException("No payload trace rule #" + id);
+    }
+    return "Removed #" + id + "\n";
+  }
+
+  @DELETE
+  public String clearRules(@Context HttpServerRequest request) {
+    checkAccess(request);
+    getPayloadTracer().clearRules();
+    return "Removed all\n";
+  }
+
+  private static PayloadTracer getPayloadTracer() {
+    PayloadTracer tracer = ProxyServerLifecycleBean.getPayloadTracer();
+    if (tracer == null) {
+      throw new ServiceUnavailableException("Proxy server isn't running");
+    }
+    return tracer;
+  }
+
+  private static void checkAccess(HttpServerRequest request) {
+    String token = Configer.getStr("", PayloadTracer.cfgStrPrefix, "token");
+    String authorization = request.getHeader("Authorization");
+    if (!token.isEmpty()
+        && authorization != null
+        && MessageDigest.isEqual(
+            ("Bearer " + token).getBytes(StandardCharsets.UTF_8),
+            authorization.getBytes(StandardCharsets.UTF_8))) {
+      return;
+    }
+    SocketAddress remote = request.remoteAddress();
+    InetAddress remoteAddress = null;
+    try {
+      remoteAddress = remote == null ? null : toInetAddress(remote.hostAddress());
+    } catch (IllegalArgumentException e) {
+      // e.g. a unix domain socket
+    }
+    if (remoteAddress == null || !remoteAddress.isLoopbackAddress()) {
+      throw new ForbiddenException("Payload tracing is managed locally or with the trace token");
+    }
+  }
+
+  /**
+   * @return null if there is no address
+   * @throws IllegalArgumentException if the address isn't an IP literal
+   */
+  private static InetAddress toInetAddress(String address) {
+    if (address == null || address.isEmpty()) {
+      return null;
+    }
+    Matcher ipV4 = IP_V4.matcher(address);
+    try {
+      if (ipV4.matches()) {
+        byte[] octets = new byte[4];
+        for (int i = 0; i < octets.length; i++) {
+          int octet = Integer.parseInt(ipV4.group(i + 1));
+          if (octet > 0xFF) {
+            throw new IllegalArgumentException("Invalid IP address " + address);
+          }
+          octets[i] = (byte) octet;
+        }
+        return InetAddress.getByAddress(octets);
+      }
+      if (IP_V6.matcher(address).matches()) {
+        return InetAddress.getByName(address);
+      }
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException("Invalid IP address " + address, e);
+    }
+    throw new IllegalArgumentException("Not an IP address " + address);
+  }
+}
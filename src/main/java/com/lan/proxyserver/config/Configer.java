@@ -25,6 +25,10 @@ public class Configer {
     return getConfig().getOptionalValue(buildKey(sections), Boolean.class).orElse(def);
   }
 
+  public static int getInt(int def, String... sections) {
+    return getConfig().getOptionalValue(buildKey(sections), Integer.class).orElse(def);
+  }
+
   public static String getStr(String def, String... sections) {
     return getConfig().getOptionalValue(buildKey(sections), String.class).orElse(def);
   }
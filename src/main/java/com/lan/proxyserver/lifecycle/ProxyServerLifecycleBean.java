@@ -2,6 +2,7 @@ package com.lan.proxyserver.lifecycle;
 
 import com.lan.proxyserver.proxy.ProxyServerThread;
 import com.lan.proxyserver.proxy.socks.SocksServerStat;
+import com.lan.proxyserver.proxy.trace.PayloadTracer;
 import io.quarkus.runtime.ShutdownEvent;
 import io.quarkus.runtime.StartupEvent;
 import jakarta.enterprise.context.ApplicationScoped;
@@ -22,4 +23,8 @@ public class ProxyServerLifecycleBean {
   public static SocksServerStat getProxyServerStat() {
     return proxyServerThread.getSocksServerStat();
   }
+
+  public static PayloadTracer getPayloadTracer() {
+    return proxyServerThread.getPayloadTracer();
+  }
 }
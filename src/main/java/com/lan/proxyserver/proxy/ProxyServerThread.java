@@ -2,6 +2,7 @@ package com.lan.proxyserver.proxy;
 
 import com.lan.proxyserver.proxy.socks.SocksServer;
 import com.lan.proxyserver.proxy.socks.SocksServerStat;
+import com.lan.proxyserver.proxy.trace.PayloadTracer;
 import java.io.IOException;
 import org.jboss.logging.Logger;
 
@@ -68,6 +69,16 @@ public class ProxyServerThread extends Thread {
     return socksServer.getSocksServerStat();
   }
 
+  /**
+   * @return null if the proxy server isn't running
+   */
+  public PayloadTracer getPayloadTracer() {
+    if (socksServer == null) {
+      return null;
+    }
+    return socksServer.getPayloadTracer();
+  }
+
   public boolean isRunning() {
     if (socksServer == null) {
       return false;
@@ -0,0 +1,213 @@
+package com.lan.proxyserver.proxy.admission;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the handshakes in progress and the sessions (connections whose request was granted), both
+ * overall and per source address. A connection takes a handshake slot when accepted and keeps it
+ * until it gets a session slot, so that when sessions are at their limit, handshakes pile up to
+ * theirs and acceptors stop: the backpressure reaches the kernel backlog. Limits per source always
+ * refuse, the {@link OverloadPolicy} tells what happens when a global limit is reached.
+ */
+public class AdmissionController {
+  public static final String cfgStrPrefix = "proxy_server.socks.admission";
+
+  /** What becomes of a connection just accepted */
+  public static enum Admission {
+    ADMITTED,
+    /** To be closed right away */
+    REFUSED,
+    /** To wait for a slot in {@link AdmissionController#awaitHandshake}, off the acceptor thread */
+    QUEUED
+  }
+
+  private final OverloadPolicy policy;
+  private final long queueTimeout;
+  private final Limiter handshakes;
+  private final Limiter sessions;
+  private final int maxQueuedHandshakes;
+  private final AtomicInteger queuedHandshakes;
+
+  private final LongAdder rejectedHandshakes;
+  private final LongAdder rejectedSessions;
+  private final LongAdder sourceRejections;
+  private final LongAdder waits;
+  private final LongAdder acceptStalls;
+
+  /**
+   * @param queueTimeoutMillis how long connections wait for a slot under {@link
+   *     OverloadPolicy#QUEUE}
+   * @param maxHandshakes non-positive for no limit, as the other limits
+   */
+  public AdmissionController(
+      OverloadPolicy policy,
+      long queueTimeoutMillis,
+      int maxHandshakes,
+      int maxHandshakesPerSource,
+      int maxSessions,
+      int maxSessionsPerSource) {
+    this.policy = policy;
+    queueTimeout = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    handshakes = new Limiter(maxHandshakes, maxHandshakesPerSource);
+    sessions = new Limiter(maxSessions, maxSessionsPerSource);
+    maxQueuedHandshakes = maxHandshakes;
+    queuedHandshakes = new AtomicInteger();
+    rejectedHandshakes = new LongAdder();
+    rejectedSessions = new LongAdder();
+    sourceRejections = new LongAdder();
+    waits = new LongAdder();
+    acceptStalls = new LongAdder();
+  }
+
+  /**
+   * Called by acceptors before accepting, under {@link OverloadPolicy#BLOCK} waits while the
+   * handshakes are at their limit
+   *
+   * @return false if they still are after the timeout, for the acceptor to check whether it is to
+   *     stop before waiting again
+   */
+  public boolean awaitAccept(long timeoutMillis) throws InterruptedException {
+    if (policy != OverloadPolicy.BLOCK || !handshakes.isGlobalLimited()) {
+      return true;
+    }
+    if (handshakes.isBelowLimit()) {
+      return true;
+    }
+    acceptStalls.increment();
+    return handshakes.awaitBelowLimit(timeoutMillis);
+  }
+
+  /**
+   * Called by acceptors with every connection accepted, never waits. Acceptors wait before
+   * accepting rather than here under {@link OverloadPolicy#BLOCK}, with another acceptor racing for
+   * the last slot a connection may still be refused. Under {@link OverloadPolicy#QUEUE}, as many
+   * connections may be queued as handshakes may be in progress, those beyond are refused.
+   */
+  public Admission admitHandshake(InetAddress source) throws InterruptedException {
+    Limiter.Result result = handshakes.acquire(source, 0);
+    if (result == Limiter.Result.ADMITTED) {
+      return Admission.ADMITTED;
+    }
+    if (result == Limiter.Result.GLOBAL_LIMIT && policy == OverloadPolicy.QUEUE) {
+      if (queuedHandshakes.incrementAndGet() <= maxQueuedHandshakes) {
+        waits.increment();
+        return Admission.QUEUED;
+      }
+      queuedHandshakes.decrementAndGet();
+    }
+    if (result == Limiter.Result.SOURCE_LIMIT) {
+      sourceRejections.increment();
+    }
+    rejectedHandshakes.increment();
+    return Admission.REFUSED;
+  }
+
+  /**
+   * Waits for a handshake slot up to the queue timeout, for a connection {@link Admission#QUEUED}
+   *
+   * @return false if the connection is to be refused
+   */
+  public boolean awaitHandshake(InetAddress source) throws InterruptedException {
+    Limiter.Result result;
+    try {
+      result = handshakes.acquire(source, queueTimeout);
+    } finally {
+      queuedHandshakes.decrementAndGet();
+    }
+    if (result == Limiter.Result.ADMITTED) {
+      return true;
+    }
+    if (result == Limiter.Result.SOURCE_LIMIT) {
+      sourceRejections.increment();
+    }
+    rejectedHandshakes.increment();
+    return false;
+  }
+
+  public void releaseHandshake(InetAddress source) {
+    handshakes.release(source);
+  }
+
+  /**
+   * Called once the request of a connection is received, may wait for a slot depending on the
+   * policy
+   *
+   * @return false if the request is to be refused
+   */
+  public boolean admitSession(InetAddress source) throws InterruptedException {
+    long timeout =
+        switch (policy) {
+          case BLOCK -> -1;
+          case REJECT -> 0;
+          case QUEUE -> queueTimeout;
+        };
+    if (admit(sessions, source, timeout)) {
+      return true;
+    }
+    rejectedSessions.increment();
+    return false;
+  }
+
+  public void releaseSession(InetAddress source) {
+    sessions.release(source);
+  }
+
+  private boolean admit(Limiter limiter, InetAddress source, long timeout)
+      throws InterruptedException {
+    Limiter.Result result = limiter.acquire(source, 0);
+    if (result == Limiter.Result.GLOBAL_LIMIT && timeout != 0) {
+      waits.increment();
+      result = limiter.acquire(source, timeout);
+    }
+    if (result == Limiter.Result.SOURCE_LIMIT) {
+      sourceRejections.increment();
+    }
+    return result == Limiter.Result.ADMITTED;
+  }
+
+  public OverloadPolicy getPolicy() {
+    return policy;
+  }
+
+  /** Connections accepted whose request isn't received yet */
+  public int getHandshakes() {
+    return handshakes.getCount();
+  }
+
+  public int getSessions() {
+    return sessions.getCount();
+  }
+
+  /** Connections waiting for a handshake slot */
+  public int getQueuedHandshakes() {
+    return queuedHandshakes.get();
+  }
+
+  /** Connections refused as soon as accepted, or once they waited for a slot in vain */
+  public long getRejectedHandshakes() {
+    return rejectedHandshakes.sum();
+  }
+
+  /** Requests refused with a general failure */
+  public long getRejectedSessions() {
+    return rejectedSessions.sum();
+  }
+
+  /** Refusals due to a limit per source address, of both kinds */
+  public long getSourceRejections() {
+    return sourceRejections.sum();
+  }
+
+  /** Connections that had to wait for a slot, whether they got one in the end or not */
+  public long getWaits() {
+    return waits.sum();
+  }
+
+  /** Times acceptors stopped accepting, handshakes being at their limit */
+  public long getAcceptStalls() {
+    return acceptStalls.sum();
+  }
+}
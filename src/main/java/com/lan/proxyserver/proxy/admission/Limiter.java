@@ -0,0 +1,129 @@
+package com.lan.proxyserver.proxy.admission;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counts slots taken, overall and per source address, against their limits. Waits park on a lock
+ * rather than a monitor, which would pin the carrier of a virtual thread.
+ */
+class Limiter {
+  static enum Result {
+    ADMITTED,
+    GLOBAL_LIMIT,
+    SOURCE_LIMIT
+  }
+
+  private final int max;
+  private final int maxPerSource;
+  private final Map<InetAddress, Integer> perSource;
+  private final ReentrantLock lock;
+  private final Condition released;
+  private int count;
+
+  /**
+   * @param max non-positive for no limit
+   * @param maxPerSource non-positive for no limit
+   */
+  Limiter(int max, int maxPerSource) {
+    this.max = max;
+    this.maxPerSource = maxPerSource;
+    perSource = new HashMap<>();
+    lock = new ReentrantLock();
+    released = lock.newCondition();
+  }
+
+  /**
+   * Only the global limit is waited for, a source at its own limit is refused right away so that
+   * a single busy source cannot hold up the others
+   *
+   * @param timeoutNanos how long to wait for the global limit, negative to wait as long as needed,
+   *     0 not to wait
+   */
+  Result acquire(InetAddress source, long timeoutNanos) throws InterruptedException {
+    long remaining = timeoutNanos;
+    lock.lockInterruptibly();
+    try {
+      while (true) {
+        if (maxPerSource > 0 && perSource.getOrDefault(source, 0) >= maxPerSource) {
+          return Result.SOURCE_LIMIT;
+        }
+        if (max <= 0 || count < max) {
+          count++;
+          if (maxPerSource > 0) {
+            perSource.merge(source, 1, Integer::sum);
+          }
+          return Result.ADMITTED;
+        }
+        if (timeoutNanos < 0) {
+          released.await();
+          continue;
+        }
+        if (remaining <= 0) {
+          return Result.GLOBAL_LIMIT;
+        }
+        remaining = released.awaitNanos(remaining);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isBelowLimit() {
+    lock.lock();
+    try {
+      return max <= 0 || count < max;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param timeoutMillis positive
+   * @return true if the global limit isn't reached (anymore) within the timeout, without taking
+   *     any slot
+   */
+  boolean awaitBelowLimit(long timeoutMillis) throws InterruptedException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    lock.lockInterruptibly();
+    try {
+      while (max > 0 && count >= max && remaining > 0) {
+        remaining = released.awaitNanos(remaining);
+      }
+      return max <= 0 || count < max;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void release(InetAddress source) {
+    lock.lock();
+    try {
+      count--;
+      if (maxPerSource > 0) {
+        perSource.computeIfPresent(source, (key, n) -> n <= 1 ? null : n - 1);
+      }
+      // Waiters for a slot and waiters for the limit alike
+      released.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int getCount() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isGlobalLimited() {
+    return max > 0;
+  }
+}
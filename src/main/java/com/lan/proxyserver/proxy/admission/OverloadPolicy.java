@@ -0,0 +1,29 @@
+package com.lan.proxyserver.proxy.admission;
+
+/** What happens to a connection arriving while a global limit is reached */
+public enum OverloadPolicy {
+  /**
+   * Handshakes: acceptors stop accepting, new connections wait in the kernel backlog. Sessions:
+   * requests wait for a slot, holding their handshake slot meanwhile so that acceptors stop as well
+   */
+  BLOCK("block"),
+  /** Connections are rejected right away */
+  REJECT("reject"),
+  /** Connections wait for a slot up to the queue timeout, then are rejected */
+  QUEUE("queue");
+
+  private final String name;
+
+  OverloadPolicy(String name) {
+    this.name = name;
+  }
+
+  public static OverloadPolicy get(String name) {
+    for (OverloadPolicy op : OverloadPolicy.values()) {
+      if (op.name.equalsIgnoreCase(name)) {
+        return op;
+      }
+    }
+    return null;
+  }
+}
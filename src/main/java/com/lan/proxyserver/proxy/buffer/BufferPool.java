@@ -0,0 +1,246 @@
+package com.lan.proxyserver.proxy.buffer;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.jboss.logging.Logger;
+
+/**
+ * Direct buffers shared by every session, borrowed with {@link #acquire(int)} and given back with
+ * {@link #release(ByteBuffer)}.
+ *
+ * <p>Buffers come in power of two size classes, each class carving its buffers out of slabs of
+ * direct memory, and slabs are only reserved up to a hard ceiling. Released buffers go to a free
+ * list per class, fronted by a small cache per platform thread so that a thread acquiring and
+ * releasing buffers doesn't contend with the others. Once the ceiling is reached (or for sizes
+ * above the largest class), requests are served with unpooled heap buffers.
+ */
+public class BufferPool {
+  private static final Logger logger = Logger.getLogger(BufferPool.class);
+  private static final Cleaner cleaner = Cleaner.create();
+
+  private static final int MIN_SIZE_SHIFT = 9; // 512 B
+  private static final int MAX_SIZE_SHIFT = 16; // 64 KiB
+  private static final int SLAB_SIZE = 256 * 1024;
+  public static final String cfgStrPrefix = "proxy_server.socks.buffer";
+
+  private final long maxMemory;
+  private final int threadCacheSize;
+  private final SizeClass[] sizeClasses;
+  private final ThreadLocal<ThreadCache> threadCaches;
+  private final AtomicLong reservedBytes;
+  private final LongAdder outstandingBytes;
+  private final LongAdder hits;
+  private final LongAdder misses;
+
+  /**
+   * @param maxMemory ceiling of the direct memory reserved for slabs, in bytes
+   * @param threadCacheSize number of free buffers of each size class every platform thread keeps
+   *     at hand, 0 disables thread caches
+   */
+  public BufferPool(long maxMemory, int threadCacheSize) {
+    this.maxMemory = maxMemory;
+    this.threadCacheSize = threadCacheSize;
+    sizeClasses = new SizeClass[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+    for (int i = 0; i < sizeClasses.length; i++) {
+      sizeClasses[i] = new SizeClass(1 << (MIN_SIZE_SHIFT + i));
+    }
+    threadCaches = ThreadLocal.withInitial(this::newThreadCache);
+    reservedBytes = new AtomicLong();
+    outstandingBytes = new LongAdder();
+    hits = new LongAdder();
+    misses = new LongAdder();
+  }
+
+  /**
+   * @return a cleared buffer of at least {@code size} bytes (its capacity is rounded up to the size
+   *     class), to be given back with {@link #release(ByteBuffer)} once done with it
+   */
+  public ByteBuffer acquire(int size) {
+    int index = sizeClassIndex(size);
+    ByteBuffer buffer = null;
+    if (index >= 0) {
+      ThreadCache cache = threadCache();
+      if (cache != null) {
+        buffer = cache.poll(index);
+      }
+      if (buffer == null) {
+        buffer = sizeClasses[index].freeBuffers.poll();
+      }
+    }
+
+    if (buffer != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+      if (index >= 0) {
+        buffer = sizeClasses[index].carve();
+      }
+      if (buffer == null) {
+        buffer = ByteBuffer.allocate(index >= 0 ? sizeClasses[index].size : size);
+      }
+    }
+
+    outstandingBytes.add(buffer.capacity());
+    return buffer.clear();
+  }
+
+  /**
+   * Gives back a buffer obtained from {@link #acquire(int)}, the buffer must not be used anymore
+   * afterward. Null is ignored.
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    outstandingBytes.add(-buffer.capacity());
+    if (!buffer.isDirect()) {
+      // Unpooled, left to the garbage collector
+      return;
+    }
+
+    int index = sizeClassIndex(buffer.capacity());
+    if (index < 0 || sizeClasses[index].size != buffer.capacity()) {
+      logger.debugf("Drop a direct buffer of %d byte(s) not from the pool", buffer.capacity());
+      return;
+    }
+    ThreadCache cache = threadCache();
+    if (cache != null && cache.offer(index, buffer)) {
+      return;
+    }
+    sizeClasses[index].freeBuffers.offer(buffer);
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /** Bytes currently borrowed (pooled or not) and not given back yet */
+  public long getOutstandingBytes() {
+    return outstandingBytes.sum();
+  }
+
+  /** Direct memory reserved for slabs, never more than the ceiling */
+  public long getReservedBytes() {
+    return reservedBytes.get();
+  }
+
+  public long getMaxMemory() {
+    return maxMemory;
+  }
+
+  /**
+   * @return -1 if {@code size} is above the largest size class
+   */
+  private static int sizeClassIndex(int size) {
+    if (size <= 1 << MIN_SIZE_SHIFT) {
+      return 0;
+    }
+    int shift = Integer.SIZE - Integer.numberOfLeadingZeros(size - 1);
+    return shift > MAX_SIZE_SHIFT ? -1 : shift - MIN_SIZE_SHIFT;
+  }
+
+  /**
+   * Virtual threads get no cache, being created per task they would strand their buffers until
+   * collected
+   */
+  private ThreadCache threadCache() {
+    if (threadCacheSize <= 0 || Thread.currentThread().isVirtual()) {
+      return null;
+    }
+    return threadCaches.get();
+  }
+
+  private ThreadCache newThreadCache() {
+    ThreadCache cache = new ThreadCache(sizeClasses.length, threadCacheSize);
+    // Once the owning thread dies, its cached buffers go back to the free lists
+    ByteBuffer[][] buffers = cache.buffers;
+    cleaner.register(cache, () -> flush(buffers));
+    return cache;
+  }
+
+  private void flush(ByteBuffer[][] buffers) {
+    for (int i = 0; i < buffers.length; i++) {
+      for (ByteBuffer buffer : buffers[i]) {
+        if (buffer != null) {
+          sizeClasses[i].freeBuffers.offer(buffer);
+        }
+      }
+    }
+  }
+
+  private boolean reserve(int bytes) {
+    long reserved;
+    do {
+      reserved = reservedBytes.get();
+      if (reserved + bytes > maxMemory) {
+        return false;
+      }
+    } while (!reservedBytes.compareAndSet(reserved, reserved + bytes));
+    return true;
+  }
+
+  private class SizeClass {
+    private final int size;
+    private final Queue<ByteBuffer> freeBuffers;
+    private ByteBuffer slab;
+
+    SizeClass(int size) {
+      this.size = size;
+      freeBuffers = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @return null if a new slab would exceed the ceiling
+     */
+    synchronized ByteBuffer carve() {
+      if (slab == null || slab.remaining() < size) {
+        int slabSize = Math.max(size, SLAB_SIZE);
+        if (!reserve(slabSize)) {
+          logger.debugf(
+              "Buffer pool ceiling of %d byte(s) reached, serve %d byte(s) unpooled",
+              maxMemory, size);
+          return null;
+        }
+        slab = ByteBuffer.allocateDirect(slabSize);
+      }
+      ByteBuffer buffer = slab.slice(slab.position(), size);
+      slab.position(slab.position() + size);
+      return buffer;
+    }
+  }
+
+  private static class ThreadCache {
+    private final ByteBuffer[][] buffers;
+    private final int[] counts;
+
+    ThreadCache(int nsizeClasses, int size) {
+      buffers = new ByteBuffer[nsizeClasses][size];
+      counts = new int[nsizeClasses];
+    }
+
+    ByteBuffer poll(int index) {
+      if (counts[index] == 0) {
+        return null;
+      }
+      ByteBuffer buffer = buffers[index][--counts[index]];
+      buffers[index][counts[index]] = null;
+      return buffer;
+    }
+
+    boolean offer(int index, ByteBuffer buffer) {
+      if (counts[index] == buffers[index].length) {
+        return false;
+      }
+      buffers[index][counts[index]++] = buffer;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+package com.lan.proxyserver.proxy.connect;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import org.jboss.logging.Logger;
+
+/**
+ * Opens the listeners of BIND requests, on ports taken from a configured range (or ephemeral
+ * ones), and waits for the single connection each of them accepts.
+ */
+public class BindAcceptor {
+  private static final Logger logger = Logger.getLogger(BindAcceptor.class);
+  public static final String cfgStrPrefix = "proxy_server.socks.bind";
+
+  private final int minPort;
+  private final int nports;
+  private final long acceptTimeoutMillis;
+  private final AtomicInteger nextPort;
+  private final AtomicInteger listeners;
+
+  private final LongAdder binds;
+  private final LongAdder exhaustions;
+  private final LongAdder accepts;
+  private final LongAdder timeouts;
+  private final LongAdder waitSum;
+  private final LongAccumulator waitMax;
+
+  /**
+   * @param portRange "min-max" (inclusive), empty for ephemeral ports
+   * @param acceptTimeoutMillis how long a listener waits for its connection
+   */
+  public BindAcceptor(String portRange, long acceptTimeoutMillis) {
+    int min = 0;
+    int max = 0;
+    if (!portRange.isBlank()) {
+      String[] bounds = portRange.split("-", 2);
+      try {
+        min = Integer.parseInt(bounds[0].trim());
+        max = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : min;
+      } catch (NumberFormatException e) {
+        min = max = -1;
+      }
+      if (min <= 0 || max < min || max > 0xFFFF) {
+        logger.errorf("Invalid bind port range '%s', fall back to ephemeral ports", portRange);
+        min = max = 0;
+      }
+    }
+    minPort = min;
+    nports = max - min + 1;
+    this.acceptTimeoutMillis = acceptTimeoutMillis;
+    nextPort = new AtomicInteger();
+    listeners = new AtomicInteger();
+    binds = new LongAdder();
+    exhaustions = new LongAdder();
+    accepts = new LongAdder();
+    timeouts = new LongAdder();
+    waitSum = new LongAdder();
+    waitMax = new LongAccumulator(Math::max, 0);
+  }
+
+  /**
+   * Ports of the range are tried in turn starting after the last one handed out, so that a port
+   * just released is not reused right away
+   *
+   * @throws BindException if every port of the range is taken
+   */
+  public Listener open(InetAddress address) throws IOException {
+    for (int i = 0; i < nports; i++) {
+      int port = minPort == 0 ? 0 : minPort + Math.floorMod(nextPort.getAndIncrement(), nports);
+      ServerSocketChannel channel = ServerSocketChannel.open();
+      try {
+        channel.bind(new InetSocketAddress(address, port), 1);
+      } catch (BindException e) {
+        channel.close();
+        continue;
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+      binds.increment();
+      listeners.incrementAndGet();
+      return new Listener(channel);
+    }
+    exhaustions.increment();
+    throw new BindException(
+        String.format("No free port in %d-%d", minPort, minPort + nports - 1));
+  }
+
+  public long getBinds() {
+    return binds.sum();
+  }
+
+  /** Listeners that couldn't be opened, every port of the range being taken */
+  public long getExhaustions() {
+    return exhaustions.sum();
+  }
+
+  /** Listeners currently open */
+  public int getListeners() {
+    return listeners.get();
+  }
+
+  public long getAccepts() {
+    return accepts.sum();
+  }
+
+  public long getTimeouts() {
+    return timeouts.sum();
+  }
+
+  /** Mean time listeners waited for their connection, of those that got one */
+  public long getMeanWaitMillis() {
+    long count = accepts.sum();
+    return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitSum.sum() / count);
+  }
+
+  public long getMaxWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(waitMax.get());
+  }
+
+  public class Listener implements Closeable {
+    private final ServerSocketChannel channel;
+    private final long openedAt;
+    private boolean closed;
+
+    private Listener(ServerSocketChannel channel) {
+      this.channel = channel;
+      openedAt = System.nanoTime();
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+      return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * Blocks until a connection from {@code expectedHost} is accepted, connections from other hosts
+     * are closed right away
+     *
+     * @param expectedHost null to accept any host
+     * @return a socket backed by a channel, in blocking mode
+     * @throws SocketTimeoutException if nothing was accepted within the accept timeout
+     */
+    public Socket accept(InetAddress expectedHost) throws IOException {
+      long deadline = openedAt + TimeUnit.MILLISECONDS.toNanos(acceptTimeoutMillis);
+      while (true) {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+          timeouts.increment();
+          throw new SocketTimeoutException(
+              String.format("Nothing connected to %s in time", getLocalAddress()));
+        }
+        channel.socket().setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+        Socket socket;
+        try {
+          socket = channel.socket().accept();
+        } catch (SocketTimeoutException e) {
+          continue;
+        }
+        if (expectedHost != null && !expectedHost.equals(socket.getInetAddress())) {
+          logger.debugf(
+              "Refuse %s on %s, expecting %s", socket, getLocalAddress(), expectedHost);
+          socket.close();
+          continue;
+        }
+
+        long wait = System.nanoTime() - openedAt;
+        accepts.increment();
+        waitSum.add(wait);
+        waitMax.accumulate(wait);
+        return socket;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      listeners.decrementAndGet();
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,294 @@
+package com.lan.proxyserver.proxy.connect;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import org.jboss.logging.Logger;
+
+/**
+ * Connects sessions to their destinations.
+ *
+ * <ul>
+ *   <li>Every connect is bounded by a timeout, a blackholed destination doesn't hold its caller for
+ *       the whole SYN retry period of the system
+ *   <li>Connects in flight to a single destination are capped, so that an unresponsive destination
+ *       cannot tie up every connection handler
+ *   <li>A destination that just failed is remembered for a short while, connecting to it again
+ *       meanwhile fails right away with the same failure
+ *   <li>Failures are classified by exception type, and counted along with the connect latencies
+ * </ul>
+ */
+public class DestinationConnector {
+  private static final Logger logger = Logger.getLogger(DestinationConnector.class);
+  public static final String cfgStrPrefix = "proxy_server.socks.connect";
+
+  public static enum Failure {
+    NETWORK_UNREACHABLE(true),
+    HOST_UNREACHABLE(true),
+    CONNECTION_REFUSED(true),
+    TIMED_OUT(true),
+    /** Too many connects in flight to the destination */
+    OVERLOADED(false),
+    OTHER(false);
+
+    // strerror(ENETUNREACH)
+    private static final String NETWORK_UNREACHABLE_MESSAGE = "Network is unreachable";
+    // strerror(ETIMEDOUT)
+    private static final String TIMED_OUT_MESSAGE = "Connection timed out";
+
+    /** Whether the failure says something about the destination, worth remembering */
+    private final boolean cacheable;
+
+    Failure(boolean cacheable) {
+      this.cacheable = cacheable;
+    }
+
+    /**
+     * Socket channels report ECONNREFUSED and ETIMEDOUT (the kernel giving up on SYN
+     * retransmissions) as {@link ConnectException}, told apart by message, EHOSTUNREACH as {@link
+     * NoRouteToHostException} and the remaining connect errors as plain {@link SocketException},
+     * whose message only tells ENETUNREACH apart. Any other error says nothing about the
+     * destination (e.g. EMFILE), it is not to be remembered.
+     */
+    static Failure classify(IOException e) {
+      if (e instanceof SocketTimeoutException) {
+        return TIMED_OUT;
+      }
+      if (e instanceof ConnectException) {
+        return TIMED_OUT_MESSAGE.equals(e.getMessage()) ? TIMED_OUT : CONNECTION_REFUSED;
+      }
+      if (e instanceof NoRouteToHostException) {
+        return HOST_UNREACHABLE;
+      }
+      if (e instanceof SocketException && NETWORK_UNREACHABLE_MESSAGE.equals(e.getMessage())) {
+        return NETWORK_UNREACHABLE;
+      }
+      return OTHER;
+    }
+  }
+
+  public static class ConnectFailedException extends IOException {
+    private final Failure failure;
+
+    ConnectFailedException(String message, Failure failure, Throwable cause) {
+      super(message, cause);
+      this.failure = failure;
+    }
+
+    public Failure getFailure() {
+      return failure;
+    }
+  }
+
+  public static interface Dialer {
+    public SocketChannel dial(InetAddress[] addresses, int port) throws IOException;
+  }
+
+  private final Dialer dialer;
+  private final int maxPerDestination;
+  private final long negativeTtl;
+  private final int negativeMaxEntries;
+  private final LongSupplier clock;
+  private final Map<String, Integer> inFlight;
+  private final Map<String, NegativeEntry> negativeCache;
+
+  private final LongAdder attempts;
+  private final LongAdder successes;
+  private final Map<Failure, LongAdder> failures;
+  private final LongAdder negativeCacheHits;
+  private final LongAdder latencySum;
+  private final LongAccumulator latencyMax;
+
+  /**
+   * @param attemptDelayMillis see {@link HappyEyeballs#connect(InetAddress[], int, long, long)}
+   * @param maxPerDestination connects in flight to a single destination, 0 for no cap
+   * @param negativeTtlMillis how long a failed destination fails right away, 0 disables it
+   * @param negativeMaxEntries failed destinations remembered at most
+   */
+  public DestinationConnector(
+      long attemptDelayMillis,
+      long timeoutMillis,
+      int maxPerDestination,
+      long negativeTtlMillis,
+      int negativeMaxEntries) {
+    this(
+        (addresses, port) ->
+            HappyEyeballs.connect(addresses, port, attemptDelayMillis, timeoutMillis),
+        maxPerDestination,
+        negativeTtlMillis,
+        negativeMaxEntries,
+        System::nanoTime);
+  }
+
+  DestinationConnector(
+      Dialer dialer,
+      int maxPerDestination,
+      long negativeTtlMillis,
+      int negativeMaxEntries,
+      LongSupplier clock) {
+    this.dialer = dialer;
+    this.maxPerDestination = maxPerDestination;
+    negativeTtl = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+    this.negativeMaxEntries = negativeMaxEntries;
+    this.clock = clock;
+    inFlight = new ConcurrentHashMap<>();
+    negativeCache = new ConcurrentHashMap<>();
+    attempts = new LongAdder();
+    successes = new LongAdder();
+    failures = new EnumMap<>(Failure.class);
+    for (Failure failure : Failure.values()) {
+      failures.put(failure, new LongAdder());
+    }
+    negativeCacheHits = new LongAdder();
+    latencySum = new LongAdder();
+    latencyMax = new LongAccumulator(Math::max, 0);
+  }
+
+  /**
+   * Blocks until connected
+   *
+   * @param host the destination as requested (name or address literal), identifying it along with
+   *     the port
+   * @return a connected channel in blocking mode
+   */
+  public SocketChannel connect(String host, InetAddress[] addresses, int port)
+      throws ConnectFailedException {
+    String destination = host + ":" + port;
+    attempts.increment();
+
+    NegativeEntry negativeEntry = negativeCache.get(destination);
+    if (negativeEntry != null) {
+      if (clock.getAsLong() - negativeEntry.expiration < 0) {
+        negativeCacheHits.increment();
+        failures.get(negativeEntry.failure).increment();
+        throw new ConnectFailedException(
+            String.format("%s failed recently: %s", destination, negativeEntry.failure),
+            negativeEntry.failure,
+            null);
+      }
+      negativeCache.remove(destination, negativeEntry);
+    }
+
+    if (!enter(destination)) {
+      failures.get(Failure.OVERLOADED).increment();
+      throw new ConnectFailedException(
+          String.format("%d connect(s) to %s in flight already", maxPerDestination, destination),
+          Failure.OVERLOADED,
+          null);
+    }
+    long start = clock.getAsLong();
+    try {
+      SocketChannel channel = dialer.dial(addresses, port);
+      long latency = clock.getAsLong() - start;
+      successes.increment();
+      latencySum.add(latency);
+      latencyMax.accumulate(latency);
+      logger.debugf(
+          "Connected to %s in %d us", destination, TimeUnit.NANOSECONDS.toMicros(latency));
+      return channel;
+    } catch (IOException e) {
+      Failure failure = Failure.classify(e);
+      failures.get(failure).increment();
+      logger.debugf(
+          "Connecting to %s failed with %s after %d us: %s",
+          destination,
+          failure,
+          TimeUnit.NANOSECONDS.toMicros(clock.getAsLong() - start),
+          e);
+      if (failure.cacheable) {
+        remember(destination, failure);
+      }
+      throw new ConnectFailedException(
+          String.format("Connecting to %s failed: %s", destination, e.getMessage()), failure, e);
+    } finally {
+      leave(destination);
+    }
+  }
+
+  private boolean enter(String destination) {
+    if (maxPerDestination <= 0) {
+      return true;
+    }
+    boolean[] entered = new boolean[1];
+    inFlight.compute(
+        destination,
+        (key, count) -> {
+          int current = count == null ? 0 : count;
+          if (current >= maxPerDestination) {
+            return count;
+          }
+          entered[0] = true;
+          return current + 1;
+        });
+    return entered[0];
+  }
+
+  private void leave(String destination) {
+    if (maxPerDestination <= 0) {
+      return;
+    }
+    inFlight.computeIfPresent(destination, (key, count) -> count <= 1 ? null : count - 1);
+  }
+
+  private void remember(String destination, Failure failure) {
+    if (negativeTtl <= 0) {
+      return;
+    }
+    long now = clock.getAsLong();
+    if (negativeCache.size() >= negativeMaxEntries) {
+      negativeCache.values().removeIf(entry -> now - entry.expiration >= 0);
+      if (negativeCache.size() >= negativeMaxEntries) {
+        return;
+      }
+    }
+    negativeCache.put(destination, new NegativeEntry(failure, now + negativeTtl));
+  }
+
+  public long getAttempts() {
+    return attempts.sum();
+  }
+
+  public long getSuccesses() {
+    return successes.sum();
+  }
+
+  public long getFailures(Failure failure) {
+    return failures.get(failure).sum();
+  }
+
+  /** Failures served from the destinations that failed recently, included in the failures */
+  public long getNegativeCacheHits() {
+    return negativeCacheHits.sum();
+  }
+
+  /** Mean latency of the successful connects */
+  public long getMeanLatencyMicros() {
+    long count = successes.sum();
+    return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(latencySum.sum() / count);
+  }
+
+  public long getMaxLatencyMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(latencyMax.get());
+  }
+
+  private static class NegativeEntry {
+    private final Failure failure;
+    private final long expiration;
+
+    NegativeEntry(Failure failure, long expiration) {
+      this.failure = failure;
+      this.expiration = expiration;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package com.lan.proxyserver.proxy.connect;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jboss.logging.Logger;
+
+/**
+ * Connects to the first reachable address of a destination the way RFC 8305 does: addresses are
+ * tried IPv6 first, alternating address families, a new attempt being started every attempt delay
+ * (or as soon as the previous one fails) without abandoning the ones in flight, and the first
+ * attempt to succeed wins. A destination whose IPv6 (or IPv4) path is broken then only costs the
+ * attempt delay instead of a whole connect timeout.
+ */
+public class HappyEyeballs {
+  private static final Logger logger = Logger.getLogger(HappyEyeballs.class);
+
+  private HappyEyeballs() {}
+
+  /**
+   * Blocks until connected
+   *
+   * @return a connected channel in blocking mode
+   * @throws SocketTimeoutException if no attempt succeeded within {@code timeoutMillis}
+   * @throws IOException the failure of the last attempt if they all failed
+   */
+  public static SocketChannel connect(
+      InetAddress[] addresses, int port, long attemptDelayMillis, long timeoutMillis)
+      throws IOException {
+    List<InetAddress> ordered = sort(addresses);
+    long attemptDelay = TimeUnit.MILLISECONDS.toNanos(attemptDelayMillis);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+    List<SocketChannel> attempts = new ArrayList<>();
+    SocketChannel winner = null;
+    boolean connected = false;
+    try (Selector selector = Selector.open()) {
+      IOException failure = null;
+      int next = 0;
+      long nextAttempt = System.nanoTime();
+      while (winner == null) {
+        long now = System.nanoTime();
+        if (next < ordered.size() && (now - nextAttempt >= 0 || attempts.isEmpty())) {
+          InetSocketAddress address = new InetSocketAddress(ordered.get(next++), port);
+          nextAttempt = now + attemptDelay;
+          SocketChannel channel = SocketChannel.open();
+          try {
+            channel.configureBlocking(false);
+            if (channel.connect(address)) {
+              winner = channel;
+              break;
+            }
+            channel.register(selector, SelectionKey.OP_CONNECT, address);
+            attempts.add(channel);
+            logger.debugf("Attempt to connect to %s", address);
+          } catch (IOException e) {
+            logger.debugf("Connecting to %s failed: %s", address, e);
+            failure = e;
+            channel.close();
+          }
+          continue;
+        }
+
+        if (attempts.isEmpty()) {
+          throw failure != null ? failure : new IOException("No address to connect to");
+        }
+        if (now - deadline >= 0) {
+          throw new SocketTimeoutException(
+              String.format("Connecting to %s timed out", ordered.subList(0, next)));
+        }
+        long wakeUp = next < ordered.size() && nextAttempt - deadline < 0 ? nextAttempt : deadline;
+        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wakeUp - now)));
+
+        for (SelectionKey key : selector.selectedKeys()) {
+          SocketChannel channel = (SocketChannel) key.channel();
+          try {
+            if (channel.finishConnect()) {
+              key.cancel();
+              winner = channel;
+              break;
+            }
+          } catch (IOException e) {
+            logger.debugf("Connecting to %s failed: %s", key.attachment(), e);
+            failure = e;
+            key.cancel();
+            channel.close();
+            attempts.remove(channel);
+            // Move on to the next address right away
+            nextAttempt = System.nanoTime();
+          }
+        }
+        selector.selectedKeys().clear();
+      }
+
+      // Flush the cancelled key of the winner so that it can be put back in blocking mode
+      selector.selectNow();
+      winner.configureBlocking(true);
+      connected = true;
+      logger.debugf("Connected to %s", winner.getRemoteAddress());
+      return winner;
+    } finally {
+      for (SocketChannel channel : attempts) {
+        if (channel != winner) {
+          channel.close();
+        }
+      }
+      if (winner != null && !connected) {
+        winner.close();
+      }
+    }
+  }
+
+  /** IPv6 first, then alternating address families, keeping the order within a family */
+  static List<InetAddress> sort(InetAddress[] addresses) {
+    List<InetAddress> v6 = new ArrayList<>();
+    List<InetAddress> v4 = new ArrayList<>();
+    for (InetAddress address : addresses) {
+      (address instanceof Inet6Address ? v6 : v4).add(address);
+    }
+    List<InetAddress> sorted = new ArrayList<>(addresses.length);
+    for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+      if (i < v6.size()) {
+        sorted.add(v6.get(i));
+      }
+      if (i < v4.size()) {
+        sorted.add(v4.get(i));
+      }
+    }
+    return sorted;
+  }
+}
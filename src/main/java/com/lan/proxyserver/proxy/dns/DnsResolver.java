@@ -0,0 +1,250 @@
+package com.lan.proxyserver.proxy.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import org.jboss.logging.Logger;
+
+/**
+ * Resolves domain names off the connecting threads, in front of a bounded LRU cache.
+ *
+ * <ul>
+ *   <li>Successful lookups are cached for the positive TTL, failed ones for the negative TTL
+ *   <li>Concurrent requests for a name being looked up share that single lookup, each waiting on it
+ *       for the timeout at most, while the lookup goes on to fill the cache
+ *   <li>A name requested within the refresh-ahead window before its expiration gets looked up
+ *       again in the background, the cached addresses being served meanwhile, so hot names never
+ *       expire in the face of their clients
+ * </ul>
+ */
+public class DnsResolver {
+  private static final Logger logger = Logger.getLogger(DnsResolver.class);
+  public static final String cfgStrPrefix = "proxy_server.socks.dns";
+
+  public static interface Lookup {
+    public InetAddress[] lookup(String host) throws UnknownHostException;
+  }
+
+  private final Lookup lookup;
+  private final ExecutorService executor;
+  private final long ttl;
+  private final long negativeTtl;
+  private final long refreshAhead;
+  private final long timeoutMillis;
+  private final LongSupplier clock;
+  private final Map<String, Entry> cache;
+
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder coalesced;
+  private final LongAdder refreshes;
+
+  /**
+   * @param executor runs the blocking lookups, its size bounds the concurrent lookups
+   * @param refreshAheadPercent share of the positive TTL, at the end of it, during which a request
+   *     triggers a background refresh
+   * @param timeoutMillis how long a request waits on a lookup in flight
+   */
+  public DnsResolver(
+      ExecutorService executor,
+      long ttlMillis,
+      long negativeTtlMillis,
+      int refreshAheadPercent,
+      int maxEntries,
+      long timeoutMillis) {
+    this(
+        InetAddress::getAllByName,
+        executor,
+        ttlMillis,
+        negativeTtlMillis,
+        refreshAheadPercent,
+        maxEntries,
+        timeoutMillis,
+        System::nanoTime);
+  }
+
+  DnsResolver(
+      Lookup lookup,
+      ExecutorService executor,
+      long ttlMillis,
+      long negativeTtlMillis,
+      int refreshAheadPercent,
+      int maxEntries,
+      long timeoutMillis,
+      LongSupplier clock) {
+    this.lookup = lookup;
+    this.executor = executor;
+    ttl = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    negativeTtl = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+    refreshAhead = ttl / 100 * refreshAheadPercent;
+    this.timeoutMillis = timeoutMillis;
+    this.clock = clock;
+    cache =
+        new LinkedHashMap<>(16, 0.75f, true /* access order */) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+          }
+        };
+
+    hits = new LongAdder();
+    misses = new LongAdder();
+    coalesced = new LongAdder();
+    refreshes = new LongAdder();
+  }
+
+  /**
+   * @return the addresses of {@code host}, completed exceptionally (typically with an {@link
+   *     UnknownHostException}) if it cannot be resolved, or with a {@link
+   *     java.util.concurrent.TimeoutException} if it isn't within the timeout
+   */
+  public CompletableFuture<InetAddress[]> resolve(String host) {
+    String name = host.toLowerCase(Locale.ROOT);
+    long now = clock.getAsLong();
+    Entry entry;
+    boolean lookUp = false;
+    boolean refresh = false;
+    synchronized (cache) {
+      entry = cache.get(name);
+      if (entry == null || entry.isExpired(now)) {
+        misses.increment();
+        entry = new Entry();
+        cache.put(name, entry);
+        lookUp = true;
+      } else if (!entry.future.isDone()) {
+        coalesced.increment();
+      } else {
+        hits.increment();
+        if (entry.needsRefresh(now, refreshAhead)) {
+          entry.refreshing = true;
+          refresh = true;
+        }
+      }
+    }
+
+    if (lookUp) {
+      lookUp(name, entry);
+    } else if (refresh) {
+      refreshes.increment();
+      refresh(name, entry);
+    }
+    if (entry.future.isDone()) {
+      return entry.future;
+    }
+    // Timing out the copy leaves the shared lookup alone
+    return entry.future.copy().orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void lookUp(String name, Entry entry) {
+    submit(
+        name,
+        (addresses, failure) -> {
+          synchronized (cache) {
+            entry.expiration = clock.getAsLong() + (failure == null ? ttl : negativeTtl);
+          }
+          if (failure == null) {
+            entry.future.complete(addresses);
+          } else {
+            entry.future.completeExceptionally(failure);
+          }
+        });
+  }
+
+  /** Replaces the entry on success only, a failed refresh lets the entry live out its TTL */
+  private void refresh(String name, Entry entry) {
+    submit(
+        name,
+        (addresses, failure) -> {
+          synchronized (cache) {
+            entry.refreshing = false;
+            if (failure != null) {
+              logger.debugf("Refreshing %s failed: %s", name, failure);
+              return;
+            }
+            if (cache.get(name) == entry) {
+              Entry refreshed = new Entry();
+              refreshed.expiration = clock.getAsLong() + ttl;
+              refreshed.future.complete(addresses);
+              cache.put(name, refreshed);
+            }
+          }
+        });
+  }
+
+  private static interface Callback {
+    public void done(InetAddress[] addresses, Exception failure);
+  }
+
+  private void submit(String name, Callback callback) {
+    try {
+      executor.execute(
+          () -> {
+            InetAddress[] addresses;
+            try {
+              addresses = lookup.lookup(name);
+            } catch (Exception e) {
+              logger.debugf("Cannot resolve %s: %s", name, e);
+              callback.done(null, e);
+              return;
+            }
+            callback.done(addresses, null);
+          });
+    } catch (RejectedExecutionException e) {
+      callback.done(null, e);
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /** Requests which joined a lookup already in flight */
+  public long getCoalesced() {
+    return coalesced.sum();
+  }
+
+  public long getRefreshes() {
+    return refreshes.sum();
+  }
+
+  public int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private static class Entry {
+    private final CompletableFuture<InetAddress[]> future;
+    private long expiration;
+    private boolean refreshing;
+
+    Entry() {
+      future = new CompletableFuture<>();
+    }
+
+    /** An entry being looked up never expires */
+    boolean isExpired(long now) {
+      return future.isDone() && now - expiration >= 0;
+    }
+
+    boolean needsRefresh(long now, long refreshAhead) {
+      return !refreshing && !future.isCompletedExceptionally() && now - expiration >= -refreshAhead;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package com.lan.proxyserver.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts values (typically latencies in microseconds) in log-linear buckets: every power of 2 range
+ * is split into {@value #SUB_BUCKETS} buckets, which bounds the error of any percentile to about
+ * 6%, with a fixed footprint whatever the number of values recorded. Buckets are {@link LongAdder
+ * striped counters}, so that recording from many threads at once takes neither lock nor contended
+ * atomic.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Values from 2^MAX_EXPONENT on (about 19 hours in microseconds) share an extra last bucket
+  private static final int MAX_EXPONENT = 36;
+  static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + 1;
+
+  private final LongAdder[] buckets;
+  private final LongAdder sum;
+  private final LongAccumulator max;
+
+  public LatencyHistogram() {
+    buckets = new LongAdder[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = new LongAdder();
+    }
+    sum = new LongAdder();
+    max = new LongAccumulator(Math::max, 0);
+  }
+
+  /**
+   * @param value negative values count as 0
+   */
+  public void record(long value) {
+    value = Math.max(0, value);
+    buckets[index(value)].increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  /**
+   * A copy of the counts, which is not atomic: values recorded meanwhile may be missing from some
+   * statistics and not from others
+   */
+  public Snapshot snapshot() {
+    long[] counts = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets[i].sum();
+      count += counts[i];
+    }
+    return new Snapshot(counts, count, sum.sum(), max.get());
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    if (exponent >= MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int shift = exponent - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+  }
+
+  /** Highest value counted in a bucket */
+  static long highestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    if (index == BUCKETS - 1) {
+      return Long.MAX_VALUE;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+    return ((mantissa + 1) << shift) - 1;
+  }
+
+  /** Immutable counts of a histogram, snapshots of several histograms can be merged */
+  public static class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    private Snapshot(long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public Snapshot merge(Snapshot other) {
+      long[] merged = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++) {
+        merged[i] = counts[i] + other.counts[i];
+      }
+      return new Snapshot(merged, count + other.count, sum + other.sum, Math.max(max, other.max));
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getSum() {
+      return sum;
+    }
+
+    public long getMean() {
+      return count == 0 ? 0 : sum / count;
+    }
+
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the highest value of the bucket the quantile falls in, capped by the maximum value
+     *     recorded, 0 if nothing was recorded
+     */
+    public long getQuantile(double quantile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(highestValue(i), max);
+        }
+      }
+      return max;
+    }
+
+    /** Count of the values of a bucket, for exporters */
+    public long getBucketCount(int bucket) {
+      return counts[bucket];
+    }
+
+    public static int getBuckets() {
+      return BUCKETS;
+    }
+
+    public static long getBucketHighestValue(int bucket) {
+      return highestValue(bucket);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package com.lan.proxyserver.proxy.metrics;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+
+/**
+ * Writes metrics in the OpenMetrics text format (which Prometheus scrapes as well) into a {@link
+ * StringBuilder}. Values are appended as they are read from the counters, nothing is formatted
+ * through {@link String#format}, so that rendering costs little more than reading the counters.
+ */
+public class OpenMetricsWriter {
+  public static final String CONTENT_TYPE =
+      "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+  public static enum Type {
+    COUNTER,
+    GAUGE,
+    HISTOGRAM;
+
+    private final String name = name().toLowerCase(Locale.ROOT);
+  }
+
+  // Upper bounds of the exported buckets of latency histograms, every power of 4 microseconds
+  // from 16 us to about 4.8 hours. Latencies are recorded in whole microseconds, rounded down, so
+  // the buckets up to 2^k - 1 us of a histogram hold exactly the latencies below 2^k us.
+  private static final int[] BOUND_EXPONENTS = {
+    4, 6, 8, 10, 12, 14, 16, 18, 20, 22, 24, 26, 28, 30, 32, 34
+  };
+  private static final int[] BOUND_BUCKETS = new int[BOUND_EXPONENTS.length];
+  private static final String[] BOUND_LABELS = new String[BOUND_EXPONENTS.length];
+
+  static {
+    for (int i = 0; i < BOUND_EXPONENTS.length; i++) {
+      long bound = 1L << BOUND_EXPONENTS[i];
+      BOUND_BUCKETS[i] = LatencyHistogram.index(bound - 1);
+      BOUND_LABELS[i] = BigDecimal.valueOf(bound, 6).stripTrailingZeros().toPlainString();
+    }
+  }
+
+  private final StringBuilder sb;
+
+  public OpenMetricsWriter(StringBuilder sb) {
+    this.sb = sb;
+  }
+
+  /**
+   * Starts a metric family, its samples must follow right away
+   *
+   * @param unit null for none, the name must end with it otherwise
+   */
+  public OpenMetricsWriter family(String name, Type type, String unit, String help) {
+    sb.append("# TYPE ").append(name).append(' ').append(type.name).append('\n');
+    if (unit != null) {
+      sb.append("# UNIT ").append(name).append(' ').append(unit).append('\n');
+    }
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    return this;
+  }
+
+  /** A family with a single sample without label, e.g. a counter named {@code name_total} */
+  public OpenMetricsWriter single(
+      String name, Type type, String unit, String help, String sampleName, long value) {
+    return family(name, type, unit, help).sample(sampleName, value);
+  }
+
+  public OpenMetricsWriter sample(String name, long value) {
+    sb.append(name).append(' ').append(value).append('\n');
+    return this;
+  }
+
+  public OpenMetricsWriter sample(String name, String label, String labelValue, long value) {
+    sb.append(name).append('{');
+    label(label, labelValue);
+    sb.append("} ").append(value).append('\n');
+    return this;
+  }
+
+  public OpenMetricsWriter sample(
+      String name, String label1, String value1, String label2, String value2, long value) {
+    sb.append(name).append('{');
+    label(label1, value1);
+    sb.append(',');
+    label(label2, value2);
+    sb.append("} ").append(value).append('\n');
+    return this;
+  }
+
+  /** A sample in a unit other than the one values are counted in, e.g. seconds */
+  public OpenMetricsWriter sample(
+      String name, String label1, String value1, String label2, String value2, double value) {
+    sb.append(name).append('{');
+    label(label1, value1);
+    sb.append(',');
+    label(label2, value2);
+    sb.append("} ").append(value).append('\n');
+    return this;
+  }
+
+  /**
+   * The samples of a latency histogram recorded in microseconds, exported in seconds, whose family
+   * is named {@code name}
+   */
+  public OpenMetricsWriter histogram(
+      String name, String label, String labelValue, LatencyHistogram.Snapshot snapshot) {
+    long cumulated = 0;
+    int bucket = 0;
+    for (int i = 0; i < BOUND_BUCKETS.length; i++) {
+      for (; bucket <= BOUND_BUCKETS[i]; bucket++) {
+        cumulated += snapshot.getBucketCount(bucket);
+      }
+      sb.append(name).append("_bucket{");
+      label(label, labelValue);
+      sb.append(',');
+      label("le", BOUND_LABELS[i]);
+      sb.append("} ").append(cumulated).append('\n');
+    }
+    // Sums the buckets rather than using the count of the snapshot, which values recorded while
+    // the snapshot was taken may make disagree with them
+    for (; bucket < LatencyHistogram.BUCKETS; bucket++) {
+      cumulated += snapshot.getBucketCount(bucket);
+    }
+    sb.append(name).append("_bucket{");
+    label(label, labelValue);
+    sb.append(",le=\"+Inf\"} ").append(cumulated).append('\n');
+    sb.append(name).append("_count{");
+    label(label, labelValue);
+    sb.append("} ").append(cumulated).append('\n');
+    sb.append(name).append("_sum{");
+    label(label, labelValue);
+    sb.append("} ").append(snapshot.getSum() / 1e6).append('\n');
+    return this;
+  }
+
+  /** Ends the exposition, nothing is to be written afterwards */
+  public OpenMetricsWriter eof() {
+    sb.append("# EOF\n");
+    return this;
+  }
+
+  private void label(String label, String value) {
+    sb.append(label).append("=\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\' -> sb.append("\\\\");
+        case '"' -> sb.append("\\\"");
+        case '\n' -> sb.append("\\n");
+        default -> sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+}
@@ -0,0 +1,15 @@
+package com.lan.proxyserver.proxy.nio;
+
+/**
+ * Work a reactor defers past the handling of selected keys, e.g. to run it in another order, see
+ * {@link Reactor#addBacklog(Backlog)}
+ */
+public interface Backlog {
+  /**
+   * Called on the reactor thread after every selection, must only do a bounded share of the work
+   * so that the reactor gets back to selecting
+   *
+   * @return true if work is left, the reactor then selects without blocking
+   */
+  public boolean drain();
+}
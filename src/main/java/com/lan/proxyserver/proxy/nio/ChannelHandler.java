@@ -0,0 +1,15 @@
+package com.lan.proxyserver.proxy.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+public interface ChannelHandler {
+  /** Called on the reactor thread whenever one of the handler's keys is selected */
+  public void handle(SelectionKey key) throws IOException;
+
+  /**
+   * Called on the reactor thread when {@link #handle(SelectionKey)} throws or when the reactor
+   * shuts down, must release every channel the handler owns
+   */
+  public void close();
+}
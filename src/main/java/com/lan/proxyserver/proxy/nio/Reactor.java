@@ -0,0 +1,203 @@
+package com.lan.proxyserver.proxy.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.jboss.logging.Logger;
+
+/**
+ * A single threaded event loop, every channel registered to a reactor is only ever touched by
+ * the reactor thread, other threads hand work over through {@link #execute(Runnable)}
+ */
+public class Reactor extends Thread {
+  private static final Logger logger = Logger.getLogger(Reactor.class);
+
+  private final Selector selector;
+  private final Queue<Runnable> tasks;
+  // Only touched by the reactor thread
+  private final PriorityQueue<Delayed> delayedTasks;
+  private final List<Backlog> backlogs;
+  private final AtomicBoolean stop;
+
+  private static class Delayed implements Comparable<Delayed> {
+    private final long deadline;
+    private final Runnable task;
+
+    Delayed(long deadline, Runnable task) {
+      this.deadline = deadline;
+      this.task = task;
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      return Long.compare(deadline - o.deadline, 0);
+    }
+  }
+
+  public Reactor(String name) throws IOException {
+    super(name);
+    selector = Selector.open();
+    tasks = new ConcurrentLinkedQueue<>();
+    delayedTasks = new PriorityQueue<>();
+    backlogs = new CopyOnWriteArrayList<>();
+    stop = new AtomicBoolean(false);
+  }
+
+  /**
+   * Tasks run right after the reactor's next selection, which is also when keys cancelled before
+   * the call are deregistered
+   */
+  public void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /** Must be called on the reactor thread, e.g. from a task passed to {@link #execute(Runnable)} */
+  public SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler)
+      throws IOException {
+    channel.configureBlocking(false);
+    return channel.register(selector, ops, handler);
+  }
+
+  /**
+   * Runs a task on the reactor thread once the delay elapsed, to the millisecond. Must be called on
+   * the reactor thread, the task is dropped if the reactor stops meanwhile.
+   */
+  public void schedule(Runnable task, long delayNanos) {
+    delayedTasks.add(new Delayed(System.nanoTime() + delayNanos, task));
+  }
+
+  /** The backlog is drained after every selection from then on */
+  public void addBacklog(Backlog backlog) {
+    backlogs.add(backlog);
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    boolean pending = false;
+    while (!stop.get()) {
+      try {
+        Delayed next = delayedTasks.peek();
+        if (pending) {
+          selector.selectNow();
+        } else if (next == null) {
+          selector.select();
+        } else {
+          long timeout =
+              TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime() + 999_999);
+          if (timeout > 0) {
+            selector.select(timeout);
+          } else {
+            selector.selectNow();
+          }
+        }
+      } catch (IOException e) {
+        logger.error(e.getMessage(), e);
+        break;
+      }
+      runTasks();
+      runDelayedTasks();
+      processSelectedKeys();
+      pending = drainBacklogs();
+    }
+    cleanup();
+  }
+
+  private boolean drainBacklogs() {
+    boolean pending = false;
+    for (Backlog backlog : backlogs) {
+      try {
+        pending |= backlog.drain();
+      } catch (RuntimeException e) {
+        logger.error(e.getMessage(), e);
+      }
+    }
+    return pending;
+  }
+
+  private void runDelayedTasks() {
+    long now = System.nanoTime();
+    Delayed next;
+    while ((next = delayedTasks.peek()) != null && next.deadline - now <= 0) {
+      delayedTasks.poll();
+      try {
+        next.task.run();
+      } catch (RuntimeException e) {
+        logger.error(e.getMessage(), e);
+      }
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        logger.error(e.getMessage(), e);
+      }
+    }
+  }
+
+  private void processSelectedKeys() {
+    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+    while (it.hasNext()) {
+      SelectionKey key = it.next();
+      it.remove();
+      ChannelHandler handler = (ChannelHandler) key.attachment();
+      if (!key.isValid()) {
+        continue;
+      }
+      try {
+        handler.handle(key);
+      } catch (IOException | RuntimeException e) {
+        if (!stop.get()) {
+          logger.error(e.getMessage(), e);
+        }
+        handler.close();
+      }
+    }
+  }
+
+  private void cleanup() {
+    runTasks();
+
+    Set<ChannelHandler> handlers = new HashSet<>();
+    for (SelectionKey key : selector.keys()) {
+      handlers.add((ChannelHandler) key.attachment());
+    }
+    for (ChannelHandler handler : handlers) {
+      handler.close();
+    }
+
+    try {
+      selector.close();
+    } catch (IOException e) {
+      logger.error(e.getMessage(), e);
+    }
+  }
+
+  public void terminate() {
+    if (!stop.compareAndSet(false, true)) {
+      return;
+    }
+    selector.wakeup();
+    try {
+      join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package com.lan.proxyserver.proxy.nio;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.logging.Logger;
+
+public class ReactorGroup {
+  private static final Logger logger = Logger.getLogger(ReactorGroup.class);
+
+  private final Reactor[] reactors;
+  private final AtomicInteger next;
+
+  /**
+   * @param nreactors number of reactor threads, non-positive value means one reactor per
+   *     available processor
+   */
+  public ReactorGroup(String namePrefix, int nreactors) throws IOException {
+    if (nreactors <= 0) {
+      nreactors = Runtime.getRuntime().availableProcessors();
+    }
+    reactors = new Reactor[nreactors];
+    for (int i = 0; i < nreactors; i++) {
+      reactors[i] = new Reactor(namePrefix + "-" + i);
+      reactors[i].setDaemon(true);
+    }
+    next = new AtomicInteger();
+  }
+
+  public void start() {
+    for (Reactor reactor : reactors) {
+      reactor.start();
+    }
+    logger.infof("Started %d reactor(s)", reactors.length);
+  }
+
+  public Reactor next() {
+    return reactors[Math.floorMod(next.getAndIncrement(), reactors.length)];
+  }
+
+  public void terminate() {
+    for (Reactor reactor : reactors) {
+      reactor.terminate();
+    }
+  }
+}
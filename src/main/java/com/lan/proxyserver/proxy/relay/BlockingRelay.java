@@ -0,0 +1,268 @@
+package com.lan.proxyserver.proxy.relay;
+
+import com.lan.proxyserver.proxy.buffer.BufferPool;
+import com.lan.proxyserver.proxy.relay.WriteCoalescing.Coalescer;
+import com.lan.proxyserver.proxy.shaping.Throttle;
+import com.lan.proxyserver.proxy.socks.Session;
+import com.lan.proxyserver.proxy.socks.SocksContext;
+import com.lan.proxyserver.proxy.trace.PayloadTrace;
+import com.lan.proxyserver.proxy.trace.PayloadTracer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import org.jboss.logging.Logger;
+
+public class BlockingRelay implements Relay {
+  private static final Logger logger = Logger.getLogger(BlockingRelay.class);
+
+  private final ExecutorService pool;
+
+  BlockingRelay(ExecutorService pool) {
+    this.pool = pool;
+  }
+
+  @Override
+  public void relay(Session session, Socket destSocket) {
+    Socket clientSocket = session.getClientSocket();
+    PayloadTracer tracer = session.getContext().getPayloadTracer();
+    // Each direction holds at most a buffer, while its thread blocks writing, so octets in flight
+    // are only accounted, sessions are never paused
+    MemoryBudget.Account account =
+        session
+            .getContext()
+            .getMemoryBudget()
+            .open(session.getId(), clientSocket.getInetAddress().getHostAddress());
+
+    // Do not let backward direction log socket error when forward direction stops,
+    // because forward direction will close destination socket afterward
+    final AtomicBoolean fwStop = new AtomicBoolean(false);
+
+    // --- Backward direction ---
+    pool.submit(
+        () -> {
+          Direction backward =
+              new Direction(
+                  session,
+                  destSocket,
+                  "destination",
+                  clientSocket,
+                  "client",
+                  tracer.newTrace(session, destSocket, "destination->client"),
+                  account,
+                  session::recordDestinationBytes);
+          try {
+            backward.acquire();
+            while (backward.transfer()) {
+              Thread.yield();
+            }
+          } catch (IOException e) {
+            if (!Thread.currentThread().isInterrupted() && !fwStop.get() && !session.isClosed()) {
+              logger.error(e.getMessage(), e);
+            }
+          } finally {
+            backward.release();
+          }
+        });
+
+    // --- Forward direction ---
+    Direction forward =
+        new Direction(
+            session,
+            clientSocket,
+            "client",
+            destSocket,
+            "destination",
+            tracer.newTrace(session, destSocket, "client->destination"),
+            account,
+            session::recordClientBytes);
+    try {
+      forward.acquire();
+      ByteBuffer earlyData = session.takeEarlyData();
+      if (earlyData != null) {
+        forward.trace.record(earlyData, earlyData.position(), earlyData.remaining());
+        session.recordWrite(destSocket.getChannel().write(earlyData));
+      }
+      while (forward.transfer()) {
+        Thread.yield();
+      }
+    } catch (AsynchronousCloseException e) {
+      // Interrupted while blocking on a channel operation or the session expired, either way the
+      // server closed the tunnel
+    } catch (IOException e) {
+      // The session may as well have been closed between two reads
+      if (!session.isClosed()) {
+        logger.error(e.getMessage(), e);
+      }
+    } finally {
+      forward.release();
+      account.close();
+    }
+    fwStop.set(true);
+  }
+
+  /**
+   * One way of a tunnel, relayed by a single thread. Its buffer is empty between transfers, which
+   * is when it is replaced once its sizer asks for another size.
+   */
+  private static class Direction {
+    private final Socket src;
+    private final String srcName;
+    private final Socket dst;
+    private final String dstName;
+    private final BufferPool bufferPool;
+    private final PayloadTrace trace;
+    private final Throttle throttle;
+    private final Coalescer coalescer;
+    private final BufferSizing.Sizer sizer;
+    private final MemoryBudget.Account account;
+    private final IntConsumer onRead;
+    private final IntConsumer onWrite;
+    private ByteBuffer buffer;
+    private int resize;
+
+    /**
+     * @param onRead reports the octets read to the session
+     */
+    Direction(
+        Session session,
+        Socket src,
+        String srcName,
+        Socket dst,
+        String dstName,
+        PayloadTrace trace,
+        MemoryBudget.Account account,
+        IntConsumer onRead) {
+      this.src = src;
+      this.srcName = srcName;
+      this.dst = dst;
+      this.dstName = dstName;
+      SocksContext context = session.getContext();
+      bufferPool = context.getBufferPool();
+      this.trace = trace;
+      throttle = session.newThrottle();
+      coalescer = context.getWriteCoalescing().newCoalescer();
+      sizer = context.getBufferSizing().newSizer();
+      this.account = account;
+      this.onRead = onRead;
+      onWrite = session::recordWrite;
+    }
+
+    void acquire() throws IOException {
+      buffer = bufferPool.acquire(sizer.acquire());
+      tuneSockets();
+    }
+
+    void release() {
+      if (buffer != null) {
+        bufferPool.release(buffer);
+        sizer.release();
+        buffer = null;
+      }
+    }
+
+    /**
+     * Blocks on the channels rather than the socket streams so that the octets go straight from
+     * one socket to the other through the direct buffer, an interrupt closes the channel and ends
+     * the transfer
+     *
+     * <p>The throttle holds the octets read back until the buckets of the session let them go, the
+     * source is not read meanwhile so that TCP flow control slows the sender down. The coalescer
+     * tells whether to gather what else is readable before writing, and how long to wait for it.
+     */
+    boolean transfer() throws IOException {
+      if (resize > 0) {
+        bufferPool.release(buffer);
+        buffer = bufferPool.acquire(resize);
+        sizer.resized(resize);
+        resize = 0;
+        tuneSockets();
+      }
+      buffer.clear();
+      int len = src.getChannel().read(buffer);
+      if (len < 0) {
+        logger.debugf("Read %d byte(s) from %s", len, srcName);
+        return false;
+      }
+      logger.debugf("Read %d byte(s) from %s", len, srcName);
+      if (coalescer.isGathering()) {
+        int gathered = gather(src, buffer, coalescer.window());
+        coalescer.gathered(gathered);
+        len += gathered;
+      }
+      coalescer.read(len, buffer.capacity());
+      resize = sizer.read(len);
+      buffer.flip();
+      onRead.accept(len);
+      trace.record(buffer, 0, len);
+      account.add(len);
+      try {
+        pause(throttle.charge(len));
+
+        while (buffer.hasRemaining()) {
+          onWrite.accept(dst.getChannel().write(buffer));
+        }
+      } finally {
+        account.remove(len);
+      }
+      logger.debugf("Write %d byte(s) to %s", len, dstName);
+
+      return true;
+    }
+
+    private void tuneSockets() throws IOException {
+      int size = sizer.socketBufferSize();
+      if (size > 0) {
+        src.setReceiveBufferSize(size);
+        dst.setSendBufferSize(size);
+      }
+    }
+  }
+
+  /**
+   * Reads into the rest of the buffer what is readable without blocking, waiting once for the
+   * window if nothing is. The end of stream is left for the next read.
+   *
+   * @return octets read
+   */
+  private static int gather(Socket src, ByteBuffer buffer, long window) throws IOException {
+    InputStream in = src.getInputStream();
+    int res = 0;
+    boolean waited = false;
+    while (buffer.hasRemaining()) {
+      int available = in.available();
+      if (available == 0) {
+        if (waited || window <= 0) {
+          break;
+        }
+        pause(window);
+        waited = true;
+        continue;
+      }
+      // Less than available octets never blocks
+      int limit = buffer.limit();
+      buffer.limit(Math.min(limit, buffer.position() + available));
+      res += src.getChannel().read(buffer);
+      buffer.limit(limit);
+    }
+    return res;
+  }
+
+  /** An interrupt cuts the pause short, the next channel operation then ends the transfer */
+  private static void pause(long nanos) {
+    if (nanos <= 0) {
+      return;
+    }
+    long deadline = System.nanoTime() + nanos;
+    long remaining = nanos;
+    while (remaining > 0 && !Thread.currentThread().isInterrupted()) {
+      LockSupport.parkNanos(remaining);
+      remaining = deadline - System.nanoTime();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package com.lan.proxyserver.proxy.relay;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sizes the buffer of each relay direction between bounds from what its reads let in: a direction
+ * whose reads keep filling its buffer carries bulk and gets its buffer doubled, one whose reads
+ * keep using little of it gets its buffer halved, so that downloads move large chunks while idle
+ * and interactive tunnels hold little memory. Sizes are powers of two, the size classes of the
+ * buffer pool.
+ *
+ * <p>Socket buffers may follow: the receive buffer of the socket a direction reads from and the
+ * send buffer of the one it writes to are then set to a multiple of its buffer. Setting them turns
+ * off their autotuning by the kernel, hence it is off by default.
+ *
+ * <p>The number of relay buffers of each size in use is kept, the distribution of buffer sizes
+ * across tunnels.
+ */
+public class BufferSizing {
+  public static final String cfgStrPrefix = "proxy_server.socks.relay.buffer";
+  public static final BufferSizing FIXED = new BufferSizing(false, 4096, 4096, 4096, 0);
+
+  private static final int MIN_SIZE_SHIFT = 9; // 512 B
+  private static final int MAX_SIZE_SHIFT = 16; // 64 KiB
+  // Reads in a row filling the buffer before it grows
+  private static final int GROW_READS = 2;
+  // Reads in a row filling less than a quarter of the buffer before it shrinks
+  private static final int SHRINK_READS = 8;
+
+  private final boolean adaptive;
+  private final int initialSize;
+  private final int minSize;
+  private final int maxSize;
+  private final int socketFactor;
+  private final LongAdder[] buffers;
+
+  /**
+   * Sizes are rounded up to powers of two between 512 B and 64 KiB
+   *
+   * @param adaptive false for every buffer to keep the initial size
+   * @param socketFactor socket buffers are set to this many times the relay buffer, 0 leaves them
+   *     to the kernel
+   */
+  public BufferSizing(
+      boolean adaptive, int initialSize, int minSize, int maxSize, int socketFactor) {
+    this.adaptive = adaptive;
+    this.minSize = roundSize(minSize);
+    this.maxSize = Math.max(this.minSize, roundSize(maxSize));
+    this.initialSize = Math.min(Math.max(roundSize(initialSize), this.minSize), this.maxSize);
+    this.socketFactor = socketFactor;
+    buffers = new LongAdder[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = new LongAdder();
+    }
+  }
+
+  private static int roundSize(int size) {
+    int shift = Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+    return 1 << Math.min(Math.max(shift, MIN_SIZE_SHIFT), MAX_SIZE_SHIFT);
+  }
+
+  public boolean isAdaptive() {
+    return adaptive;
+  }
+
+  /** One per relay direction, only ever used by the thread relaying it */
+  public Sizer newSizer() {
+    return new Sizer();
+  }
+
+  /**
+   * @return sizes buffers come in, from the smallest
+   */
+  public int[] getSizes() {
+    int[] sizes = new int[buffers.length];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = 1 << (MIN_SIZE_SHIFT + i);
+    }
+    return sizes;
+  }
+
+  /**
+   * @return relay buffers of each size in use, in the order of {@link #getSizes()}
+   */
+  public long[] getBuffers() {
+    long[] res = new long[buffers.length];
+    for (int i = 0; i < res.length; i++) {
+      res[i] = buffers[i].sum();
+    }
+    return res;
+  }
+
+  private LongAdder counter(int size) {
+    return buffers[Integer.numberOfTrailingZeros(size) - MIN_SIZE_SHIFT];
+  }
+
+  public class Sizer {
+    private int size;
+    private int fullReads;
+    private int smallReads;
+
+    Sizer() {
+      size = initialSize;
+    }
+
+    /** Size of the buffer to acquire, reported in use until {@link #release()} */
+    public int acquire() {
+      return acquire(0);
+    }
+
+    /**
+     * @param minSize octets the buffer must hold right away, e.g. early data, up to 64 KiB
+     */
+    public int acquire(int minSize) {
+      if (minSize > size) {
+        size = roundSize(minSize);
+      }
+      counter(size).increment();
+      return size;
+    }
+
+    public void release() {
+      counter(size).decrement();
+    }
+
+    /**
+     * Reports the octets a read (and the gathering following it) let into the buffer
+     *
+     * @return the size the buffer is to be replaced with once empty, 0 to keep it
+     */
+    public int read(int len) {
+      if (!adaptive || len <= 0) {
+        return 0;
+      }
+      if (len >= size) {
+        smallReads = 0;
+        if (++fullReads >= GROW_READS && size < maxSize) {
+          fullReads = 0;
+          return size << 1;
+        }
+      } else if (len < size >> 2) {
+        fullReads = 0;
+        if (++smallReads >= SHRINK_READS && size > minSize) {
+          smallReads = 0;
+          return size >> 1;
+        }
+      } else {
+        fullReads = 0;
+        smallReads = 0;
+      }
+      return 0;
+    }
+
+    /** The buffer was replaced with one of {@code newSize} */
+    public void resized(int newSize) {
+      counter(size).decrement();
+      counter(newSize).increment();
+      size = newSize;
+    }
+
+    /**
+     * @return size socket buffers are to be set to, 0 to leave them
+     */
+    public int socketBufferSize() {
+      return socketFactor > 0 ? size * socketFactor : 0;
+    }
+  }
+}
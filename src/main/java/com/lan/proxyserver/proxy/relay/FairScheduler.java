@@ -0,0 +1,139 @@
+package com.lan.proxyserver.proxy.relay;
+
+import com.lan.proxyserver.config.Configer;
+import com.lan.proxyserver.proxy.nio.Backlog;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Orders the reads of a reactor by deficit round robin across tenants (the principal a session
+ * authenticated as, or its source address), so that a tenant gets its share of the reactor however
+ * many tunnels it has: every round, each tenant with reads pending may read {@code quantum} octets
+ * times its weight, and what it overreads is deducted from its next round.
+ *
+ * <p>Weights are 1 unless configured, as {@code proxy_server.socks.relay.fair.weight} for every
+ * tenant and {@code proxy_server.socks.relay.fair.user.<principal>.weight} per user. A scheduler
+ * belongs to a single reactor and is only ever touched by its thread.
+ */
+public class FairScheduler implements Backlog {
+  /** A read to be done */
+  public static interface Work {
+    /**
+     * @return octets read, 0 if none
+     */
+    public int run();
+  }
+
+  /** The queue of a tenant */
+  public static class Flow {
+    private final String key;
+    private final int weight;
+    private final ArrayDeque<Work> works;
+    private long deficit;
+    private boolean active;
+    private int tunnels;
+
+    Flow(String key, int weight) {
+      this.key = key;
+      this.weight = weight;
+      works = new ArrayDeque<>();
+    }
+
+    public int getWeight() {
+      return weight;
+    }
+  }
+
+  private final long quantum;
+  private final ToIntFunction<String> weights;
+  private final Map<String, Flow> flows;
+  private final ArrayDeque<Flow> activeFlows;
+
+  /**
+   * @param quantum octets a tenant of weight 1 may read per round
+   */
+  public FairScheduler(long quantum) {
+    this(quantum, FairScheduler::configuredWeight);
+  }
+
+  /**
+   * @param weights weight of a tenant by principal, null for tenants which didn't authenticate
+   */
+  FairScheduler(long quantum, ToIntFunction<String> weights) {
+    this.quantum = quantum;
+    this.weights = weights;
+    flows = new HashMap<>();
+    activeFlows = new ArrayDeque<>();
+  }
+
+  /**
+   * The flow of a tenant for a tunnel, to be left when the tunnel is closed
+   *
+   * @param principal null if the session didn't authenticate
+   * @param source the address of the client otherwise
+   */
+  public Flow join(String principal, String source) {
+    String key = principal != null ? "user " + principal : "source " + source;
+    Flow flow =
+        flows.computeIfAbsent(key, k -> new Flow(k, Math.max(1, weights.applyAsInt(principal))));
+    flow.tunnels++;
+    return flow;
+  }
+
+  public void leave(Flow flow) {
+    if (--flow.tunnels == 0 && !flow.active) {
+      flows.remove(flow.key);
+    }
+  }
+
+  /** Queues a read of the tenant, done once its turn comes */
+  public void submit(Flow flow, Work work) {
+    flow.works.add(work);
+    if (!flow.active) {
+      flow.active = true;
+      activeFlows.add(flow);
+    }
+  }
+
+  /** Runs a round, every tenant with reads pending getting its quantum */
+  @Override
+  public boolean drain() {
+    for (int i = activeFlows.size(); i > 0; i--) {
+      Flow flow = activeFlows.poll();
+      flow.deficit += quantum * flow.weight;
+      Work work;
+      while (flow.deficit > 0 && (work = flow.works.poll()) != null) {
+        flow.deficit -= work.run();
+      }
+      if (!flow.works.isEmpty()) {
+        activeFlows.add(flow);
+        continue;
+      }
+      // An idle tenant doesn't save up its share, though it keeps paying back what it overread
+      flow.deficit = Math.min(flow.deficit, 0);
+      flow.active = false;
+      if (flow.tunnels == 0) {
+        flows.remove(flow.key);
+      }
+    }
+    return !activeFlows.isEmpty();
+  }
+
+  /**
+   * @return tenants with a tunnel on the reactor
+   */
+  public int getFlows() {
+    return flows.size();
+  }
+
+  private static int configuredWeight(String principal) {
+    int weight = Configer.getInt(1, RelayEngine.cfgStrPrefix, "fair", "weight");
+    if (principal != null) {
+      weight =
+          Configer.getInt(weight, RelayEngine.cfgStrPrefix, "fair", "user", principal, "weight");
+    }
+    return weight;
+  }
+}
@@ -0,0 +1,237 @@
+package com.lan.proxyserver.proxy.relay;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accounts for the octets relays read and didn't write yet, per session and proxy wide.
+ *
+ * <p>A session whose octets in flight reach the high watermark is paused until they fall back to
+ * the low watermark: the directions of its tunnel holding octets stop reading, so that the side
+ * sending faster than the other receives is slowed down by TCP flow control rather than filling
+ * memory. Every session is paused likewise while the proxy wide budget is exhausted. A session
+ * staying paused by its watermark longer than the slow consumer delay is reported, and evicted if
+ * so configured.
+ *
+ * <p>Sessions take their share of the budget by leases, so that the budget is only touched when
+ * a session's octets in flight grow or shrink by a lease.
+ */
+public class MemoryBudget {
+  public static final String cfgStrPrefix = "proxy_server.socks.relay.memory";
+  private static final int LEASE = 4096;
+
+  private final long budget;
+  private final int high;
+  private final int low;
+  private final long slowNanos;
+  private final boolean evictSlow;
+  private final AtomicLong leased;
+  private final Set<Account> accounts;
+  private final LongAdder slowConsumers;
+  private final LongAdder evictions;
+
+  /**
+   * @param budget octets in flight the proxy may hold, 0 for unlimited
+   * @param high octets in flight a session is paused at, 0 not to pause sessions
+   * @param low octets in flight a paused session resumes at
+   * @param slowMillis how long a session may stay paused before it is reported as a slow
+   *     consumer, 0 never to report
+   * @param evictSlow whether slow consumers are closed as well
+   */
+  public MemoryBudget(long budget, int high, int low, int slowMillis, boolean evictSlow) {
+    this.budget = budget;
+    this.high = high;
+    this.low = Math.min(low, high);
+    slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+    this.evictSlow = evictSlow;
+    leased = new AtomicLong();
+    accounts = ConcurrentHashMap.newKeySet();
+    slowConsumers = new LongAdder();
+    evictions = new LongAdder();
+  }
+
+  /**
+   * The account of a tunnel, to be closed when the tunnel is
+   *
+   * @param client the address of the client, for reporting
+   */
+  public Account open(long sessionId, String client) {
+    Account account = new Account(sessionId, client);
+    accounts.add(account);
+    return account;
+  }
+
+  /** Whether the proxy holds as many octets in flight as it may */
+  public boolean isExhausted() {
+    return budget > 0 && leased.get() >= budget;
+  }
+
+  /**
+   * @return nanoseconds a session may stay paused before it is a slow consumer, 0 for ever
+   */
+  public long getSlowNanos() {
+    return high > 0 ? slowNanos : 0;
+  }
+
+  /** Octets in flight of every session */
+  public long getBufferedBytes() {
+    long res = 0;
+    for (Account account : accounts) {
+      res += account.getBuffered();
+    }
+    return res;
+  }
+
+  /** Sessions paused by their watermark */
+  public int getPausedSessions() {
+    int res = 0;
+    for (Account account : accounts) {
+      if (account.paused) {
+        res++;
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @return the sessions with the most octets in flight, at most {@code n} of them and only those
+   *     holding some
+   */
+  public List<Account> getTopAccounts(int n) {
+    List<Account> res = new ArrayList<>();
+    for (Account account : accounts) {
+      if (account.getBuffered() > 0) {
+        res.add(account);
+      }
+    }
+    res.sort(Comparator.comparingInt(Account::getBuffered).reversed());
+    return res.size() > n ? res.subList(0, n) : res;
+  }
+
+  public long getSlowConsumers() {
+    return slowConsumers.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * Octets in flight of a session, updated by the threads relaying it. Only the pauses of a single
+   * threaded relay are consistent, for which reads and writes are reported by one thread.
+   */
+  public class Account {
+    private final long sessionId;
+    private final String client;
+    private final AtomicInteger buffered;
+    private volatile long accountLeased;
+    private volatile boolean closed;
+    // Read by statistics
+    private volatile boolean paused;
+    private long pausedAt;
+
+    Account(long sessionId, String client) {
+      this.sessionId = sessionId;
+      this.client = client;
+      buffered = new AtomicInteger();
+    }
+
+    public long getSessionId() {
+      return sessionId;
+    }
+
+    public String getClient() {
+      return client;
+    }
+
+    public int getBuffered() {
+      return buffered.get();
+    }
+
+    /**
+     * Reports octets read
+     *
+     * @return whether this paused the session, which is to be checked for a slow consumer after
+     *     {@link MemoryBudget#getSlowNanos()}
+     */
+    public boolean add(int n) {
+      int res = buffered.addAndGet(n);
+      if (res > accountLeased) {
+        lease(res);
+      }
+      if (!paused && high > 0 && res >= high) {
+        paused = true;
+        pausedAt = System.nanoTime();
+        return true;
+      }
+      return false;
+    }
+
+    /** Reports octets written */
+    public void remove(int n) {
+      int res = buffered.addAndGet(-n);
+      if (accountLeased - res >= 2 * LEASE) {
+        lease(res);
+      }
+      if (paused && res <= low) {
+        paused = false;
+      }
+    }
+
+    /** Whether the directions holding octets are to stop reading */
+    public boolean isPaused() {
+      return paused || isExhausted();
+    }
+
+    /**
+     * @return nanoseconds since the session was paused by its watermark, 0 if it isn't
+     */
+    public long getPausedNanos() {
+      return paused ? Math.max(System.nanoTime() - pausedAt, 1) : 0;
+    }
+
+    /**
+     * Called once the slow consumer delay elapsed since the session was paused
+     *
+     * @return whether the session is to be evicted
+     */
+    public boolean checkSlow() {
+      if (!paused || System.nanoTime() - pausedAt < slowNanos) {
+        return false;
+      }
+      slowConsumers.increment();
+      if (evictSlow) {
+        evictions.increment();
+        return true;
+      }
+      return false;
+    }
+
+    /** Leases the octets in flight rounded up to a lease */
+    private synchronized void lease(int inFlight) {
+      if (closed) {
+        return;
+      }
+      long target = (Math.max(inFlight, 0) + LEASE - 1) / LEASE * LEASE;
+      leased.addAndGet(target - accountLeased);
+      accountLeased = target;
+    }
+
+    public synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      accounts.remove(this);
+      leased.addAndGet(-accountLeased);
+      accountLeased = 0;
+    }
+  }
+}
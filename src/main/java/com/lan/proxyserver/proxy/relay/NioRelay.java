@@ -0,0 +1,545 @@
+package com.lan.proxyserver.proxy.relay;
+
+import com.lan.proxyserver.proxy.buffer.BufferPool;
+import com.lan.proxyserver.proxy.nio.ChannelHandler;
+import com.lan.proxyserver.proxy.nio.Reactor;
+import com.lan.proxyserver.proxy.nio.ReactorGroup;
+import com.lan.proxyserver.proxy.relay.WriteCoalescing.Coalescer;
+import com.lan.proxyserver.proxy.shaping.Throttle;
+import com.lan.proxyserver.proxy.socks.Session;
+import com.lan.proxyserver.proxy.trace.PayloadTrace;
+import com.lan.proxyserver.proxy.trace.PayloadTracer;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import org.jboss.logging.Logger;
+
+/**
+ * Relays every tunnel on a small fixed set of reactor threads, a tunnel only costs its two
+ * buffers (one per direction) while idle. A direction held back by its throttle stops reading
+ * until the reactor resumes it.
+ *
+ * <p>With fair scheduling, reads are not done as soon as a channel is readable but queued to the
+ * {@link FairScheduler} of the reactor, which has tenants take turns. Writes only ever flush what
+ * such reads let in.
+ *
+ * <p>With write coalescing, a read goes on reading what is readable right away, and the write may
+ * be held back for a window meanwhile the direction keeps reading, unless its buffer fills up.
+ *
+ * <p>Octets read and not written yet are accounted to the {@link MemoryBudget}, a direction holding
+ * some stops reading while the budget pauses its session.
+ */
+public class NioRelay implements Relay {
+  private static final Logger logger = Logger.getLogger(NioRelay.class);
+
+  private final ReactorGroup reactors;
+  private final long fairQuantum;
+  private final Map<Reactor, FairScheduler> schedulers;
+
+  /**
+   * @param fairQuantum octets a tenant of weight 1 may read per round of fair scheduling, 0 to
+   *     read as soon as a channel is readable
+   */
+  NioRelay(ReactorGroup reactors, long fairQuantum) {
+    this.reactors = reactors;
+    this.fairQuantum = fairQuantum;
+    schedulers = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public void relay(Session session, Socket destSocket) {
+    Reactor reactor = reactors.next();
+    FairScheduler scheduler =
+        fairQuantum > 0 ? schedulers.computeIfAbsent(reactor, this::newScheduler) : null;
+    Tunnel tunnel = new Tunnel(session, destSocket, scheduler);
+    session.detach();
+
+    reactor.execute(
+        () -> {
+          try {
+            tunnel.register(reactor);
+          } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            tunnel.close();
+          }
+        });
+    session.setExpiryHandler(() -> reactor.execute(tunnel::close));
+  }
+
+  private FairScheduler newScheduler(Reactor reactor) {
+    FairScheduler scheduler = new FairScheduler(fairQuantum);
+    reactor.addBacklog(scheduler);
+    return scheduler;
+  }
+
+  private static class Tunnel implements ChannelHandler {
+    private final Session session;
+    private final Socket destSocket;
+    private final SocketChannel client;
+    private final SocketChannel dest;
+    private final Direction forward;
+    private final Direction backward;
+    private final FairScheduler scheduler;
+    private final FairScheduler.Work forwardRead;
+    private final FairScheduler.Work backwardRead;
+    private final MemoryBudget budget;
+    private final MemoryBudget.Account account;
+    private FairScheduler.Flow flow;
+    private Reactor reactor;
+    private SelectionKey clientKey;
+    private SelectionKey destKey;
+    private boolean closed;
+    // A slow consumer check is scheduled
+    private boolean slowCheck;
+
+    /**
+     * @param scheduler null without fair scheduling
+     */
+    Tunnel(Session session, Socket destSocket, FairScheduler scheduler) {
+      this.session = session;
+      this.destSocket = destSocket;
+      client = session.getClientSocket().getChannel();
+      dest = destSocket.getChannel();
+      BufferPool bufferPool = session.getContext().getBufferPool();
+      PayloadTracer tracer = session.getContext().getPayloadTracer();
+      WriteCoalescing writeCoalescing = session.getContext().getWriteCoalescing();
+      BufferSizing bufferSizing = session.getContext().getBufferSizing();
+      budget = session.getContext().getMemoryBudget();
+      account =
+          budget.open(
+              session.getId(), session.getClientSocket().getInetAddress().getHostAddress());
+      forward =
+          new Direction(
+              "client",
+              client,
+              "destination",
+              dest,
+              bufferPool,
+              tracer.newTrace(session, destSocket, "client->destination"),
+              session.newThrottle(),
+              writeCoalescing.newCoalescer(),
+              bufferSizing.newSizer(),
+              account,
+              session::recordWrite);
+      backward =
+          new Direction(
+              "destination",
+              dest,
+              "client",
+              client,
+              bufferPool,
+              tracer.newTrace(session, destSocket, "destination->client"),
+              session.newThrottle(),
+              writeCoalescing.newCoalescer(),
+              bufferSizing.newSizer(),
+              account,
+              session::recordWrite);
+      this.scheduler = scheduler;
+      forwardRead = () -> serve(forward);
+      backwardRead = () -> serve(backward);
+    }
+
+    /**
+     * Buffers are borrowed here rather than in the constructor so that they are acquired and
+     * released on the same reactor thread, which keeps them in its buffer cache
+     */
+    void register(Reactor reactor) throws IOException {
+      this.reactor = reactor;
+      if (scheduler != null) {
+        flow =
+            scheduler.join(
+                session.getPrincipal(), session.getClientSocket().getInetAddress().getHostAddress());
+      }
+      ByteBuffer earlyData = session.takeEarlyData();
+      forward.acquire(earlyData != null ? earlyData.remaining() : 0);
+      backward.acquire(0);
+      if (earlyData != null) {
+        forward.trace.record(earlyData, earlyData.position(), earlyData.remaining());
+        account.add(earlyData.remaining());
+        forward.buffer.put(earlyData);
+      }
+
+      clientKey = reactor.register(client, SelectionKey.OP_READ, this);
+      destKey = reactor.register(dest, SelectionKey.OP_READ | forward.writeInterest(), this);
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+      boolean isClient = key == clientKey;
+      if (key.isReadable()) {
+        Direction direction = isClient ? forward : backward;
+        if (flow != null) {
+          direction.queued = true;
+          scheduler.submit(flow, isClient ? forwardRead : backwardRead);
+        } else {
+          read(direction);
+        }
+      }
+      if (key.isValid() && key.isWritable()) {
+        (isClient ? backward : forward).write();
+      }
+      updateInterests();
+    }
+
+    private int read(Direction direction) throws IOException {
+      int len = direction.read();
+      if (len > 0) {
+        if (direction == forward) {
+          session.recordClientBytes(len);
+        } else {
+          session.recordDestinationBytes(len);
+        }
+      }
+      long pause = direction.takePause();
+      if (pause > 0) {
+        reactor.schedule(() -> resume(direction), pause);
+      }
+      long window = direction.takeWindow();
+      if (window > 0) {
+        int hold = direction.holds;
+        reactor.schedule(() -> flush(direction, hold), window);
+      }
+      if (direction.takeSessionPaused() && !slowCheck && budget.getSlowNanos() > 0) {
+        slowCheck = true;
+        reactor.schedule(this::checkSlow, budget.getSlowNanos());
+      }
+      return len;
+    }
+
+    /** A read queued to the fair scheduler whose turn came */
+    private int serve(Direction direction) {
+      if (closed) {
+        return 0;
+      }
+      direction.queued = false;
+      try {
+        int len = read(direction);
+        if (!closed) {
+          updateInterests();
+        }
+        return Math.max(len, 0);
+      } catch (IOException e) {
+        logger.error(e.getMessage(), e);
+        close();
+        return 0;
+      }
+    }
+
+    private void resume(Direction direction) {
+      if (closed) {
+        return;
+      }
+      try {
+        direction.resume();
+        updateInterests();
+      } catch (IOException e) {
+        logger.error(e.getMessage(), e);
+        close();
+      }
+    }
+
+    /** The window of a held back write ended */
+    private void flush(Direction direction, int hold) {
+      if (closed) {
+        return;
+      }
+      try {
+        direction.flush(hold);
+        updateInterests();
+      } catch (IOException e) {
+        logger.error(e.getMessage(), e);
+        close();
+      }
+    }
+
+    /** The session was paused by the memory budget as long as a consumer may be slow */
+    private void checkSlow() {
+      slowCheck = false;
+      if (closed) {
+        return;
+      }
+      long paused = account.getPausedNanos();
+      if (paused > 0 && paused < budget.getSlowNanos()) {
+        // Paused again since the check was scheduled, a single check is pending at a time
+        slowCheck = true;
+        reactor.schedule(this::checkSlow, budget.getSlowNanos() - paused);
+      } else if (account.checkSlow()) {
+        logger.warnf(
+            "Evict session %d, %d byte(s) in flight for too long",
+            session.getId(), account.getBuffered());
+        close();
+      }
+    }
+
+    private void updateInterests() throws IOException {
+      // Client stopping to send ends the whole tunnel (as with the blocking relay), while
+      // destination stopping to send is propagated to the client as a half close
+      if (forward.isDrained()) {
+        close();
+        return;
+      }
+      if (backward.isDrained() && !client.socket().isOutputShutdown()) {
+        client.shutdownOutput();
+      }
+
+      clientKey.interestOps(forward.readInterest() | backward.writeInterest());
+      destKey.interestOps(backward.readInterest() | forward.writeInterest());
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+
+      if (flow != null) {
+        scheduler.leave(flow);
+      }
+      forward.release();
+      backward.release();
+      account.close();
+      try {
+        destSocket.close();
+        logger.infof("Close destination socket %s", destSocket);
+      } catch (IOException e) {
+        logger.error(e.getMessage(), e);
+      }
+      session.close();
+    }
+  }
+
+  private static class Direction {
+    private final String srcName;
+    private final SocketChannel src;
+    private final String dstName;
+    private final SocketChannel dst;
+    private final BufferPool bufferPool;
+    private final PayloadTrace trace;
+    private final Throttle throttle;
+    private final Coalescer coalescer;
+    private final BufferSizing.Sizer sizer;
+    private final MemoryBudget.Account account;
+    private final IntConsumer onWrite;
+    private ByteBuffer buffer;
+    // Size the buffer is to be replaced with once empty, 0 if none
+    private int resize;
+    // The octets last read paused the session
+    private boolean sessionPaused;
+    private boolean eof;
+    private boolean throttled;
+    private long pause;
+    // Write held back for a window, numbered so that the end of an earlier window is told apart
+    private boolean holding;
+    private int holds;
+    private int held;
+    private long window;
+    // Readable, waiting for its turn
+    private boolean queued;
+
+    Direction(
+        String srcName,
+        SocketChannel src,
+        String dstName,
+        SocketChannel dst,
+        BufferPool bufferPool,
+        PayloadTrace trace,
+        Throttle throttle,
+        Coalescer coalescer,
+        BufferSizing.Sizer sizer,
+        MemoryBudget.Account account,
+        IntConsumer onWrite) {
+      this.srcName = srcName;
+      this.src = src;
+      this.dstName = dstName;
+      this.dst = dst;
+      this.bufferPool = bufferPool;
+      this.trace = trace;
+      this.throttle = throttle;
+      this.coalescer = coalescer;
+      this.sizer = sizer;
+      this.account = account;
+      this.onWrite = onWrite;
+    }
+
+    /**
+     * @param minSize octets the buffer must hold right away
+     */
+    void acquire(int minSize) throws IOException {
+      buffer = bufferPool.acquire(sizer.acquire(minSize));
+      tuneSockets();
+    }
+
+    void release() {
+      if (buffer != null) {
+        bufferPool.release(buffer);
+        sizer.release();
+        buffer = null;
+      }
+    }
+
+    private void resize() throws IOException {
+      bufferPool.release(buffer);
+      buffer = bufferPool.acquire(resize);
+      sizer.resized(resize);
+      resize = 0;
+      tuneSockets();
+    }
+
+    private void tuneSockets() throws IOException {
+      int size = sizer.socketBufferSize();
+      if (size > 0) {
+        src.setOption(StandardSocketOptions.SO_RCVBUF, size);
+        dst.setOption(StandardSocketOptions.SO_SNDBUF, size);
+      }
+    }
+
+    /**
+     * @return octets read, -1 at the end of stream
+     */
+    int read() throws IOException {
+      int len = src.read(buffer);
+      logger.debugf("Read %d byte(s) from %s", len, srcName);
+      if (len < 0) {
+        eof = true;
+      } else if (len > 0) {
+        boolean gathering = !holding && coalescer.isGathering();
+        int gathered = gathering ? gather() : 0;
+        len += gathered;
+        if (!holding) {
+          coalescer.read(len, buffer.capacity());
+        }
+        int size = sizer.read(len);
+        if (size > 0) {
+          resize = size;
+        }
+        trace.record(buffer, buffer.position() - len, len);
+        sessionPaused = account.add(len);
+        pause = throttle.charge(len);
+        if (holding) {
+          held += len;
+        } else if (gathering) {
+          window = pause == 0 && buffer.hasRemaining() ? coalescer.window() : 0;
+          if (window > 0) {
+            holding = true;
+            holds++;
+            held = gathered;
+          } else {
+            coalescer.gathered(gathered);
+          }
+        }
+        if (pause > 0) {
+          throttled = true;
+          return len;
+        }
+      }
+      if (holding) {
+        if (!eof && buffer.hasRemaining()) {
+          return len;
+        }
+        endHold();
+      }
+      write();
+      return len;
+    }
+
+    /**
+     * Reads what is readable right away after a read, the end of stream is left for the next read
+     *
+     * @return octets read
+     */
+    private int gather() throws IOException {
+      int res = 0;
+      int len;
+      while (buffer.hasRemaining() && (len = src.read(buffer)) > 0) {
+        res += len;
+      }
+      return res;
+    }
+
+    private void endHold() {
+      holding = false;
+      coalescer.gathered(held);
+    }
+
+    /**
+     * @return nanoseconds the write of the octets last read is held back for, after which the
+     *     direction is to be flushed, 0 if not held back
+     */
+    long takeWindow() {
+      long res = window;
+      window = 0;
+      return res;
+    }
+
+    boolean takeSessionPaused() {
+      boolean res = sessionPaused;
+      sessionPaused = false;
+      return res;
+    }
+
+    /**
+     * @param hold the number of the hold whose window ended
+     */
+    void flush(int hold) throws IOException {
+      if (holding && hold == holds) {
+        endHold();
+        write();
+      }
+    }
+
+    /**
+     * @return nanoseconds the octets last read are to be held back for, after which the direction
+     *     is to be resumed, 0 if they may go right away
+     */
+    long takePause() {
+      long res = pause;
+      pause = 0;
+      return res;
+    }
+
+    void resume() throws IOException {
+      throttled = false;
+      write();
+    }
+
+    /** Also replaces the buffer once it is empty, if its sizer asked for another size */
+    void write() throws IOException {
+      if (throttled || holding) {
+        return;
+      }
+      if (buffer.position() > 0) {
+        buffer.flip();
+        int len = dst.write(buffer);
+        buffer.compact();
+        logger.debugf("Write %d byte(s) to %s", len, dstName);
+        onWrite.accept(len);
+        account.remove(len);
+      }
+      if (resize > 0 && buffer.position() == 0) {
+        resize();
+      }
+    }
+
+    boolean isDrained() {
+      return eof && buffer.position() == 0;
+    }
+
+    int readInterest() {
+      boolean paused = buffer.position() > 0 && account.isPaused();
+      return !eof && !throttled && !queued && !paused && buffer.hasRemaining()
+          ? SelectionKey.OP_READ
+          : 0;
+    }
+
+    int writeInterest() {
+      return !throttled && !holding && buffer.position() > 0 ? SelectionKey.OP_WRITE : 0;
+    }
+  }
+}
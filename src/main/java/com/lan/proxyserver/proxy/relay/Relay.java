@@ -0,0 +1,13 @@
+package com.lan.proxyserver.proxy.relay;
+
+import com.lan.proxyserver.proxy.socks.Session;
+import java.net.Socket;
+
+public interface Relay {
+  /**
+   * Relay data between the session's client socket and the destination socket. A blocking relay
+   * returns when the tunnel ends, an asynchronous relay {@link Session#detach() detaches} the
+   * session, returns immediately and becomes the owner of both sockets.
+   */
+  public void relay(Session session, Socket destSocket);
+}
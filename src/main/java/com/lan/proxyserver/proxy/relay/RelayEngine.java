@@ -0,0 +1,64 @@
+package com.lan.proxyserver.proxy.relay;
+
+import com.lan.proxyserver.proxy.nio.ReactorGroup;
+import java.util.concurrent.ExecutorService;
+
+public enum RelayEngine {
+  /** Two threads per tunnel, one per direction, blocking on socket streams */
+  BLOCKING("blocking", false, (pool, reactors, fairQuantum) -> new BlockingRelay(pool)),
+  /**
+   * A fixed set of reactor threads multiplexing every tunnel, handshakes are driven by the
+   * reactors as well
+   */
+  NIO("nio", true, (pool, reactors, fairQuantum) -> new NioRelay(reactors, fairQuantum)),
+  /**
+   * The reactors of the nio engine, splicing octets from socket to socket within the kernel, which
+   * only Linux with the native epoll transport of Netty can do, the nio engine relays otherwise
+   */
+  SPLICE(
+      "splice",
+      true,
+      (pool, reactors, fairQuantum) -> {
+        NioRelay nioRelay = new NioRelay(reactors, fairQuantum);
+        return SpliceRelay.isAvailable() ? new SpliceRelay(reactors, nioRelay) : nioRelay;
+      });
+
+  public static final String cfgStrPrefix = "proxy_server.socks.relay";
+
+  private final String name;
+  private final boolean nonBlocking;
+  private final RelayFactory relayFactory;
+
+  private static interface RelayFactory {
+    public Relay newRelay(ExecutorService pool, ReactorGroup reactors, long fairQuantum);
+  }
+
+  RelayEngine(String name, boolean nonBlocking, RelayFactory relayFactory) {
+    this.name = name;
+    this.nonBlocking = nonBlocking;
+    this.relayFactory = relayFactory;
+  }
+
+  public static RelayEngine get(String name) {
+    for (RelayEngine re : RelayEngine.values()) {
+      if (re.name.equalsIgnoreCase(name)) {
+        return re;
+      }
+    }
+    return null;
+  }
+
+  /** Whether the engine needs reactors, in which case handshakes are non-blocking as well */
+  public boolean isNonBlocking() {
+    return nonBlocking;
+  }
+
+  /**
+   * @param reactors null if the engine is blocking
+   * @param fairQuantum octets a tenant of weight 1 may read per round of fair scheduling, 0
+   *     disables it, ignored by the blocking engine whose threads the system schedules
+   */
+  public Relay newRelay(ExecutorService pool, ReactorGroup reactors, long fairQuantum) {
+    return relayFactory.newRelay(pool, reactors, fairQuantum);
+  }
+}
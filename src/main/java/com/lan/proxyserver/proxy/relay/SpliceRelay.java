@@ -0,0 +1,442 @@
+package com.lan.proxyserver.proxy.relay;
+
+import com.lan.proxyserver.proxy.nio.ChannelHandler;
+import com.lan.proxyserver.proxy.nio.Reactor;
+import com.lan.proxyserver.proxy.nio.ReactorGroup;
+import com.lan.proxyserver.proxy.shaping.Throttle;
+import com.lan.proxyserver.proxy.socks.Session;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.Native;
+import io.netty.channel.unix.FileDescriptor;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import org.jboss.logging.Logger;
+
+/**
+ * Relays tunnels on the reactors as {@link NioRelay} does, but moves the octets with splice(2)
+ * through a pipe per direction, from one socket to the other within the kernel, so that they are
+ * never copied to user space. Splicing goes through the native epoll transport of Netty, on the
+ * file descriptors of the channels, which the JDK only exposes with {@code --add-exports
+ * java.base/sun.nio.ch=ALL-UNNAMED}.
+ *
+ * <p>Tunnels are relayed by {@link NioRelay} with pooled buffers instead when pipes can't be
+ * created, or while a trace rule is set since spliced octets can't be traced. Reads of spliced
+ * tunnels are not fair scheduled. Octets in pipes are accounted to the {@link MemoryBudget} as those
+ * in buffers are.
+ */
+public class SpliceRelay implements Relay {
+  private static final Logger logger = Logger.getLogger(SpliceRelay.class);
+  // Default capacity of a pipe on Linux, more isn't spliced in at once
+  private static final int PIPE_SIZE = 64 * 1024;
+  private static final MethodHandle fdVal = lookupFdVal();
+
+  private final ReactorGroup reactors;
+  private final NioRelay fallback;
+  private final LongAdder splicedTunnels;
+
+  SpliceRelay(ReactorGroup reactors, NioRelay fallback) {
+    this.reactors = reactors;
+    this.fallback = fallback;
+    splicedTunnels = new LongAdder();
+  }
+
+  /** Whether splice(2) can be used, logs why not otherwise */
+  static boolean isAvailable() {
+    try {
+      if (!Epoll.isAvailable()) {
+        logger.errorf(
+            "Native epoll transport is unavailable: %s", Epoll.unavailabilityCause().getMessage());
+        return false;
+      }
+    } catch (LinkageError e) {
+      logger.errorf("Native epoll transport is missing: %s", e.getMessage());
+      return false;
+    }
+    if (fdVal == null) {
+      logger.error(
+          "File descriptors of channels are not accessible, run with --add-exports"
+              + " java.base/sun.nio.ch=ALL-UNNAMED");
+      return false;
+    }
+    return true;
+  }
+
+  private static MethodHandle lookupFdVal() {
+    try {
+      // The export is qualified (to the unnamed module), which a public lookup doesn't see
+      return MethodHandles.lookup()
+          .findVirtual(
+              Class.forName("sun.nio.ch.SelChImpl"), "getFDVal", MethodType.methodType(int.class));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      logger.debug(e.getMessage(), e);
+      return null;
+    }
+  }
+
+  /** Tunnels relayed by splicing, rather than by the nio relay they may fall back to */
+  public long getSplicedTunnels() {
+    return splicedTunnels.sum();
+  }
+
+  private static int fd(SocketChannel channel) throws IOException {
+    try {
+      return (int) fdVal.invoke(channel);
+    } catch (Throwable e) {
+      throw new IOException("Cannot get the file descriptor of " + channel, e);
+    }
+  }
+
+  @Override
+  public void relay(Session session, Socket destSocket) {
+    if (!session.getContext().getPayloadTracer().getRules().isEmpty()) {
+      fallback.relay(session, destSocket);
+      return;
+    }
+    Tunnel tunnel;
+    try {
+      tunnel = new Tunnel(session, destSocket);
+    } catch (IOException e) {
+      logger.debugf("Cannot splice, relay with buffers: %s", e.getMessage());
+      fallback.relay(session, destSocket);
+      return;
+    }
+    session.detach();
+    splicedTunnels.increment();
+
+    Reactor reactor = reactors.next();
+    reactor.execute(
+        () -> {
+          try {
+            tunnel.register(reactor);
+          } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            tunnel.close();
+          }
+        });
+    session.setExpiryHandler(() -> reactor.execute(tunnel::close));
+  }
+
+  private static class Tunnel implements ChannelHandler {
+    private final Session session;
+    private final Socket destSocket;
+    private final SocketChannel client;
+    private final SocketChannel dest;
+    private final Direction forward;
+    private final Direction backward;
+    private final MemoryBudget budget;
+    private final MemoryBudget.Account account;
+    private Reactor reactor;
+    private SelectionKey clientKey;
+    private SelectionKey destKey;
+    private boolean closed;
+    // A slow consumer check is scheduled
+    private boolean slowCheck;
+
+    /**
+     * @throws IOException if pipes can't be created, nothing is left open then
+     */
+    Tunnel(Session session, Socket destSocket) throws IOException {
+      this.session = session;
+      this.destSocket = destSocket;
+      client = session.getClientSocket().getChannel();
+      dest = destSocket.getChannel();
+      int clientFd = fd(client);
+      int destFd = fd(dest);
+      FileDescriptor[] forwardPipe = FileDescriptor.pipe();
+      FileDescriptor[] backwardPipe;
+      try {
+        backwardPipe = FileDescriptor.pipe();
+      } catch (IOException e) {
+        forwardPipe[0].close();
+        forwardPipe[1].close();
+        throw e;
+      }
+      budget = session.getContext().getMemoryBudget();
+      account =
+          budget.open(
+              session.getId(), session.getClientSocket().getInetAddress().getHostAddress());
+      forward =
+          new Direction("client", client, clientFd, dest, destFd, forwardPipe, session, account);
+      backward =
+          new Direction(
+              "destination", dest, destFd, client, clientFd, backwardPipe, session, account);
+    }
+
+    void register(Reactor reactor) throws IOException {
+      this.reactor = reactor;
+      forward.head = session.takeEarlyData();
+
+      clientKey = reactor.register(client, SelectionKey.OP_READ, this);
+      destKey = reactor.register(dest, SelectionKey.OP_READ | forward.writeInterest(), this);
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+      boolean isClient = key == clientKey;
+      if (key.isReadable()) {
+        Direction direction = isClient ? forward : backward;
+        int len = direction.read();
+        if (len > 0) {
+          if (isClient) {
+            session.recordClientBytes(len);
+          } else {
+            session.recordDestinationBytes(len);
+          }
+        }
+        long pause = direction.takePause();
+        if (pause > 0) {
+          reactor.schedule(() -> resume(direction), pause);
+        }
+        if (direction.takeSessionPaused() && !slowCheck && budget.getSlowNanos() > 0) {
+          slowCheck = true;
+          reactor.schedule(this::checkSlow, budget.getSlowNanos());
+        }
+      }
+      if (key.isValid() && key.isWritable()) {
+        (isClient ? backward : forward).write();
+      }
+      updateInterests();
+    }
+
+    private void resume(Direction direction) {
+      if (closed) {
+        return;
+      }
+      try {
+        direction.resume();
+        updateInterests();
+      } catch (IOException e) {
+        logger.error(e.getMessage(), e);
+        close();
+      }
+    }
+
+    /** The session was paused by the memory budget as long as a consumer may be slow */
+    private void checkSlow() {
+      slowCheck = false;
+      if (closed) {
+        return;
+      }
+      long paused = account.getPausedNanos();
+      if (paused > 0 && paused < budget.getSlowNanos()) {
+        // Paused again since the check was scheduled, a single check is pending at a time
+        slowCheck = true;
+        reactor.schedule(this::checkSlow, budget.getSlowNanos() - paused);
+      } else if (account.checkSlow()) {
+        logger.warnf(
+            "Evict session %d, %d byte(s) in flight for too long",
+            session.getId(), account.getBuffered());
+        close();
+      }
+    }
+
+    private void updateInterests() throws IOException {
+      // Same as the buffered relay: client stopping to send ends the whole tunnel, destination
+      // stopping to send is propagated to the client as a half close
+      if (forward.isDrained()) {
+        close();
+        return;
+      }
+      if (backward.isDrained() && !client.socket().isOutputShutdown()) {
+        client.shutdownOutput();
+      }
+
+      clientKey.interestOps(forward.readInterest() | backward.writeInterest());
+      destKey.interestOps(backward.readInterest() | forward.writeInterest());
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+
+      forward.close();
+      backward.close();
+      account.close();
+      try {
+        destSocket.close();
+        logger.infof("Close destination socket %s", destSocket);
+      } catch (IOException e) {
+        logger.error(e.getMessage(), e);
+      }
+      session.close();
+    }
+  }
+
+  private static class Direction {
+    private final String srcName;
+    private final SocketChannel src;
+    private final int srcFd;
+    private final SocketChannel dst;
+    private final int dstFd;
+    private final FileDescriptor pipeOut;
+    private final FileDescriptor pipeIn;
+    private final Throttle throttle;
+    private final IntConsumer onWrite;
+    private final MemoryBudget.Account account;
+    // Octets read through the channel, as splice(2) doesn't tell the end of stream from no octets
+    private final ByteBuffer probe;
+    // Octets that go before those spliced
+    private ByteBuffer head;
+    private int piped;
+    private boolean probed;
+    private boolean eof;
+    private boolean throttled;
+    private long pause;
+    // The octets last read paused the session
+    private boolean sessionPaused;
+
+    /**
+     * @param pipe read end then write end
+     */
+    Direction(
+        String srcName,
+        SocketChannel src,
+        int srcFd,
+        SocketChannel dst,
+        int dstFd,
+        FileDescriptor[] pipe,
+        Session session,
+        MemoryBudget.Account account) {
+      this.srcName = srcName;
+      this.src = src;
+      this.srcFd = srcFd;
+      this.dst = dst;
+      this.dstFd = dstFd;
+      pipeOut = pipe[0];
+      pipeIn = pipe[1];
+      throttle = session.newThrottle();
+      onWrite = session::recordWrite;
+      this.account = account;
+      probe = ByteBuffer.allocate(1);
+    }
+
+    /**
+     * @return octets read, -1 at the end of stream
+     */
+    int read() throws IOException {
+      int len = Native.splice(srcFd, -1, pipeIn.intValue(), -1, PIPE_SIZE - piped);
+      if (len > 0) {
+        piped += len;
+        sessionPaused = account.add(len);
+      } else {
+        len = src.read(probe);
+        if (len < 0) {
+          eof = true;
+          logger.debugf("Read %d byte(s) from %s", len, srcName);
+          return len;
+        }
+        if (len > 0) {
+          probe.flip();
+          probed = true;
+        }
+      }
+      logger.debugf("Splice %d byte(s) from %s", len, srcName);
+      if (len > 0) {
+        pause = throttle.charge(len);
+        if (pause > 0) {
+          throttled = true;
+          return len;
+        }
+      }
+      write();
+      return len;
+    }
+
+    /**
+     * @return nanoseconds the octets last read are to be held back for, after which the direction
+     *     is to be resumed, 0 if they may go right away
+     */
+    long takePause() {
+      long res = pause;
+      pause = 0;
+      return res;
+    }
+
+    boolean takeSessionPaused() {
+      boolean res = sessionPaused;
+      sessionPaused = false;
+      return res;
+    }
+
+    void resume() throws IOException {
+      throttled = false;
+      write();
+    }
+
+    void write() throws IOException {
+      if (throttled) {
+        return;
+      }
+      if (head != null) {
+        recordWrite(dst.write(head));
+        if (head.hasRemaining()) {
+          return;
+        }
+        head = null;
+      }
+      while (piped > 0) {
+        int len = Native.splice(pipeOut.intValue(), -1, dstFd, -1, piped);
+        recordWrite(len);
+        if (len == 0) {
+          return;
+        }
+        piped -= len;
+        account.remove(len);
+      }
+      if (probed) {
+        recordWrite(dst.write(probe));
+        if (probe.hasRemaining()) {
+          return;
+        }
+        probe.clear();
+        probed = false;
+      }
+    }
+
+    /** Writes which would have blocked wrote nothing, they aren't writes to account for */
+    private void recordWrite(int len) {
+      if (len > 0) {
+        onWrite.accept(len);
+      }
+    }
+
+    private boolean hasPending() {
+      return head != null || piped > 0 || probed;
+    }
+
+    boolean isDrained() {
+      return eof && !hasPending();
+    }
+
+    int readInterest() {
+      boolean paused = piped > 0 && account.isPaused();
+      return !eof && !throttled && !probed && !paused && piped < PIPE_SIZE
+          ? SelectionKey.OP_READ
+          : 0;
+    }
+
+    int writeInterest() {
+      return !throttled && hasPending() ? SelectionKey.OP_WRITE : 0;
+    }
+
+    void close() {
+      try {
+        pipeOut.close();
+        pipeIn.close();
+      } catch (IOException e) {
+        logger.error(e.getMessage(), e);
+      }
+    }
+  }
+}
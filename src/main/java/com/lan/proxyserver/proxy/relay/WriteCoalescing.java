@@ -0,0 +1,99 @@
+package com.lan.proxyserver.proxy.relay;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Has relays gather small reads into larger writes: once octets are read, whatever else is readable
+ * right away is read into the same buffer, and the write may then wait for a short window for more
+ * octets to come, so that chatty protocols cost fewer syscalls and segments.
+ *
+ * <p>Each relay direction adapts on its own: a direction whose gatherings keep coming back empty is
+ * interactive (keystrokes, request/response exchanges), for which waiting only adds latency and
+ * gathering only adds syscalls, so it does neither until a read fills half its buffer again.
+ */
+public class WriteCoalescing {
+  public static final String cfgStrPrefix = "proxy_server.socks.relay.coalesce";
+  public static final WriteCoalescing DISABLED = new WriteCoalescing(false, 0, 1);
+
+  private final boolean enable;
+  private final long windowNanos;
+  private final int interactiveMisses;
+
+  /**
+   * @param windowMicros how long a write may wait for more octets, 0 to only gather what is
+   *     readable right away
+   * @param interactiveMisses gatherings in a row letting nothing in, after which a direction is
+   *     deemed interactive
+   */
+  public WriteCoalescing(boolean enable, int windowMicros, int interactiveMisses) {
+    this.enable = enable;
+    windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+    this.interactiveMisses = Math.max(1, interactiveMisses);
+  }
+
+  public boolean isEnabled() {
+    return enable;
+  }
+
+  /** One per relay direction, only ever used by the thread relaying it */
+  public Coalescer newCoalescer() {
+    return enable ? new Coalescer(true, windowNanos, interactiveMisses) : Coalescer.NONE;
+  }
+
+  public static class Coalescer {
+    static final Coalescer NONE = new Coalescer(false, 0, 1);
+
+    private final boolean enable;
+    private final long windowNanos;
+    private final int interactiveMisses;
+    private boolean interactive;
+    private int misses;
+
+    Coalescer(boolean enable, long windowNanos, int interactiveMisses) {
+      this.enable = enable;
+      this.windowNanos = windowNanos;
+      this.interactiveMisses = interactiveMisses;
+    }
+
+    /** Whether reads are to gather what is readable right away */
+    public boolean isGathering() {
+      return enable && !interactive;
+    }
+
+    /**
+     * @return nanoseconds a write may wait for more octets, 0 if it is to be done right away
+     */
+    public long window() {
+      return isGathering() ? windowNanos : 0;
+    }
+
+    /**
+     * Reports the octets a read (and the gathering following it) let into a buffer
+     *
+     * @param capacity of the buffer
+     */
+    public void read(int len, int capacity) {
+      if (interactive && len >= capacity / 2) {
+        interactive = false;
+        misses = 0;
+      }
+    }
+
+    /**
+     * Reports what a gathering let in after a read, right away or within the window
+     *
+     * @param len octets gathered, 0 if none came
+     */
+    public void gathered(int len) {
+      if (len > 0) {
+        misses = 0;
+      } else if (enable && ++misses >= interactiveMisses) {
+        interactive = true;
+      }
+    }
+
+    public boolean isInteractive() {
+      return interactive;
+    }
+  }
+}
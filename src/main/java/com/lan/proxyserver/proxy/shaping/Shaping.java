@@ -0,0 +1,34 @@
+package com.lan.proxyserver.proxy.shaping;
+
+/** The buckets of a session, each of its relay directions gets a {@link Throttle} of its own */
+public class Shaping {
+  /** Of sessions when shaping is disabled */
+  public static final Shaping UNLIMITED = new Shaping(null, null, null, 0, () -> {});
+
+  private final TokenBucket session;
+  private final TokenBucket tenant;
+  private final TokenBucket global;
+  private final long lease;
+  private final Runnable onClose;
+
+  Shaping(
+      TokenBucket session, TokenBucket tenant, TokenBucket global, long lease, Runnable onClose) {
+    this.session = session;
+    this.tenant = tenant;
+    this.global = global;
+    this.lease = lease;
+    this.onClose = onClose;
+  }
+
+  public Throttle newThrottle() {
+    if (session == null && tenant == null && global == null) {
+      return Throttle.UNLIMITED;
+    }
+    return new Throttle(session, tenant, global, lease);
+  }
+
+  /** To be called once, when the session is closed */
+  public void close() {
+    onClose.run();
+  }
+}
@@ -0,0 +1,54 @@
+package com.lan.proxyserver.proxy.shaping;
+
+/**
+ * Charges the octets a single relay direction reads to the buckets of its session: its session
+ * bucket, its user (or source) bucket and the global bucket, any of which may be unlimited.
+ *
+ * <p>The global bucket is shared by every tunnel, so a throttle leases octets from it a chunk at a
+ * time rather than on every read, at most a lease is lost when the direction ends. A throttle is
+ * only ever used by a single thread at a time.
+ */
+public class Throttle {
+  /** Never waits */
+  public static final Throttle UNLIMITED = new Throttle(null, null, null, 0);
+
+  private final TokenBucket session;
+  private final TokenBucket tenant;
+  private final TokenBucket global;
+  private final long lease;
+  private long leased;
+
+  Throttle(TokenBucket session, TokenBucket tenant, TokenBucket global, long lease) {
+    this.session = session;
+    this.tenant = tenant;
+    this.global = global;
+    this.lease = lease;
+  }
+
+  /**
+   * @param n octets just read
+   * @return nanoseconds to wait before relaying them, 0 if they may go right away
+   */
+  public long charge(int n) {
+    if (session == null && tenant == null && global == null) {
+      return 0;
+    }
+    long now = System.nanoTime();
+    long wait = 0;
+    if (session != null) {
+      wait = session.take(n, now);
+    }
+    if (tenant != null) {
+      wait = Math.max(wait, tenant.take(n, now));
+    }
+    if (global != null) {
+      leased -= n;
+      if (leased < 0) {
+        long chunk = Math.max(lease, -leased);
+        wait = Math.max(wait, global.take(chunk, now));
+        leased += chunk;
+      }
+    }
+    return wait;
+  }
+}
@@ -0,0 +1,124 @@
+package com.lan.proxyserver.proxy.shaping;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A token bucket filled at {@code rate} octets per second up to {@code burst} octets, kept as the
+ * time at which it would be full again (GCRA): taking octets is a single compare and set, the
+ * bucket refills by the mere passing of time so that no thread or lock ever refills it.
+ *
+ * <p>Octets are taken after they have been read rather than before, the bucket may thus go into
+ * debt and whoever took them waits until it is out of it, which keeps the long run rate exact
+ * whatever the read sizes.
+ */
+public class TokenBucket {
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  /** What buckets of a level, or a single bucket, shaped */
+  public static class Stats {
+    private final String level;
+    private final String key;
+    private final long rate;
+    private final long burst;
+    private final LongAdder bytes;
+    private final LongAdder throttles;
+    private final LongAdder throttledNanos;
+
+    Stats(String level, String key, long rate, long burst) {
+      this.level = level;
+      this.key = key;
+      this.rate = rate;
+      this.burst = burst;
+      bytes = new LongAdder();
+      throttles = new LongAdder();
+      throttledNanos = new LongAdder();
+    }
+
+    /**
+     * @return global, user, source or session
+     */
+    public String getLevel() {
+      return level;
+    }
+
+    /**
+     * @return the user or source address of the bucket, empty for the global bucket and session
+     *     buckets (aggregated)
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /** Octets per second */
+    public long getRate() {
+      return rate;
+    }
+
+    public long getBurst() {
+      return burst;
+    }
+
+    /** Octets taken */
+    public long getBytes() {
+      return bytes.sum();
+    }
+
+    /** Times octets taken made relaying wait */
+    public long getThrottles() {
+      return throttles.sum();
+    }
+
+    /** Time relaying waited for the bucket */
+    public long getThrottledNanos() {
+      return throttledNanos.sum();
+    }
+  }
+
+  private final long rate;
+  private final long tolerance;
+  private final Stats stats;
+  // When the bucket is full again, in System.nanoTime() terms
+  private final AtomicLong fullAt;
+
+  /**
+   * @param rate octets per second, positive
+   * @param burst octets that may go at once out of a full bucket
+   * @param stats where the bucket reports, possibly shared by several buckets
+   */
+  TokenBucket(long rate, long burst, Stats stats) {
+    this.rate = rate;
+    tolerance = nanos(Math.clamp(burst, 1, Long.MAX_VALUE / NANOS_PER_SECOND));
+    this.stats = stats;
+    fullAt = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * @param now as {@link System#nanoTime()}
+   * @return nanoseconds to wait before the octets may go, 0 if they may go right away
+   */
+  long take(long n, long now) {
+    long cost = nanos(n);
+    long wait;
+    while (true) {
+      long current = fullAt.get();
+      long next = Math.max(current, now) + cost;
+      if (fullAt.compareAndSet(current, next)) {
+        wait = next - tolerance - now;
+        break;
+      }
+    }
+    stats.bytes.add(n);
+    if (wait <= 0) {
+      return 0;
+    }
+    stats.throttles.increment();
+    stats.throttledNanos.add(wait);
+    return wait;
+  }
+
+  private long nanos(long n) {
+    return n * NANOS_PER_SECOND / rate;
+  }
+}
@@ -0,0 +1,186 @@
+package com.lan.proxyserver.proxy.shaping;
+
+import com.lan.proxyserver.config.Configer;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits the octets relayed either way with hierarchical token buckets: a global bucket, a bucket
+ * per user (the principal sessions authenticated as) or per source address for sessions which
+ * didn't authenticate, and a bucket per session. Octets only go once every bucket above them lets
+ * them, a level whose rate is 0 doesn't limit anything.
+ *
+ * <p>User and source buckets live as long as sessions use them. Rates of the user level may be set
+ * per user under {@code proxy_server.socks.shaping.user.<principal>}.
+ */
+public class TrafficShaper {
+  public static final String cfgStrPrefix = "proxy_server.socks.shaping";
+
+  /** Rate and burst of a level, both in octets */
+  public static class Limit {
+    private final long rate;
+    private final long burst;
+
+    /**
+     * @param rate octets per second, 0 for unlimited
+     * @param burst 0 for a second worth of octets
+     */
+    public Limit(long rate, long burst) {
+      this.rate = rate;
+      this.burst = burst > 0 ? burst : rate;
+    }
+
+    boolean isUnlimited() {
+      return rate <= 0;
+    }
+
+    /**
+     * Reads a level configured as {@code <sections>.rate_kb} and {@code <sections>.burst_kb}
+     *
+     * @param def what is left unset is taken from
+     */
+    public static Limit fromConfig(Limit def, String... sections) {
+      int rateKb = Configer.getInt(-1, append(sections, "rate_kb"));
+      int burstKb = Configer.getInt(-1, append(sections, "burst_kb"));
+      return new Limit(
+          rateKb < 0 ? def.rate : rateKb * 1024L, burstKb < 0 ? def.burst : burstKb * 1024L);
+    }
+
+    private static String[] append(String[] sections, String section) {
+      String[] res = new String[sections.length + 1];
+      System.arraycopy(sections, 0, res, 0, sections.length);
+      res[sections.length] = section;
+      return res;
+    }
+  }
+
+  private static class Tenant {
+    private final TokenBucket bucket;
+    private final TokenBucket.Stats stats;
+    // Guarded by the map entry
+    private int sessions;
+
+    Tenant(TokenBucket bucket, TokenBucket.Stats stats) {
+      this.bucket = bucket;
+      this.stats = stats;
+    }
+  }
+
+  private final boolean enable;
+  private final Limit user;
+  private final Limit source;
+  private final Limit session;
+  private final long lease;
+  private final TokenBucket global;
+  private final TokenBucket.Stats globalStats;
+  private final TokenBucket.Stats sessionStats;
+  private final Map<String, Tenant> users;
+  private final Map<String, Tenant> sources;
+
+  /**
+   * @param lease octets a relay direction takes from the global bucket at a time
+   */
+  public TrafficShaper(
+      boolean enable, Limit global, Limit user, Limit source, Limit session, long lease) {
+    this.enable = enable;
+    this.user = user;
+    this.source = source;
+    this.session = session;
+    if (enable && !global.isUnlimited()) {
+      globalStats = new TokenBucket.Stats("global", "", global.rate, global.burst);
+      this.global = new TokenBucket(global.rate, global.burst, globalStats);
+      // A lease larger than the burst would have every lease wait
+      this.lease = Math.max(1, Math.min(lease, global.burst));
+    } else {
+      globalStats = null;
+      this.global = null;
+      this.lease = 0;
+    }
+    sessionStats =
+        enable && !session.isUnlimited()
+            ? new TokenBucket.Stats("session", "", session.rate, session.burst)
+            : null;
+    users = new ConcurrentHashMap<>();
+    sources = new ConcurrentHashMap<>();
+  }
+
+  public boolean isEnabled() {
+    return enable;
+  }
+
+  /**
+   * Sets up the buckets of a session, to be closed when the session is
+   *
+   * @param principal null if the session didn't authenticate
+   */
+  public Shaping open(String principal, InetAddress sourceAddress) {
+    if (!enable) {
+      return Shaping.UNLIMITED;
+    }
+    Map<String, Tenant> tenants;
+    String key;
+    if (principal != null) {
+      tenants = users;
+      key = principal;
+    } else {
+      tenants = sources;
+      key = sourceAddress.getHostAddress();
+    }
+    Tenant tenant =
+        tenants.compute(
+            key,
+            (k, t) -> {
+              if (t == null) {
+                t = newTenant(principal != null, k);
+              }
+              t.sessions++;
+              return t;
+            });
+    TokenBucket sessionBucket =
+        sessionStats != null ? new TokenBucket(session.rate, session.burst, sessionStats) : null;
+    return new Shaping(
+        sessionBucket, tenant.bucket, global, lease, () -> release(tenants, key));
+  }
+
+  private Tenant newTenant(boolean isUser, String key) {
+    Limit limit = isUser ? Limit.fromConfig(user, cfgStrPrefix, "user", key) : source;
+    if (limit.isUnlimited()) {
+      return new Tenant(null, null);
+    }
+    TokenBucket.Stats stats =
+        new TokenBucket.Stats(isUser ? "user" : "source", key, limit.rate, limit.burst);
+    return new Tenant(new TokenBucket(limit.rate, limit.burst, stats), stats);
+  }
+
+  private static void release(Map<String, Tenant> tenants, String key) {
+    tenants.computeIfPresent(key, (k, t) -> --t.sessions == 0 ? null : t);
+  }
+
+  /**
+   * @return what the global bucket, every user and source bucket in use, and session buckets
+   *     altogether shaped, limited levels only
+   */
+  public List<TokenBucket.Stats> getStats() {
+    List<TokenBucket.Stats> stats = new ArrayList<>();
+    if (globalStats != null) {
+      stats.add(globalStats);
+    }
+    for (Tenant tenant : users.values()) {
+      if (tenant.stats != null) {
+        stats.add(tenant.stats);
+      }
+    }
+    for (Tenant tenant : sources.values()) {
+      if (tenant.stats != null) {
+        stats.add(tenant.stats);
+      }
+    }
+    if (sessionStats != null) {
+      stats.add(sessionStats);
+    }
+    return stats;
+  }
+}
@@ -1,42 +1,20 @@
 package com.lan.proxyserver.proxy.socks;
 
-import java.io.IOException;
 import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import org.jboss.logging.Logger;
 
 public enum AddressType {
-  IP_V4(
-      (byte) 1,
-      (clientSocket) -> {
-        byte[] address = new byte[4];
-        int len = clientSocket.getInputStream().read(address);
-        if (len != address.length) {
-          LoggerHolder.logger.debug("Failed to read destination address octets");
-          return null;
-        }
-        return address;
-      });
-
-  // DOMAINNAME((byte) 3, (clientSocket) -> null),
-  // IP_V6((byte) 4, (clientSocket) -> new byte[16]);
-
-  private static class LoggerHolder {
-    private static final Logger logger = Logger.getLogger(AddressType.class);
-  }
+  IP_V4((byte) 1, 4),
+  DOMAINNAME((byte) 3, -1),
+  IP_V6((byte) 4, 16);
 
   private final byte type;
-  private final AddressReader addressReader;
+  private final int addressLength;
 
-  private static interface AddressReader {
-    public byte[] read(Socket clientSocket) throws IOException;
-  }
-
-  AddressType(byte type, AddressReader addressReader) {
+  AddressType(byte type, int addressLength) {
     this.type = type;
-    this.addressReader = addressReader;
+    this.addressLength = addressLength;
   }
 
   public static AddressType get(byte type) {
@@ -48,14 +26,13 @@ public enum AddressType {
     return null;
   }
 
-  public static AddressType get(ServerSocket serverSocket) {
-    InetAddress inetAddress = serverSocket.getInetAddress();
+  public static AddressType get(InetAddress inetAddress) {
     if (inetAddress instanceof Inet4Address) {
       return AddressType.IP_V4;
     }
-    // if (inetAddress instanceof Inet6Address) {
-    // return AddressType.IP_V6;
-    // }
+    if (inetAddress instanceof Inet6Address) {
+      return AddressType.IP_V6;
+    }
     return null;
   }
 
@@ -63,7 +40,11 @@ public enum AddressType {
     return type;
   }
 
-  public byte[] read(Socket clientSocket) throws IOException {
-    return addressReader.read(clientSocket);
+  /**
+   * Number of address octets following the address type octet in a request, -1 if the address is
+   * preceded by its length octet instead
+   */
+  public int getAddressLength() {
+    return addressLength;
   }
 }
@@ -0,0 +1,226 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.nio.ChannelHandler;
+import com.lan.proxyserver.proxy.nio.Reactor;
+import com.lan.proxyserver.proxy.socks.handshake.Handshake;
+import com.lan.proxyserver.proxy.socks.handshake.HandshakeOutput;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import org.jboss.logging.Logger;
+
+/**
+ * Drives the handshake of a session on a reactor so that a client taking its time to handshake
+ * does not hold any thread, the session only gets a pool thread for executing its request
+ */
+class NioHandshake implements ChannelHandler {
+  private static final Logger logger = Logger.getLogger(NioHandshake.class);
+  private static final int HANDSHAKE_BUFFER_SIZE = 1024;
+
+  private final ServerSocket serverSocket;
+  private final Session session;
+  private final Reactor reactor;
+  private final SocketChannel client;
+  private ByteBuffer in;
+  private final HandshakeOutput out;
+  private SelectionKey key;
+  private SocksImpl socksImpl;
+  private Handshake.Status status;
+
+  private NioHandshake(ServerSocket serverSocket, Session session, Reactor reactor) {
+    this.serverSocket = serverSocket;
+    this.session = session;
+    this.reactor = reactor;
+    client = session.getClientSocket().getChannel();
+    out = new HandshakeOutput();
+    status = Handshake.Status.NEED_MORE;
+  }
+
+  static void start(ServerSocket serverSocket, Session session, Reactor reactor) {
+    NioHandshake handshake = new NioHandshake(serverSocket, session, reactor);
+    reactor.execute(
+        () -> {
+          try {
+            // Borrowed on the reactor thread, where it is released as well
+            handshake.in = session.getContext().getBufferPool().acquire(HANDSHAKE_BUFFER_SIZE);
+            handshake.key = reactor.register(handshake.client, SelectionKey.OP_READ, handshake);
+          } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            handshake.close();
+          }
+        });
+    // Posted after the registration, so that the handshake is closed on the reactor thread once
+    // registered
+    session.setExpiryHandler(() -> reactor.execute(handshake::close));
+  }
+
+  @Override
+  public void handle(SelectionKey key) throws IOException {
+    if (key.isWritable()) {
+      out.writeTo(client);
+    }
+    if (key.isReadable()) {
+      if (client.read(in) < 0) {
+        logger.debug("Client closed the connection in the middle of the handshake");
+        close();
+        return;
+      }
+      in.flip();
+      advance();
+      in.compact();
+      out.writeTo(client);
+    }
+    proceed();
+  }
+
+  private void proceed() {
+    if (!out.isEmpty()) {
+      key.interestOps(SelectionKey.OP_WRITE);
+      return;
+    }
+    switch (status) {
+      case NEED_MORE:
+        key.interestOps(SelectionKey.OP_READ);
+        break;
+      case DONE:
+        handOver();
+        break;
+      case FAILED:
+        logger.debugf("Handshake failed with client socket %s", session.getClientSocket());
+        close();
+        break;
+      case BLOCKING:
+        runBlocking();
+        break;
+    }
+  }
+
+  /**
+   * The blocking step of the handshake runs on the pool, the channel being left registered with no
+   * interest meanwhile, and the handshake resumes on the reactor thread once it returned
+   */
+  private void runBlocking() {
+    key.interestOps(0);
+    Handshake handshake = socksImpl.getHandshake();
+    try {
+      session
+          .getContext()
+          .getPool()
+          .execute(
+              () -> {
+                try {
+                  handshake.runBlocking();
+                } catch (RuntimeException e) {
+                  logger.error(e.getMessage(), e);
+                  reactor.execute(this::close);
+                  return;
+                }
+                reactor.execute(this::resume);
+              });
+    } catch (RuntimeException e) {
+      logger.error(e.getMessage(), e);
+      close();
+    }
+  }
+
+  private void resume() {
+    if (in == null) {
+      // Closed meanwhile, e.g. the session expired
+      return;
+    }
+    if (!key.isValid()) {
+      close();
+      return;
+    }
+    in.flip();
+    advance();
+    in.compact();
+    try {
+      out.writeTo(client);
+    } catch (IOException e) {
+      logger.debug(e.getMessage());
+      close();
+      return;
+    }
+    proceed();
+  }
+
+  private void advance() {
+    if (socksImpl == null) {
+      if (!in.hasRemaining()) {
+        return;
+      }
+      byte versionNumber = in.get();
+      SocksVersion socksVersion = SocksVersion.get(versionNumber);
+      if (socksVersion == null) {
+        logger.debugf("Unsupported socks version %02x", versionNumber);
+        status = Handshake.Status.FAILED;
+        return;
+      }
+      socksImpl = socksVersion.newImpl(serverSocket, session);
+      if (socksImpl == null) {
+        status = Handshake.Status.FAILED;
+        return;
+      }
+    }
+    status = socksImpl.getHandshake().advance(in, out);
+  }
+
+  /**
+   * Executing a request involves blocking operations (e.g. connecting to the destination), so the
+   * client channel is put back to blocking mode and handed over to the pool, which requires the
+   * channel to be deregistered first, that is after the reactor's next selection
+   */
+  private void handOver() {
+    in.flip();
+    if (in.hasRemaining()) {
+      ByteBuffer earlyData = ByteBuffer.allocate(in.remaining());
+      earlyData.put(in).flip();
+      session.setEarlyData(earlyData);
+    }
+    releaseBuffer();
+
+    key.cancel();
+    reactor.execute(
+        () -> {
+          try {
+            session.getContext().getPool().execute(this::execute);
+          } catch (RuntimeException e) {
+            logger.error(e.getMessage(), e);
+            session.close();
+          }
+        });
+  }
+
+  private void execute() {
+    try {
+      client.configureBlocking(true);
+      socksImpl.execute();
+    } catch (IOException e) {
+      if (session.isClosed()) {
+        logger.debug(e.getMessage());
+      } else {
+        logger.error(e.getMessage(), e);
+      }
+    }
+
+    if (!session.isDetached()) {
+      session.close();
+    }
+  }
+
+  private void releaseBuffer() {
+    session.getContext().getBufferPool().release(in);
+    in = null;
+  }
+
+  @Override
+  public void close() {
+    if (in != null) {
+      releaseBuffer();
+    }
+    session.close();
+  }
+}
@@ -17,6 +17,15 @@ public enum ReplyCode {
     this.code = code;
   }
 
+  public static ReplyCode get(byte code) {
+    for (ReplyCode rc : ReplyCode.values()) {
+      if (rc.code == code) {
+        return rc;
+      }
+    }
+    return null;
+  }
+
   public byte get() {
     return code;
   }
@@ -0,0 +1,291 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.admission.AdmissionController;
+import com.lan.proxyserver.proxy.shaping.Shaping;
+import com.lan.proxyserver.proxy.shaping.Throttle;
+import com.lan.proxyserver.proxy.shaping.TrafficShaper;
+import com.lan.proxyserver.proxy.socks.SocksServerStat.Latency;
+import com.lan.proxyserver.proxy.timer.Timeout;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jboss.logging.Logger;
+
+/**
+ * A client connection from the moment it is accepted until its client socket is closed. The
+ * connection handler closes the session when it is done with it, unless the session has been
+ * {@link #detach() detached}, in which case whoever detached it becomes responsible for closing
+ * it.
+ *
+ * <p>A session is created once its connection got a handshake slot from the {@link
+ * AdmissionController}, which it trades for a session slot when its request is received, and gives
+ * back whichever it holds when closed.
+ *
+ * <p>The {@link SessionTimer} expires a session whose handshake takes too long, which stays idle,
+ * or which lives too long. Relays report the activity of the session, and whoever owns the session
+ * tells how to close it from another thread.
+ *
+ * <p>Relays also report the octets the session carries and when, from which the session measures
+ * its latencies, all recorded into the {@link SocksServerStat}. Each direction is only ever
+ * relayed by a single thread at a time, so that its counters are plain fields.
+ *
+ * <p>An admitted session gets buckets from the {@link TrafficShaper}, by its principal if the
+ * client authenticated, which relays throttle each direction with.
+ */
+public class Session {
+  private static final Logger logger = Logger.getLogger(Session.class);
+  private static final AtomicLong ids = new AtomicLong();
+
+  private final long id;
+  private final Socket clientSocket;
+  private final SocksContext context;
+  private final AtomicBoolean closed;
+  private final AtomicBoolean handshaking;
+  private volatile boolean admitted;
+  private volatile boolean detached;
+  private ByteBuffer earlyData;
+  private String principal;
+  private final AtomicReference<Shaping> shaping;
+  private final long createdAt;
+  private volatile long lastClientActivity;
+  private volatile long lastDestinationActivity;
+  private long requestReceivedAt;
+  private long clientBytes;
+  private long destinationBytes;
+  private volatile long idleTimeoutOverride;
+  private volatile Timeout timeout;
+  private volatile Runnable expiryHandler;
+
+  Session(Socket clientSocket, SocksContext context) {
+    id = ids.incrementAndGet();
+    this.clientSocket = clientSocket;
+    this.context = context;
+    closed = new AtomicBoolean(false);
+    handshaking = new AtomicBoolean(true);
+    shaping = new AtomicReference<>();
+    createdAt = System.nanoTime();
+    lastClientActivity = createdAt;
+    lastDestinationActivity = createdAt;
+    idleTimeoutOverride = -1;
+
+    context.getStat().incCurrentConnections();
+    timeout = context.getSessionTimer().scheduleHandshake(this);
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public Socket getClientSocket() {
+    return clientSocket;
+  }
+
+  public SocksContext getContext() {
+    return context;
+  }
+
+  /**
+   * @param earlyData octets the client sent right after the handshake, in read mode, to be
+   *     relayed to the destination before anything else
+   */
+  public void setEarlyData(ByteBuffer earlyData) {
+    this.earlyData = earlyData;
+  }
+
+  /**
+   * @return null if the client sent nothing past the handshake
+   */
+  public ByteBuffer takeEarlyData() {
+    ByteBuffer res = earlyData;
+    earlyData = null;
+    return res;
+  }
+
+  /**
+   * @param principal whom the client authenticated as, null without authentication
+   */
+  void setPrincipal(String principal) {
+    this.principal = principal;
+  }
+
+  /**
+   * @return whom the client authenticated as, null without authentication
+   */
+  public String getPrincipal() {
+    return principal;
+  }
+
+  /** A throttle for one direction of the relay of the session, which must have been admitted */
+  public Throttle newThrottle() {
+    Shaping current = shaping.get();
+    return current != null ? current.newThrottle() : Throttle.UNLIMITED;
+  }
+
+  /**
+   * Waits for a session slot as the overload policy says, the handshake slot is given back only
+   * then so that sessions at their limit hold up acceptors as well
+   *
+   * @return false if the request is to be refused
+   */
+  boolean admit() {
+    requestReceivedAt = System.nanoTime();
+    context.getStat().recordLatency(Latency.HANDSHAKE, requestReceivedAt - createdAt);
+    InetAddress source = clientSocket.getInetAddress();
+    try {
+      admitted = context.getAdmissionController().admitSession(source);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    endHandshake();
+    if (admitted) {
+      shaping.set(context.getTrafficShaper().open(principal, source));
+      // Closed meanwhile, the buckets would never be given back otherwise
+      if (closed.get()) {
+        releaseShaping();
+      }
+      long now = System.nanoTime();
+      lastClientActivity = now;
+      lastDestinationActivity = now;
+      rescheduleActivityCheck(now);
+    }
+    return admitted;
+  }
+
+  private void endHandshake() {
+    if (handshaking.compareAndSet(true, false)) {
+      context.getAdmissionController().releaseHandshake(clientSocket.getInetAddress());
+    }
+  }
+
+  long getCreatedAt() {
+    return createdAt;
+  }
+
+  long getLastClientActivity() {
+    return lastClientActivity;
+  }
+
+  long getLastDestinationActivity() {
+    return lastDestinationActivity;
+  }
+
+  /** To be called by relays whenever the client sends something */
+  public void recordClientBytes(int n) {
+    lastClientActivity = System.nanoTime();
+    clientBytes += n;
+    context.getStat().addForwardedBytes(n);
+  }
+
+  /** To be called by relays whenever the destination sends something */
+  public void recordDestinationBytes(int n) {
+    long now = System.nanoTime();
+    lastDestinationActivity = now;
+    if (destinationBytes == 0 && n > 0) {
+      context.getStat().recordLatency(Latency.FIRST_BYTE, now - requestReceivedAt);
+    }
+    destinationBytes += n;
+    context.getStat().addBackwardedBytes(n);
+  }
+
+  /** To be called by relays for every write to either socket, which wrote {@code n} octets */
+  public void recordWrite(int n) {
+    context.getStat().addRelayWrite(n);
+  }
+
+  /** Time taken to connect to the destination */
+  public void recordConnectTime(long nanos) {
+    context.getStat().recordLatency(Latency.CONNECT, nanos);
+  }
+
+  long getIdleTimeoutOverride() {
+    return idleTimeoutOverride;
+  }
+
+  /** Replaces the configured idle timeout for this session, 0 disables it */
+  public void setIdleTimeout(long idleTimeoutMillis) {
+    idleTimeoutOverride = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    if (!handshaking.get()) {
+      rescheduleActivityCheck(System.nanoTime());
+    }
+  }
+
+  void rescheduleActivityCheck(long now) {
+    Timeout previous = timeout;
+    if (previous != null) {
+      previous.cancel();
+    }
+    if (!closed.get()) {
+      timeout = context.getSessionTimer().scheduleActivityCheck(this, now);
+    }
+  }
+
+  /**
+   * @param expiryHandler closes the session, along with whatever its owner holds, when it expires,
+   *     called on the timer thread so it must not block, the session is simply closed if there is
+   *     none
+   */
+  public void setExpiryHandler(Runnable expiryHandler) {
+    this.expiryHandler = expiryHandler;
+  }
+
+  void expire() {
+    Runnable handler = expiryHandler;
+    if (handler != null) {
+      handler.run();
+    } else {
+      close();
+    }
+  }
+
+  private void releaseShaping() {
+    Shaping current = shaping.getAndSet(null);
+    if (current != null) {
+      current.close();
+    }
+  }
+
+  public boolean isClosed() {
+    return closed.get();
+  }
+
+  public void detach() {
+    detached = true;
+  }
+
+  public boolean isDetached() {
+    return detached;
+  }
+
+  public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    Timeout current = timeout;
+    if (current != null) {
+      current.cancel();
+    }
+
+    long duration = System.nanoTime() - createdAt;
+    try {
+      clientSocket.close();
+      logger.infof(
+          "Close client socket %s after %d ms, %d byte(s) from client, %d from destination",
+          clientSocket, TimeUnit.NANOSECONDS.toMillis(duration), clientBytes, destinationBytes);
+    } catch (IOException e) {
+      logger.debug(e.getMessage(), e);
+    }
+    context.getStat().recordLatency(Latency.SESSION, duration);
+
+    endHandshake();
+    if (admitted) {
+      context.getAdmissionController().releaseSession(clientSocket.getInetAddress());
+    }
+    releaseShaping();
+    context.getStat().decCurrentConnections();
+  }
+}
@@ -0,0 +1,178 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.timer.Timeout;
+import com.lan.proxyserver.proxy.timer.TimingWheel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.jboss.logging.Logger;
+
+/**
+ * Expires sessions on a {@link TimingWheel}: a handshake deadline until the request is received,
+ * then idle timeouts and a maximum lifetime. A session has a single timeout pending at any time,
+ * activity only updates timestamps of the session, the timeout checks them when it expires and, if
+ * the session turns out not to be due, is scheduled again for the next deadline. Relay threads are
+ * thus not woken up for nothing, nor do they touch the wheel on every read.
+ */
+public class SessionTimer {
+  private static final Logger logger = Logger.getLogger(SessionTimer.class);
+  public static final String cfgStrPrefix = "proxy_server.socks.timeout";
+
+  public static enum Reason {
+    HANDSHAKE,
+    IDLE,
+    CLIENT_IDLE,
+    DESTINATION_IDLE,
+    LIFETIME,
+    SHUTDOWN
+  }
+
+  private final TimingWheel timingWheel;
+  private final long handshakeTimeout;
+  private final long idleTimeout;
+  private final long clientIdleTimeout;
+  private final long destinationIdleTimeout;
+  private final long maxLifetime;
+  private final LongAdder[] expirations;
+  private volatile boolean terminating;
+
+  /**
+   * Every timeout is in milliseconds, 0 disables it
+   *
+   * @param idleTimeoutMillis neither direction carried anything for that long
+   * @param clientIdleTimeoutMillis the client sent nothing for that long
+   * @param destinationIdleTimeoutMillis the destination sent nothing for that long
+   */
+  SessionTimer(
+      TimingWheel timingWheel,
+      long handshakeTimeoutMillis,
+      long idleTimeoutMillis,
+      long clientIdleTimeoutMillis,
+      long destinationIdleTimeoutMillis,
+      long maxLifetimeMillis) {
+    this.timingWheel = timingWheel;
+    handshakeTimeout = handshakeTimeoutMillis;
+    idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    clientIdleTimeout = TimeUnit.MILLISECONDS.toNanos(clientIdleTimeoutMillis);
+    destinationIdleTimeout = TimeUnit.MILLISECONDS.toNanos(destinationIdleTimeoutMillis);
+    maxLifetime = TimeUnit.MILLISECONDS.toNanos(maxLifetimeMillis);
+    expirations = new LongAdder[Reason.values().length];
+    for (int i = 0; i < expirations.length; i++) {
+      expirations[i] = new LongAdder();
+    }
+  }
+
+  void start() {
+    timingWheel.start();
+  }
+
+  /** Expires every session with a timeout pending, which closes them right away */
+  void terminate() {
+    terminating = true;
+    List<Timeout> timeouts = timingWheel.terminate();
+    logger.infof("Close %d session(s) with a timeout pending", timeouts.size());
+    for (Timeout timeout : timeouts) {
+      timeout.expireNow();
+    }
+  }
+
+  /**
+   * @return null if there is no handshake timeout
+   */
+  Timeout scheduleHandshake(Session session) {
+    if (handshakeTimeout <= 0) {
+      return null;
+    }
+    return timingWheel.schedule(() -> expire(session, Reason.HANDSHAKE), handshakeTimeout);
+  }
+
+  /**
+   * @return null if the session has neither idle timeout nor maximum lifetime
+   */
+  Timeout scheduleActivityCheck(Session session, long now) {
+    long next = nextDeadline(session);
+    if (next == Long.MAX_VALUE) {
+      return null;
+    }
+    return timingWheel.schedule(
+        () -> checkActivity(session), TimeUnit.NANOSECONDS.toMillis(Math.max(0, next - now)));
+  }
+
+  private void checkActivity(Session session) {
+    if (terminating) {
+      expire(session, Reason.SHUTDOWN);
+      return;
+    }
+    if (session.isClosed()) {
+      return;
+    }
+    long now = System.nanoTime();
+    Reason reason = null;
+    long lastClient = session.getLastClientActivity();
+    long lastDestination = session.getLastDestinationActivity();
+    long idleTimeout = getIdleTimeout(session);
+    if (maxLifetime > 0 && now - session.getCreatedAt() >= maxLifetime) {
+      reason = Reason.LIFETIME;
+    } else if (idleTimeout > 0 && now - Math.max(lastClient, lastDestination) >= idleTimeout) {
+      reason = Reason.IDLE;
+    } else if (clientIdleTimeout > 0 && now - lastClient >= clientIdleTimeout) {
+      reason = Reason.CLIENT_IDLE;
+    } else if (destinationIdleTimeout > 0 && now - lastDestination >= destinationIdleTimeout) {
+      reason = Reason.DESTINATION_IDLE;
+    }
+    if (reason != null) {
+      expire(session, reason);
+    } else {
+      session.rescheduleActivityCheck(now);
+    }
+  }
+
+  private long getIdleTimeout(Session session) {
+    long override = session.getIdleTimeoutOverride();
+    return override >= 0 ? override : idleTimeout;
+  }
+
+  /**
+   * @return {@link Long#MAX_VALUE} if there is no deadline
+   */
+  private long nextDeadline(Session session) {
+    long lastClient = session.getLastClientActivity();
+    long lastDestination = session.getLastDestinationActivity();
+    long idleTimeout = getIdleTimeout(session);
+    long next = Long.MAX_VALUE;
+    if (maxLifetime > 0) {
+      next = Math.min(next, session.getCreatedAt() + maxLifetime);
+    }
+    if (idleTimeout > 0) {
+      next = Math.min(next, Math.max(lastClient, lastDestination) + idleTimeout);
+    }
+    if (clientIdleTimeout > 0) {
+      next = Math.min(next, lastClient + clientIdleTimeout);
+    }
+    if (destinationIdleTimeout > 0) {
+      next = Math.min(next, lastDestination + destinationIdleTimeout);
+    }
+    return next;
+  }
+
+  private void expire(Session session, Reason reason) {
+    if (session.isClosed()) {
+      return;
+    }
+    if (terminating) {
+      reason = Reason.SHUTDOWN;
+    }
+    expirations[reason.ordinal()].increment();
+    logger.debugf("Expire session of client socket %s: %s", session.getClientSocket(), reason);
+    session.expire();
+  }
+
+  /** Sessions with a timeout pending */
+  public int getPending() {
+    return timingWheel.getPending();
+  }
+
+  public long getExpirations(Reason reason) {
+    return expirations[reason.ordinal()].sum();
+  }
+}
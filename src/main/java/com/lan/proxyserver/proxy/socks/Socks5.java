@@ -1,154 +1,157 @@
 package com.lan.proxyserver.proxy.socks;
 
-import com.lan.proxyserver.proxy.socks.auth.AuthMethod;
+import com.lan.proxyserver.proxy.socks.SocksServerStat.Latency;
 import com.lan.proxyserver.proxy.socks.command.Command;
 import com.lan.proxyserver.proxy.socks.command.CommandConstructionResult;
 import com.lan.proxyserver.proxy.socks.command.CommandImpl;
-import com.lan.proxyserver.util.Util;
+import com.lan.proxyserver.proxy.socks.handshake.Handshake;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
+import java.nio.ByteBuffer;
 import org.jboss.logging.Logger;
 
 public class Socks5 implements SocksImpl {
   private static final byte RESERVED_BYTE = 0;
   private static final Logger logger = Logger.getLogger(Socks5.class);
-  private static final byte[] noSuppoertedMethodsResponse = {
-      SocksVersion.SOCKS5.get(), (byte) 0xFF
-  };
+  private static final int HANDSHAKE_BUFFER_SIZE = 1024;
 
-  private final ExecutorService pool;
+  private final Session session;
 
   private final AddressType serverAddressType;
   private final byte[] serverAddressOctets;
   private final byte[] serverPortOctets;
   private final Socket clientSocket;
-  private Command command;
-  private AddressType destAddressType;
-  private byte[] destAddressOctets;
-  private byte[] destPortOctets;
+  private final Socks5Handshake handshake;
 
-  Socks5(ServerSocket serverSocket, Socket clientSocket, ExecutorService pool) {
-    serverAddressType = AddressType.get(serverSocket);
+  Socks5(ServerSocket serverSocket, Session session) {
+    // The address the client reached the server at rather than the one the server socket is bound
+    // to, which is typically the (IPv6) wildcard address while clients may use either family
+    InetAddress serverAddress = session.getClientSocket().getLocalAddress();
+    serverAddressType = AddressType.get(serverAddress);
     if (serverAddressType == null) {
-      throw new UnsupportedOperationException("Unsupported server address version" + serverSocket);
+      throw new UnsupportedOperationException("Unsupported server address version" + serverAddress);
     }
-    serverAddressOctets = serverSocket.getInetAddress().getAddress();
+    serverAddressOctets = serverAddress.getAddress();
 
     int serverPort = serverSocket.getLocalPort();
     serverPortOctets = new byte[2];
     serverPortOctets[0] = (byte) ((serverPort & 0xFF00) >> Byte.SIZE);
     serverPortOctets[1] = (byte) (serverPort & 0xFF);
 
-    this.clientSocket = clientSocket;
-    this.pool = pool;
+    this.session = session;
+    clientSocket = session.getClientSocket();
+    handshake = new Socks5Handshake(session.getContext().getStat());
   }
 
   @Override
   public boolean perform() throws IOException {
-    if (!doAuth()) {
-      logger.debug("Authentication failed");
-      clientSocket.getOutputStream().write(noSuppoertedMethodsResponse);
+    ByteBuffer in = ByteBuffer.allocate(HANDSHAKE_BUFFER_SIZE);
+    if (handshake.perform(clientSocket, in) != Handshake.Status.DONE) {
       return false;
     }
+    if (in.hasRemaining()) {
+      session.setEarlyData(in);
+    }
+    return execute();
+  }
+
+  @Override
+  public Handshake getHandshake() {
+    return handshake;
+  }
 
-    ReplyCode replyCode = processRequest();
+  @Override
+  public boolean execute() throws IOException {
+    ReplyCode replyCode = handshake.getReplyCode();
     if (replyCode != ReplyCode.SUCCESS) {
       logger.debug("Process request failed");
       reply(replyCode);
       return false;
     }
 
-    CommandConstructionResult res = command.build(clientSocket, destAddressOctets, destPortOctets, pool);
+    if (handshake.getAuthNanos() >= 0) {
+      session.getContext().getStat().recordLatency(Latency.AUTH, handshake.getAuthNanos());
+    }
+    session.setPrincipal(handshake.getPrincipal());
+    if (!session.admit()) {
+      logger.debugf("Refuse request of client socket %s, overloaded", clientSocket);
+      reply(ReplyCode.GENERAL_FAILURE);
+      return false;
+    }
+
+    Command command = handshake.getCommand();
+    boolean optimisticReply =
+        command.isOptimisticReplyAllowed() && session.getContext().isOptimisticConnectReply();
+    if (optimisticReply && !reply(ReplyCode.SUCCESS)) {
+      return false;
+    }
+    CommandConstructionResult res =
+        command.build(
+            session,
+            handshake.getDestAddressType(),
+            handshake.getDestAddressOctets(),
+            handshake.getDestPortOctets());
     try (CommandImpl commandImpl = res.commandImpl) {
-      if (!reply(res.replyCode)) {
+      if (optimisticReply) {
+        if (res.replyCode != ReplyCode.SUCCESS) {
+          logger.debugf("%s failed with %s after replying success", command, res.replyCode);
+          abort();
+          return false;
+        }
+      } else if (!reply(res.replyCode, res.boundAddress)) {
         return false;
       }
-      commandImpl.execute();
+      commandImpl.execute(this::reply);
     }
 
     return true;
   }
 
-  public boolean doAuth() throws IOException {
-    byte nmethods = Util.readByte(clientSocket);
-    byte[] clientAuthMethods = Util.readExactlyNBytes(clientSocket, nmethods);
-    AuthMethod authMethod = null;
-    for (byte cliAuthMethod : clientAuthMethods) {
-      if ((authMethod = AuthMethod.get(cliAuthMethod)) != null) {
-        break;
-      }
-    }
-
-    if (authMethod == null) {
-      logger.debugf(
-          "No supported authentication method found in methods offered by client: %s",
-          Util.join(clientAuthMethods, ", "));
-      return false;
+  /**
+   * Makes the coming close of the client socket reset the connection, so that a client already
+   * told the request succeeded sees an error rather than an orderly end of stream
+   */
+  private void abort() {
+    try {
+      clientSocket.setSoLinger(true, 0);
+    } catch (IOException e) {
+      logger.debug(e.getMessage(), e);
     }
-    clientSocket.getOutputStream().write(authMethod.getResponse());
-
-    logger.infof("Server chooses authentication method %s", authMethod);
-
-    return authMethod.doAuth(clientSocket);
   }
 
-  public ReplyCode processRequest() throws IOException {
-    byte versionNumber = Util.readByte(clientSocket);
-    SocksVersion socksVersion = SocksVersion.get(versionNumber);
-    if (socksVersion == null) {
-      logger.debugf("Unsupported socks version %02x", versionNumber);
-      return ReplyCode.GENERAL_FAILURE;
-    }
-
-    byte commandCode = Util.readByte(clientSocket);
-    command = Command.get(commandCode);
-    if (command == null) {
-      logger.debugf("Unsupported command code %02x", commandCode);
-      return ReplyCode.UNSUPPORTED_COMMAND;
-    }
-
-    byte reservedByte = Util.readByte(clientSocket);
-    if (reservedByte != RESERVED_BYTE) {
-      logger.debugf(
-          "Wrong reseved byte, expected %02x, received %02x", RESERVED_BYTE, reservedByte);
-      return ReplyCode.GENERAL_FAILURE;
-    }
-
-    byte addrType = Util.readByte(clientSocket);
-    destAddressType = AddressType.get(addrType);
-    if (destAddressType == null) {
-      logger.debugf("Unsupported address type %02x", addrType);
-      return ReplyCode.UNSUPPORTED_ADDRESS_TYPE;
-    }
-    destAddressOctets = destAddressType.read(clientSocket);
+  private boolean reply(ReplyCode replyCode) {
+    return reply(replyCode, null);
+  }
 
-    destPortOctets = new byte[2];
-    int len = clientSocket.getInputStream().read(destPortOctets);
-    if (len != destPortOctets.length) {
-      logger.debug("Failed to read destination port octets");
-      return ReplyCode.GENERAL_FAILURE;
+  /**
+   * @param boundAddress null for the server's address and port
+   */
+  private boolean reply(ReplyCode replyCode, InetSocketAddress boundAddress) {
+    AddressType addressType = serverAddressType;
+    byte[] addressOctets = serverAddressOctets;
+    byte[] portOctets = serverPortOctets;
+    if (boundAddress != null) {
+      addressType = AddressType.get(boundAddress.getAddress());
+      addressOctets = boundAddress.getAddress().getAddress();
+      portOctets =
+          new byte[] {(byte) (boundAddress.getPort() >> Byte.SIZE), (byte) boundAddress.getPort()};
     }
 
-    logger.infof("Server receives %s command", command);
-
-    return ReplyCode.SUCCESS;
-  }
-
-  private boolean reply(ReplyCode replyCode) {
-    byte[] response = new byte[6 + serverAddressOctets.length];
+    byte[] response = new byte[6 + addressOctets.length];
     response[0] = SocksVersion.SOCKS5.get();
     response[1] = replyCode.get();
     response[2] = RESERVED_BYTE;
-    response[3] = serverAddressType.get();
+    response[3] = addressType.get();
 
-    for (int i = 0; i < serverAddressOctets.length; i++) {
-      response[4 + i] = serverAddressOctets[i];
+    for (int i = 0; i < addressOctets.length; i++) {
+      response[4 + i] = addressOctets[i];
     }
 
-    for (int i = 0; i < serverPortOctets.length; i++) {
-      response[4 + serverAddressOctets.length + i] = serverPortOctets[i];
+    for (int i = 0; i < portOctets.length; i++) {
+      response[4 + addressOctets.length + i] = portOctets[i];
     }
 
     try {
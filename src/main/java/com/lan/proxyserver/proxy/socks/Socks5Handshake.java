@@ -0,0 +1,263 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.socks.auth.AuthMethod;
+import com.lan.proxyserver.proxy.socks.auth.Authenticator;
+import com.lan.proxyserver.proxy.socks.command.Command;
+import com.lan.proxyserver.proxy.socks.handshake.Handshake;
+import com.lan.proxyserver.proxy.socks.handshake.HandshakeOutput;
+import com.lan.proxyserver.proxy.socks.handshake.Octets;
+import com.lan.proxyserver.util.Util;
+import java.nio.ByteBuffer;
+import org.jboss.logging.Logger;
+
+/**
+ * Method selection, authentication sub-negotiation and request of a socks 5 conversation, the
+ * version octet of the method selection message is expected to have been consumed already
+ */
+public class Socks5Handshake implements Handshake {
+  private static final Logger logger = Logger.getLogger(Socks5Handshake.class);
+  private static final byte RESERVED_BYTE = 0;
+  private static final byte[] noSuppoertedMethodsResponse = {
+    SocksVersion.SOCKS5.get(), (byte) 0xFF
+  };
+
+  private enum State {
+    NMETHODS,
+    METHODS,
+    AUTH,
+    VERSION,
+    COMMAND,
+    RESERVED,
+    ADDRESS_TYPE,
+    ADDRESS_LEN,
+    ADDRESS,
+    PORT,
+    DONE
+  }
+
+  private final SocksServerStat stat;
+  private final Octets octets;
+  private State state;
+  private Handshake authenticator;
+  private AuthMethod authMethod;
+  private long authStartedAt;
+  private long authNanos;
+
+  private ReplyCode replyCode;
+  private Command command;
+  private AddressType destAddressType;
+  private byte[] destAddressOctets;
+  private byte[] destPortOctets;
+
+  Socks5Handshake() {
+    this(SocksServerStat.EmptyStat);
+  }
+
+  /**
+   * @param stat where authentication outcomes are counted
+   */
+  Socks5Handshake(SocksServerStat stat) {
+    this.stat = stat;
+    octets = new Octets();
+    state = State.NMETHODS;
+    authNanos = -1;
+  }
+
+  @Override
+  public Status advance(ByteBuffer in, HandshakeOutput out) {
+    while (true) {
+      switch (state) {
+        case NMETHODS:
+          if (!in.hasRemaining()) {
+            return Status.NEED_MORE;
+          }
+          octets.expect(in.get() & 0xFF);
+          state = State.METHODS;
+          break;
+        case METHODS:
+          if (!octets.read(in)) {
+            return Status.NEED_MORE;
+          }
+          if (!selectAuthMethod(octets.get(), out)) {
+            out.write(noSuppoertedMethodsResponse);
+            return Status.FAILED;
+          }
+          authStartedAt = System.nanoTime();
+          state = State.AUTH;
+          break;
+        case AUTH:
+          Status authStatus = authenticator.advance(in, out);
+          if (authStatus != Status.DONE) {
+            if (authStatus == Status.FAILED) {
+              logger.debug("Authentication failed");
+              stat.recordAuth(authMethod, false);
+            }
+            return authStatus;
+          }
+          stat.recordAuth(authMethod, true);
+          if (authMethod != AuthMethod.NO_AUTH) {
+            authNanos = System.nanoTime() - authStartedAt;
+          }
+          state = State.VERSION;
+          break;
+        case VERSION:
+          if (!in.hasRemaining()) {
+            return Status.NEED_MORE;
+          }
+          byte versionNumber = in.get();
+          if (SocksVersion.get(versionNumber) == null) {
+            logger.debugf("Unsupported socks version %02x", versionNumber);
+            return done(ReplyCode.GENERAL_FAILURE);
+          }
+          state = State.COMMAND;
+          break;
+        case COMMAND:
+          if (!in.hasRemaining()) {
+            return Status.NEED_MORE;
+          }
+          byte commandCode = in.get();
+          command = Command.get(commandCode);
+          if (command == null) {
+            logger.debugf("Unsupported command code %02x", commandCode);
+            return done(ReplyCode.UNSUPPORTED_COMMAND);
+          }
+          state = State.RESERVED;
+          break;
+        case RESERVED:
+          if (!in.hasRemaining()) {
+            return Status.NEED_MORE;
+          }
+          byte reservedByte = in.get();
+          if (reservedByte != RESERVED_BYTE) {
+            logger.debugf(
+                "Wrong reseved byte, expected %02x, received %02x", RESERVED_BYTE, reservedByte);
+            return done(ReplyCode.GENERAL_FAILURE);
+          }
+          state = State.ADDRESS_TYPE;
+          break;
+        case ADDRESS_TYPE:
+          if (!in.hasRemaining()) {
+            return Status.NEED_MORE;
+          }
+          byte addrType = in.get();
+          destAddressType = AddressType.get(addrType);
+          if (destAddressType == null) {
+            logger.debugf("Unsupported address type %02x", addrType);
+            return done(ReplyCode.UNSUPPORTED_ADDRESS_TYPE);
+          }
+          if (destAddressType.getAddressLength() < 0) {
+            state = State.ADDRESS_LEN;
+            break;
+          }
+          octets.expect(destAddressType.getAddressLength());
+          state = State.ADDRESS;
+          break;
+        case ADDRESS_LEN:
+          if (!in.hasRemaining()) {
+            return Status.NEED_MORE;
+          }
+          int addrLen = in.get() & 0xFF;
+          if (addrLen == 0) {
+            logger.debug("Empty destination address");
+            return done(ReplyCode.GENERAL_FAILURE);
+          }
+          octets.expect(addrLen);
+          state = State.ADDRESS;
+          break;
+        case ADDRESS:
+          if (!octets.read(in)) {
+            return Status.NEED_MORE;
+          }
+          destAddressOctets = octets.get();
+          octets.expect(2);
+          state = State.PORT;
+          break;
+        case PORT:
+          if (!octets.read(in)) {
+            return Status.NEED_MORE;
+          }
+          destPortOctets = octets.get();
+          logger.infof("Server receives %s command", command);
+          return done(ReplyCode.SUCCESS);
+        case DONE:
+          return Status.DONE;
+      }
+    }
+  }
+
+  @Override
+  public void runBlocking() {
+    if (state == State.AUTH) {
+      authenticator.runBlocking();
+    }
+  }
+
+  private boolean selectAuthMethod(byte[] clientAuthMethods, HandshakeOutput out) {
+    for (byte cliAuthMethod : clientAuthMethods) {
+      if ((authMethod = AuthMethod.get(cliAuthMethod)) != null) {
+        break;
+      }
+    }
+
+    if (authMethod == null) {
+      logger.debugf(
+          "No supported authentication method found in methods offered by client: %s",
+          Util.join(clientAuthMethods, ", "));
+      stat.recordAuth(null, false);
+      return false;
+    }
+    authenticator = authMethod.newAuthenticator();
+    if (authenticator == null) {
+      stat.recordAuth(authMethod, false);
+      return false;
+    }
+    out.write(authMethod.getResponse());
+
+    logger.infof("Server chooses authentication method %s", authMethod);
+    return true;
+  }
+
+  private Status done(ReplyCode replyCode) {
+    this.replyCode = replyCode;
+    state = State.DONE;
+    return Status.DONE;
+  }
+
+  /**
+   * @return time the authentication sub-negotiation took, -1 without authentication
+   */
+  public long getAuthNanos() {
+    return authNanos;
+  }
+
+  /**
+   * @return whom the client authenticated as, null without authentication
+   */
+  public String getPrincipal() {
+    return authenticator instanceof Authenticator a ? a.getPrincipal() : null;
+  }
+
+  /**
+   * @return {@link ReplyCode#SUCCESS} if the request is valid, the code to reply to the client
+   *     otherwise
+   */
+  public ReplyCode getReplyCode() {
+    return replyCode;
+  }
+
+  public Command getCommand() {
+    return command;
+  }
+
+  public AddressType getDestAddressType() {
+    return destAddressType;
+  }
+
+  public byte[] getDestAddressOctets() {
+    return destAddressOctets;
+  }
+
+  public byte[] getDestPortOctets() {
+    return destPortOctets;
+  }
+}
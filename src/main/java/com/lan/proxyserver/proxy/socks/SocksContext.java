@@ -0,0 +1,135 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.admission.AdmissionController;
+import com.lan.proxyserver.proxy.buffer.BufferPool;
+import com.lan.proxyserver.proxy.connect.BindAcceptor;
+import com.lan.proxyserver.proxy.connect.DestinationConnector;
+import com.lan.proxyserver.proxy.dns.DnsResolver;
+import com.lan.proxyserver.proxy.relay.BufferSizing;
+import com.lan.proxyserver.proxy.relay.MemoryBudget;
+import com.lan.proxyserver.proxy.relay.Relay;
+import com.lan.proxyserver.proxy.relay.WriteCoalescing;
+import com.lan.proxyserver.proxy.shaping.TrafficShaper;
+import com.lan.proxyserver.proxy.trace.PayloadTracer;
+import com.lan.proxyserver.proxy.udp.UdpRelay;
+import java.util.concurrent.ExecutorService;
+
+/** Server wide components shared by every session of a socks server */
+public class SocksContext {
+  private final ExecutorService pool;
+  private final Relay relay;
+  private final WriteCoalescing writeCoalescing;
+  private final BufferSizing bufferSizing;
+  private final MemoryBudget memoryBudget;
+  private final BufferPool bufferPool;
+  private final PayloadTracer payloadTracer;
+  private final DnsResolver dnsResolver;
+  private final DestinationConnector destinationConnector;
+  private final BindAcceptor bindAcceptor;
+  private final UdpRelay udpRelay;
+  private final AdmissionController admissionController;
+  private final SessionTimer sessionTimer;
+  private final TrafficShaper trafficShaper;
+  private final SocksServerStat stat;
+  private final boolean optimisticConnectReply;
+
+  SocksContext(
+      ExecutorService pool,
+      Relay relay,
+      WriteCoalescing writeCoalescing,
+      BufferSizing bufferSizing,
+      MemoryBudget memoryBudget,
+      BufferPool bufferPool,
+      PayloadTracer payloadTracer,
+      DnsResolver dnsResolver,
+      DestinationConnector destinationConnector,
+      BindAcceptor bindAcceptor,
+      UdpRelay udpRelay,
+      AdmissionController admissionController,
+      SessionTimer sessionTimer,
+      TrafficShaper trafficShaper,
+      SocksServerStat stat,
+      boolean optimisticConnectReply) {
+    this.pool = pool;
+    this.relay = relay;
+    this.writeCoalescing = writeCoalescing;
+    this.bufferSizing = bufferSizing;
+    this.memoryBudget = memoryBudget;
+    this.bufferPool = bufferPool;
+    this.payloadTracer = payloadTracer;
+    this.dnsResolver = dnsResolver;
+    this.destinationConnector = destinationConnector;
+    this.bindAcceptor = bindAcceptor;
+    this.udpRelay = udpRelay;
+    this.admissionController = admissionController;
+    this.sessionTimer = sessionTimer;
+    this.trafficShaper = trafficShaper;
+    this.stat = stat;
+    this.optimisticConnectReply = optimisticConnectReply;
+  }
+
+  public ExecutorService getPool() {
+    return pool;
+  }
+
+  public Relay getRelay() {
+    return relay;
+  }
+
+  public WriteCoalescing getWriteCoalescing() {
+    return writeCoalescing;
+  }
+
+  public BufferSizing getBufferSizing() {
+    return bufferSizing;
+  }
+
+  public MemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  public BufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  public PayloadTracer getPayloadTracer() {
+    return payloadTracer;
+  }
+
+  public DnsResolver getDnsResolver() {
+    return dnsResolver;
+  }
+
+  public DestinationConnector getDestinationConnector() {
+    return destinationConnector;
+  }
+
+  public BindAcceptor getBindAcceptor() {
+    return bindAcceptor;
+  }
+
+  public UdpRelay getUdpRelay() {
+    return udpRelay;
+  }
+
+  public AdmissionController getAdmissionController() {
+    return admissionController;
+  }
+
+  public SessionTimer getSessionTimer() {
+    return sessionTimer;
+  }
+
+  public TrafficShaper getTrafficShaper() {
+    return trafficShaper;
+  }
+
+  public SocksServerStat getStat() {
+    return stat;
+  }
+
+  /** Whether success is replied to CONNECT requests before the destination is connected */
+  public boolean isOptimisticConnectReply() {
+    return optimisticConnectReply;
+  }
+}
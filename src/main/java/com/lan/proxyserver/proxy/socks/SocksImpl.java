@@ -1,7 +1,18 @@
 package com.lan.proxyserver.proxy.socks;
 
+import com.lan.proxyserver.proxy.socks.handshake.Handshake;
 import java.io.IOException;
 
 public interface SocksImpl {
+  /** Perform the whole conversation on a blocking client socket */
   public boolean perform() throws IOException;
+
+  /**
+   * The handshake to drive when the client socket is non-blocking, {@link #execute()} takes over
+   * once it is {@link Handshake.Status#DONE done}
+   */
+  public Handshake getHandshake();
+
+  /** Execute the request negotiated by the handshake on a blocking client socket */
+  public boolean execute() throws IOException;
 }
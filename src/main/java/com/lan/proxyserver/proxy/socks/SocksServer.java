@@ -1,42 +1,297 @@
 package com.lan.proxyserver.proxy.socks;
 
+import com.lan.proxyserver.config.Configer;
+import com.lan.proxyserver.proxy.admission.AdmissionController;
+import com.lan.proxyserver.proxy.admission.AdmissionController.Admission;
+import com.lan.proxyserver.proxy.admission.OverloadPolicy;
+import com.lan.proxyserver.proxy.buffer.BufferPool;
+import com.lan.proxyserver.proxy.connect.BindAcceptor;
+import com.lan.proxyserver.proxy.connect.DestinationConnector;
+import com.lan.proxyserver.proxy.dns.DnsResolver;
+import com.lan.proxyserver.proxy.nio.ReactorGroup;
+import com.lan.proxyserver.proxy.relay.BufferSizing;
+import com.lan.proxyserver.proxy.relay.MemoryBudget;
+import com.lan.proxyserver.proxy.relay.Relay;
+import com.lan.proxyserver.proxy.relay.RelayEngine;
+import com.lan.proxyserver.proxy.relay.WriteCoalescing;
+import com.lan.proxyserver.proxy.shaping.TrafficShaper;
+import com.lan.proxyserver.proxy.shaping.TrafficShaper.Limit;
 import com.lan.proxyserver.proxy.socks.auth.UsernamePassword;
+import com.lan.proxyserver.proxy.socks.command.ConnectCommand;
+import com.lan.proxyserver.proxy.timer.TimingWheel;
+import com.lan.proxyserver.proxy.trace.AsyncLogSink;
+import com.lan.proxyserver.proxy.trace.PayloadTracer;
+import com.lan.proxyserver.proxy.udp.UdpRelay;
 import com.lan.proxyserver.util.NamedThreadFactory;
+import com.lan.proxyserver.util.ThreadMode;
 import com.lan.proxyserver.util.Util;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import javax.net.ServerSocketFactory;
 import org.jboss.logging.Logger;
 
 public class SocksServer implements Runnable {
   private static final Logger logger = Logger.getLogger(SocksServer.class);
   public static final int DEF_PORT = 1080;
+  public static final String cfgStrPrefix = "proxy_server.socks";
+  private static final long ACCEPT_STALL_CHECK_MILLIS = 100;
 
-  private final ServerSocket serverSocket;
+  private final ServerSocket[] serverSockets;
   private final AtomicBoolean running;
   private final AtomicBoolean stop;
   private final ExecutorService pool;
+  private final ReactorGroup reactors;
+  private final Relay relay;
+  private final WriteCoalescing writeCoalescing;
+  private final BufferSizing bufferSizing;
+  private final MemoryBudget memoryBudget;
+  private final BufferPool bufferPool;
+  private final PayloadTracer payloadTracer;
+  private final DnsResolver dnsResolver;
+  private final DestinationConnector destinationConnector;
+  private final BindAcceptor bindAcceptor;
+  private final UdpRelay udpRelay;
+  private final AdmissionController admissionController;
+  private final SessionTimer sessionTimer;
+  private final TrafficShaper trafficShaper;
 
   private final SocksServerStat stat;
+  private final SocksContext context;
 
   public SocksServer(int port) throws IOException {
-    serverSocket = ServerSocketFactory.getDefault().createServerSocket(port);
+    // Binding the wildcard address listens on both IPv6 and IPv4 where the system is dual stack
+    String bindAddress = Configer.getStr("", cfgStrPrefix, "bind_address");
+    serverSockets =
+        openServerSockets(
+            bindAddress.isEmpty()
+                ? new InetSocketAddress(port)
+                : new InetSocketAddress(InetAddress.getByName(bindAddress), port),
+            Configer.getInt(1, cfgStrPrefix, "acceptors"));
     running = new AtomicBoolean(false);
     stop = new AtomicBoolean(false);
-    pool =
-        Executors.newCachedThreadPool(
-            new NamedThreadFactory(SocksServer.class.getSimpleName() + "-pool"));
+    String threadModeName = Configer.getStr(ThreadMode.PLATFORM.name(), cfgStrPrefix, "threads");
+    ThreadMode threadMode = ThreadMode.get(threadModeName);
+    if (threadMode == null) {
+      logger.errorf(
+          "Unsupported thread mode '%s', fall back to %s", threadModeName, ThreadMode.PLATFORM);
+      threadMode = ThreadMode.PLATFORM;
+    }
+    pool = threadMode.newPool(SocksServer.class.getSimpleName() + "-pool");
+    logger.infof("Socks server handles connections on %s threads", threadMode);
+
+    String relayEngineName =
+        Configer.getStr(RelayEngine.BLOCKING.name(), RelayEngine.cfgStrPrefix, "engine");
+    RelayEngine relayEngine = RelayEngine.get(relayEngineName);
+    if (relayEngine == null) {
+      logger.errorf(
+          "Unsupported relay engine '%s', fall back to %s", relayEngineName, RelayEngine.BLOCKING);
+      relayEngine = RelayEngine.BLOCKING;
+    }
+    if (relayEngine.isNonBlocking()) {
+      reactors =
+          new ReactorGroup(
+              SocksServer.class.getSimpleName() + "-reactor",
+              Configer.getInt(0, RelayEngine.cfgStrPrefix, "nio", "reactors"));
+      reactors.start();
+    } else {
+      reactors = null;
+    }
+    relay =
+        relayEngine.newRelay(
+            pool,
+            reactors,
+            Configer.getBool(false, RelayEngine.cfgStrPrefix, "fair", "enable")
+                ? Configer.getInt(16, RelayEngine.cfgStrPrefix, "fair", "quantum_kb") * 1024L
+                : 0);
+    logger.infof("Socks server uses %s relay engine", relayEngine);
+    writeCoalescing =
+        new WriteCoalescing(
+            Configer.getBool(false, WriteCoalescing.cfgStrPrefix, "enable"),
+            Configer.getInt(0, WriteCoalescing.cfgStrPrefix, "window_us"),
+            Configer.getInt(4, WriteCoalescing.cfgStrPrefix, "interactive_misses"));
+    bufferSizing =
+        new BufferSizing(
+            Configer.getBool(false, BufferSizing.cfgStrPrefix, "adaptive"),
+            Configer.getInt(4096, BufferSizing.cfgStrPrefix, "size"),
+            Configer.getInt(512, BufferSizing.cfgStrPrefix, "min_size"),
+            Configer.getInt(65536, BufferSizing.cfgStrPrefix, "max_size"),
+            Configer.getInt(0, BufferSizing.cfgStrPrefix, "socket_factor"));
+    memoryBudget =
+        new MemoryBudget(
+            Configer.getInt(0, MemoryBudget.cfgStrPrefix, "budget_mb") * 1024L * 1024L,
+            Configer.getInt(0, MemoryBudget.cfgStrPrefix, "high_kb") * 1024,
+            Configer.getInt(0, MemoryBudget.cfgStrPrefix, "low_kb") * 1024,
+            Configer.getInt(0, MemoryBudget.cfgStrPrefix, "slow_consumer_ms"),
+            Configer.getBool(false, MemoryBudget.cfgStrPrefix, "evict_slow_consumers"));
+
+    bufferPool =
+        new BufferPool(
+            Configer.getInt(64, BufferPool.cfgStrPrefix, "max_memory_mb") * 1024L * 1024L,
+            Configer.getInt(16, BufferPool.cfgStrPrefix, "thread_cache"));
+
+    AsyncLogSink traceSink =
+        new AsyncLogSink(Configer.getInt(1024, PayloadTracer.cfgStrPrefix, "queue"));
+    traceSink.start();
+    payloadTracer = new PayloadTracer(traceSink);
+
+    dnsResolver =
+        new DnsResolver(
+            Executors.newFixedThreadPool(
+                Configer.getInt(4, DnsResolver.cfgStrPrefix, "threads"),
+                new NamedThreadFactory(SocksServer.class.getSimpleName() + "-dns")),
+            Configer.getInt(60, DnsResolver.cfgStrPrefix, "ttl_seconds") * 1000L,
+            Configer.getInt(10, DnsResolver.cfgStrPrefix, "negative_ttl_seconds") * 1000L,
+            Configer.getInt(20, DnsResolver.cfgStrPrefix, "refresh_ahead_percent"),
+            Configer.getInt(10000, DnsResolver.cfgStrPrefix, "max_entries"),
+            Configer.getInt(5000, DnsResolver.cfgStrPrefix, "timeout_ms"));
+
+    destinationConnector =
+        new DestinationConnector(
+            Configer.getInt(250, DestinationConnector.cfgStrPrefix, "attempt_delay_ms"),
+            Configer.getInt(10000, DestinationConnector.cfgStrPrefix, "timeout_ms"),
+            Configer.getInt(64, DestinationConnector.cfgStrPrefix, "max_per_destination"),
+            Configer.getInt(2000, DestinationConnector.cfgStrPrefix, "negative_ttl_ms"),
+            Configer.getInt(10000, DestinationConnector.cfgStrPrefix, "negative_max_entries"));
+
+    bindAcceptor =
+        new BindAcceptor(
+            Configer.getStr("", BindAcceptor.cfgStrPrefix, "port_range"),
+            Configer.getInt(60000, BindAcceptor.cfgStrPrefix, "accept_timeout_ms"));
+
+    udpRelay =
+        new UdpRelay(
+            new ReactorGroup(
+                SocksServer.class.getSimpleName() + "-udp",
+                Configer.getInt(1, UdpRelay.cfgStrPrefix, "reactors")),
+            Configer.getInt(120, UdpRelay.cfgStrPrefix, "idle_timeout_seconds") * 1000L,
+            Configer.getInt(32, UdpRelay.cfgStrPrefix, "read_batch"));
+    udpRelay.start();
+
+    String policyName =
+        Configer.getStr(OverloadPolicy.QUEUE.name(), AdmissionController.cfgStrPrefix, "policy");
+    OverloadPolicy policy = OverloadPolicy.get(policyName);
+    if (policy == null) {
+      logger.errorf(
+          "Unsupported overload policy '%s', fall back to %s", policyName, OverloadPolicy.QUEUE);
+      policy = OverloadPolicy.QUEUE;
+    }
+    admissionController =
+        new AdmissionController(
+            policy,
+            Configer.getInt(2000, AdmissionController.cfgStrPrefix, "queue_timeout_ms"),
+            Configer.getInt(1000, AdmissionController.cfgStrPrefix, "max_handshakes"),
+            Configer.getInt(0, AdmissionController.cfgStrPrefix, "max_handshakes_per_source"),
+            Configer.getInt(20000, AdmissionController.cfgStrPrefix, "max_sessions"),
+            Configer.getInt(0, AdmissionController.cfgStrPrefix, "max_sessions_per_source"));
+
+    sessionTimer =
+        new SessionTimer(
+            new TimingWheel(
+                SocksServer.class.getSimpleName() + "-timer",
+                Configer.getInt(100, TimingWheel.cfgStrPrefix, "tick_ms"),
+                Configer.getInt(512, TimingWheel.cfgStrPrefix, "ticks_per_wheel")),
+            Configer.getInt(10000, SessionTimer.cfgStrPrefix, "handshake_ms"),
+            Configer.getInt(300000, SessionTimer.cfgStrPrefix, "idle_ms"),
+            Configer.getInt(0, SessionTimer.cfgStrPrefix, "client_idle_ms"),
+            Configer.getInt(0, SessionTimer.cfgStrPrefix, "destination_idle_ms"),
+            Configer.getInt(0, SessionTimer.cfgStrPrefix, "max_lifetime_ms"));
+    sessionTimer.start();
+
+    Limit unlimited = new Limit(0, 0);
+    trafficShaper =
+        new TrafficShaper(
+            Configer.getBool(false, TrafficShaper.cfgStrPrefix, "enable"),
+            Limit.fromConfig(unlimited, TrafficShaper.cfgStrPrefix, "global"),
+            Limit.fromConfig(unlimited, TrafficShaper.cfgStrPrefix, "user"),
+            Limit.fromConfig(unlimited, TrafficShaper.cfgStrPrefix, "source"),
+            Limit.fromConfig(unlimited, TrafficShaper.cfgStrPrefix, "session"),
+            Configer.getInt(16, TrafficShaper.cfgStrPrefix, "global", "lease_kb") * 1024L);
 
-    stat = new SocksServerStat(pool);
+    stat =
+        new SocksServerStat(
+            pool,
+            bufferPool,
+            bufferSizing,
+            memoryBudget,
+            destinationConnector,
+            bindAcceptor,
+            udpRelay,
+            admissionController,
+            sessionTimer,
+            trafficShaper);
+    context =
+        new SocksContext(
+            pool,
+            relay,
+            writeCoalescing,
+            bufferSizing,
+            memoryBudget,
+            bufferPool,
+            payloadTracer,
+            dnsResolver,
+            destinationConnector,
+            bindAcceptor,
+            udpRelay,
+            admissionController,
+            sessionTimer,
+            trafficShaper,
+            stat,
+            Configer.getBool(false, ConnectCommand.cfgStrPrefix, "optimistic_reply"));
 
     UsernamePassword.init();
   }
 
+  /**
+   * Several acceptors each get a listening socket of their own on the same port (SO_REUSEPORT),
+   * the kernel then spreads new connections over them
+   */
+  private static ServerSocket[] openServerSockets(InetSocketAddress address, int nacceptors)
+      throws IOException {
+    if (nacceptors > 1) {
+      try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+        if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+          logger.error("SO_REUSEPORT is not supported, fall back to a single acceptor");
+          nacceptors = 1;
+        }
+      }
+    }
+    nacceptors = Math.max(1, nacceptors);
+
+    ServerSocket[] serverSockets = new ServerSocket[nacceptors];
+    try {
+      for (int i = 0; i < nacceptors; i++) {
+        // Sockets accepted from a channel are themselves backed by channels, which lets the
+        // non-blocking relay engine take them over after the handshake
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        serverSockets[i] = channel.socket();
+        if (nacceptors > 1) {
+          channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        // The others join the port the first one got if it was left to the system
+        channel.bind(
+            i == 0
+                ? address
+                : new InetSocketAddress(address.getAddress(), serverSockets[0].getLocalPort()));
+      }
+    } catch (IOException e) {
+      for (ServerSocket serverSocket : serverSockets) {
+        if (serverSocket != null) {
+          serverSocket.close();
+        }
+      }
+      throw e;
+    }
+    return serverSockets;
+  }
+
   public void stop() {
     if (!stop.compareAndSet(false, true)) {
       logger.info("Socks server has been stopped");
@@ -47,15 +302,25 @@ public class SocksServer implements Runnable {
 
   private void cleanup() {
     closeServerSocket();
+    // Closing the sessions first rather than relying on interrupts ends their tunnels right away
+    sessionTimer.terminate();
     terminatePool();
+    if (reactors != null) {
+      reactors.terminate();
+    }
+    udpRelay.terminate();
+    payloadTracer.close();
+    dnsResolver.close();
   }
 
   private void closeServerSocket() {
-    try {
-      serverSocket.close();
-      logger.infof("Close server socket %s", serverSocket);
-    } catch (IOException e) {
-      logger.error(e.getMessage(), e);
+    for (ServerSocket serverSocket : serverSockets) {
+      try {
+        serverSocket.close();
+        logger.infof("Close server socket %s", serverSocket);
+      } catch (IOException e) {
+        logger.error(e.getMessage(), e);
+      }
     }
   }
 
@@ -82,10 +347,43 @@ public class SocksServer implements Runnable {
       logger.error("Socks server has already been running");
       return;
     }
-    logger.infof("Socks server is listening on port %d", serverSocket.getLocalPort());
+    logger.infof(
+        "Socks server is listening on port %d with %d acceptor(s)",
+        serverSockets[0].getLocalPort(), serverSockets.length);
+    // The calling thread is the first acceptor
+    Thread[] acceptors = new Thread[serverSockets.length - 1];
+    for (int i = 0; i < acceptors.length; i++) {
+      ServerSocket serverSocket = serverSockets[i + 1];
+      acceptors[i] =
+          new Thread(
+              () -> accept(serverSocket),
+              SocksServer.class.getSimpleName() + "-acceptor-" + (i + 1));
+      acceptors[i].start();
+    }
+    accept(serverSockets[0]);
+    for (Thread acceptor : acceptors) {
+      try {
+        acceptor.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    running.set(false);
+  }
+
+  private void accept(ServerSocket serverSocket) {
     while (!stop.get()) {
       try {
-        runImpl();
+        // Stop accepting while handshakes are at their limit, new connections then wait in the
+        // kernel backlog
+        if (!admissionController.awaitAccept(ACCEPT_STALL_CHECK_MILLIS)) {
+          continue;
+        }
+        acceptImpl(serverSocket);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
       } catch (IOException e) {
         // Socket.close() (called when cleaning up) causes any thread currently blocked
         // in Socket.accept() will throw a SocketException with message "Socket closed",
@@ -95,71 +393,146 @@ public class SocksServer implements Runnable {
         }
       }
     }
-    running.set(false);
   }
 
-  private void runImpl() throws IOException {
+  private void acceptImpl(ServerSocket serverSocket) throws IOException, InterruptedException {
     Socket clientSocket = serverSocket.accept();
-    // Client socket timeout is useful when graceful socks server shutdown is
-    // performed (forward and backward threads are interrupted), the socks server
-    // will then wait for forward direction to time out, then close the destination
-    // socket which in turn cause backward direction to throw socket
-    // exception, later end also
-    // Note that server socket does not need timeout because it doesn't have the
-    // ability to close client socket, so if it does have timeout, it will just
-    // ignore the timeout exception and move on
-    clientSocket.setSoTimeout(5000);
-    logger.info("Socks server accepts a connection");
-    pool.execute(new Handler(serverSocket, clientSocket));
-
     stat.incTotalAcceptedConnections();
+    Admission admission = Admission.REFUSED;
+    try {
+      admission = admissionController.admitHandshake(clientSocket.getInetAddress());
+    } finally {
+      if (admission == Admission.REFUSED) {
+        refuse(clientSocket);
+      }
+    }
+    switch (admission) {
+      case ADMITTED:
+        startHandshake(serverSocket, clientSocket);
+        break;
+      case QUEUED:
+        // Acceptors go on accepting meanwhile
+        Thread.ofVirtual()
+            .name(SocksServer.class.getSimpleName() + "-queued")
+            .start(() -> awaitHandshake(serverSocket, clientSocket));
+        break;
+      case REFUSED:
+        break;
+    }
+  }
+
+  private void awaitHandshake(ServerSocket serverSocket, Socket clientSocket) {
+    boolean admitted = false;
+    try {
+      admitted = admissionController.awaitHandshake(clientSocket.getInetAddress());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!admitted) {
+      refuse(clientSocket);
+      return;
+    }
+    if (stop.get()) {
+      admissionController.releaseHandshake(clientSocket.getInetAddress());
+      refuse(clientSocket);
+      return;
+    }
+    try {
+      startHandshake(serverSocket, clientSocket);
+    } catch (RuntimeException e) {
+      logger.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * A connection refused before its handshake is closed without a reply, the client has yet to
+   * send the method selection message, a {@link ReplyCode#GENERAL_FAILURE} reply can only answer
+   * a request
+   */
+  private void refuse(Socket clientSocket) {
+    logger.debugf("Refuse client socket %s, overloaded", clientSocket);
+    try {
+      clientSocket.close();
+    } catch (IOException e) {
+      logger.debug(e.getMessage());
+    }
+  }
+
+  /** Holding a handshake slot */
+  private void startHandshake(ServerSocket serverSocket, Socket clientSocket) {
+    logger.debug("Socks server accepts a connection");
+    // The session owns the handshake slot from now on
+    Session session = new Session(clientSocket, context);
+    if (reactors != null) {
+      NioHandshake.start(serverSocket, session, reactors.next());
+    } else {
+      try {
+        pool.execute(new Handler(serverSocket, session));
+      } catch (RuntimeException e) {
+        session.close();
+        throw e;
+      }
+    }
   }
 
   public SocksServerStat getSocksServerStat() {
     return stat;
   }
 
+  public PayloadTracer getPayloadTracer() {
+    return payloadTracer;
+  }
+
+  SocksContext getContext() {
+    return context;
+  }
+
+  /** The relay of the engine configured, or the one it fell back to */
+  public Relay getRelay() {
+    return relay;
+  }
+
   public boolean isRunning() {
     return running.get();
   }
 
   private class Handler implements Runnable {
     private final ServerSocket serverSocket;
+    private final Session session;
     private final Socket clientSocket;
 
-    Handler(ServerSocket serverSocket, Socket clientSocket) {
+    Handler(ServerSocket serverSocket, Session session) {
       this.serverSocket = serverSocket;
-      this.clientSocket = clientSocket;
+      this.session = session;
+      clientSocket = session.getClientSocket();
     }
 
     @Override
     public void run() {
-      stat.incCurrentConnections();
-
       try {
-        runImpl();
+        runImpl(session);
       } catch (IOException e) {
-        logger.error(e.getMessage(), e);
+        // An expired session is closed under the handler's feet
+        if (session.isClosed()) {
+          logger.debug(e.getMessage());
+        } else {
+          logger.error(e.getMessage(), e);
+        }
       }
 
-      try {
-        clientSocket.close();
-        logger.infof("Close client socket %s", clientSocket);
-      } catch (IOException e) {
-        logger.debug(e.getMessage(), e);
+      if (!session.isDetached()) {
+        session.close();
       }
-
-      stat.decCurrentConnections();
     }
 
-    public void runImpl() throws IOException {
+    public void runImpl(Session session) throws IOException {
       byte versionNumber = Util.readByte(clientSocket);
       SocksVersion socksVersion = SocksVersion.get(versionNumber);
       if (socksVersion == null) {
         logger.debugf("Unsupported socks version %02x", versionNumber);
         return;
       }
-      socksVersion.perform(serverSocket, clientSocket, pool);
+      socksVersion.perform(serverSocket, session);
     }
   }
 }
@@ -1,39 +1,415 @@
 package com.lan.proxyserver.proxy.socks;
 
+import com.lan.proxyserver.proxy.admission.AdmissionController;
+import com.lan.proxyserver.proxy.admission.OverloadPolicy;
+import com.lan.proxyserver.proxy.buffer.BufferPool;
+import com.lan.proxyserver.proxy.connect.BindAcceptor;
+import com.lan.proxyserver.proxy.connect.DestinationConnector;
+import com.lan.proxyserver.proxy.connect.DestinationConnector.Failure;
+import com.lan.proxyserver.proxy.metrics.LatencyHistogram;
+import com.lan.proxyserver.proxy.relay.BufferSizing;
+import com.lan.proxyserver.proxy.relay.MemoryBudget;
+import com.lan.proxyserver.proxy.shaping.TokenBucket;
+import com.lan.proxyserver.proxy.shaping.TrafficShaper;
+import com.lan.proxyserver.proxy.shaping.TrafficShaper.Limit;
+import com.lan.proxyserver.proxy.socks.SessionTimer.Reason;
+import com.lan.proxyserver.proxy.socks.auth.AuthMethod;
+import com.lan.proxyserver.proxy.socks.auth.UsernamePassword;
+import com.lan.proxyserver.proxy.timer.TimingWheel;
+import com.lan.proxyserver.proxy.udp.UdpRelay;
 import com.lan.proxyserver.util.NoOpExecutorService;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Server wide statistics. Sessions report their own measures as they go, which are aggregated into
+ * striped counters and histograms so that neither the relay path nor concurrent sessions contend
+ * on a lock or a single atomic.
+ */
 public class SocksServerStat {
+  /** Latencies recorded for every session, in microseconds */
+  public static enum Latency {
+    /** From accepting the connection to receiving the request */
+    HANDSHAKE,
+    /** Authentication sub-negotiation, for methods other than no authentication */
+    AUTH,
+    /** Connecting to the destination of a CONNECT request */
+    CONNECT,
+    /** From receiving the request to receiving the first octets from the destination */
+    FIRST_BYTE,
+    /** From accepting the connection to closing it */
+    SESSION
+  }
+
   private final ExecutorService pool;
-  private final AtomicLong totalAcceptedConnections;
-  private final AtomicLong currentConnections;
+  private final BufferPool bufferPool;
+  private final BufferSizing bufferSizing;
+  private final MemoryBudget memoryBudget;
+  private final DestinationConnector destinationConnector;
+  private final BindAcceptor bindAcceptor;
+  private final UdpRelay udpRelay;
+  private final AdmissionController admissionController;
+  private final SessionTimer sessionTimer;
+  private final TrafficShaper trafficShaper;
+  private final LongAdder totalAcceptedConnections;
+  private final LongAdder currentConnections;
+  private final LongAdder forwardedBytes;
+  private final LongAdder backwardedBytes;
+  private final LongAdder relayWrites;
+  private final LongAdder relayWrittenBytes;
+  private final LatencyHistogram[] latencies;
+  private final LongAdder[] authSuccesses;
+  private final LongAdder[] authFailures;
+  private final LongAdder noAcceptableAuthMethod;
 
-  public static final SocksServerStat EmptyStat = new SocksServerStat(new NoOpExecutorService());
+  public static final SocksServerStat EmptyStat =
+      new SocksServerStat(
+          new NoOpExecutorService(),
+          new BufferPool(0, 0),
+          BufferSizing.FIXED,
+          new MemoryBudget(0, 0, 0, 0, false),
+          new DestinationConnector(0, 0, 0, 0, 0),
+          new BindAcceptor("", 0),
+          new UdpRelay(null, 0, 0),
+          new AdmissionController(OverloadPolicy.REJECT, 0, 0, 0, 0, 0),
+          new SessionTimer(new TimingWheel("", 1, 1), 0, 0, 0, 0, 0),
+          new TrafficShaper(
+              false, new Limit(0, 0), new Limit(0, 0), new Limit(0, 0), new Limit(0, 0), 0));
 
-  SocksServerStat(ExecutorService pool) {
+  SocksServerStat(
+      ExecutorService pool,
+      BufferPool bufferPool,
+      BufferSizing bufferSizing,
+      MemoryBudget memoryBudget,
+      DestinationConnector destinationConnector,
+      BindAcceptor bindAcceptor,
+      UdpRelay udpRelay,
+      AdmissionController admissionController,
+      SessionTimer sessionTimer,
+      TrafficShaper trafficShaper) {
     this.pool = pool;
-    totalAcceptedConnections = new AtomicLong();
-    currentConnections = new AtomicLong();
+    this.bufferPool = bufferPool;
+    this.bufferSizing = bufferSizing;
+    this.memoryBudget = memoryBudget;
+    this.destinationConnector = destinationConnector;
+    this.bindAcceptor = bindAcceptor;
+    this.udpRelay = udpRelay;
+    this.admissionController = admissionController;
+    this.sessionTimer = sessionTimer;
+    this.trafficShaper = trafficShaper;
+    totalAcceptedConnections = new LongAdder();
+    currentConnections = new LongAdder();
+    forwardedBytes = new LongAdder();
+    backwardedBytes = new LongAdder();
+    relayWrites = new LongAdder();
+    relayWrittenBytes = new LongAdder();
+    latencies = new LatencyHistogram[Latency.values().length];
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = new LatencyHistogram();
+    }
+    authSuccesses = new LongAdder[AuthMethod.values().length];
+    authFailures = new LongAdder[AuthMethod.values().length];
+    for (int i = 0; i < authSuccesses.length; i++) {
+      authSuccesses[i] = new LongAdder();
+      authFailures[i] = new LongAdder();
+    }
+    noAcceptableAuthMethod = new LongAdder();
   }
 
   void incTotalAcceptedConnections() {
-    totalAcceptedConnections.incrementAndGet();
+    totalAcceptedConnections.increment();
   }
 
   public long getTotalAcceptedConnections() {
-    return totalAcceptedConnections.get();
+    return totalAcceptedConnections.sum();
   }
 
   void incCurrentConnections() {
-    currentConnections.incrementAndGet();
+    currentConnections.increment();
   }
 
   void decCurrentConnections() {
-    currentConnections.decrementAndGet();
+    currentConnections.decrement();
   }
 
   public long getCurrentConnections() {
-    return currentConnections.get();
+    return currentConnections.sum();
+  }
+
+  void addForwardedBytes(long n) {
+    forwardedBytes.add(n);
+  }
+
+  /** Octets relayed from clients to destinations */
+  public long getForwardedBytes() {
+    return forwardedBytes.sum();
+  }
+
+  void addBackwardedBytes(long n) {
+    backwardedBytes.add(n);
+  }
+
+  /** Octets relayed from destinations to clients */
+  public long getBackwardedBytes() {
+    return backwardedBytes.sum();
+  }
+
+  void addRelayWrite(int n) {
+    relayWrites.increment();
+    relayWrittenBytes.add(n);
+  }
+
+  /** Writes relays did to sockets, either way */
+  public long getRelayWrites() {
+    return relayWrites.sum();
+  }
+
+  /** Octets those writes wrote, over the number of writes the mean octets per write */
+  public long getRelayWrittenBytes() {
+    return relayWrittenBytes.sum();
+  }
+
+  void recordLatency(Latency latency, long nanos) {
+    latencies[latency.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  public LatencyHistogram.Snapshot getLatency(Latency latency) {
+    return latencies[latency.ordinal()].snapshot();
+  }
+
+  /**
+   * @param method null if none of the methods the client offered is supported
+   */
+  void recordAuth(AuthMethod method, boolean success) {
+    if (method == null) {
+      noAcceptableAuthMethod.increment();
+    } else if (success) {
+      authSuccesses[method.ordinal()].increment();
+    } else {
+      authFailures[method.ordinal()].increment();
+    }
+  }
+
+  public long getAuthSuccesses(AuthMethod method) {
+    return authSuccesses[method.ordinal()].sum();
+  }
+
+  public long getAuthFailures(AuthMethod method) {
+    return authFailures[method.ordinal()].sum();
+  }
+
+  /** Clients which offered no supported authentication method */
+  public long getNoAcceptableAuthMethod() {
+    return noAcceptableAuthMethod.sum();
+  }
+
+  /** Users of the USR_PWD credential store */
+  public int getCredentialUsers() {
+    return UsernamePassword.getVerifier().getStore().size();
+  }
+
+  public long getCredentialCacheHits() {
+    return UsernamePassword.getVerifier().getHits();
+  }
+
+  public long getCredentialCacheMisses() {
+    return UsernamePassword.getVerifier().getMisses();
+  }
+
+  public int getCredentialCacheSize() {
+    return UsernamePassword.getVerifier().getCacheSize();
+  }
+
+  /**
+   * @param cached latencies of the verifications served from the cache, else of those hashing
+   * @return latencies in microseconds of USR_PWD credential verifications
+   */
+  public LatencyHistogram.Snapshot getCredentialVerificationLatency(boolean cached) {
+    return cached
+        ? UsernamePassword.getVerifier().getHitLatency()
+        : UsernamePassword.getVerifier().getMissLatency();
+  }
+
+  /**
+   * @return threads of the handler pool, -1 if unknown (virtual threads)
+   */
+  public int getPoolThreads() {
+    return pool instanceof ThreadPoolExecutor executor ? executor.getPoolSize() : -1;
+  }
+
+  /**
+   * @return threads of the handler pool running a handler, -1 if unknown (virtual threads)
+   */
+  public int getPoolActiveThreads() {
+    return pool instanceof ThreadPoolExecutor executor ? executor.getActiveCount() : -1;
+  }
+
+  public long getBufferPoolHits() {
+    return bufferPool.getHits();
+  }
+
+  public long getBufferPoolMisses() {
+    return bufferPool.getMisses();
+  }
+
+  public long getBufferPoolOutstandingBytes() {
+    return bufferPool.getOutstandingBytes();
+  }
+
+  /**
+   * @return sizes relay buffers come in, from the smallest
+   */
+  public int[] getRelayBufferSizes() {
+    return bufferSizing.getSizes();
+  }
+
+  /**
+   * @return relay buffers of each size in use, in the order of {@link #getRelayBufferSizes()}
+   */
+  public long[] getRelayBuffers() {
+    return bufferSizing.getBuffers();
+  }
+
+  /** Octets relays read and didn't write yet */
+  public long getRelayBufferedBytes() {
+    return memoryBudget.getBufferedBytes();
+  }
+
+  /** Sessions paused by their high watermark of octets in flight */
+  public int getRelayPausedSessions() {
+    return memoryBudget.getPausedSessions();
+  }
+
+  /**
+   * @return the sessions with the most octets in flight, at most {@code n} of them
+   */
+  public List<MemoryBudget.Account> getTopBufferedSessions(int n) {
+    return memoryBudget.getTopAccounts(n);
+  }
+
+  public long getSlowConsumers() {
+    return memoryBudget.getSlowConsumers();
+  }
+
+  public long getSlowConsumerEvictions() {
+    return memoryBudget.getEvictions();
+  }
+
+  public long getConnectAttempts() {
+    return destinationConnector.getAttempts();
+  }
+
+  public long getConnectSuccesses() {
+    return destinationConnector.getSuccesses();
+  }
+
+  public long getConnectFailures(Failure failure) {
+    return destinationConnector.getFailures(failure);
+  }
+
+  public long getConnectNegativeCacheHits() {
+    return destinationConnector.getNegativeCacheHits();
+  }
+
+  public long getConnectMeanLatencyMicros() {
+    return destinationConnector.getMeanLatencyMicros();
+  }
+
+  public long getConnectMaxLatencyMicros() {
+    return destinationConnector.getMaxLatencyMicros();
+  }
+
+  public long getBinds() {
+    return bindAcceptor.getBinds();
+  }
+
+  public long getBindExhaustions() {
+    return bindAcceptor.getExhaustions();
+  }
+
+  public int getBindListeners() {
+    return bindAcceptor.getListeners();
+  }
+
+  public long getBindAccepts() {
+    return bindAcceptor.getAccepts();
+  }
+
+  public long getBindTimeouts() {
+    return bindAcceptor.getTimeouts();
+  }
+
+  public long getBindMeanWaitMillis() {
+    return bindAcceptor.getMeanWaitMillis();
+  }
+
+  public long getBindMaxWaitMillis() {
+    return bindAcceptor.getMaxWaitMillis();
+  }
+
+  public int getUdpAssociations() {
+    return udpRelay.getAssociations();
+  }
+
+  public long getUdpClientDatagrams() {
+    return udpRelay.getClientDatagrams();
+  }
+
+  public long getUdpRemoteDatagrams() {
+    return udpRelay.getRemoteDatagrams();
+  }
+
+  public long getUdpDroppedDatagrams() {
+    return udpRelay.getDroppedDatagrams();
+  }
+
+  public int getAdmittedHandshakes() {
+    return admissionController.getHandshakes();
+  }
+
+  public int getQueuedHandshakes() {
+    return admissionController.getQueuedHandshakes();
+  }
+
+  public int getAdmittedSessions() {
+    return admissionController.getSessions();
+  }
+
+  public long getRejectedHandshakes() {
+    return admissionController.getRejectedHandshakes();
+  }
+
+  public long getRejectedSessions() {
+    return admissionController.getRejectedSessions();
+  }
+
+  public long getAdmissionSourceRejections() {
+    return admissionController.getSourceRejections();
+  }
+
+  public long getAdmissionWaits() {
+    return admissionController.getWaits();
+  }
+
+  public long getAcceptStalls() {
+    return admissionController.getAcceptStalls();
+  }
+
+  public int getTimedSessions() {
+    return sessionTimer.getPending();
+  }
+
+  public long getSessionExpirations(Reason reason) {
+    return sessionTimer.getExpirations(reason);
+  }
+
+  /**
+   * @return what every limited level of bandwidth shaping did, empty if shaping is disabled
+   */
+  public List<TokenBucket.Stats> getShapingStats() {
+    return trafficShaper.getStats();
   }
 }
@@ -2,8 +2,6 @@ package com.lan.proxyserver.proxy.socks;
 
 import java.io.IOException;
 import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
 import org.jboss.logging.Logger;
 
 public enum SocksVersion {
@@ -13,8 +11,7 @@ public enum SocksVersion {
   // () -> {
   // return false;
   // }),
-  SOCKS5(
-      (byte) 5, (serverSocket, clientSocket, pool) -> new Socks5(serverSocket, clientSocket, pool));
+  SOCKS5((byte) 5, (serverSocket, session) -> new Socks5(serverSocket, session));
 
   private static final Logger logger = Logger.getLogger(SocksVersion.class);
 
@@ -22,7 +19,7 @@ public enum SocksVersion {
   private final SocksImplFactory socksImplFactory;
 
   private interface SocksImplFactory {
-    public SocksImpl newImpl(ServerSocket serverSocket, Socket clientSocket, ExecutorService pool);
+    public SocksImpl newImpl(ServerSocket serverSocket, Session session);
   }
 
   SocksVersion(byte version, SocksImplFactory socksImplFactory) {
@@ -43,15 +40,25 @@ public enum SocksVersion {
     return version;
   }
 
-  public void perform(ServerSocket serverSocket, Socket clientSocket, ExecutorService pool) {
-    boolean success = false;
-
-    SocksImpl socksImpl = null;
+  /**
+   * @return null if the implementation cannot serve the session
+   */
+  SocksImpl newImpl(ServerSocket serverSocket, Session session) {
     try {
-      socksImpl = socksImplFactory.newImpl(serverSocket, clientSocket, pool);
+      return socksImplFactory.newImpl(serverSocket, session);
     } catch (Exception e) {
       logger.error(e.getMessage(), e);
     }
+    return null;
+  }
+
+  public void perform(ServerSocket serverSocket, Session session) {
+    boolean success = false;
+
+    SocksImpl socksImpl = newImpl(serverSocket, session);
+    if (socksImpl == null) {
+      return;
+    }
 
     try {
       success = socksImpl.perform();
@@ -60,7 +67,9 @@ public enum SocksVersion {
     }
 
     if (!success) {
-      logger.debugf("Perform socks version %d failed with client socket %s", version, clientSocket);
+      logger.debugf(
+          "Perform socks version %d failed with client socket %s",
+          version, session.getClientSocket());
     }
   }
 };
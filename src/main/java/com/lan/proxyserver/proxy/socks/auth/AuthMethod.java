@@ -2,53 +2,45 @@ package com.lan.proxyserver.proxy.socks.auth;
 
 import com.lan.proxyserver.config.Configer;
 import com.lan.proxyserver.proxy.socks.SocksVersion;
-import java.net.Socket;
-import org.ietf.jgss.GSSException;
-import org.jboss.logging.Logger;
+import com.lan.proxyserver.proxy.socks.handshake.Handshake;
 
 public enum AuthMethod {
   NO_AUTH(
       (byte) 0,
-      (clientSocket) -> {
-        return true;
+      () -> {
+        return (in, out) -> Handshake.Status.DONE;
       },
       Configer.getBool(false, "proxy_server.socks.5.auth.method.no_auth.enable")),
   GSSAPI(
       (byte) 1,
-      (clientSocket) -> {
-        try {
-          return new GSSAPI(clientSocket).doAuth();
-        } catch (GSSException e) {
-          LoggerHolder.logger.error(e.getMessage(), e);
-        }
-        return false;
+      () -> {
+        return new GSSAPI();
       },
       Configer.getBool(false, com.lan.proxyserver.proxy.socks.auth.GSSAPI.cfgStrPrefix, "enable")),
   USR_PWD(
       (byte) 2,
-      (clientSocket) -> {
-        return new UsernamePassword(clientSocket).doAuth();
+      () -> {
+        return new UsernamePassword();
       },
       Configer.getBool(false, UsernamePassword.cfgStrPrefix, "enable"));
 
   private final byte authMethod;
   private final byte[] response;
 
-  private static class LoggerHolder {
-    private static final Logger logger = Logger.getLogger(AuthMethod.class);
+  private static interface AuthenticatorFactory {
+    /**
+     * @return the sub-negotiation handshake of the method, or null if it cannot be set up
+     */
+    public Handshake newAuthenticator();
   }
 
-  private static interface Authenticator {
-    public boolean doAuth(Socket clientSocket);
-  }
-
-  private final Authenticator authenticator;
+  private final AuthenticatorFactory authenticatorFactory;
   private final boolean enable;
 
-  AuthMethod(byte authMethod, Authenticator authenticator, boolean enable) {
+  AuthMethod(byte authMethod, AuthenticatorFactory authenticatorFactory, boolean enable) {
     this.authMethod = authMethod;
     response = new byte[] {SocksVersion.SOCKS5.get(), authMethod};
-    this.authenticator = authenticator;
+    this.authenticatorFactory = authenticatorFactory;
     this.enable = enable;
   }
 
@@ -61,11 +53,15 @@ public enum AuthMethod {
     return null;
   }
 
+  public byte get() {
+    return authMethod;
+  }
+
   public byte[] getResponse() {
     return response;
   }
 
-  public boolean doAuth(Socket clientSocket) {
-    return authenticator.doAuth(clientSocket);
+  public Handshake newAuthenticator() {
+    return authenticatorFactory.newAuthenticator();
   }
 }
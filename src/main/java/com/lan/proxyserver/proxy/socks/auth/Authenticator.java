@@ -0,0 +1,11 @@
+package com.lan.proxyserver.proxy.socks.auth;
+
+import com.lan.proxyserver.proxy.socks.handshake.Handshake;
+
+/** The sub-negotiation of an authentication method which identifies the client */
+public interface Authenticator extends Handshake {
+  /**
+   * @return whom the client authenticated as, null until the sub-negotiation is done
+   */
+  public String getPrincipal();
+}
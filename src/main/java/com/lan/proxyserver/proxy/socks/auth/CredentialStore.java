@@ -0,0 +1,25 @@
+package com.lan.proxyserver.proxy.socks.auth;
+
+/**
+ * Where the password hashes of USR_PWD users come from. It is looked up on every verification, the
+ * verification cache only sparing the hashing, from handler threads: a lookup may block on a remote
+ * backend, though it then adds to the latency of every handshake.
+ *
+ * <p>Other backends (e.g. a database) plug in by implementing it with a public no-arg constructor
+ * reading its own configuration, whose class name is set as the store.
+ */
+public interface CredentialStore extends AutoCloseable {
+  /**
+   * @return the {@link PasswordHash encoded hash} of the password of the user, null if there is no
+   *     such user
+   */
+  public String getHash(String username);
+
+  /**
+   * @return number of users, -1 if unknown; read by the stat page and metrics, it must not block
+   */
+  public int size();
+
+  @Override
+  public default void close() {}
+}
@@ -0,0 +1,184 @@
+package com.lan.proxyserver.proxy.socks.auth;
+
+import com.lan.proxyserver.proxy.metrics.LatencyHistogram;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import org.jboss.logging.Logger;
+
+/**
+ * Verifies USR_PWD credentials against a {@link CredentialStore}, in front of a bounded LRU cache
+ * of the credentials verified lately, so that a client reconnecting often pays the slow hash once
+ * per TTL rather than once per handshake.
+ *
+ * <p>The cache holds a salted digest of each password rather than the password itself, along with
+ * the hash it was verified against: a user whose hash changed in the store, or who was removed from
+ * it, misses the cache. Failed verifications are not cached. Unknown users are hashed all the same,
+ * so that their verification takes as long as a wrong password's.
+ */
+public class CredentialVerifier implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(CredentialVerifier.class);
+
+  public static final CredentialVerifier NONE =
+      new CredentialVerifier(
+          new CredentialStore() {
+            @Override
+            public String getHash(String username) {
+              return null;
+            }
+
+            @Override
+            public int size() {
+              return 0;
+            }
+          },
+          0,
+          0,
+          1,
+          System::nanoTime);
+
+  private final CredentialStore store;
+  private final long ttl;
+  private final LongSupplier clock;
+  private final Map<String, Entry> cache;
+  private final byte[] salt;
+  // Hashed for unknown users
+  private final String dummyHash;
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LatencyHistogram hitLatency;
+  private final LatencyHistogram missLatency;
+
+  private static class Entry {
+    private final String hash;
+    private final byte[] digest;
+    private final long expiresAt;
+
+    private Entry(String hash, byte[] digest, long expiresAt) {
+      this.hash = hash;
+      this.digest = digest;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * @param maxEntries credentials cached at most, 0 not to cache
+   * @param iterations of the hash unknown users are verified against, those of the store's hashes
+   */
+  public CredentialVerifier(
+      CredentialStore store, int maxEntries, long ttlMillis, int iterations, LongSupplier clock) {
+    this.store = store;
+    ttl = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.clock = clock;
+    cache =
+        new LinkedHashMap<>(16, 0.75f, true /* access order */) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+          }
+        };
+    salt = new byte[16];
+    new SecureRandom().nextBytes(salt);
+    dummyHash = PasswordHash.hash("", iterations);
+    hits = new LongAdder();
+    misses = new LongAdder();
+    hitLatency = new LatencyHistogram();
+    missLatency = new LatencyHistogram();
+  }
+
+  public boolean verify(String username, String password) {
+    long start = System.nanoTime();
+    String hash = store.getHash(username);
+    byte[] digest = digest(username, password);
+    if (hash != null && ttl > 0) {
+      Entry entry;
+      synchronized (cache) {
+        entry = cache.get(username);
+      }
+      if (entry != null
+          && entry.hash.equals(hash)
+          && clock.getAsLong() - entry.expiresAt < 0
+          && MessageDigest.isEqual(entry.digest, digest)) {
+        hits.increment();
+        hitLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        return true;
+      }
+    }
+
+    misses.increment();
+    boolean verified;
+    if (hash == null) {
+      PasswordHash.verify(password, dummyHash);
+      logger.debugf("Username '%s' does not exist", username);
+      verified = false;
+    } else {
+      verified = PasswordHash.verify(password, hash);
+      if (verified && ttl > 0) {
+        Entry entry = new Entry(hash, digest, clock.getAsLong() + ttl);
+        synchronized (cache) {
+          cache.put(username, entry);
+        }
+      }
+    }
+    missLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    return verified;
+  }
+
+  /** A fast digest of the credentials, salted per process */
+  private byte[] digest(String username, String password) {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform implements it
+      throw new IllegalStateException(e);
+    }
+    md.update(salt);
+    md.update(username.getBytes(StandardCharsets.UTF_8));
+    md.update((byte) 0);
+    return md.digest(password.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public CredentialStore getStore() {
+    return store;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public int getCacheSize() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  /**
+   * @return latencies in microseconds of verifications served from the cache
+   */
+  public LatencyHistogram.Snapshot getHitLatency() {
+    return hitLatency.snapshot();
+  }
+
+  /**
+   * @return latencies in microseconds of verifications hashing the password
+   */
+  public LatencyHistogram.Snapshot getMissLatency() {
+    return missLatency.snapshot();
+  }
+
+  @Override
+  public void close() {
+    store.close();
+  }
+}
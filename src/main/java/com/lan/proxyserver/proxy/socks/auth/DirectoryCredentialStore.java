@@ -0,0 +1,151 @@
+package com.lan.proxyserver.proxy.socks.auth;
+
+import com.lan.proxyserver.config.Configer;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import org.jboss.logging.Logger;
+
+/**
+ * Users of a directory reached through JNDI, LDAP by default, whose entries hold a {@link
+ * PasswordHash encoded hash} in an attribute. Every lookup searches the directory, so users are
+ * added, removed or have their password changed there without restart; connections are pooled.
+ *
+ * <p>The number of users is counted at most once a minute, as it takes a search of every user. The
+ * count runs on a thread of its own, so reading the size never waits on the directory.
+ */
+public class DirectoryCredentialStore implements CredentialStore {
+  private static final Logger logger = Logger.getLogger(DirectoryCredentialStore.class);
+  private static final long COUNT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  public static final String cfgStrPrefix = UsernamePassword.cfgStrPrefix + ".directory";
+
+  private final Hashtable<String, String> environment;
+  private final String base;
+  private final String filter;
+  private final String attribute;
+  private final SearchControls lookupControls;
+  private final AtomicBoolean counting;
+  private volatile int size;
+  private volatile long countedAt;
+
+  /** Reads its configuration, the directory is searched from the first lookup on */
+  public DirectoryCredentialStore() {
+    environment = new Hashtable<>();
+    environment.put(
+        Context.INITIAL_CONTEXT_FACTORY,
+        Configer.getStr("com.sun.jndi.ldap.LdapCtxFactory", cfgStrPrefix, "factory"));
+    environment.put(
+        Context.PROVIDER_URL, Configer.getStr("ldap://localhost:389", cfgStrPrefix, "url"));
+    String bindDn = Configer.getStr(null, cfgStrPrefix, "bind_dn");
+    if (bindDn != null && !bindDn.isEmpty()) {
+      environment.put(Context.SECURITY_AUTHENTICATION, "simple");
+      environment.put(Context.SECURITY_PRINCIPAL, bindDn);
+      environment.put(
+          Context.SECURITY_CREDENTIALS, Configer.getStr("", cfgStrPrefix, "bind_password"));
+    }
+    String timeoutMillis = String.valueOf(Configer.getInt(5000, cfgStrPrefix, "timeout_ms"));
+    environment.put("com.sun.jndi.ldap.connect.pool", "true");
+    environment.put("com.sun.jndi.ldap.connect.timeout", timeoutMillis);
+    environment.put("com.sun.jndi.ldap.read.timeout", timeoutMillis);
+    base = Configer.getStr("", cfgStrPrefix, "base");
+    filter = Configer.getStr("(uid={0})", cfgStrPrefix, "filter");
+    attribute = Configer.getStr("userPassword", cfgStrPrefix, "attribute");
+    lookupControls = new SearchControls();
+    lookupControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    lookupControls.setReturningAttributes(new String[] {attribute});
+    lookupControls.setCountLimit(2);
+    counting = new AtomicBoolean();
+    size = -1;
+    countedAt = System.nanoTime() - COUNT_INTERVAL_NANOS;
+  }
+
+  @Override
+  public String getHash(String username) {
+    DirContext context = null;
+    try {
+      context = new InitialDirContext(environment);
+      NamingEnumeration<SearchResult> results =
+          context.search(base, filter, new Object[] {username}, lookupControls);
+      if (!results.hasMore()) {
+        return null;
+      }
+      SearchResult result = results.next();
+      if (results.hasMore()) {
+        logger.warnf("Username '%s' matches several directory entries", username);
+        return null;
+      }
+      Attribute hash = result.getAttributes().get(attribute);
+      if (hash == null || hash.size() == 0) {
+        return null;
+      }
+      // LDAP servers return userPassword as octets
+      Object value = hash.get();
+      return value instanceof byte[] octets
+          ? new String(octets, StandardCharsets.UTF_8)
+          : String.valueOf(value);
+    } catch (NamingException e) {
+      logger.errorf("Cannot look up username '%s' in the directory: %s", username, e);
+      return null;
+    } finally {
+      close(context);
+    }
+  }
+
+  /**
+   * @return users counted lately, -1 until they could be counted
+   */
+  @Override
+  public int size() {
+    if (System.nanoTime() - countedAt >= COUNT_INTERVAL_NANOS
+        && counting.compareAndSet(false, true)) {
+      Thread.ofVirtual().name("directory-count").start(this::count);
+    }
+    return size;
+  }
+
+  private void count() {
+    DirContext context = null;
+    try {
+      context = new InitialDirContext(environment);
+      SearchControls controls = new SearchControls();
+      controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+      controls.setReturningAttributes(new String[0]);
+      NamingEnumeration<SearchResult> results =
+          context.search(base, filter.replace("{0}", "*"), controls);
+      int count = 0;
+      while (results.hasMore()) {
+        results.next();
+        count++;
+      }
+      size = count;
+    } catch (NamingException e) {
+      logger.errorf("Cannot count users of the directory: %s", e);
+    } finally {
+      close(context);
+      // Failures aren't retried before the interval elapsed either
+      countedAt = System.nanoTime();
+      counting.set(false);
+    }
+  }
+
+  private static void close(DirContext context) {
+    if (context == null) {
+      return;
+    }
+    try {
+      context.close();
+    } catch (NamingException e) {
+      logger.debug(e.getMessage());
+    }
+  }
+}
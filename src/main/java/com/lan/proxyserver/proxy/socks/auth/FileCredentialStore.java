@@ -0,0 +1,113 @@
+package com.lan.proxyserver.proxy.socks.auth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import org.jboss.logging.Logger;
+
+/**
+ * Users of a file of {@code username:hash} lines, {@code #} starting a comment, hashes being {@link
+ * PasswordHash encoded}. The file is read into memory, and read again in the background once it
+ * changed, so that users are added or removed without restart. A file that can't be read leaves the
+ * users read last in place.
+ */
+public class FileCredentialStore extends Thread implements CredentialStore {
+  private static final Logger logger = Logger.getLogger(FileCredentialStore.class);
+
+  private final Path file;
+  private final long reloadMillis;
+  private volatile Map<String, String> hashes;
+  private volatile boolean closed;
+  private String version;
+
+  /**
+   * The file is read right away, then checked for changes every {@code reloadMillis} once started
+   */
+  public FileCredentialStore(Path file, long reloadMillis) {
+    super(FileCredentialStore.class.getSimpleName());
+    setDaemon(true);
+    this.file = file;
+    this.reloadMillis = reloadMillis;
+    hashes = Map.of();
+    reload();
+  }
+
+  @Override
+  public String getHash(String username) {
+    return hashes.get(username);
+  }
+
+  @Override
+  public int size() {
+    return hashes.size();
+  }
+
+  /**
+   * Reads the file again if it changed since it was read last
+   *
+   * @return whether it was read
+   */
+  public synchronized boolean reload() {
+    String current;
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      current = attributes.lastModifiedTime().toMillis() + ":" + attributes.size();
+    } catch (IOException e) {
+      if (version == null || !version.equals(e.toString())) {
+        logger.errorf("Cannot read credential file %s: %s", file, e);
+      }
+      version = e.toString();
+      return false;
+    }
+    if (current.equals(version)) {
+      return false;
+    }
+
+    Map<String, String> read = new HashMap<>();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      for (int n = 1; (line = reader.readLine()) != null; n++) {
+        line = line.strip();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+          logger.warnf("Skip line %d of credential file %s, not username:hash", n, file);
+          continue;
+        }
+        read.put(line.substring(0, colon), line.substring(colon + 1));
+      }
+    } catch (IOException e) {
+      logger.errorf("Cannot read credential file %s: %s", file, e);
+      return false;
+    }
+    hashes = read;
+    version = current;
+    logger.infof("Read %d user(s) from credential file %s", read.size(), file);
+    return true;
+  }
+
+  @Override
+  public void run() {
+    while (!closed) {
+      try {
+        Thread.sleep(reloadMillis);
+      } catch (InterruptedException e) {
+        continue;
+      }
+      reload();
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    interrupt();
+  }
+}
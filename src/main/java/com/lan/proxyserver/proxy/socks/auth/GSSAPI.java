@@ -1,8 +1,9 @@
 package com.lan.proxyserver.proxy.socks.auth;
 
+import com.lan.proxyserver.proxy.socks.handshake.HandshakeOutput;
+import com.lan.proxyserver.proxy.socks.handshake.Octets;
 import com.lan.proxyserver.util.Util;
-import java.io.IOException;
-import java.net.Socket;
+import java.nio.ByteBuffer;
 import org.ietf.jgss.GSSContext;
 import org.ietf.jgss.GSSCredential;
 import org.ietf.jgss.GSSException;
@@ -10,17 +11,32 @@ import org.ietf.jgss.GSSManager;
 import org.ietf.jgss.MessageProp;
 import org.jboss.logging.Logger;
 
-public class GSSAPI {
+public class GSSAPI implements Authenticator {
   private static final Logger logger = Logger.getLogger(GSSAPI.class);
 
   private static final byte PROTOCOL_VERSION_NUMBER = 1;
+  private static final byte ABORT_MESSAGE_TYPE = (byte) 0xFF;
   private static final byte[] securityContextFailureResponse = {
     PROTOCOL_VERSION_NUMBER, (byte) 0xFF
   };
   public static final String cfgStrPrefix = "proxy_server.socks.5.auth.method.gssapi";
 
-  private final Socket clientSocket;
-  private final GSSContext gssContext;
+  private final Octets octets;
+  private State state;
+  private MessageType expectedMessageType;
+  private GSSContext gssContext;
+  private byte[] clientToken;
+  private byte[] serverToken;
+  private boolean accepted;
+
+  private enum State {
+    VERSION,
+    MESSAGE_TYPE,
+    TOKEN_LEN,
+    TOKEN,
+    ACCEPT,
+    REPLY
+  }
 
   private enum MessageType {
     AUTHENTICATION((byte) 1),
@@ -83,70 +99,130 @@ public class GSSAPI {
   // doesn't work
   // }
 
-  public GSSAPI(Socket clientSocket) throws GSSException {
-    this.clientSocket = clientSocket;
-
-    GSSManager gssManager = GSSManager.getInstance();
-    gssContext = gssManager.createContext((GSSCredential) null);
+  /** The security context is created along with the first token accepted */
+  public GSSAPI() {
+    octets = new Octets();
+    state = State.VERSION;
+    expectedMessageType = MessageType.AUTHENTICATION;
   }
 
-  public boolean doAuth() {
-    try {
-      if (!establishContext()) {
-        replyFailure();
-        return false;
+  @Override
+  public Status advance(ByteBuffer in, HandshakeOutput out) {
+    while (true) {
+      switch (state) {
+        case VERSION:
+          if (!in.hasRemaining()) {
+            return Status.NEED_MORE;
+          }
+          byte versionNumber = in.get();
+          if (versionNumber != PROTOCOL_VERSION_NUMBER) {
+            logger.debugf("Unsupported protocol version %02x", versionNumber);
+            return replyFailure(out);
+          }
+          state = State.MESSAGE_TYPE;
+          break;
+        case MESSAGE_TYPE:
+          if (!in.hasRemaining()) {
+            return Status.NEED_MORE;
+          }
+          byte messageType = in.get();
+          if (messageType == ABORT_MESSAGE_TYPE) {
+            logger.debug("Client aborted the security context establishment");
+            return Status.FAILED;
+          }
+          if (messageType != expectedMessageType.get()) {
+            logger.debugf("Wrong message type %s", MessageType.get(messageType));
+            return replyFailure(out);
+          }
+          octets.expect(2);
+          state = State.TOKEN_LEN;
+          break;
+        case TOKEN_LEN:
+          if (!octets.read(in)) {
+            return Status.NEED_MORE;
+          }
+          byte[] len = octets.get();
+          octets.expect((len[0] & 0xFF) << Byte.SIZE | (len[1] & 0xFF));
+          state = State.TOKEN;
+          break;
+        case TOKEN:
+          if (!octets.read(in)) {
+            return Status.NEED_MORE;
+          }
+          if (expectedMessageType == MessageType.AUTHENTICATION) {
+            clientToken = octets.get();
+            state = State.ACCEPT;
+            // Accepting may reach the key distribution center
+            return Status.BLOCKING;
+          }
+          state = State.VERSION;
+          return subnegotiation(octets.get(), out) ? Status.DONE : replyFailure(out);
+        case ACCEPT:
+          return Status.BLOCKING;
+        case REPLY:
+          if (!accepted) {
+            return replyFailure(out);
+          }
+          if (serverToken != null) {
+            reply(out, MessageType.AUTHENTICATION, serverToken);
+            serverToken = null;
+          }
+          if (gssContext.isEstablished()) {
+            expectedMessageType = MessageType.NEGOTIATION;
+          }
+          state = State.VERSION;
+          break;
       }
-      return subnegotiation();
-    } catch (IOException e) {
-      logger.error(e.getMessage(), e);
     }
-    replyFailure();
-    return false;
   }
 
-  private boolean establishContext() throws IOException {
-    byte versionNumber = Util.readByte(clientSocket);
-    if (versionNumber != PROTOCOL_VERSION_NUMBER) {
-      logger.debugf("Unsupported protocol version %02x", versionNumber);
-      return false;
+  @Override
+  public void runBlocking() {
+    if (state != State.ACCEPT) {
+      return;
     }
+    accepted = acceptContext(clientToken);
+    clientToken = null;
+    state = State.REPLY;
+  }
 
-    byte messageType = Util.readByte(clientSocket);
-    if (messageType != MessageType.AUTHENTICATION.get()) {
-      logger.debugf("Wrong message type %s", MessageType.get(messageType));
-      return false;
+  /**
+   * @return the client principal of the security context
+   */
+  @Override
+  public String getPrincipal() {
+    if (gssContext == null || !gssContext.isEstablished()) {
+      return null;
     }
-
-    int len = Util.readNBytesAsInt(clientSocket, 2);
-    while (!gssContext.isEstablished()) {
-      byte[] clientToken = Util.readExactlyNBytes(clientSocket, len);
-      byte[] serverToken = null;
-      try {
-        serverToken = gssContext.acceptSecContext(clientToken, 0, clientToken.length);
-      } catch (GSSException e) {
-        logger.error(e.getMessage(), e);
-        return false;
-      }
-      if (serverToken != null) {
-        reply(MessageType.AUTHENTICATION, serverToken);
-      }
+    try {
+      return gssContext.getSrcName().toString();
+    } catch (GSSException e) {
+      logger.error(e.getMessage(), e);
+      return null;
     }
-
-    return true;
   }
 
-  private void replyFailure() {
+  private boolean acceptContext(byte[] clientToken) {
     try {
-      clientSocket.getOutputStream().write(securityContextFailureResponse);
-      clientSocket.getOutputStream().flush();
-    } catch (IOException e) {
+      if (gssContext == null) {
+        gssContext = GSSManager.getInstance().createContext((GSSCredential) null);
+      }
+      serverToken = gssContext.acceptSecContext(clientToken, 0, clientToken.length);
+    } catch (GSSException e) {
       logger.error(e.getMessage(), e);
+      return false;
     }
+    return true;
+  }
+
+  private Status replyFailure(HandshakeOutput out) {
+    out.write(securityContextFailureResponse);
 
     logger.info("Server replies security context failure to client");
+    return Status.FAILED;
   }
 
-  private void reply(MessageType messageType, byte[] serverToken) throws IOException {
+  private void reply(HandshakeOutput out, MessageType messageType, byte[] serverToken) {
     byte[] response = new byte[4 + serverToken.length];
     response[0] = PROTOCOL_VERSION_NUMBER;
     response[1] = messageType.get();
@@ -154,31 +230,16 @@ public class GSSAPI {
     response[3] = (byte) (serverToken.length & 0xFF);
     System.arraycopy(serverToken, 0, response, 4 /* from 4th index */, serverToken.length);
 
-    clientSocket.getOutputStream().write(response);
-    clientSocket.getOutputStream().flush();
+    out.write(response);
 
     logger.infof(
         "Server replies server token to client, message type %s, server token (%d byte(s)): %s",
         messageType, serverToken.length, Util.toHexString(serverToken, ":"));
   }
 
-  private boolean subnegotiation() throws IOException {
-    byte versionNumber = Util.readByte(clientSocket);
-    if (versionNumber != PROTOCOL_VERSION_NUMBER) {
-      logger.debugf("Unsupported protocol version %02x", versionNumber);
-      return false;
-    }
-
-    byte messageType = Util.readByte(clientSocket);
-    if (messageType != MessageType.NEGOTIATION.get()) {
-      logger.debugf("Wrong message type %s", MessageType.get(messageType));
-      return false;
-    }
-
+  private boolean subnegotiation(byte[] clientToken, HandshakeOutput out) {
     // --- Get client protection level ---
 
-    int len = Util.readNBytesAsInt(clientSocket, 2);
-    byte[] clientToken = Util.readExactlyNBytes(clientSocket, len);
     byte[] clientDecapsulatedProtectionLevel = null;
     try {
       clientDecapsulatedProtectionLevel =
@@ -230,7 +291,7 @@ public class GSSAPI {
 
     // --- Reply to client ---
 
-    reply(MessageType.NEGOTIATION, serverEncapsulatedProtectionLevel);
+    reply(out, MessageType.NEGOTIATION, serverEncapsulatedProtectionLevel);
 
     return true;
   }
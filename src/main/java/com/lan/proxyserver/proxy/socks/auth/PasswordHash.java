@@ -0,0 +1,107 @@
+package com.lan.proxyserver.proxy.socks.auth;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hashes, encoded as {@code
+ * $pbkdf2-sha256$<iterations>$<salt>$<hash>} with salt and hash in base64. Iterations make a hash
+ * deliberately slow to compute, so that a leaked credential file is slow to brute force as well.
+ *
+ * <p>Run through {@code ./gradlew hashPassword}, it reads a password from the standard input and
+ * prints its hash.
+ */
+public class PasswordHash {
+  public static final int DEFAULT_ITERATIONS = 100_000;
+
+  private static final String ALGORITHM = "pbkdf2-sha256";
+  private static final String PREFIX = "$" + ALGORITHM + "$";
+  private static final int SALT_LENGTH = 16;
+  private static final int HASH_BITS = 256;
+  private static final SecureRandom random = new SecureRandom();
+
+  private PasswordHash() {}
+
+  /**
+   * @return the encoded hash of {@code password} with a fresh salt
+   */
+  public static String hash(String password, int iterations) {
+    byte[] salt = new byte[SALT_LENGTH];
+    random.nextBytes(salt);
+    Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+    return PREFIX
+        + iterations
+        + "$"
+        + encoder.encodeToString(salt)
+        + "$"
+        + encoder.encodeToString(derive(password, salt, iterations, HASH_BITS));
+  }
+
+  /**
+   * @param encoded as returned by {@link #hash(String, int)}
+   * @return whether {@code password} has the hash, false if it is malformed
+   */
+  public static boolean verify(String password, String encoded) {
+    if (!encoded.startsWith(PREFIX)) {
+      return false;
+    }
+    String[] parts = encoded.substring(PREFIX.length()).split("\\$");
+    if (parts.length != 3) {
+      return false;
+    }
+    try {
+      int iterations = Integer.parseInt(parts[0]);
+      byte[] salt = Base64.getDecoder().decode(parts[1]);
+      byte[] hash = Base64.getDecoder().decode(parts[2]);
+      if (iterations <= 0 || hash.length == 0) {
+        return false;
+      }
+      return MessageDigest.isEqual(hash, derive(password, salt, iterations, hash.length * 8));
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private static byte[] derive(String password, byte[] salt, int iterations, int bits) {
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+    try {
+      return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+    } catch (GeneralSecurityException e) {
+      // Every Java platform implements it
+      throw new IllegalStateException(e);
+    } finally {
+      spec.clearPassword();
+    }
+  }
+
+  /**
+   * @param args iterations, {@value #DEFAULT_ITERATIONS} if omitted
+   */
+  public static void main(String[] args) throws IOException {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+    String password;
+    Console console = System.console();
+    if (console != null) {
+      char[] chars = console.readPassword("Password: ");
+      password = chars != null ? new String(chars) : null;
+    } else {
+      password =
+          new BufferedReader(new InputStreamReader(System.in, StandardCharsets.US_ASCII))
+              .readLine();
+    }
+    if (password == null) {
+      System.err.println("No password read");
+      System.exit(1);
+    }
+    System.out.println(hash(password, iterations));
+  }
+}
@@ -1,96 +1,212 @@
 package com.lan.proxyserver.proxy.socks.auth;
 
 import com.lan.proxyserver.config.Configer;
-import com.lan.proxyserver.util.Util;
-import java.io.IOException;
-import java.net.Socket;
+import com.lan.proxyserver.proxy.socks.handshake.HandshakeOutput;
+import com.lan.proxyserver.proxy.socks.handshake.Octets;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import org.jboss.logging.Logger;
 
-public class UsernamePassword {
+public class UsernamePassword implements Authenticator {
   private static final Logger logger = Logger.getLogger(UsernamePassword.class);
 
   private static final byte PROTOCOL_VERSION_NUMBER = 1;
   private static final byte[] successResponse = {PROTOCOL_VERSION_NUMBER, 0};
   private static final byte[] failureResponse = {PROTOCOL_VERSION_NUMBER, 1};
-  private static final Map<String, String> usrPwds = new ConcurrentHashMap<>();
+  private static volatile CredentialVerifier verifier = CredentialVerifier.NONE;
 
   public static final String cfgStrPrefix = "proxy_server.socks.5.auth.method.usr_pwd";
 
-  private final Socket clientSocket;
+  private enum State {
+    VERSION,
+    USERNAME_LEN,
+    USERNAME,
+    PASSWORD_LEN,
+    PASSWORD,
+    VERIFY,
+    REPLY
+  }
 
+  private final Octets octets;
+  private State state;
+  private String username;
+  private String password;
+  private boolean verified;
+
+  /**
+   * Sets up the credential store configured, replacing the one set up before if any
+   *
+   * <p>The store is {@code config} for the default user, {@code file} for a {@link
+   * FileCredentialStore}, {@code directory} for a {@link DirectoryCredentialStore}, or the class
+   * name of a {@link CredentialStore} implementation.
+   */
   public static void init() {
     boolean enable = Configer.getBool(false, cfgStrPrefix, "enable");
     if (!enable) {
       return;
     }
 
-    String defaultUsername = Configer.getStr(null, cfgStrPrefix, "default_username");
-    String defaultPassword = Configer.getStr(null, cfgStrPrefix, "default_password");
-    if (defaultUsername != null || defaultPassword != null) {
-      usrPwds.put(defaultUsername, defaultPassword);
+    int iterations = Configer.getInt(PasswordHash.DEFAULT_ITERATIONS, cfgStrPrefix, "iterations");
+    String storeName = Configer.getStr("config", cfgStrPrefix, "store");
+    CredentialStore store;
+    switch (storeName) {
+      case "config":
+        store = newConfigStore(iterations);
+        break;
+      case "file":
+        String file = Configer.getStr(null, cfgStrPrefix, "file");
+        if (file == null) {
+          logger.fatal("No credential file set");
+          return;
+        }
+        int reloadMillis = Configer.getInt(5000, cfgStrPrefix, "reload_ms");
+        FileCredentialStore fileStore = new FileCredentialStore(Path.of(file), reloadMillis);
+        if (reloadMillis > 0) {
+          fileStore.start();
+        }
+        store = fileStore;
+        break;
+      case "directory":
+        store = new DirectoryCredentialStore();
+        break;
+      default:
+        try {
+          store =
+              Class.forName(storeName)
+                  .asSubclass(CredentialStore.class)
+                  .getConstructor()
+                  .newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+          logger.fatal("Cannot set up credential store '" + storeName + "'", e);
+          return;
+        }
     }
 
-    if (usrPwds.isEmpty()) {
+    if (store.size() == 0) {
       logger.fatal("No credentials found");
     }
+    CredentialVerifier previous = verifier;
+    verifier =
+        new CredentialVerifier(
+            store,
+            Configer.getInt(10000, cfgStrPrefix, "cache", "max_entries"),
+            Configer.getInt(600000, cfgStrPrefix, "cache", "ttl_ms"),
+            iterations,
+            System::nanoTime);
+    previous.close();
   }
 
-  public UsernamePassword(Socket clientSocket) {
-    this.clientSocket = clientSocket;
+  /** The default user of the configuration, whose password is hashed once at startup */
+  private static CredentialStore newConfigStore(int iterations) {
+    Map<String, String> hashes = new HashMap<>();
+    String defaultUsername = Configer.getStr(null, cfgStrPrefix, "default_username");
+    String defaultPassword = Configer.getStr(null, cfgStrPrefix, "default_password");
+    if (defaultUsername != null && defaultPassword != null) {
+      hashes.put(defaultUsername, PasswordHash.hash(defaultPassword, iterations));
+    }
+    return new CredentialStore() {
+      @Override
+      public String getHash(String username) {
+        return hashes.get(username);
+      }
+
+      @Override
+      public int size() {
+        return hashes.size();
+      }
+    };
   }
 
-  public boolean doAuth() {
-    try {
-      boolean success = verify();
-      reply(success);
-      return success;
-    } catch (IOException e) {
-      logger.error(e.getMessage(), e);
-    }
-    reply(false);
-    return false;
+  public static CredentialVerifier getVerifier() {
+    return verifier;
   }
 
-  private boolean verify() throws IOException {
-    byte versionNumber = Util.readByte(clientSocket);
-    if (versionNumber != PROTOCOL_VERSION_NUMBER) {
-      logger.debugf("Unsupported protocol version %02x", versionNumber);
-      return false;
-    }
+  public UsernamePassword() {
+    octets = new Octets();
+    state = State.VERSION;
+  }
 
-    byte usernameLen = Util.readByte(clientSocket);
-    byte[] usernameOctets = Util.readExactlyNBytes(clientSocket, usernameLen);
-    String username = new String(usernameOctets, StandardCharsets.US_ASCII);
+  @Override
+  public Status advance(ByteBuffer in, HandshakeOutput out) {
+    while (true) {
+      switch (state) {
+        case VERSION:
+          if (!in.hasRemaining()) {
+            return Status.NEED_MORE;
+          }
+          byte versionNumber = in.get();
+          if (versionNumber != PROTOCOL_VERSION_NUMBER) {
+            logger.debugf("Unsupported protocol version %02x", versionNumber);
+            return reply(out, false);
+          }
+          state = State.USERNAME_LEN;
+          break;
+        case USERNAME_LEN:
+          if (!in.hasRemaining()) {
+            return Status.NEED_MORE;
+          }
+          octets.expect(in.get() & 0xFF);
+          state = State.USERNAME;
+          break;
+        case USERNAME:
+          if (!octets.read(in)) {
+            return Status.NEED_MORE;
+          }
+          username = new String(octets.get(), StandardCharsets.US_ASCII);
+          state = State.PASSWORD_LEN;
+          break;
+        case PASSWORD_LEN:
+          if (!in.hasRemaining()) {
+            return Status.NEED_MORE;
+          }
+          octets.expect(in.get() & 0xFF);
+          state = State.PASSWORD;
+          break;
+        case PASSWORD:
+          if (!octets.read(in)) {
+            return Status.NEED_MORE;
+          }
+          password = new String(octets.get(), StandardCharsets.US_ASCII);
+          state = State.VERIFY;
+          // The store may be remote and the hash is slow on purpose
+          return Status.BLOCKING;
+        case VERIFY:
+          return Status.BLOCKING;
+        case REPLY:
+          return reply(out, verified);
+      }
+    }
+  }
 
-    byte passwordLen = Util.readByte(clientSocket);
-    byte[] passwordOcters = Util.readExactlyNBytes(clientSocket, passwordLen);
-    String password = new String(passwordOcters, StandardCharsets.US_ASCII);
+  @Override
+  public void runBlocking() {
+    if (state != State.VERIFY) {
+      return;
+    }
+    verified = verifyPwdForUser(username, password);
+    password = null;
+    state = State.REPLY;
+  }
 
-    return verifyPwdForUser(username, password);
+  @Override
+  public String getPrincipal() {
+    return verified ? username : null;
   }
 
   private boolean verifyPwdForUser(String username, String password) {
-    String usrPwd = usrPwds.get(username);
-    if (usrPwd == null) {
-      logger.debugf("Username '%s' does not exist", username);
-      return false;
-    }
-    if (usrPwd.equals(password)) {
+    if (verifier.verify(username, password)) {
       logger.infof("Password verification for username '%s' succeeded", username);
       return true;
     }
-    logger.debugf("Wrong password for username '%s'", username);
+    logger.debugf("Password verification for username '%s' failed", username);
     return false;
   }
 
-  private void reply(boolean success) {
-    try {
-      clientSocket.getOutputStream().write(success ? successResponse : failureResponse);
-    } catch (IOException e) {
-      logger.error(e.getMessage(), e);
-    }
+  private Status reply(HandshakeOutput out, boolean success) {
+    out.write(success ? successResponse : failureResponse);
+    return success ? Status.DONE : Status.FAILED;
   }
 }
@@ -0,0 +1,127 @@
+package com.lan.proxyserver.proxy.socks.command;
+
+import com.lan.proxyserver.proxy.connect.BindAcceptor;
+import com.lan.proxyserver.proxy.socks.AddressType;
+import com.lan.proxyserver.proxy.socks.ReplyCode;
+import com.lan.proxyserver.proxy.socks.Session;
+import com.lan.proxyserver.util.Util;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import org.jboss.logging.Logger;
+
+/**
+ * Listens for a single connection from the destination on behalf of the client, as protocols with
+ * a callback connection (e.g. FTP active mode) need. The first reply carries the address of the
+ * listener, the second one, sent when the destination connects, the address of the destination.
+ */
+public class BindCommand implements CommandImpl {
+  private static final Logger logger = Logger.getLogger(BindCommand.class);
+
+  private final Session session;
+  private final BindAcceptor.Listener listener;
+  private final InetAddress expectedHost;
+  private Socket destSocket;
+
+  private BindCommand(Session session, BindAcceptor.Listener listener, InetAddress expectedHost) {
+    this.session = session;
+    this.listener = listener;
+    this.expectedHost = expectedHost;
+  }
+
+  /**
+   * The destination of the request is the host expected to connect, the listener refuses any
+   * other. A zero address (or a domain name) lets any host connect.
+   */
+  public static CommandConstructionResult build(
+      Session session,
+      AddressType destAddressType,
+      byte[] destAddressOctets,
+      byte[] destPortOctets) {
+    InetAddress expectedHost =
+        destAddressType == AddressType.DOMAINNAME ? null : Util.getInetAddress(destAddressOctets);
+    if (expectedHost != null && expectedHost.isAnyLocalAddress()) {
+      expectedHost = null;
+    }
+
+    BindAcceptor.Listener listener;
+    InetSocketAddress boundAddress;
+    try {
+      // Listen on the address the client reached the server at, the client is to hand it over to
+      // the destination
+      listener =
+          session
+              .getContext()
+              .getBindAcceptor()
+              .open(session.getClientSocket().getLocalAddress());
+      boundAddress = listener.getLocalAddress();
+    } catch (IOException e) {
+      logger.error(e.getMessage(), e);
+      return new CommandConstructionResult(ReplyCode.GENERAL_FAILURE);
+    }
+
+    logger.infof(
+        "Execute %s command listening on %s for %s",
+        Command.BIND, boundAddress, expectedHost == null ? "any host" : expectedHost);
+    return new CommandConstructionResult(
+        ReplyCode.SUCCESS, new BindCommand(session, listener, expectedHost), boundAddress);
+  }
+
+  @Override
+  public void execute(Replier replier) {
+    try {
+      destSocket = listener.accept(expectedHost);
+    } catch (SocketTimeoutException e) {
+      logger.debug(e.getMessage());
+      replier.reply(ReplyCode.GENERAL_FAILURE, null);
+      return;
+    } catch (IOException e) {
+      logger.error(e.getMessage(), e);
+      replier.reply(ReplyCode.GENERAL_FAILURE, null);
+      return;
+    } finally {
+      closeListener();
+    }
+
+    try {
+      destSocket.setTcpNoDelay(true); // turn Nagle's algorithm off
+      destSocket.setKeepAlive(true);
+    } catch (SocketException e) {
+      logger.error(e.getMessage(), e);
+      replier.reply(ReplyCode.GENERAL_FAILURE, null);
+      return;
+    }
+    if (!replier.reply(
+        ReplyCode.SUCCESS, (InetSocketAddress) destSocket.getRemoteSocketAddress())) {
+      return;
+    }
+
+    session.getContext().getRelay().relay(session, destSocket);
+  }
+
+  private void closeListener() {
+    try {
+      listener.close();
+    } catch (IOException e) {
+      logger.error(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public void close() {
+    closeListener();
+    // An asynchronous relay owns the destination socket once the session is detached
+    if (destSocket == null || session.isDetached()) {
+      return;
+    }
+    try {
+      destSocket.close();
+      logger.infof("Close destination socket %s", destSocket);
+    } catch (IOException e) {
+      logger.error(e.getMessage(), e);
+    }
+  }
+}
@@ -1,27 +1,43 @@
 package com.lan.proxyserver.proxy.socks.command;
 
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
+import com.lan.proxyserver.proxy.socks.AddressType;
+import com.lan.proxyserver.proxy.socks.Session;
 
 public enum Command {
   CONNECT(
       (byte) 1,
-      (clientSocket, destAddressOctets, destPortOctets, pool) -> ConnectCommand.build(clientSocket, destAddressOctets,
-          destPortOctets, pool));
-  // BIND((byte) 2),
-  // UDP_ASSOCIATE((byte) 3);
+      (session, destAddressType, destAddressOctets, destPortOctets) ->
+          ConnectCommand.build(session, destAddressType, destAddressOctets, destPortOctets),
+      true),
+  // Replies carry the address of the listener (or of the association), which only exists once
+  // built
+  BIND(
+      (byte) 2,
+      (session, destAddressType, destAddressOctets, destPortOctets) ->
+          BindCommand.build(session, destAddressType, destAddressOctets, destPortOctets),
+      false),
+  UDP_ASSOCIATE(
+      (byte) 3,
+      (session, destAddressType, destAddressOctets, destPortOctets) ->
+          UdpAssociateCommand.build(session, destAddressType, destAddressOctets, destPortOctets),
+      false);
 
   private final byte commandCode;
   private final CommandImplBuilder commandImplBuilder;
+  private final boolean optimisticReplyAllowed;
 
   private static interface CommandImplBuilder {
     public CommandConstructionResult build(
-        Socket clientSocket, byte[] destAddressOctets, byte[] destPortOctets, ExecutorService pool);
+        Session session,
+        AddressType destAddressType,
+        byte[] destAddressOctets,
+        byte[] destPortOctets);
   }
 
-  Command(byte commandCode, CommandImplBuilder commandImplBuilder) {
+  Command(byte commandCode, CommandImplBuilder commandImplBuilder, boolean optimisticReplyAllowed) {
     this.commandCode = commandCode;
     this.commandImplBuilder = commandImplBuilder;
+    this.optimisticReplyAllowed = optimisticReplyAllowed;
   }
 
   public static Command get(byte commandCode) {
@@ -33,8 +49,25 @@ public enum Command {
     return null;
   }
 
+  public byte get() {
+    return commandCode;
+  }
+
+  /**
+   * @return true if success may be replied before the command is built, when the server is so
+   *     configured, the client may then send its first octets while the destination is still being
+   *     set up (they wait in the client socket receive buffer, or as early data, until the relay
+   *     starts)
+   */
+  public boolean isOptimisticReplyAllowed() {
+    return optimisticReplyAllowed;
+  }
+
   public CommandConstructionResult build(
-      Socket clientSocket, byte[] destAddressOctets, byte[] destPortOctets, ExecutorService pool) {
-    return commandImplBuilder.build(clientSocket, destAddressOctets, destPortOctets, pool);
+      Session session,
+      AddressType destAddressType,
+      byte[] destAddressOctets,
+      byte[] destPortOctets) {
+    return commandImplBuilder.build(session, destAddressType, destAddressOctets, destPortOctets);
   }
 }
@@ -1,17 +1,27 @@
 package com.lan.proxyserver.proxy.socks.command;
 
 import com.lan.proxyserver.proxy.socks.ReplyCode;
+import java.net.InetSocketAddress;
 
 public class CommandConstructionResult {
   public final ReplyCode replyCode;
   public final CommandImpl commandImpl;
 
+  /** Address and port replied to the client, null for the server's own */
+  public final InetSocketAddress boundAddress;
+
   public CommandConstructionResult(ReplyCode replyCode) {
     this(replyCode, CommandImpl.noOpCommand);
   }
 
   public CommandConstructionResult(ReplyCode replyCode, CommandImpl commandImpl) {
+    this(replyCode, commandImpl, null);
+  }
+
+  public CommandConstructionResult(
+      ReplyCode replyCode, CommandImpl commandImpl, InetSocketAddress boundAddress) {
     this.replyCode = replyCode;
     this.commandImpl = commandImpl;
+    this.boundAddress = boundAddress;
   }
 }
@@ -1,7 +1,10 @@
 package com.lan.proxyserver.proxy.socks.command;
 
 public interface CommandImpl extends AutoCloseable {
-  public void execute();
+  /**
+   * @param replier for replies following the one sent once the command is built
+   */
+  public void execute(Replier replier);
 
   /**
    * The purpose of overriding {@link AutoCloseable#close()} method is for it to not throw {@link
@@ -13,7 +16,7 @@ public interface CommandImpl extends AutoCloseable {
   public static CommandImpl noOpCommand =
       new CommandImpl() {
         @Override
-        public void execute() {}
+        public void execute(Replier replier) {}
 
         @Override
         public void close() {}
@@ -1,35 +1,52 @@
 package com.lan.proxyserver.proxy.socks.command;
 
+import com.lan.proxyserver.proxy.connect.DestinationConnector.ConnectFailedException;
+import com.lan.proxyserver.proxy.connect.DestinationConnector.Failure;
+import com.lan.proxyserver.proxy.dns.DnsResolver;
+import com.lan.proxyserver.proxy.socks.AddressType;
 import com.lan.proxyserver.proxy.socks.ReplyCode;
+import com.lan.proxyserver.proxy.socks.Session;
 import com.lan.proxyserver.util.Util;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.util.Arrays;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
 import org.jboss.logging.Logger;
 
 public class ConnectCommand implements CommandImpl {
   private static final Logger logger = Logger.getLogger(ConnectCommand.class);
+  public static final String cfgStrPrefix = "proxy_server.socks.5.command.connect";
 
-  private final Socket clientSocket;
+  private final Session session;
   private final Socket destSocket;
-  private final ExecutorService pool;
 
-  private ConnectCommand(Socket clientSocket, Socket destSocket, ExecutorService pool) {
-    this.clientSocket = clientSocket;
+  private ConnectCommand(Session session, Socket destSocket) {
+    this.session = session;
     this.destSocket = destSocket;
-    this.pool = pool;
   }
 
   public static CommandConstructionResult build(
-      Socket clientSocket, byte[] destAddressOctets, byte[] destPortOctets, ExecutorService pool) {
-    InetAddress destInetAddress = Util.getV4InetAdress(destAddressOctets);
+      Session session,
+      AddressType destAddressType,
+      byte[] destAddressOctets,
+      byte[] destPortOctets) {
+    String destHost;
+    InetAddress[] destInetAddresses;
+    if (destAddressType == AddressType.DOMAINNAME) {
+      destHost = new String(destAddressOctets, StandardCharsets.US_ASCII);
+      destInetAddresses = resolve(session.getContext().getDnsResolver(), destHost);
+      if (destInetAddresses == null) {
+        return new CommandConstructionResult(ReplyCode.HOST_UNREACHABLE);
+      }
+    } else {
+      InetAddress destInetAddress = Util.getInetAddress(destAddressOctets);
+      destHost = destInetAddress == null ? null : destInetAddress.getHostAddress();
+      destInetAddresses = destInetAddress == null ? null : new InetAddress[] {destInetAddress};
+    }
     int destPort = Util.getPort(destPortOctets);
-    if (destInetAddress == null || destPort < 0) {
+    if (destInetAddresses == null || destPort < 0) {
       logger.debugf(
           "Failed to get destination inet address from these octets: %s, and/or destination port"
               + " from these octets: %s",
@@ -38,24 +55,22 @@ public class ConnectCommand implements CommandImpl {
     }
 
     logger.infof(
-        "Execute %s command with destination inet address: %s, and destination port: %d",
-        Command.CONNECT, destInetAddress, destPort);
+        "Execute %s command with destination host: %s, and destination port: %d",
+        Command.CONNECT, destHost, destPort);
 
     Socket destSocket;
+    long connectStartedAt = System.nanoTime();
     try {
-      destSocket = new Socket(destInetAddress, destPort);
-    } catch (SocketException e) {
-      logger.error(
-          String.format(
-              "Destination socket at %s:%d set up unsuccessfully", destInetAddress, destPort),
-          e);
-      String msg = e.getMessage();
-      return msg != null && msg.startsWith("Network is unreachable")
-          ? new CommandConstructionResult(ReplyCode.NETWORK_UNREACHABLE)
-          : new CommandConstructionResult(ReplyCode.HOST_UNREACHABLE);
-    } catch (IOException e) {
-      logger.error(e.getMessage(), e);
-      return new CommandConstructionResult(ReplyCode.HOST_UNREACHABLE);
+      destSocket =
+          session
+              .getContext()
+              .getDestinationConnector()
+              .connect(destHost, destInetAddresses, destPort)
+              .socket();
+      session.recordConnectTime(System.nanoTime() - connectStartedAt);
+    } catch (ConnectFailedException e) {
+      logger.errorf("Destination socket set up unsuccessfully: %s", e.getMessage());
+      return new CommandConstructionResult(getReplyCode(e.getFailure()));
     }
 
     try {
@@ -75,90 +90,49 @@ public class ConnectCommand implements CommandImpl {
     }
 
     return new CommandConstructionResult(
-        ReplyCode.SUCCESS, new ConnectCommand(clientSocket, destSocket, pool));
+        ReplyCode.SUCCESS, new ConnectCommand(session, destSocket));
   }
 
-  @Override
-  public void execute() {
-    // Do not let backward direction log socket error when forward direction stops,
-    // because forward direction will close destination socket afterward
-    final AtomicBoolean fwStop = new AtomicBoolean(false);
-
-    // --- Backward direction ---
-    pool.submit(
-        () -> {
-          try {
-            while (backward(new byte[4096])) {
-              Thread.yield();
-            }
-          } catch (IOException e) {
-            if (!Thread.currentThread().isInterrupted() && !fwStop.get()) {
-              logger.error(e.getMessage(), e);
-            }
-          }
-        });
-
-    // --- Forward direction ---
-    try {
-      while (true) {
-        try {
-          if (!forward(new byte[4096])) {
-            break;
-          }
-        } catch (SocketTimeoutException e) {
-          if (Thread.currentThread().isInterrupted()) {
-            break;
-          }
-        }
-
-        Thread.yield();
-      }
-    } catch (IOException e) {
-      logger.error(e.getMessage(), e);
-    }
-    fwStop.set(true);
+  private static ReplyCode getReplyCode(Failure failure) {
+    return switch (failure) {
+      case NETWORK_UNREACHABLE -> ReplyCode.NETWORK_UNREACHABLE;
+      case HOST_UNREACHABLE, TIMED_OUT -> ReplyCode.HOST_UNREACHABLE;
+      case CONNECTION_REFUSED -> ReplyCode.CONNECTION_REFUSED;
+      case OVERLOADED, OTHER -> ReplyCode.GENERAL_FAILURE;
+    };
   }
 
-  private boolean forward(byte[] payload) throws IOException {
-    int len = clientSocket.getInputStream().read(payload);
-    if (len < 0) {
-      logger.debugf("Read %d byte(s) from client", len);
-      return false;
+  /**
+   * Only waits on the resolver when the name isn't cached (or is being looked up by another
+   * session already), the resolver bounding the wait
+   *
+   * @return null if the name cannot be resolved in time
+   */
+  private static InetAddress[] resolve(DnsResolver resolver, String host) {
+    InetAddress[] addresses;
+    try {
+      addresses = resolver.resolve(host).get();
+    } catch (ExecutionException e) {
+      logger.debugf("Cannot resolve %s: %s", host, e.getCause());
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
     }
-    logger.debugf(
-        "Read %d byte(s) from client, payload: %s",
-        len, Util.toHexString(Arrays.copyOf(payload, len), ":"));
-
-    destSocket.getOutputStream().write(payload, 0, len);
-    destSocket.getOutputStream().flush();
-    logger.debugf(
-        "Write %d byte(s) to destination, payload: %s",
-        len, Util.toHexString(Arrays.copyOf(payload, len), ":"));
-
-    return true;
+    return addresses;
   }
 
-  private boolean backward(byte[] payload) throws IOException {
-    int len = destSocket.getInputStream().read(payload);
-    if (len < 0) {
-      logger.debugf("Read %d byte(s) from destination", len);
-      return false;
-    }
-    logger.debugf(
-        "Read %d byte(s) from destination, payload: %s",
-        len, Util.toHexString(Arrays.copyOf(payload, len), ":"));
-
-    clientSocket.getOutputStream().write(payload, 0, len);
-    clientSocket.getOutputStream().flush();
-    logger.debugf(
-        "Write %d byte(s) to client, payload: %s",
-        len, Util.toHexString(Arrays.copyOf(payload, len), ":"));
-
-    return true;
+  @Override
+  public void execute(Replier replier) {
+    session.getContext().getRelay().relay(session, destSocket);
   }
 
   @Override
   public void close() {
+    // An asynchronous relay owns the destination socket once the session is detached
+    if (session.isDetached()) {
+      return;
+    }
     try {
       destSocket.close();
       logger.infof("Close destination socket %s", destSocket);
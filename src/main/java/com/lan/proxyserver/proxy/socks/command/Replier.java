@@ -0,0 +1,13 @@
+package com.lan.proxyserver.proxy.socks.command;
+
+import com.lan.proxyserver.proxy.socks.ReplyCode;
+import java.net.InetSocketAddress;
+
+/** Sends replies to the client, for commands replying more than once */
+public interface Replier {
+  /**
+   * @param boundAddress null for the server's address and port
+   * @return false if the reply couldn't be sent
+   */
+  public boolean reply(ReplyCode replyCode, InetSocketAddress boundAddress);
+}
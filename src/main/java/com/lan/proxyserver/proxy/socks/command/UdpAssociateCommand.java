@@ -0,0 +1,75 @@
+package com.lan.proxyserver.proxy.socks.command;
+
+import com.lan.proxyserver.proxy.socks.AddressType;
+import com.lan.proxyserver.proxy.socks.ReplyCode;
+import com.lan.proxyserver.proxy.socks.Session;
+import com.lan.proxyserver.proxy.udp.UdpAssociation;
+import com.lan.proxyserver.util.Util;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import org.jboss.logging.Logger;
+
+public class UdpAssociateCommand implements CommandImpl {
+  private static final Logger logger = Logger.getLogger(UdpAssociateCommand.class);
+
+  private final Session session;
+  private final UdpAssociation association;
+
+  private UdpAssociateCommand(Session session, UdpAssociation association) {
+    this.session = session;
+    this.association = association;
+  }
+
+  /**
+   * The destination of the request is the address the client is going to send its datagrams from,
+   * zeros (or a domain name, which cannot be matched against datagram sources) leave the address
+   * (or the port) to be learned from the first datagram
+   */
+  public static CommandConstructionResult build(
+      Session session,
+      AddressType destAddressType,
+      byte[] destAddressOctets,
+      byte[] destPortOctets) {
+    InetAddress clientAddress =
+        destAddressType == AddressType.DOMAINNAME ? null : Util.getInetAddress(destAddressOctets);
+    int clientPort = Util.getPort(destPortOctets);
+    if (clientPort < 0) {
+      return new CommandConstructionResult(ReplyCode.GENERAL_FAILURE);
+    }
+    InetSocketAddress expectedClient =
+        clientAddress == null
+            ? new InetSocketAddress(clientPort)
+            : new InetSocketAddress(clientAddress, clientPort);
+
+    logger.infof(
+        "Execute %s command expecting datagrams from %s", Command.UDP_ASSOCIATE, expectedClient);
+
+    UdpAssociation association;
+    InetSocketAddress boundAddress;
+    try {
+      association = session.getContext().getUdpRelay().associate(session, expectedClient);
+      boundAddress = association.getBoundAddress();
+    } catch (IOException e) {
+      logger.error(e.getMessage(), e);
+      return new CommandConstructionResult(ReplyCode.GENERAL_FAILURE);
+    }
+
+    return new CommandConstructionResult(
+        ReplyCode.SUCCESS, new UdpAssociateCommand(session, association), boundAddress);
+  }
+
+  @Override
+  public void execute(Replier replier) {
+    association.start();
+  }
+
+  @Override
+  public void close() {
+    // The association owns the session once started
+    if (session.isDetached()) {
+      return;
+    }
+    association.close();
+  }
+}
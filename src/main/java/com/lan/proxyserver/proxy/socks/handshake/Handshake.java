@@ -0,0 +1,72 @@
+package com.lan.proxyserver.proxy.socks.handshake;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * A resumable handshake decoder, it consumes whatever octets are available and produces the
+ * octets to send back without ever touching a socket, so the same handshake can be driven by a
+ * blocking socket or by a selector
+ */
+public interface Handshake {
+  public enum Status {
+    /** Every available octet has been consumed, more are needed to go on */
+    NEED_MORE,
+    /** The handshake completed, octets following it are left in the input buffer */
+    DONE,
+    /** The handshake failed, the connection should be closed once the output is flushed */
+    FAILED,
+    /**
+     * The handshake can't go on before {@link Handshake#runBlocking} ran, which may block (e.g.
+     * hashing a password) and so must not run on a reactor, advance again once it returned
+     */
+    BLOCKING
+  }
+
+  /**
+   * @param in input octets in read mode
+   * @param out octets to be sent to the client
+   */
+  public Status advance(ByteBuffer in, HandshakeOutput out);
+
+  /** Runs the step the handshake is waiting for, after {@link Status#BLOCKING} was returned */
+  public default void runBlocking() {}
+
+  /**
+   * Drive the handshake on a blocking socket, every read grabs as many octets as the socket has
+   * available so a whole handshake usually takes one or two reads
+   *
+   * @param in an empty buffer in write mode, it is left in read mode holding the octets the
+   *     client sent after the handshake
+   */
+  public default Status perform(Socket socket, ByteBuffer in) throws IOException {
+    HandshakeOutput out = new HandshakeOutput();
+    in.flip();
+    while (true) {
+      Status status = advance(in, out);
+      out.writeTo(socket.getChannel());
+      if (status == Status.BLOCKING) {
+        // Handler threads may block
+        runBlocking();
+        continue;
+      }
+      if (status != Status.NEED_MORE) {
+        return status;
+      }
+
+      // No socket timeout, the session timer closes the socket once the handshake is overdue
+      in.compact();
+      if (socket.getChannel().read(in) < 0) {
+        throw new UndesirableEofException();
+      }
+      in.flip();
+    }
+  }
+
+  public static class UndesirableEofException extends IOException {
+    public UndesirableEofException() {
+      super("Client closed the connection in the middle of the handshake");
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package com.lan.proxyserver.proxy.socks.handshake;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** Octets a handshake owes to the client, drained by whoever drives the handshake */
+public class HandshakeOutput {
+  private ByteBuffer buffer;
+
+  public HandshakeOutput() {
+    buffer = ByteBuffer.allocate(64);
+  }
+
+  public void write(byte[] octets) {
+    if (buffer.remaining() < octets.length) {
+      ByteBuffer grown =
+          ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + octets.length));
+      buffer.flip();
+      grown.put(buffer);
+      buffer = grown;
+    }
+    buffer.put(octets);
+  }
+
+  public boolean isEmpty() {
+    return buffer.position() == 0;
+  }
+
+  /**
+   * Write as many pending octets as the channel accepts, which is all of them if the channel is in
+   * blocking mode
+   */
+  public void writeTo(WritableByteChannel channel) throws IOException {
+    if (isEmpty()) {
+      return;
+    }
+    buffer.flip();
+    channel.write(buffer);
+    buffer.compact();
+  }
+}
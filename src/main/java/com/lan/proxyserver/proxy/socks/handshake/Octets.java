@@ -0,0 +1,34 @@
+package com.lan.proxyserver.proxy.socks.handshake;
+
+import java.nio.ByteBuffer;
+
+/** Accumulates a field of known length across as many reads as it takes */
+public class Octets {
+  private static final byte[] EMPTY = new byte[0];
+
+  private byte[] octets;
+  private int filled;
+
+  public Octets() {
+    octets = EMPTY;
+  }
+
+  public void expect(int length) {
+    octets = length == 0 ? EMPTY : new byte[length];
+    filled = 0;
+  }
+
+  /**
+   * @return whether every expected octet has been read
+   */
+  public boolean read(ByteBuffer in) {
+    int len = Math.min(in.remaining(), octets.length - filled);
+    in.get(octets, filled, len);
+    filled += len;
+    return filled == octets.length;
+  }
+
+  public byte[] get() {
+    return octets;
+  }
+}
@@ -0,0 +1,57 @@
+package com.lan.proxyserver.proxy.timer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A task scheduled on a {@link TimingWheel}, which runs it once at most */
+public class Timeout {
+  private static final int PENDING = 0;
+  private static final int CANCELLED = 1;
+  private static final int EXPIRED = 2;
+
+  private final TimingWheel timingWheel;
+  final Runnable task;
+  final long deadline;
+  private final AtomicInteger state;
+
+  // Only touched by the worker thread
+  long remainingRounds;
+  TimingWheel.Bucket bucket;
+  Timeout prev;
+  Timeout next;
+
+  Timeout(TimingWheel timingWheel, Runnable task, long deadline) {
+    this.timingWheel = timingWheel;
+    this.task = task;
+    this.deadline = deadline;
+    state = new AtomicInteger(PENDING);
+  }
+
+  /**
+   * @return false if the timeout already expired (or was cancelled)
+   */
+  public boolean cancel() {
+    if (!state.compareAndSet(PENDING, CANCELLED)) {
+      return false;
+    }
+    timingWheel.cancelled(this);
+    return true;
+  }
+
+  public boolean isCancelled() {
+    return state.get() == CANCELLED;
+  }
+
+  boolean expire() {
+    return state.compareAndSet(PENDING, EXPIRED);
+  }
+
+  /**
+   * Runs the task right away unless the timeout expired or was cancelled, e.g. for the timeouts
+   * {@link TimingWheel#terminate()} returns
+   */
+  public void expireNow() {
+    if (expire()) {
+      task.run();
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package com.lan.proxyserver.proxy.timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.jboss.logging.Logger;
+
+/**
+ * A hashed timing wheel: timeouts are hashed by their deadline into the buckets of a wheel, which a
+ * single thread advances by one bucket per tick, expiring the timeouts due. Scheduling and
+ * cancelling cost O(1) whatever the number of timeouts, at the price of a tick of precision, which
+ * suits timeouts that are almost always cancelled (or pushed back) before they expire.
+ *
+ * <p>Only the worker thread touches the buckets, other threads hand timeouts and cancellations over
+ * through queues. Tasks run on the worker thread, they must not block.
+ */
+public class TimingWheel {
+  private static final Logger logger = Logger.getLogger(TimingWheel.class);
+  public static final String cfgStrPrefix = "proxy_server.socks.timer";
+
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final long startTime;
+  private final Queue<Timeout> scheduled;
+  private final Queue<Timeout> cancelled;
+  private final Thread worker;
+  private volatile boolean stop;
+  private long tick;
+
+  private final AtomicInteger pending;
+  private final LongAdder expired;
+
+  /**
+   * @param tickMillis precision of the timeouts
+   * @param ticksPerWheel rounded up to a power of 2, timeouts further than a turn of the wheel
+   *     stay in their bucket for as many turns
+   */
+  public TimingWheel(String name, long tickMillis, int ticksPerWheel) {
+    tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+    int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+    wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    mask = size - 1;
+    startTime = System.nanoTime();
+    scheduled = new ConcurrentLinkedQueue<>();
+    cancelled = new ConcurrentLinkedQueue<>();
+    worker = new Thread(this::run, name);
+    worker.setDaemon(true);
+    pending = new AtomicInteger();
+    expired = new LongAdder();
+  }
+
+  public void start() {
+    worker.start();
+  }
+
+  /**
+   * Stops the worker, the timeouts still pending are neither expired nor cancelled, it is up to
+   * the caller to decide what becomes of them
+   *
+   * @return the timeouts still pending
+   */
+  public List<Timeout> terminate() {
+    stop = true;
+    worker.interrupt();
+    try {
+      worker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    List<Timeout> res = new ArrayList<>();
+    for (Bucket bucket : wheel) {
+      bucket.drainTo(res);
+    }
+    Timeout timeout;
+    while ((timeout = scheduled.poll()) != null) {
+      if (!timeout.isCancelled()) {
+        res.add(timeout);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @param delayMillis rounded up to the next tick
+   */
+  public Timeout schedule(Runnable task, long delayMillis) {
+    Timeout timeout =
+        new Timeout(this, task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    pending.incrementAndGet();
+    scheduled.add(timeout);
+    return timeout;
+  }
+
+  void cancelled(Timeout timeout) {
+    pending.decrementAndGet();
+    cancelled.add(timeout);
+  }
+
+  /** Timeouts neither expired nor cancelled */
+  public int getPending() {
+    return pending.get();
+  }
+
+  public long getExpired() {
+    return expired.sum();
+  }
+
+  private void run() {
+    while (!stop) {
+      long deadline = startTime + (tick + 1) * tickNanos;
+      long sleep = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime() + 999_999);
+      if (sleep > 0) {
+        try {
+          Thread.sleep(sleep);
+        } catch (InterruptedException e) {
+          continue;
+        }
+      }
+
+      Timeout timeout;
+      while ((timeout = cancelled.poll()) != null) {
+        if (timeout.bucket != null) {
+          timeout.bucket.remove(timeout);
+        }
+      }
+      // Transferring a bounded number of timeouts per tick keeps a burst of scheduling from
+      // delaying the expiration of the others
+      for (int i = 0; i < 100_000 && (timeout = scheduled.poll()) != null; i++) {
+        if (timeout.isCancelled()) {
+          continue;
+        }
+        long due = (timeout.deadline - startTime) / tickNanos;
+        timeout.remainingRounds = (due - tick) / wheel.length;
+        wheel[(int) (Math.max(due, tick) & mask)].add(timeout);
+      }
+      wheel[(int) (tick & mask)].expire();
+      tick++;
+    }
+  }
+
+  private void expired(Timeout timeout) {
+    pending.decrementAndGet();
+    expired.increment();
+    try {
+      timeout.task.run();
+    } catch (RuntimeException e) {
+      logger.error(e.getMessage(), e);
+    }
+  }
+
+  /** A doubly linked list of timeouts, only touched by the worker thread */
+  class Bucket {
+    private Timeout head;
+    private Timeout tail;
+
+    void add(Timeout timeout) {
+      timeout.bucket = this;
+      if (head == null) {
+        head = tail = timeout;
+      } else {
+        tail.next = timeout;
+        timeout.prev = tail;
+        tail = timeout;
+      }
+    }
+
+    void remove(Timeout timeout) {
+      Timeout next = timeout.next;
+      if (timeout.prev != null) {
+        timeout.prev.next = next;
+      }
+      if (timeout.next != null) {
+        timeout.next.prev = timeout.prev;
+      }
+      if (timeout == head) {
+        head = next;
+      }
+      if (timeout == tail) {
+        tail = timeout.prev;
+      }
+      timeout.prev = null;
+      timeout.next = null;
+      timeout.bucket = null;
+    }
+
+    void expire() {
+      Timeout timeout = head;
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.remainingRounds <= 0) {
+          remove(timeout);
+          if (timeout.expire()) {
+            expired(timeout);
+          }
+        } else {
+          timeout.remainingRounds--;
+        }
+        timeout = next;
+      }
+    }
+
+    void drainTo(List<Timeout> timeouts) {
+      for (Timeout timeout = head; timeout != null; timeout = timeout.next) {
+        if (!timeout.isCancelled()) {
+          timeouts.add(timeout);
+        }
+      }
+      head = tail = null;
+    }
+  }
+}
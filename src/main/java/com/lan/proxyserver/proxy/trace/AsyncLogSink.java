@@ -0,0 +1,53 @@
+package com.lan.proxyserver.proxy.trace;
+
+import com.lan.proxyserver.util.Util;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.jboss.logging.Logger;
+
+/**
+ * Hands trace records over to a dedicated thread which formats and logs them, records are dropped
+ * rather than stalling the tunnel when that thread falls behind
+ */
+public class AsyncLogSink extends Thread implements TraceSink {
+  private static final Logger logger = Logger.getLogger(AsyncLogSink.class);
+
+  private final BlockingQueue<TraceRecord> records;
+
+  public AsyncLogSink(int capacity) {
+    super("PayloadTrace");
+    setDaemon(true);
+    records = new ArrayBlockingQueue<>(capacity);
+  }
+
+  @Override
+  public boolean offer(TraceRecord record) {
+    return records.offer(record);
+  }
+
+  @Override
+  public void run() {
+    while (!isInterrupted()) {
+      TraceRecord record;
+      try {
+        record = records.take();
+      } catch (InterruptedException e) {
+        break;
+      }
+      byte[] payload = record.getPayload();
+      logger.infof(
+          "Session %d %s +%d, %d byte(s)%s: %s",
+          record.getSessionId(),
+          record.getDirection(),
+          record.getOffset(),
+          record.getLen(),
+          payload.length < record.getLen() ? " (truncated to " + payload.length + ")" : "",
+          Util.toHexString(payload, ":"));
+    }
+  }
+
+  @Override
+  public void close() {
+    interrupt();
+  }
+}
@@ -0,0 +1,55 @@
+package com.lan.proxyserver.proxy.trace;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/** Traces one direction of a tunnel according to the rules of its {@link PayloadTracer} */
+public class PayloadTrace {
+  private final PayloadTracer tracer;
+  private final long sessionId;
+  private final InetAddress clientAddress;
+  private final InetAddress destAddress;
+  private final int destPort;
+  private final String direction;
+  private int generation;
+  private TraceRule rule;
+  private int traced;
+  private long offset;
+
+  PayloadTrace(
+      PayloadTracer tracer,
+      long sessionId,
+      InetAddress clientAddress,
+      InetAddress destAddress,
+      int destPort,
+      String direction) {
+    this.tracer = tracer;
+    this.sessionId = sessionId;
+    this.clientAddress = clientAddress;
+    this.destAddress = destAddress;
+    this.destPort = destPort;
+    this.direction = direction;
+    generation = tracer.getGeneration() - 1;
+  }
+
+  /**
+   * Records {@code len} octets of {@code buffer} from {@code index}, leaving the buffer untouched.
+   * Only copies them out if a rule currently selects this tunnel.
+   */
+  public void record(ByteBuffer buffer, int index, int len) {
+    int currentGeneration = tracer.getGeneration();
+    if (currentGeneration != generation) {
+      generation = currentGeneration;
+      rule = tracer.match(sessionId, clientAddress, destAddress, destPort);
+      traced = 0;
+    }
+
+    if (rule != null && traced < rule.getMaxBytes()) {
+      byte[] payload = new byte[Math.min(len, rule.getMaxBytes() - traced)];
+      buffer.get(index, payload);
+      traced += payload.length;
+      tracer.write(new TraceRecord(sessionId, direction, offset, len, payload));
+    }
+    offset += len;
+  }
+}
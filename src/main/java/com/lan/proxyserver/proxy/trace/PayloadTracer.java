@@ -0,0 +1,102 @@
+package com.lan.proxyserver.proxy.trace;
+
+import com.lan.proxyserver.proxy.socks.Session;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import org.jboss.logging.Logger;
+
+/**
+ * Server wide payload tracing switch. Rules can be added and removed at any time, including for
+ * tunnels already established: every change bumps a generation which the tunnels' {@link
+ * PayloadTrace}s compare against on their next read, so with no rule (or no rule matching) a
+ * tunnel only pays for reading that generation.
+ */
+public class PayloadTracer {
+  private static final Logger logger = Logger.getLogger(PayloadTracer.class);
+  public static final String cfgStrPrefix = "proxy_server.socks.trace";
+
+  private final TraceSink sink;
+  private final List<TraceRule> rules;
+  private final LongAdder dropped;
+  private volatile int generation;
+
+  public PayloadTracer(TraceSink sink) {
+    this.sink = sink;
+    rules = new CopyOnWriteArrayList<>();
+    dropped = new LongAdder();
+  }
+
+  public synchronized void addRule(TraceRule rule) {
+    rules.add(rule);
+    generation++;
+    logger.infof("Add payload trace rule %s", rule);
+  }
+
+  /**
+   * @return false if there is no such rule
+   */
+  public synchronized boolean removeRule(long id) {
+    if (!rules.removeIf(rule -> rule.getId() == id)) {
+      return false;
+    }
+    generation++;
+    logger.infof("Remove payload trace rule #%d", id);
+    return true;
+  }
+
+  public synchronized void clearRules() {
+    rules.clear();
+    generation++;
+    logger.info("Remove all payload trace rules");
+  }
+
+  public List<TraceRule> getRules() {
+    return List.copyOf(rules);
+  }
+
+  /** Records the sink couldn't take in */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * @param direction e.g. "client->destination"
+   * @return the trace of one direction of a tunnel, to be fed from a single thread
+   */
+  public PayloadTrace newTrace(Session session, Socket destSocket, String direction) {
+    return new PayloadTrace(
+        this,
+        session.getId(),
+        session.getClientSocket().getInetAddress(),
+        destSocket.getInetAddress(),
+        destSocket.getPort(),
+        direction);
+  }
+
+  public void close() {
+    sink.close();
+  }
+
+  int getGeneration() {
+    return generation;
+  }
+
+  TraceRule match(
+      long sessionId, InetAddress clientAddress, InetAddress destAddress, int destPort) {
+    for (TraceRule rule : rules) {
+      if (rule.matches(sessionId, clientAddress, destAddress, destPort)) {
+        return rule.sample() ? rule : null;
+      }
+    }
+    return null;
+  }
+
+  void write(TraceRecord record) {
+    if (!sink.offer(record)) {
+      dropped.increment();
+    }
+  }
+}
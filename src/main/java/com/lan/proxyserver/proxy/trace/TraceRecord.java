@@ -0,0 +1,42 @@
+package com.lan.proxyserver.proxy.trace;
+
+/** Octets captured from one read of a traced tunnel direction */
+public class TraceRecord {
+  private final long sessionId;
+  private final String direction;
+  private final long offset;
+  private final int len;
+  private final byte[] payload;
+
+  /**
+   * @param offset position of the read in the direction's stream
+   * @param len length of the read, the payload being truncated to the rule's byte cap
+   */
+  TraceRecord(long sessionId, String direction, long offset, int len, byte[] payload) {
+    this.sessionId = sessionId;
+    this.direction = direction;
+    this.offset = offset;
+    this.len = len;
+    this.payload = payload;
+  }
+
+  public long getSessionId() {
+    return sessionId;
+  }
+
+  public String getDirection() {
+    return direction;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public int getLen() {
+    return len;
+  }
+
+  public byte[] getPayload() {
+    return payload;
+  }
+}
@@ -0,0 +1,80 @@
+package com.lan.proxyserver.proxy.trace;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Selects the tunnels whose payload is traced, every criterion left null matches any tunnel. A
+ * matching tunnel is only traced with probability {@code sampleRate}, and each of its directions
+ * stops being traced after {@code maxBytes}.
+ */
+public class TraceRule {
+  private static final AtomicLong ids = new AtomicLong();
+
+  private final long id;
+  private final Long sessionId;
+  private final InetAddress clientAddress;
+  private final InetAddress destAddress;
+  private final int destPort;
+  private final double sampleRate;
+  private final int maxBytes;
+
+  /**
+   * @param destPort 0 matches any destination port
+   */
+  public TraceRule(
+      Long sessionId,
+      InetAddress clientAddress,
+      InetAddress destAddress,
+      int destPort,
+      double sampleRate,
+      int maxBytes) {
+    if (sampleRate <= 0 || sampleRate > 1) {
+      throw new IllegalArgumentException("Sample rate must be in (0, 1], got " + sampleRate);
+    }
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Max bytes must be positive, got " + maxBytes);
+    }
+    id = ids.incrementAndGet();
+    this.sessionId = sessionId;
+    this.clientAddress = clientAddress;
+    this.destAddress = destAddress;
+    this.destPort = destPort;
+    this.sampleRate = sampleRate;
+    this.maxBytes = maxBytes;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public int getMaxBytes() {
+    return maxBytes;
+  }
+
+  boolean matches(
+      long sessionId, InetAddress clientAddress, InetAddress destAddress, int destPort) {
+    return (this.sessionId == null || this.sessionId == sessionId)
+        && (this.clientAddress == null || this.clientAddress.equals(clientAddress))
+        && (this.destAddress == null || this.destAddress.equals(destAddress))
+        && (this.destPort == 0 || this.destPort == destPort);
+  }
+
+  boolean sample() {
+    return sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "#%d session=%s client=%s dest=%s:%s sample=%s max_bytes=%d",
+        id,
+        sessionId == null ? "*" : sessionId,
+        clientAddress == null ? "*" : clientAddress.getHostAddress(),
+        destAddress == null ? "*" : destAddress.getHostAddress(),
+        destPort == 0 ? "*" : destPort,
+        sampleRate,
+        maxBytes);
+  }
+}
@@ -0,0 +1,11 @@
+package com.lan.proxyserver.proxy.trace;
+
+/** Where trace records go, called from the relaying threads so it must not block */
+public interface TraceSink {
+  /**
+   * @return false if the record was dropped
+   */
+  public boolean offer(TraceRecord record);
+
+  public void close();
+}
@@ -0,0 +1,308 @@
+package com.lan.proxyserver.proxy.udp;
+
+import com.lan.proxyserver.proxy.buffer.BufferPool;
+import com.lan.proxyserver.proxy.nio.ChannelHandler;
+import com.lan.proxyserver.proxy.nio.Reactor;
+import com.lan.proxyserver.proxy.socks.AddressType;
+import com.lan.proxyserver.proxy.socks.Session;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import org.jboss.logging.Logger;
+
+/**
+ * A UDP association: a channel facing the client, bound to the address the client reached the
+ * server at, and a channel facing the remote hosts. Datagrams from the client carry the SOCKS5 UDP
+ * request header, which is stripped before they are sent to their destination, datagrams from
+ * remote hosts get the header of their source prepended before they are sent to the client.
+ *
+ * <p>Once started, every channel of the association (the controlling connection included) is only
+ * touched by its reactor thread.
+ */
+public class UdpAssociation implements ChannelHandler {
+  private static final Logger logger = Logger.getLogger(UdpAssociation.class);
+  // Large enough for any datagram, plus the largest header
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_HEADER_SIZE = 4 + 16 + 2;
+
+  private final UdpRelay relay;
+  private final Reactor reactor;
+  private final Session session;
+  private final BufferPool bufferPool;
+  private final InetSocketAddress expectedClient;
+  private final DatagramChannel clientChannel;
+  private final DatagramChannel remoteChannel;
+  private SelectionKey controlKey;
+  private SelectionKey clientKey;
+  private InetSocketAddress clientAddress;
+  private boolean closed;
+
+  UdpAssociation(
+      UdpRelay relay, Reactor reactor, Session session, InetSocketAddress expectedClient)
+      throws IOException {
+    this.relay = relay;
+    this.reactor = reactor;
+    this.session = session;
+    bufferPool = session.getContext().getBufferPool();
+    if (expectedClient.getAddress().isAnyLocalAddress()) {
+      expectedClient =
+          new InetSocketAddress(
+              session.getClientSocket().getInetAddress(), expectedClient.getPort());
+    }
+    this.expectedClient = expectedClient;
+
+    clientChannel = DatagramChannel.open();
+    DatagramChannel remote = null;
+    try {
+      clientChannel.bind(new InetSocketAddress(session.getClientSocket().getLocalAddress(), 0));
+      remote = DatagramChannel.open();
+      remote.bind(null);
+    } catch (IOException e) {
+      clientChannel.close();
+      if (remote != null) {
+        remote.close();
+      }
+      throw e;
+    }
+    remoteChannel = remote;
+  }
+
+  /** Address and port the client is to send its datagrams to */
+  public InetSocketAddress getBoundAddress() throws IOException {
+    return (InetSocketAddress) clientChannel.getLocalAddress();
+  }
+
+  /** {@link Session#detach() Detaches} the session, the association then owns it */
+  public void start() {
+    session.detach();
+    relay.add(this);
+    reactor.execute(
+        () -> {
+          try {
+            // Nothing is expected past the request on the controlling connection
+            session.takeEarlyData();
+            SocketChannel control = session.getClientSocket().getChannel();
+            controlKey = reactor.register(control, SelectionKey.OP_READ, this);
+            clientKey = reactor.register(clientChannel, SelectionKey.OP_READ, this);
+            reactor.register(remoteChannel, SelectionKey.OP_READ, this);
+            logger.infof(
+                "Associate %s with %s", session.getClientSocket(), clientChannel.getLocalAddress());
+          } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            close();
+          }
+        });
+    // Datagrams are the activity of the session, the controlling connection carries nothing
+    session.setIdleTimeout(relay.getIdleTimeoutMillis());
+    session.setExpiryHandler(() -> reactor.execute(this::close));
+  }
+
+  @Override
+  public void handle(SelectionKey key) throws IOException {
+    ByteBuffer buffer = bufferPool.acquire(BUFFER_SIZE);
+    try {
+      if (key == controlKey) {
+        // The association ends with its controlling connection
+        if (((SocketChannel) key.channel()).read(buffer) < 0) {
+          close();
+        }
+      } else if (key == clientKey) {
+        fromClient(buffer);
+      } else {
+        fromRemote(buffer);
+      }
+    } finally {
+      bufferPool.release(buffer);
+    }
+  }
+
+  /** Reads a batch of datagrams, decapsulates and sends them to their destinations */
+  private void fromClient(ByteBuffer buffer) throws IOException {
+    for (int i = 0; i < relay.getReadBatch(); i++) {
+      buffer.clear();
+      InetSocketAddress source;
+      try {
+        source = (InetSocketAddress) clientChannel.receive(buffer);
+      } catch (PortUnreachableException e) {
+        // A previous datagram to the client bounced
+        logger.debugf("Client %s unreachable", clientAddress);
+        return;
+      }
+      if (source == null) {
+        return;
+      }
+      session.recordClientBytes(buffer.position());
+      relay.incClientDatagrams();
+      buffer.flip();
+      if (!acceptClient(source)) {
+        drop("unexpected client %s", source);
+        continue;
+      }
+      forward(buffer);
+    }
+  }
+
+  /**
+   * The first datagram from the expected client fixes the client address, the client channel is
+   * then connected to it so that datagrams from anywhere else are filtered out
+   */
+  private boolean acceptClient(InetSocketAddress source) throws IOException {
+    if (clientAddress != null) {
+      return true;
+    }
+    if (!source.getAddress().equals(expectedClient.getAddress())
+        || (expectedClient.getPort() != 0 && source.getPort() != expectedClient.getPort())) {
+      return false;
+    }
+    clientChannel.connect(source);
+    clientAddress = source;
+    return true;
+  }
+
+  /**
+   * Strips the header off a datagram from the client and sends its data to the destination
+   *
+   * <pre>
+   * +-----+------+------+----------+----------+----------+
+   * | RSV | FRAG | ATYP | DST.ADDR | DST.PORT |   DATA   |
+   * +-----+------+------+----------+----------+----------+
+   * |  2  |  1   |  1   | Variable |    2     | Variable |
+   * +-----+------+------+----------+----------+----------+
+   * </pre>
+   */
+  private void forward(ByteBuffer datagram) {
+    if (datagram.remaining() < 4) {
+      drop("truncated header");
+      return;
+    }
+    if (datagram.get(2) != 0) {
+      // Fragmentation is optional and not implemented
+      drop("fragment %d", datagram.get(2));
+      return;
+    }
+    AddressType addressType = AddressType.get(datagram.get(3));
+    datagram.position(4);
+    if (addressType == null) {
+      drop("unsupported address type %d", datagram.get(3));
+      return;
+    }
+
+    int addressLength =
+        addressType == AddressType.DOMAINNAME
+            ? (datagram.hasRemaining() ? datagram.get() & 0xFF : 0)
+            : addressType.getAddressLength();
+    if (addressLength == 0 || datagram.remaining() < addressLength + 2) {
+      drop("truncated header");
+      return;
+    }
+    byte[] address = new byte[addressLength];
+    datagram.get(address);
+    int port = datagram.getShort() & 0xFFFF;
+
+    if (addressType != AddressType.DOMAINNAME) {
+      try {
+        send(datagram, new InetSocketAddress(InetAddress.getByAddress(address), port));
+      } catch (IOException e) {
+        drop("%s", e);
+      }
+      return;
+    }
+
+    String host = new String(address, StandardCharsets.US_ASCII);
+    CompletableFuture<InetAddress[]> addresses =
+        session.getContext().getDnsResolver().resolve(host);
+    if (addresses.isDone() && !addresses.isCompletedExceptionally()) {
+      send(datagram, new InetSocketAddress(addresses.join()[0], port));
+      return;
+    }
+    // The datagram waits for the lookup in a copy of its own, the buffer being reused meanwhile
+    ByteBuffer copy = ByteBuffer.allocate(datagram.remaining()).put(datagram).flip();
+    addresses.whenComplete(
+        (resolved, e) ->
+            reactor.execute(
+                () -> {
+                  if (e != null) {
+                    drop("cannot resolve %s: %s", host, e);
+                  } else if (!closed) {
+                    send(copy, new InetSocketAddress(resolved[0], port));
+                  }
+                }));
+  }
+
+  private void send(ByteBuffer payload, InetSocketAddress dest) {
+    try {
+      if (remoteChannel.send(payload, dest) == 0) {
+        drop("send buffer full");
+      }
+    } catch (IOException e) {
+      drop("sending to %s failed: %s", dest, e);
+    }
+  }
+
+  /** Reads a batch of datagrams, encapsulates and sends them to the client */
+  private void fromRemote(ByteBuffer buffer) throws IOException {
+    for (int i = 0; i < relay.getReadBatch(); i++) {
+      // Room is left for the header to be prepended in place
+      buffer.clear().position(MAX_HEADER_SIZE);
+      InetSocketAddress source = (InetSocketAddress) remoteChannel.receive(buffer);
+      if (source == null) {
+        return;
+      }
+      session.recordDestinationBytes(buffer.position() - MAX_HEADER_SIZE);
+      relay.incRemoteDatagrams();
+      if (clientAddress == null) {
+        drop("no datagram from the client yet");
+        continue;
+      }
+
+      int end = buffer.position();
+      byte[] address = source.getAddress().getAddress();
+      int start = MAX_HEADER_SIZE - (4 + address.length + 2);
+      buffer.position(start);
+      buffer.put((byte) 0).put((byte) 0).put((byte) 0);
+      buffer.put(AddressType.get(source.getAddress()).get()).put(address);
+      buffer.putShort((short) source.getPort());
+      buffer.limit(end).position(start);
+      try {
+        if (clientChannel.write(buffer) == 0) {
+          drop("send buffer full");
+        }
+      } catch (PortUnreachableException e) {
+        drop("client %s unreachable", clientAddress);
+      }
+    }
+  }
+
+  private void drop(String format, Object... params) {
+    relay.incDroppedDatagrams();
+    if (logger.isDebugEnabled()) {
+      logger.debugf(
+          "Drop a datagram of association %s: %s",
+          clientChannel.socket().getLocalSocketAddress(), String.format(format, params));
+    }
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    relay.remove(this);
+    try {
+      clientChannel.close();
+      remoteChannel.close();
+    } catch (IOException e) {
+      logger.error(e.getMessage(), e);
+    }
+    session.close();
+  }
+}
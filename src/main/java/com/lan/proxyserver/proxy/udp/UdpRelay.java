@@ -0,0 +1,110 @@
+package com.lan.proxyserver.proxy.udp;
+
+import com.lan.proxyserver.proxy.nio.ReactorGroup;
+import com.lan.proxyserver.proxy.socks.Session;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Relays the datagrams of every UDP association on a small fixed set of reactor threads. An
+ * association lives as long as its controlling TCP connection, or until it stays idle for the idle
+ * timeout (enforced by the session timer), whichever ends first.
+ */
+public class UdpRelay {
+  public static final String cfgStrPrefix = "proxy_server.socks.udp";
+
+  private final ReactorGroup reactors;
+  private final long idleTimeoutMillis;
+  private final int readBatch;
+  private final Set<UdpAssociation> associations;
+
+  private final LongAdder clientDatagrams;
+  private final LongAdder remoteDatagrams;
+  private final LongAdder droppedDatagrams;
+
+  /**
+   * @param idleTimeoutMillis an association without any datagram for that long is closed, along
+   *     with its controlling connection, 0 disables it
+   * @param readBatch datagrams read from a channel at most per selector wakeup before the other
+   *     channels of the reactor get their turn
+   */
+  public UdpRelay(ReactorGroup reactors, long idleTimeoutMillis, int readBatch) {
+    this.reactors = reactors;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.readBatch = Math.max(1, readBatch);
+    associations = ConcurrentHashMap.newKeySet();
+    clientDatagrams = new LongAdder();
+    remoteDatagrams = new LongAdder();
+    droppedDatagrams = new LongAdder();
+  }
+
+  public void start() {
+    reactors.start();
+  }
+
+  public void terminate() {
+    reactors.terminate();
+  }
+
+  /**
+   * Binds the channels of a new association, which only starts relaying once {@link
+   * UdpAssociation#start()} is called
+   *
+   * @param expectedClient the address the client said it would send from, its wildcard parts
+   *     (address or port) match anything
+   */
+  public UdpAssociation associate(Session session, InetSocketAddress expectedClient)
+      throws IOException {
+    return new UdpAssociation(this, reactors.next(), session, expectedClient);
+  }
+
+  void add(UdpAssociation association) {
+    associations.add(association);
+  }
+
+  void remove(UdpAssociation association) {
+    associations.remove(association);
+  }
+
+  long getIdleTimeoutMillis() {
+    return idleTimeoutMillis;
+  }
+
+  int getReadBatch() {
+    return readBatch;
+  }
+
+  void incClientDatagrams() {
+    clientDatagrams.increment();
+  }
+
+  void incRemoteDatagrams() {
+    remoteDatagrams.increment();
+  }
+
+  void incDroppedDatagrams() {
+    droppedDatagrams.increment();
+  }
+
+  public int getAssociations() {
+    return associations.size();
+  }
+
+  /** Datagrams received from clients */
+  public long getClientDatagrams() {
+    return clientDatagrams.sum();
+  }
+
+  /** Datagrams received from remote hosts */
+  public long getRemoteDatagrams() {
+    return remoteDatagrams.sum();
+  }
+
+  /** Datagrams received but not relayed, malformed, unexpected or not fitting a send buffer */
+  public long getDroppedDatagrams() {
+    return droppedDatagrams.sum();
+  }
+}
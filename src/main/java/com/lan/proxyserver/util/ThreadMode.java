@@ -0,0 +1,45 @@
+package com.lan.proxyserver.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public enum ThreadMode {
+  /** An unbounded cached pool of platform threads */
+  PLATFORM(
+      "platform",
+      (namePrefix) -> Executors.newCachedThreadPool(new NamedThreadFactory(namePrefix))),
+  /**
+   * A new virtual thread per task, blocked tasks only cost their (heap allocated) stack and
+   * don't occupy any carrier thread
+   */
+  VIRTUAL(
+      "virtual",
+      (namePrefix) ->
+          Executors.newThreadPerTaskExecutor(
+              Thread.ofVirtual().name(namePrefix + "-", 0).factory()));
+
+  private final String name;
+  private final PoolFactory poolFactory;
+
+  private static interface PoolFactory {
+    public ExecutorService newPool(String namePrefix);
+  }
+
+  ThreadMode(String name, PoolFactory poolFactory) {
+    this.name = name;
+    this.poolFactory = poolFactory;
+  }
+
+  public static ThreadMode get(String name) {
+    for (ThreadMode tm : ThreadMode.values()) {
+      if (tm.name.equalsIgnoreCase(name)) {
+        return tm;
+      }
+    }
+    return null;
+  }
+
+  public ExecutorService newPool(String namePrefix) {
+    return poolFactory.newPool(namePrefix);
+  }
+}
@@ -52,8 +52,11 @@ public class Util {
     return sb.toString();
   }
 
-  public static InetAddress getV4InetAdress(byte[] octets) {
-    if (octets == null || octets.length != 4) {
+  /**
+   * @return null unless {@code octets} is an IPv4 (4 octets) or IPv6 (16 octets) address
+   */
+  public static InetAddress getInetAddress(byte[] octets) {
+    if (octets == null || (octets.length != 4 && octets.length != 16)) {
       return null;
     }
     try {
@@ -70,7 +73,7 @@ public class Util {
     return (octets[0] & 0xFF) << Byte.SIZE | (octets[1] & 0xFF);
   }
 
-  public static void byte2hex(byte b, StringBuffer buf) {
+  public static void byte2hex(byte b, StringBuilder buf) {
     char[] hexChars = {
       '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
     };
@@ -85,7 +88,7 @@ public class Util {
   }
 
   public static String toHexString(byte[] block, String delim) {
-    StringBuffer buf = new StringBuffer();
+    StringBuilder buf = new StringBuilder();
     int len = block.length;
     for (int i = 0; i < len; i++) {
       byte2hex(block[i], buf);
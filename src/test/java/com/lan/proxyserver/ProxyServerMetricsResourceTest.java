@@ -0,0 +1,24 @@
+package com.lan.proxyserver;
+
+import io.quarkus.test.common.http.TestHTTPEndpoint;
+import io.quarkus.test.junit.QuarkusTest;
+import io.restassured.RestAssured;
+import org.hamcrest.CoreMatchers;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+@TestHTTPEndpoint(ProxyServerMetricsResource.class)
+class ProxyServerMetricsResourceTest {
+  @Test
+  void testProxyServerMetricsEndpoint() {
+    RestAssured.when()
+        .get()
+        .then()
+        .statusCode(200)
+        .body(CoreMatchers.containsString("proxyserver_connections_accepted_total "))
+        .body(
+            CoreMatchers.containsString(
+                "proxyserver_latency_seconds_bucket{phase=\"handshake\",le=\"+Inf\"} "))
+        .body(CoreMatchers.containsString("# EOF\n"));
+  }
+}
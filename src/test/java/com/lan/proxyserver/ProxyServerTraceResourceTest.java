@@ -0,0 +1,28 @@
+package com.lan.proxyserver;
+
+import io.quarkus.test.common.http.TestHTTPEndpoint;
+import io.quarkus.test.junit.QuarkusTest;
+import io.restassured.RestAssured;
+import org.hamcrest.CoreMatchers;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+@TestHTTPEndpoint(ProxyServerTraceResource.class)
+class ProxyServerTraceResourceTest {
+  @Test
+  void testAddressesAreLiterals() {
+    // Never looked up
+    RestAssured.given().queryParam("client", "localhost").when().post().then().statusCode(400);
+    RestAssured.given().queryParam("dest", "999.0.0.1").when().post().then().statusCode(400);
+
+    RestAssured.given()
+        .queryParam("client", "10.0.0.7")
+        .queryParam("dest", "::1")
+        .when()
+        .post()
+        .then()
+        .statusCode(200)
+        .body(CoreMatchers.containsString("10.0.0.7"));
+    RestAssured.when().delete().then().statusCode(200);
+  }
+}
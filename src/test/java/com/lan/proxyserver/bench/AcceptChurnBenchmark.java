@@ -0,0 +1,99 @@
+package com.lan.proxyserver.bench;
+
+import com.lan.proxyserver.proxy.socks.SocksServer;
+import com.lan.proxyserver.util.PortUtil;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Measures how many connections per second the socks server takes in under connection churn,
+ * depending on its number of acceptors (see {@code proxy_server.socks.acceptors}): every client
+ * connects, negotiates the authentication method and disconnects, in a loop. Run it through {@code
+ * ./gradlew acceptChurnBenchmark -Pacceptors=4}, both the proxy and the clients live in this
+ * process.
+ */
+public class AcceptChurnBenchmark {
+  // Keep a strong reference, loggers are only weakly held by the log manager
+  private static final java.util.logging.Logger proxyLogger =
+      java.util.logging.Logger.getLogger("com.lan.proxyserver");
+
+  private static final int clients = Integer.getInteger("bench.clients", 64);
+  private static final int seconds = Integer.getInteger("bench.seconds", 10);
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("proxy_server.socks.5.auth.method.no_auth.enable", "true");
+    proxyLogger.setLevel(Level.WARNING);
+
+    int port = PortUtil.pickFreePort();
+    SocksServer socksServer = new SocksServer(port);
+    Thread socksServerThread = new Thread(socksServer, "SocksServer");
+    socksServerThread.start();
+    InetSocketAddress proxy = new InetSocketAddress("127.0.0.1", port);
+
+    System.out.printf(
+        "acceptors=%s, threads=%s, relay=%s%n",
+        System.getProperty("proxy_server.socks.acceptors", "1"),
+        System.getProperty("proxy_server.socks.threads", "platform"),
+        System.getProperty("proxy_server.socks.relay.engine", "blocking"));
+    try {
+      // Warm up
+      churn(proxy, TimeUnit.SECONDS.toNanos(2));
+      long connections = churn(proxy, TimeUnit.SECONDS.toNanos(seconds));
+      System.out.printf("%d clients churning connections%n", clients);
+      System.out.printf("  %10.1f connections/s%n", (double) connections / seconds);
+    } finally {
+      socksServer.stop();
+    }
+  }
+
+  private static long churn(InetSocketAddress proxy, long duration) throws Exception {
+    LongAdder connections = new LongAdder();
+    long deadline = System.nanoTime() + duration;
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<?>> futures = new ArrayList<>(clients);
+      for (int i = 0; i < clients; i++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  ByteBuffer greeting = ByteBuffer.allocate(3);
+                  ByteBuffer reply = ByteBuffer.allocate(2);
+                  while (System.nanoTime() < deadline) {
+                    try (SocketChannel client = SocketChannel.open(proxy)) {
+                      // Reset rather than linger in TIME_WAIT, which would exhaust the
+                      // ephemeral ports within seconds
+                      client.setOption(StandardSocketOptions.SO_LINGER, 0);
+                      greeting.clear().put(new byte[] {5, 1, 0}).flip();
+                      while (greeting.hasRemaining()) {
+                        client.write(greeting);
+                      }
+                      reply.clear();
+                      while (reply.hasRemaining()) {
+                        if (client.read(reply) < 0) {
+                          throw new IOException("Proxy closed the connection");
+                        }
+                      }
+                    }
+                    connections.increment();
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+    return connections.sum();
+  }
+}
@@ -0,0 +1,87 @@
+package com.lan.proxyserver.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A single threaded echo destination, so that it doesn't weigh on the threads under test. Shared by
+ * the benchmarks of this package and the JMH ones.
+ */
+public class EchoDestination extends Thread {
+  private final int bufferSize;
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+
+  /**
+   * @param bufferSize of every connection, octets echoed per write at most
+   */
+  public EchoDestination(int bufferSize) throws IOException {
+    super("EchoDestination");
+    setDaemon(true);
+    this.bufferSize = bufferSize;
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (selector.isOpen()) {
+        selector.select();
+        if (!selector.isOpen()) {
+          return;
+        }
+        for (SelectionKey key : selector.selectedKeys()) {
+          try {
+            handle(key);
+          } catch (IOException e) {
+            key.channel().close();
+          }
+        }
+        selector.selectedKeys().clear();
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      // Terminated
+    }
+  }
+
+  private void handle(SelectionKey key) throws IOException {
+    if (key.isAcceptable()) {
+      SocketChannel channel = serverChannel.accept();
+      if (channel != null) {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(bufferSize));
+      }
+      return;
+    }
+    SocketChannel channel = (SocketChannel) key.channel();
+    ByteBuffer buffer = (ByteBuffer) key.attachment();
+    if (key.isReadable() && channel.read(buffer) < 0) {
+      channel.close();
+      return;
+    }
+    buffer.flip();
+    channel.write(buffer);
+    buffer.compact();
+    key.interestOps(buffer.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+  }
+
+  public void terminate() throws IOException {
+    serverChannel.close();
+    selector.close();
+  }
+}
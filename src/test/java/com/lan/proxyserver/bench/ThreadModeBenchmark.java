@@ -0,0 +1,203 @@
+package com.lan.proxyserver.bench;
+
+import com.lan.proxyserver.proxy.socks.SocksServer;
+import com.lan.proxyserver.util.PortUtil;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Compares the cost of the client connection handler threads (see {@code
+ * proxy_server.socks.threads}): memory held per established tunnel, then echo throughput over a
+ * number of concurrent tunnels. Run it through {@code ./gradlew threadModeBenchmark
+ * -Pthreads=virtual} (or {@code platform}), both the proxy and the clients live in this process.
+ */
+public class ThreadModeBenchmark {
+  // Keep a strong reference, loggers are only weakly held by the log manager
+  private static final java.util.logging.Logger proxyLogger =
+      java.util.logging.Logger.getLogger("com.lan.proxyserver");
+
+  private static final int tunnels = Integer.getInteger("bench.tunnels", 10_000);
+  private static final int concurrency = Integer.getInteger("bench.concurrency", 256);
+  private static final int chunkSize = Integer.getInteger("bench.chunk", 16 * 1024);
+  private static final int seconds = Integer.getInteger("bench.seconds", 10);
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("proxy_server.socks.5.auth.method.no_auth.enable", "true");
+    proxyLogger.setLevel(Level.WARNING);
+
+    EchoDestination dest = new EchoDestination(chunkSize);
+    dest.start();
+    int port = PortUtil.pickFreePort();
+    SocksServer socksServer = new SocksServer(port);
+    Thread socksServerThread = new Thread(socksServer, "SocksServer");
+    socksServerThread.start();
+    InetSocketAddress proxy = new InetSocketAddress("127.0.0.1", port);
+
+    System.out.printf(
+        "threads=%s, relay=%s%n",
+        System.getProperty("proxy_server.socks.threads", "platform"),
+        System.getProperty("proxy_server.socks.relay.engine", "blocking"));
+    try {
+      measureFootprint(proxy, dest.getPort());
+      measureThroughput(proxy, dest.getPort());
+    } finally {
+      socksServer.stop();
+      dest.terminate();
+    }
+  }
+
+  private static void measureFootprint(InetSocketAddress proxy, int destPort) throws Exception {
+    Footprint before = Footprint.take();
+    List<SocketChannel> clients = new ArrayList<>(tunnels);
+    long start = System.nanoTime();
+    try {
+      for (int i = 0; i < tunnels; i++) {
+        clients.add(connect(proxy, destPort));
+      }
+      long elapsed = System.nanoTime() - start;
+      // Let the relay tasks reach their blocking reads before sampling
+      Thread.sleep(2000);
+      Footprint after = Footprint.take();
+
+      System.out.printf(
+          "%d tunnels established in %d ms%n", tunnels, TimeUnit.NANOSECONDS.toMillis(elapsed));
+      System.out.printf(
+          "  heap   %8.1f KiB/tunnel%n", (after.heap - before.heap) / 1024.0 / tunnels);
+      System.out.printf("  rss    %8.1f KiB/tunnel%n", (after.rss - before.rss) / 1024.0 / tunnels);
+      System.out.printf("  platform threads %d -> %d%n", before.threads, after.threads);
+    } finally {
+      for (SocketChannel client : clients) {
+        client.close();
+      }
+    }
+  }
+
+  private static void measureThroughput(InetSocketAddress proxy, int destPort) throws Exception {
+    LongAdder bytes = new LongAdder();
+    LongAdder roundTrips = new LongAdder();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+    // Client side threads are virtual whatever the mode under test is, so that only the proxy
+    // side differs between two runs
+    try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<?>> futures = new ArrayList<>(concurrency);
+      for (int i = 0; i < concurrency; i++) {
+        futures.add(
+            clients.submit(
+                () -> {
+                  try (SocketChannel client = connect(proxy, destPort)) {
+                    ByteBuffer out = ByteBuffer.allocate(chunkSize);
+                    ByteBuffer in = ByteBuffer.allocate(chunkSize);
+                    while (System.nanoTime() < deadline) {
+                      out.clear();
+                      while (out.hasRemaining()) {
+                        client.write(out);
+                      }
+                      in.clear();
+                      while (in.hasRemaining()) {
+                        if (client.read(in) < 0) {
+                          throw new IOException("Tunnel closed while echoing");
+                        }
+                      }
+                      bytes.add(chunkSize);
+                      roundTrips.increment();
+                    }
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+
+    System.out.printf("%d concurrent tunnels, %d byte(s) chunks%n", concurrency, chunkSize);
+    System.out.printf("  %8.1f MiB/s%n", bytes.sum() / 1024.0 / 1024.0 / seconds);
+    System.out.printf("  %8.1f round trips/s%n", (double) roundTrips.sum() / seconds);
+  }
+
+  private static SocketChannel connect(InetSocketAddress proxy, int destPort) throws IOException {
+    SocketChannel client = SocketChannel.open(proxy);
+    try {
+      write(client, new byte[] {5, 1, 0});
+      expect(client, 2);
+      write(
+          client,
+          new byte[] {5, 1, 0, 1, 127, 0, 0, 1, (byte) (destPort >> Byte.SIZE), (byte) destPort});
+      byte[] reply = expect(client, 10);
+      if (reply[1] != 0) {
+        throw new IOException("Proxy replied " + Arrays.toString(reply));
+      }
+    } catch (IOException e) {
+      client.close();
+      throw e;
+    }
+    return client;
+  }
+
+  private static void write(SocketChannel channel, byte[] data) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static byte[] expect(SocketChannel channel, int len) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(len);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new IOException("Proxy closed the connection");
+      }
+    }
+    return buffer.array();
+  }
+
+  private static class Footprint {
+    private final long heap;
+    private final long rss;
+    private final int threads;
+
+    private Footprint(long heap, long rss, int threads) {
+      this.heap = heap;
+      this.rss = rss;
+      this.threads = threads;
+    }
+
+    static Footprint take() throws IOException {
+      System.gc();
+      Runtime runtime = Runtime.getRuntime();
+      return new Footprint(
+          runtime.totalMemory() - runtime.freeMemory(),
+          rss(),
+          ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    /** Resident set size in bytes, 0 where /proc isn't available */
+    private static long rss() throws IOException {
+      Path status = Path.of("/proc/self/status");
+      if (!Files.exists(status)) {
+        return 0;
+      }
+      for (String line : Files.readAllLines(status)) {
+        if (line.startsWith("VmRSS:")) {
+          return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+        }
+      }
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package com.lan.proxyserver.proxy.admission;
+
+import com.lan.proxyserver.proxy.admission.AdmissionController.Admission;
+import io.quarkus.test.junit.QuarkusTest;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class AdmissionControllerTest {
+  private static final InetAddress source = InetAddress.getLoopbackAddress();
+  private static final InetAddress otherSource = new InetSocketAddress("10.0.0.1", 0).getAddress();
+
+  @Test
+  void testReject() throws Exception {
+    AdmissionController ac = new AdmissionController(OverloadPolicy.REJECT, 0, 1, 0, 1, 0);
+
+    Assertions.assertEquals(Admission.ADMITTED, ac.admitHandshake(source));
+    Assertions.assertEquals(Admission.REFUSED, ac.admitHandshake(otherSource));
+    Assertions.assertTrue(ac.awaitAccept(50));
+    Assertions.assertTrue(ac.admitSession(source));
+    ac.releaseHandshake(source);
+    Assertions.assertEquals(Admission.ADMITTED, ac.admitHandshake(otherSource));
+    Assertions.assertFalse(ac.admitSession(otherSource));
+    ac.releaseSession(source);
+    Assertions.assertTrue(ac.admitSession(otherSource));
+
+    Assertions.assertEquals(1, ac.getRejectedHandshakes());
+    Assertions.assertEquals(1, ac.getRejectedSessions());
+    Assertions.assertEquals(0, ac.getWaits());
+    Assertions.assertEquals(1, ac.getHandshakes());
+    Assertions.assertEquals(1, ac.getSessions());
+  }
+
+  @Test
+  void testSourceLimitRejectsRightAway() throws Exception {
+    AdmissionController ac = new AdmissionController(OverloadPolicy.BLOCK, 0, 0, 2, 0, 0);
+
+    Assertions.assertEquals(Admission.ADMITTED, ac.admitHandshake(source));
+    Assertions.assertEquals(Admission.ADMITTED, ac.admitHandshake(source));
+    Assertions.assertEquals(Admission.REFUSED, ac.admitHandshake(source));
+    Assertions.assertEquals(Admission.ADMITTED, ac.admitHandshake(otherSource));
+    ac.releaseHandshake(source);
+    Assertions.assertEquals(Admission.ADMITTED, ac.admitHandshake(source));
+
+    Assertions.assertEquals(1, ac.getSourceRejections());
+    Assertions.assertEquals(0, ac.getWaits());
+  }
+
+  @Test
+  void testQueue() throws Exception {
+    AdmissionController ac = new AdmissionController(OverloadPolicy.QUEUE, 200, 0, 0, 1, 0);
+    Assertions.assertTrue(ac.admitSession(source));
+
+    long start = System.nanoTime();
+    Assertions.assertFalse(ac.admitSession(otherSource));
+    Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+
+    CompletableFuture<Boolean> queued =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return ac.admitSession(otherSource);
+              } catch (InterruptedException e) {
+                return false;
+              }
+            });
+    Thread.sleep(50);
+    ac.releaseSession(source);
+    Assertions.assertTrue(queued.get(1, TimeUnit.SECONDS));
+
+    Assertions.assertEquals(2, ac.getWaits());
+    Assertions.assertEquals(1, ac.getRejectedSessions());
+  }
+
+  @Test
+  void testQueuedHandshakes() throws Exception {
+    AdmissionController ac = new AdmissionController(OverloadPolicy.QUEUE, 1000, 1, 0, 0, 0);
+    Assertions.assertEquals(Admission.ADMITTED, ac.admitHandshake(source));
+
+    // The acceptor doesn't wait, up to as many connections as handshakes are queued
+    Assertions.assertEquals(Admission.QUEUED, ac.admitHandshake(otherSource));
+    Assertions.assertEquals(Admission.REFUSED, ac.admitHandshake(otherSource));
+    Assertions.assertEquals(1, ac.getQueuedHandshakes());
+    CompletableFuture<Boolean> queued =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return ac.awaitHandshake(otherSource);
+              } catch (InterruptedException e) {
+                return false;
+              }
+            });
+    Thread.sleep(50);
+    ac.releaseHandshake(source);
+    Assertions.assertTrue(queued.get(1, TimeUnit.SECONDS));
+
+    Assertions.assertEquals(0, ac.getQueuedHandshakes());
+    Assertions.assertEquals(1, ac.getHandshakes());
+    Assertions.assertEquals(1, ac.getWaits());
+    Assertions.assertEquals(1, ac.getRejectedHandshakes());
+  }
+
+  @Test
+  void testBlockStallsAcceptors() throws Exception {
+    AdmissionController ac = new AdmissionController(OverloadPolicy.BLOCK, 0, 1, 0, 0, 0);
+    Assertions.assertEquals(Admission.ADMITTED, ac.admitHandshake(source));
+
+    Assertions.assertFalse(ac.awaitAccept(50));
+    Assertions.assertEquals(1, ac.getAcceptStalls());
+
+    CompletableFuture.runAsync(
+        () -> {
+          try {
+            Thread.sleep(50);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          ac.releaseHandshake(source);
+        });
+    Assertions.assertTrue(ac.awaitAccept(1000));
+  }
+
+  @Test
+  void testBlockOnVirtualThreads() throws Exception {
+    AdmissionController ac = new AdmissionController(OverloadPolicy.BLOCK, 0, 0, 0, 1, 0);
+    Assertions.assertTrue(ac.admitSession(source));
+
+    // More waiters than carriers may ever be, so that waiters pinning their carrier would leave
+    // none to the virtual thread releasing the slot
+    AtomicInteger admitted = new AtomicInteger();
+    List<Thread> waiters = new ArrayList<>();
+    for (int i = 0; i < 512; i++) {
+      waiters.add(
+          Thread.ofVirtual()
+              .start(
+                  () -> {
+                    try {
+                      if (ac.admitSession(otherSource)) {
+                        admitted.incrementAndGet();
+                        ac.releaseSession(otherSource);
+                      }
+                    } catch (InterruptedException e) {
+                      Thread.currentThread().interrupt();
+                    }
+                  }));
+    }
+    Thread.sleep(100);
+    Thread.ofVirtual().start(() -> ac.releaseSession(source));
+    for (Thread waiter : waiters) {
+      Assertions.assertTrue(waiter.join(Duration.ofSeconds(10)));
+    }
+    Assertions.assertEquals(512, admitted.get());
+    Assertions.assertEquals(0, ac.getSessions());
+  }
+}
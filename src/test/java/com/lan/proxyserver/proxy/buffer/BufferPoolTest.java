@@ -0,0 +1,70 @@
+package com.lan.proxyserver.proxy.buffer;
+
+import io.quarkus.test.junit.QuarkusTest;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class BufferPoolTest {
+  @Test
+  void testSizeClasses() {
+    BufferPool bufferPool = new BufferPool(1024 * 1024, 4);
+
+    Assertions.assertEquals(512, bufferPool.acquire(1).capacity());
+    Assertions.assertEquals(4096, bufferPool.acquire(4096).capacity());
+    Assertions.assertEquals(8192, bufferPool.acquire(4097).capacity());
+    ByteBuffer oversized = bufferPool.acquire(100_000);
+    Assertions.assertEquals(100_000, oversized.capacity());
+    Assertions.assertFalse(oversized.isDirect());
+  }
+
+  @Test
+  void testReleasedBufferIsReused() {
+    BufferPool bufferPool = new BufferPool(1024 * 1024, 4);
+
+    ByteBuffer buffer = bufferPool.acquire(4096);
+    Assertions.assertTrue(buffer.isDirect());
+    Assertions.assertEquals(1, bufferPool.getMisses());
+    Assertions.assertEquals(4096, bufferPool.getOutstandingBytes());
+
+    buffer.put((byte) 1);
+    bufferPool.release(buffer);
+    Assertions.assertEquals(0, bufferPool.getOutstandingBytes());
+
+    ByteBuffer reused = bufferPool.acquire(4096);
+    Assertions.assertSame(buffer, reused);
+    Assertions.assertEquals(0, reused.position());
+    Assertions.assertEquals(reused.capacity(), reused.limit());
+    Assertions.assertEquals(1, bufferPool.getHits());
+  }
+
+  @Test
+  void testReleasedBufferIsSharedAcrossThreads() throws InterruptedException {
+    BufferPool bufferPool = new BufferPool(1024 * 1024, 0);
+
+    ByteBuffer buffer = bufferPool.acquire(4096);
+    Thread releaser = new Thread(() -> bufferPool.release(buffer));
+    releaser.start();
+    releaser.join();
+
+    Assertions.assertSame(buffer, bufferPool.acquire(4096));
+  }
+
+  @Test
+  void testCeiling() {
+    // Room for a single slab
+    BufferPool bufferPool = new BufferPool(256 * 1024, 4);
+
+    for (int i = 0; i < 64; i++) {
+      Assertions.assertTrue(bufferPool.acquire(4096).isDirect());
+    }
+    ByteBuffer unpooled = bufferPool.acquire(4096);
+    Assertions.assertFalse(unpooled.isDirect());
+    Assertions.assertEquals(256 * 1024, bufferPool.getReservedBytes());
+    Assertions.assertEquals(65 * 4096, bufferPool.getOutstandingBytes());
+
+    bufferPool.release(unpooled);
+    Assertions.assertEquals(64 * 4096, bufferPool.getOutstandingBytes());
+  }
+}
@@ -0,0 +1,69 @@
+package com.lan.proxyserver.proxy.connect;
+
+import com.lan.proxyserver.util.PortUtil;
+import io.quarkus.test.junit.QuarkusTest;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class BindAcceptorTest {
+  private static final InetAddress loopback = InetAddress.getLoopbackAddress();
+
+  @Test
+  void testPortRange() throws IOException {
+    int port = PortUtil.pickFreePort();
+    BindAcceptor acceptor = new BindAcceptor(port + "-" + port, 1000);
+
+    try (BindAcceptor.Listener listener = acceptor.open(loopback)) {
+      Assertions.assertEquals(port, listener.getLocalAddress().getPort());
+      Assertions.assertEquals(1, acceptor.getListeners());
+
+      Assertions.assertThrows(BindException.class, () -> acceptor.open(loopback));
+      Assertions.assertEquals(1, acceptor.getExhaustions());
+    }
+    Assertions.assertEquals(0, acceptor.getListeners());
+    acceptor.open(loopback).close();
+    Assertions.assertEquals(2, acceptor.getBinds());
+  }
+
+  @Test
+  void testInvalidPortRangeFallsBackToEphemeralPorts() throws IOException {
+    BindAcceptor acceptor = new BindAcceptor("2000-1000", 1000);
+
+    try (BindAcceptor.Listener listener = acceptor.open(loopback)) {
+      Assertions.assertNotEquals(0, listener.getLocalAddress().getPort());
+    }
+  }
+
+  @Test
+  void testAccept() throws IOException {
+    BindAcceptor acceptor = new BindAcceptor("", 1000);
+
+    try (BindAcceptor.Listener listener = acceptor.open(loopback);
+        Socket dest = new Socket(loopback, listener.getLocalAddress().getPort());
+        Socket accepted = listener.accept(loopback)) {
+      Assertions.assertEquals(dest.getLocalSocketAddress(), accepted.getRemoteSocketAddress());
+      Assertions.assertNotNull(accepted.getChannel());
+      Assertions.assertEquals(1, acceptor.getAccepts());
+    }
+  }
+
+  @Test
+  void testUnexpectedHostIsRefused() throws IOException {
+    BindAcceptor acceptor = new BindAcceptor("", 200);
+
+    try (BindAcceptor.Listener listener = acceptor.open(loopback);
+        Socket dest = new Socket(loopback, listener.getLocalAddress().getPort())) {
+      Assertions.assertThrows(
+          SocketTimeoutException.class,
+          () -> listener.accept(InetAddress.getByName("192.0.2.1")));
+      Assertions.assertEquals(-1, dest.getInputStream().read());
+      Assertions.assertEquals(1, acceptor.getTimeouts());
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package com.lan.proxyserver.proxy.connect;
+
+import com.lan.proxyserver.proxy.connect.DestinationConnector.ConnectFailedException;
+import com.lan.proxyserver.proxy.connect.DestinationConnector.Failure;
+import io.quarkus.test.junit.QuarkusTest;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class DestinationConnectorTest {
+  private static final long NEGATIVE_TTL_MILLIS = 1000;
+  private static final InetAddress[] addresses = {InetAddress.getLoopbackAddress()};
+
+  private final AtomicLong now = new AtomicLong();
+  private final AtomicInteger dials = new AtomicInteger();
+
+  private DestinationConnector newConnector(
+      DestinationConnector.Dialer dialer, int maxPerDestination) {
+    return new DestinationConnector(
+        (addresses, port) -> {
+          dials.incrementAndGet();
+          return dialer.dial(addresses, port);
+        },
+        maxPerDestination,
+        NEGATIVE_TTL_MILLIS,
+        16,
+        now::get);
+  }
+
+  private static Failure connectFailure(DestinationConnector connector, String host) {
+    return Assertions.assertThrows(
+            ConnectFailedException.class, () -> connector.connect(host, addresses, 80))
+        .getFailure();
+  }
+
+  @Test
+  void testClassification() {
+    Assertions.assertEquals(
+        Failure.CONNECTION_REFUSED, Failure.classify(new ConnectException("Connection refused")));
+    Assertions.assertEquals(
+        Failure.TIMED_OUT, Failure.classify(new ConnectException("Connection timed out")));
+    Assertions.assertEquals(
+        Failure.HOST_UNREACHABLE, Failure.classify(new NoRouteToHostException("No route to host")));
+    Assertions.assertEquals(
+        Failure.NETWORK_UNREACHABLE,
+        Failure.classify(new SocketException("Network is unreachable")));
+    // Not about the destination, e.g. out of file descriptors
+    Assertions.assertEquals(
+        Failure.OTHER, Failure.classify(new SocketException("Too many open files")));
+    Assertions.assertEquals(Failure.TIMED_OUT, Failure.classify(new SocketTimeoutException()));
+    Assertions.assertEquals(Failure.OTHER, Failure.classify(new IOException()));
+  }
+
+  @Test
+  void testNegativeCache() {
+    DestinationConnector connector =
+        newConnector(
+            (addresses, port) -> {
+              throw new ConnectException("Connection refused");
+            },
+            0);
+
+    Assertions.assertEquals(Failure.CONNECTION_REFUSED, connectFailure(connector, "example.com"));
+    Assertions.assertEquals(Failure.CONNECTION_REFUSED, connectFailure(connector, "example.com"));
+    Assertions.assertEquals(1, dials.get());
+    Assertions.assertEquals(1, connector.getNegativeCacheHits());
+    Assertions.assertEquals(2, connector.getFailures(Failure.CONNECTION_REFUSED));
+
+    // Another port is another destination
+    Assertions.assertThrows(
+        ConnectFailedException.class, () -> connector.connect("example.com", addresses, 443));
+    Assertions.assertEquals(2, dials.get());
+
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(NEGATIVE_TTL_MILLIS));
+    connectFailure(connector, "example.com");
+    Assertions.assertEquals(3, dials.get());
+  }
+
+  @Test
+  void testUnclassifiedFailureIsNotCached() {
+    DestinationConnector connector =
+        newConnector(
+            (addresses, port) -> {
+              throw new IOException();
+            },
+            0);
+
+    Assertions.assertEquals(Failure.OTHER, connectFailure(connector, "example.com"));
+    Assertions.assertEquals(Failure.OTHER, connectFailure(connector, "example.com"));
+    Assertions.assertEquals(2, dials.get());
+  }
+
+  @Test
+  void testConcurrencyCap() throws Exception {
+    CountDownLatch dialing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    DestinationConnector connector =
+        newConnector(
+            (addresses, port) -> {
+              dialing.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                throw new IOException(e);
+              }
+              return SocketChannel.open();
+            },
+            1);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<SocketChannel> first =
+          executor.submit(() -> connector.connect("example.com", addresses, 80));
+      Assertions.assertTrue(dialing.await(1, TimeUnit.SECONDS));
+
+      Assertions.assertEquals(Failure.OVERLOADED, connectFailure(connector, "example.com"));
+      // Other destinations aren't affected
+      release.countDown();
+      connector.connect("example.org", addresses, 80).close();
+      first.get(1, TimeUnit.SECONDS).close();
+
+      // The slot is given back once connected
+      connector.connect("example.com", addresses, 80).close();
+      Assertions.assertEquals(3, connector.getSuccesses());
+      Assertions.assertEquals(4, connector.getAttempts());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
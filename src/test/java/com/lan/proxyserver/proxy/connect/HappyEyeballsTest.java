@@ -0,0 +1,55 @@
+package com.lan.proxyserver.proxy.connect;
+
+import com.lan.proxyserver.util.PortUtil;
+import io.quarkus.test.junit.QuarkusTest;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class HappyEyeballsTest {
+  private static final InetAddress v4 = address("127.0.0.1");
+  private static final InetAddress v4Bis = address("127.0.0.2");
+  private static final InetAddress v6 = address("::1");
+
+  private static InetAddress address(String literal) {
+    try {
+      return InetAddress.getByName(literal);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Test
+  void testSort() {
+    Assertions.assertEquals(
+        List.of(v6, v4, v4Bis), HappyEyeballs.sort(new InetAddress[] {v4, v4Bis, v6}));
+  }
+
+  @Test
+  void testFallBackToNextFamily() throws IOException {
+    // Only listening on IPv4, the IPv6 attempt is refused
+    try (ServerSocket server = new ServerSocket()) {
+      server.bind(new InetSocketAddress(v4, 0));
+      try (SocketChannel channel =
+          HappyEyeballs.connect(new InetAddress[] {v4, v6}, server.getLocalPort(), 10_000, 5000)) {
+        Assertions.assertTrue(channel.isBlocking());
+        Assertions.assertEquals(
+            new InetSocketAddress(v4, server.getLocalPort()), channel.getRemoteAddress());
+      }
+    }
+  }
+
+  @Test
+  void testAllRefused() {
+    int port = PortUtil.pickFreePort();
+    Assertions.assertThrows(
+        IOException.class,
+        () -> HappyEyeballs.connect(new InetAddress[] {v4, v6}, port, 100, 5000).close());
+  }
+}
@@ -0,0 +1,171 @@
+package com.lan.proxyserver.proxy.dns;
+
+import io.quarkus.test.junit.QuarkusTest;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class DnsResolverTest {
+  private static final long TTL_MILLIS = 1000;
+  private static final long NEGATIVE_TTL_MILLIS = 100;
+  private static final long TIMEOUT_MILLIS = 200;
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final AtomicLong now = new AtomicLong();
+  private final AtomicInteger lookups = new AtomicInteger();
+  private volatile CountDownLatch release = new CountDownLatch(0);
+
+  private DnsResolver newResolver(int maxEntries) {
+    return new DnsResolver(
+        host -> {
+          lookups.incrementAndGet();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new UnknownHostException(host);
+          }
+          if (host.startsWith("unknown")) {
+            throw new UnknownHostException(host);
+          }
+          return new InetAddress[] {
+            InetAddress.getByAddress(host, new byte[] {10, 0, 0, (byte) lookups.get()})
+          };
+        },
+        executor,
+        TTL_MILLIS,
+        NEGATIVE_TTL_MILLIS,
+        20,
+        maxEntries,
+        TIMEOUT_MILLIS,
+        now::get);
+  }
+
+  @AfterEach
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private void elapse(long millis) {
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  private static InetAddress get(CompletableFuture<InetAddress[]> future) throws Exception {
+    return future.get(1, TimeUnit.SECONDS)[0];
+  }
+
+  @Test
+  void testPositiveCache() throws Exception {
+    DnsResolver resolver = newResolver(16);
+
+    InetAddress address = get(resolver.resolve("example.com"));
+    Assertions.assertSame(address, get(resolver.resolve("EXAMPLE.com")));
+    Assertions.assertEquals(1, lookups.get());
+    Assertions.assertEquals(1, resolver.getHits());
+
+    elapse(TTL_MILLIS);
+    Assertions.assertNotSame(address, get(resolver.resolve("example.com")));
+    Assertions.assertEquals(2, lookups.get());
+  }
+
+  @Test
+  void testNegativeCache() throws Exception {
+    DnsResolver resolver = newResolver(16);
+
+    ExecutionException e =
+        Assertions.assertThrows(
+            ExecutionException.class, () -> get(resolver.resolve("unknown.example.com")));
+    Assertions.assertInstanceOf(UnknownHostException.class, e.getCause());
+    Assertions.assertThrows(
+        ExecutionException.class, () -> get(resolver.resolve("unknown.example.com")));
+    Assertions.assertEquals(1, lookups.get());
+
+    elapse(NEGATIVE_TTL_MILLIS);
+    Assertions.assertThrows(
+        ExecutionException.class, () -> get(resolver.resolve("unknown.example.com")));
+    Assertions.assertEquals(2, lookups.get());
+  }
+
+  @Test
+  void testCoalescing() throws Exception {
+    DnsResolver resolver = newResolver(16);
+    release = new CountDownLatch(1);
+
+    CompletableFuture<InetAddress[]> first = resolver.resolve("example.com");
+    CompletableFuture<InetAddress[]> second = resolver.resolve("example.com");
+    Assertions.assertEquals(1, resolver.getCoalesced());
+
+    release.countDown();
+    Assertions.assertSame(get(first), get(second));
+    Assertions.assertEquals(1, lookups.get());
+  }
+
+  @Test
+  void testTimeout() throws Exception {
+    DnsResolver resolver = newResolver(16);
+    release = new CountDownLatch(1);
+
+    CompletableFuture<InetAddress[]> timedOut = resolver.resolve("example.com");
+    ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> get(timedOut));
+    Assertions.assertInstanceOf(TimeoutException.class, e.getCause());
+    // The lookup went on regardless, its result being cached for the next requests
+    release.countDown();
+    InetAddress address = get(resolver.resolve("example.com"));
+    Assertions.assertSame(address, get(resolver.resolve("example.com")));
+    Assertions.assertEquals(1, lookups.get());
+  }
+
+  @Test
+  void testLruEviction() throws Exception {
+    DnsResolver resolver = newResolver(2);
+
+    get(resolver.resolve("a.example.com"));
+    get(resolver.resolve("b.example.com"));
+    get(resolver.resolve("a.example.com"));
+    get(resolver.resolve("c.example.com"));
+    Assertions.assertEquals(2, resolver.size());
+    Assertions.assertEquals(3, lookups.get());
+
+    // b was the least recently used
+    get(resolver.resolve("a.example.com"));
+    Assertions.assertEquals(3, lookups.get());
+    get(resolver.resolve("b.example.com"));
+    Assertions.assertEquals(4, lookups.get());
+  }
+
+  @Test
+  void testRefreshAhead() throws Exception {
+    DnsResolver resolver = newResolver(16);
+
+    InetAddress address = get(resolver.resolve("example.com"));
+    elapse(TTL_MILLIS / 2);
+    Assertions.assertSame(address, get(resolver.resolve("example.com")));
+    Assertions.assertEquals(0, resolver.getRefreshes());
+
+    // Within the last 20% of the TTL, the cached address is served while refreshing
+    elapse(TTL_MILLIS * 4 / 10);
+    Assertions.assertSame(address, get(resolver.resolve("example.com")));
+    Assertions.assertEquals(1, resolver.getRefreshes());
+    for (int i = 0; i < 100 && lookups.get() < 2; i++) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(50);
+
+    // The refreshed entry outlives the original TTL
+    elapse(TTL_MILLIS / 2);
+    InetAddress refreshed = get(resolver.resolve("example.com"));
+    Assertions.assertNotSame(address, refreshed);
+    Assertions.assertEquals(2, lookups.get());
+  }
+}
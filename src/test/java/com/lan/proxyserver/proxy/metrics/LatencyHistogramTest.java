@@ -0,0 +1,76 @@
+package com.lan.proxyserver.proxy.metrics;
+
+import io.quarkus.test.junit.QuarkusTest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class LatencyHistogramTest {
+  @Test
+  void testBuckets() {
+    for (long value : new long[] {0, 1, 15, 16, 17, 31, 32, 1000, 123_456_789, 1L << 35}) {
+      int index = LatencyHistogram.index(value);
+      Assertions.assertTrue(value <= LatencyHistogram.highestValue(index), "value " + value);
+      if (index > 0) {
+        Assertions.assertTrue(value > LatencyHistogram.highestValue(index - 1), "value " + value);
+      }
+      // Relative error bounded by the sub-buckets
+      Assertions.assertTrue(LatencyHistogram.highestValue(index) - value <= value / 16);
+    }
+    Assertions.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+  }
+
+  @Test
+  void testQuantiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+    Assertions.assertEquals(1000, snapshot.getCount());
+    Assertions.assertEquals(500, snapshot.getMean());
+    Assertions.assertEquals(1000, snapshot.getMax());
+    Assertions.assertEquals(500, snapshot.getQuantile(0.5), 500 / 16);
+    Assertions.assertEquals(990, snapshot.getQuantile(0.99), 990 / 16);
+    Assertions.assertEquals(1000, snapshot.getQuantile(0.999));
+    Assertions.assertEquals(0, new LatencyHistogram().snapshot().getQuantile(0.5));
+  }
+
+  @Test
+  void testMerge() {
+    LatencyHistogram fast = new LatencyHistogram();
+    LatencyHistogram slow = new LatencyHistogram();
+    for (int i = 0; i < 99; i++) {
+      fast.record(10);
+    }
+    slow.record(100_000);
+
+    LatencyHistogram.Snapshot merged = fast.snapshot().merge(slow.snapshot());
+    Assertions.assertEquals(100, merged.getCount());
+    Assertions.assertEquals(10, merged.getQuantile(0.99));
+    Assertions.assertEquals(100_000, merged.getQuantile(0.999));
+    Assertions.assertEquals(100_000, merged.getMax());
+  }
+
+  @Test
+  void testConcurrentRecording() throws InterruptedException {
+    LatencyHistogram histogram = new LatencyHistogram();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (int t = 0; t < 4; t++) {
+      executor.execute(
+          () -> {
+            for (int i = 0; i < 100_000; i++) {
+              histogram.record(i % 1000);
+            }
+          });
+    }
+    executor.shutdown();
+    Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    Assertions.assertEquals(400_000, histogram.snapshot().getCount());
+  }
+}
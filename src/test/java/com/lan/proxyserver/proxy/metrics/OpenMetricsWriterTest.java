@@ -0,0 +1,49 @@
+package com.lan.proxyserver.proxy.metrics;
+
+import io.quarkus.test.junit.QuarkusTest;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class OpenMetricsWriterTest {
+  @Test
+  void testSamples() {
+    StringBuilder sb = new StringBuilder();
+    new OpenMetricsWriter(sb)
+        .single("a", OpenMetricsWriter.Type.COUNTER, null, "A.", "a_total", 3)
+        .family("b_bytes", OpenMetricsWriter.Type.GAUGE, "bytes", "B.")
+        .sample("b_bytes", "l", "x\"y\\z\n", 4)
+        .eof();
+    Assertions.assertEquals(
+        "# TYPE a counter\n"
+            + "# HELP a A.\n"
+            + "a_total 3\n"
+            + "# TYPE b_bytes gauge\n"
+            + "# UNIT b_bytes bytes\n"
+            + "# HELP b_bytes B.\n"
+            + "b_bytes{l=\"x\\\"y\\\\z\\n\"} 4\n"
+            + "# EOF\n",
+        sb.toString());
+  }
+
+  @Test
+  void testHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(15);
+    histogram.record(16);
+    histogram.record(1_000_000);
+    histogram.record(Long.MAX_VALUE / 2);
+    StringBuilder sb = new StringBuilder();
+    new OpenMetricsWriter(sb).histogram("h_seconds", "p", "x", histogram.snapshot());
+    String text = sb.toString();
+
+    // Cumulative counts of the values below every bound
+    Assertions.assertTrue(text.contains("h_seconds_bucket{p=\"x\",le=\"0.000016\"} 1\n"), text);
+    Assertions.assertTrue(text.contains("h_seconds_bucket{p=\"x\",le=\"0.000064\"} 2\n"), text);
+    Assertions.assertTrue(text.contains("h_seconds_bucket{p=\"x\",le=\"0.262144\"} 2\n"), text);
+    Assertions.assertTrue(text.contains("h_seconds_bucket{p=\"x\",le=\"1.048576\"} 3\n"), text);
+    Assertions.assertTrue(text.contains("h_seconds_bucket{p=\"x\",le=\"17179.869184\"} 3\n"), text);
+    Assertions.assertTrue(text.contains("h_seconds_bucket{p=\"x\",le=\"+Inf\"} 4\n"), text);
+    Assertions.assertTrue(text.contains("h_seconds_count{p=\"x\"} 4\n"), text);
+  }
+}
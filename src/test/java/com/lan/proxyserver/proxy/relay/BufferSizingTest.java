@@ -0,0 +1,72 @@
+package com.lan.proxyserver.proxy.relay;
+
+import io.quarkus.test.junit.QuarkusTest;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class BufferSizingTest {
+  @Test
+  void testGrowsWhileReadsFillBuffer() {
+    BufferSizing sizing = new BufferSizing(true, 4096, 512, 16384, 0);
+    BufferSizing.Sizer sizer = sizing.newSizer();
+    Assertions.assertEquals(4096, sizer.acquire());
+
+    Assertions.assertEquals(0, sizer.read(4096));
+    Assertions.assertEquals(8192, sizer.read(4096));
+    sizer.resized(8192);
+    Assertions.assertEquals(0, sizer.read(8192));
+    Assertions.assertEquals(16384, sizer.read(8192));
+    sizer.resized(16384);
+    // Bounded by the maximum
+    for (int i = 0; i < 4; i++) {
+      Assertions.assertEquals(0, sizer.read(16384));
+    }
+    Assertions.assertEquals(1, buffers(sizing, 16384));
+    Assertions.assertEquals(0, buffers(sizing, 4096));
+
+    sizer.release();
+    Assertions.assertEquals(0, buffers(sizing, 16384));
+  }
+
+  @Test
+  void testShrinksWhileReadsAreSmall() {
+    BufferSizing sizing = new BufferSizing(true, 1024, 512, 65536, 0);
+    BufferSizing.Sizer sizer = sizing.newSizer();
+    sizer.acquire();
+
+    for (int i = 0; i < 7; i++) {
+      Assertions.assertEquals(0, sizer.read(10));
+    }
+    Assertions.assertEquals(512, sizer.read(10));
+    sizer.resized(512);
+    // Bounded by the minimum
+    for (int i = 0; i < 16; i++) {
+      Assertions.assertEquals(0, sizer.read(10));
+    }
+    Assertions.assertEquals(1, buffers(sizing, 512));
+  }
+
+  @Test
+  void testFixed() {
+    BufferSizing sizing = new BufferSizing(false, 3000, 512, 65536, 2);
+    BufferSizing.Sizer sizer = sizing.newSizer();
+
+    // Rounded up to a size class
+    Assertions.assertEquals(4096, sizer.acquire());
+    for (int i = 0; i < 16; i++) {
+      Assertions.assertEquals(0, sizer.read(4096));
+    }
+    Assertions.assertEquals(8192, sizer.socketBufferSize());
+  }
+
+  private static long buffers(BufferSizing sizing, int size) {
+    int[] sizes = sizing.getSizes();
+    for (int i = 0; i < sizes.length; i++) {
+      if (sizes[i] == size) {
+        return sizing.getBuffers()[i];
+      }
+    }
+    throw new IllegalArgumentException("No size class of " + size);
+  }
+}
@@ -0,0 +1,94 @@
+package com.lan.proxyserver.proxy.relay;
+
+import io.quarkus.test.junit.QuarkusTest;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class FairSchedulerTest {
+  private static final int READ = 4096;
+
+  @Test
+  void testTunnelCountDoesNotMatter() {
+    FairScheduler scheduler = new FairScheduler(4 * READ, principal -> 1);
+    FairScheduler.Flow noisy = scheduler.join("noisy", null);
+    FairScheduler.Flow interactive = scheduler.join("interactive", null);
+    List<String> served = new ArrayList<>();
+
+    // The noisy tenant has 100 tunnels readable before the interactive one has any
+    for (int i = 0; i < 100; i++) {
+      scheduler.submit(noisy, read(served, "noisy"));
+    }
+    scheduler.submit(interactive, read(served, "interactive"));
+
+    Assertions.assertTrue(scheduler.drain());
+    Assertions.assertEquals(List.of("noisy", "noisy", "noisy", "noisy", "interactive"), served);
+  }
+
+  @Test
+  void testWeights() {
+    FairScheduler scheduler =
+        new FairScheduler(READ, principal -> principal.equals("heavy") ? 3 : 1);
+    FairScheduler.Flow light = scheduler.join("light", null);
+    FairScheduler.Flow heavy = scheduler.join("heavy", null);
+    List<String> served = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      scheduler.submit(light, read(served, "light"));
+      scheduler.submit(heavy, read(served, "heavy"));
+    }
+
+    for (int i = 0; i < 10; i++) {
+      scheduler.drain();
+    }
+    Assertions.assertEquals(10, served.stream().filter("light"::equals).count());
+    Assertions.assertEquals(30, served.stream().filter("heavy"::equals).count());
+  }
+
+  @Test
+  void testOverreadIsPaidBack() {
+    FairScheduler scheduler = new FairScheduler(READ, principal -> 1);
+    FairScheduler.Flow flow = scheduler.join("big", null);
+    List<String> served = new ArrayList<>();
+    scheduler.submit(flow, () -> 3 * READ);
+    scheduler.submit(flow, read(served, "big"));
+
+    // The first read used up this round and the next two
+    Assertions.assertTrue(scheduler.drain());
+    Assertions.assertTrue(scheduler.drain());
+    Assertions.assertTrue(scheduler.drain());
+    Assertions.assertTrue(served.isEmpty());
+    Assertions.assertFalse(scheduler.drain());
+    Assertions.assertEquals(List.of("big"), served);
+  }
+
+  @Test
+  void testFlowsOfTenants() {
+    FairScheduler scheduler = new FairScheduler(READ, principal -> 1);
+    FairScheduler.Flow first = scheduler.join("alice", null);
+    FairScheduler.Flow second = scheduler.join("alice", null);
+    FairScheduler.Flow anonymous = scheduler.join(null, "127.0.0.1");
+
+    Assertions.assertSame(first, second);
+    Assertions.assertNotSame(first, anonymous);
+    Assertions.assertEquals(2, scheduler.getFlows());
+
+    scheduler.leave(first);
+    scheduler.leave(second);
+    Assertions.assertEquals(1, scheduler.getFlows());
+    // A flow left with reads pending lives until they are done
+    scheduler.submit(anonymous, () -> READ);
+    scheduler.leave(anonymous);
+    Assertions.assertEquals(1, scheduler.getFlows());
+    scheduler.drain();
+    Assertions.assertEquals(0, scheduler.getFlows());
+  }
+
+  private static FairScheduler.Work read(List<String> served, String tenant) {
+    return () -> {
+      served.add(tenant);
+      return READ;
+    };
+  }
+}
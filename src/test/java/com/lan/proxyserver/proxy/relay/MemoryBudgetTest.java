@@ -0,0 +1,69 @@
+package com.lan.proxyserver.proxy.relay;
+
+import io.quarkus.test.junit.QuarkusTest;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class MemoryBudgetTest {
+  @Test
+  void testPausesBetweenWatermarks() {
+    MemoryBudget budget = new MemoryBudget(0, 1000, 200, 0, false);
+    MemoryBudget.Account account = budget.open(1, "127.0.0.1");
+
+    Assertions.assertFalse(account.add(600));
+    Assertions.assertFalse(account.isPaused());
+    Assertions.assertTrue(account.add(600));
+    Assertions.assertTrue(account.isPaused());
+    // Already paused
+    Assertions.assertFalse(account.add(100));
+    Assertions.assertEquals(1, budget.getPausedSessions());
+
+    // Still above the low watermark
+    account.remove(1000);
+    Assertions.assertTrue(account.isPaused());
+    account.remove(100);
+    Assertions.assertFalse(account.isPaused());
+    Assertions.assertEquals(200, budget.getBufferedBytes());
+    Assertions.assertEquals(0, budget.getPausedSessions());
+  }
+
+  @Test
+  void testExhaustedBudgetPausesEverySession() {
+    MemoryBudget budget = new MemoryBudget(16384, 0, 0, 0, false);
+    MemoryBudget.Account first = budget.open(1, "127.0.0.1");
+    MemoryBudget.Account second = budget.open(2, "127.0.0.2");
+
+    // Leases of 4 KiB: 12 KiB then 16 KiB
+    first.add(9000);
+    Assertions.assertFalse(budget.isExhausted());
+    second.add(10);
+    Assertions.assertTrue(budget.isExhausted());
+    Assertions.assertTrue(first.isPaused());
+    Assertions.assertTrue(second.isPaused());
+    Assertions.assertEquals(first, budget.getTopAccounts(1).get(0));
+
+    // Closing gives its leases back
+    first.close();
+    Assertions.assertFalse(budget.isExhausted());
+    Assertions.assertEquals(1, budget.getTopAccounts(10).size());
+  }
+
+  @Test
+  void testEvictsSlowConsumer() throws InterruptedException {
+    MemoryBudget budget = new MemoryBudget(0, 100, 0, 1, true);
+    MemoryBudget.Account account = budget.open(1, "127.0.0.1");
+    Assertions.assertTrue(budget.getSlowNanos() > 0);
+
+    account.add(100);
+    Thread.sleep(5);
+    Assertions.assertTrue(account.checkSlow());
+    Assertions.assertEquals(1, budget.getSlowConsumers());
+    Assertions.assertEquals(1, budget.getEvictions());
+
+    // A consumer that caught up is not slow
+    account.remove(100);
+    Assertions.assertFalse(account.checkSlow());
+    Assertions.assertEquals(1, budget.getSlowConsumers());
+  }
+}
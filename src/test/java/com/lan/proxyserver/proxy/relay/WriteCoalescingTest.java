@@ -0,0 +1,53 @@
+package com.lan.proxyserver.proxy.relay;
+
+import com.lan.proxyserver.proxy.relay.WriteCoalescing.Coalescer;
+import io.quarkus.test.junit.QuarkusTest;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class WriteCoalescingTest {
+  @Test
+  void testDisabled() {
+    Coalescer coalescer = WriteCoalescing.DISABLED.newCoalescer();
+
+    Assertions.assertFalse(coalescer.isGathering());
+    Assertions.assertEquals(0, coalescer.window());
+    coalescer.gathered(0);
+    Assertions.assertFalse(coalescer.isGathering());
+  }
+
+  @Test
+  void testInteractiveAfterEmptyGatherings() {
+    Coalescer coalescer = new WriteCoalescing(true, 50, 3).newCoalescer();
+    Assertions.assertTrue(coalescer.isGathering());
+    Assertions.assertEquals(TimeUnit.MICROSECONDS.toNanos(50), coalescer.window());
+
+    coalescer.gathered(0);
+    coalescer.gathered(0);
+    // Octets coming within the window start the count over
+    coalescer.gathered(100);
+    coalescer.gathered(0);
+    coalescer.gathered(0);
+    Assertions.assertFalse(coalescer.isInteractive());
+    coalescer.gathered(0);
+    Assertions.assertTrue(coalescer.isInteractive());
+    Assertions.assertFalse(coalescer.isGathering());
+    Assertions.assertEquals(0, coalescer.window());
+  }
+
+  @Test
+  void testBulkAgainAfterLargeRead() {
+    Coalescer coalescer = new WriteCoalescing(true, 50, 1).newCoalescer();
+    coalescer.gathered(0);
+    Assertions.assertTrue(coalescer.isInteractive());
+
+    // Small reads leave the direction interactive
+    coalescer.read(100, 4096);
+    Assertions.assertTrue(coalescer.isInteractive());
+    coalescer.read(2048, 4096);
+    Assertions.assertFalse(coalescer.isInteractive());
+    Assertions.assertTrue(coalescer.isGathering());
+  }
+}
@@ -0,0 +1,99 @@
+package com.lan.proxyserver.proxy.shaping;
+
+import com.lan.proxyserver.proxy.shaping.TrafficShaper.Limit;
+import io.quarkus.test.junit.QuarkusTest;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class TrafficShaperTest {
+  private static final Limit unlimited = new Limit(0, 0);
+
+  @Test
+  void testBurstThenRate() {
+    TokenBucket.Stats stats = new TokenBucket.Stats("session", "", 1000, 500);
+    TokenBucket bucket = new TokenBucket(1000, 500, stats);
+    long now = System.nanoTime();
+
+    Assertions.assertEquals(0, bucket.take(500, now));
+    // Past the burst, octets go at the rate
+    Assertions.assertEquals(TimeUnit.MILLISECONDS.toNanos(500), bucket.take(500, now));
+    // A second later the debt is paid off and half a burst is back
+    Assertions.assertEquals(0, bucket.take(500, now + TimeUnit.SECONDS.toNanos(1)));
+    Assertions.assertEquals(1500, stats.getBytes());
+    Assertions.assertEquals(1, stats.getThrottles());
+    Assertions.assertEquals(TimeUnit.MILLISECONDS.toNanos(500), stats.getThrottledNanos());
+  }
+
+  @Test
+  void testUserBucketSharedBySessions() {
+    TrafficShaper shaper =
+        new TrafficShaper(true, unlimited, new Limit(1000, 1000), unlimited, unlimited, 0);
+    InetAddress source = InetAddress.getLoopbackAddress();
+    Shaping first = shaper.open("alice", source);
+    Shaping second = shaper.open("alice", source);
+
+    Assertions.assertEquals(0, first.newThrottle().charge(1000));
+    // The first session emptied the bucket of the user
+    Assertions.assertTrue(second.newThrottle().charge(500) > 0);
+
+    List<TokenBucket.Stats> stats = shaper.getStats();
+    Assertions.assertEquals(1, stats.size());
+    Assertions.assertEquals("user", stats.get(0).getLevel());
+    Assertions.assertEquals("alice", stats.get(0).getKey());
+    Assertions.assertEquals(1500, stats.get(0).getBytes());
+
+    first.close();
+    Assertions.assertEquals(1, shaper.getStats().size());
+    second.close();
+    Assertions.assertTrue(shaper.getStats().isEmpty());
+  }
+
+  @Test
+  void testSourceBucketWithoutPrincipal() {
+    TrafficShaper shaper =
+        new TrafficShaper(
+            true, unlimited, new Limit(1000, 1000), new Limit(2000, 2000), unlimited, 0);
+    Shaping shaping = shaper.open(null, InetAddress.getLoopbackAddress());
+
+    Assertions.assertEquals(0, shaping.newThrottle().charge(2000));
+    TokenBucket.Stats stats = shaper.getStats().get(0);
+    Assertions.assertEquals("source", stats.getLevel());
+    Assertions.assertEquals(InetAddress.getLoopbackAddress().getHostAddress(), stats.getKey());
+    shaping.close();
+  }
+
+  @Test
+  void testGlobalLease() {
+    TrafficShaper shaper =
+        new TrafficShaper(true, new Limit(1 << 20, 1 << 20), unlimited, unlimited, unlimited, 1000);
+    Shaping shaping = shaper.open("alice", InetAddress.getLoopbackAddress());
+    Throttle throttle = shaping.newThrottle();
+
+    for (int i = 0; i < 100; i++) {
+      throttle.charge(10);
+    }
+    // A single lease covers the 100 reads
+    TokenBucket.Stats global = shaper.getStats().get(0);
+    Assertions.assertEquals("global", global.getLevel());
+    Assertions.assertEquals(1000, global.getBytes());
+
+    throttle.charge(10);
+    Assertions.assertEquals(2000, global.getBytes());
+    shaping.close();
+  }
+
+  @Test
+  void testDisabled() {
+    TrafficShaper shaper =
+        new TrafficShaper(false, new Limit(1, 1), new Limit(1, 1), unlimited, new Limit(1, 1), 0);
+    Shaping shaping = shaper.open("alice", InetAddress.getLoopbackAddress());
+
+    Assertions.assertSame(Throttle.UNLIMITED, shaping.newThrottle());
+    Assertions.assertEquals(0, shaping.newThrottle().charge(1 << 20));
+    Assertions.assertTrue(shaper.getStats().isEmpty());
+  }
+}
@@ -0,0 +1,56 @@
+package com.lan.proxyserver.proxy.socks;
+
+import io.quarkus.test.junit.QuarkusTest;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class BindTest {
+  private static final Logger logger = Logger.getLogger(BindTest.class);
+
+  private static InetSocketAddress readReply(Socket client) throws IOException {
+    byte[] reply = client.getInputStream().readNBytes(10);
+    Assertions.assertEquals(10, reply.length);
+    Assertions.assertEquals(ReplyCode.SUCCESS.get(), reply[1]);
+    Assertions.assertEquals(AddressType.IP_V4.get(), reply[3]);
+    return new InetSocketAddress(
+        InetAddress.getByAddress(Arrays.copyOfRange(reply, 4, 8)),
+        (reply[8] & 0xFF) << Byte.SIZE | (reply[9] & 0xFF));
+  }
+
+  @Test
+  void testBind() throws IOException {
+    Socket client;
+    try {
+      client = new Socket(InetAddress.getLoopbackAddress(), SocksServer.DEF_PORT);
+    } catch (IOException e) {
+      logger.error(e.getMessage(), e);
+      Assumptions.assumeFalse(true);
+      return;
+    }
+
+    try (client) {
+      client.setSoTimeout(1000);
+      // BIND expecting a connection from 127.0.0.1
+      client.getOutputStream().write(new byte[] {5, 1, 0, 5, 2, 0, 1, 127, 0, 0, 1, 0, 0});
+      Assertions.assertArrayEquals(new byte[] {5, 0}, client.getInputStream().readNBytes(2));
+      InetSocketAddress listener = readReply(client);
+
+      try (Socket dest = new Socket(listener.getAddress(), listener.getPort())) {
+        Assertions.assertEquals(dest.getLocalSocketAddress(), readReply(client));
+
+        dest.getOutputStream().write(new byte[] {0xA, 0xB});
+        Assertions.assertArrayEquals(new byte[] {0xA, 0xB}, client.getInputStream().readNBytes(2));
+        client.getOutputStream().write(new byte[] {0xC});
+        Assertions.assertEquals(0xC, dest.getInputStream().read());
+      }
+    }
+  }
+}
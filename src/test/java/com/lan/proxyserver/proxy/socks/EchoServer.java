@@ -3,19 +3,27 @@ package com.lan.proxyserver.proxy.socks;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.jboss.logging.Logger;
 
+/**
+ * Echoes whatever its clients send until they close their connection, every connection on a
+ * virtual thread of its own so that it keeps up with as many concurrent tunnels as a load needs
+ */
 class EchoServer extends Thread {
   private static final Logger logger = Logger.getLogger(EchoServer.class);
 
   private final ServerSocket serverSocket;
   private final AtomicBoolean stop;
+  private final Set<Socket> clientSockets;
 
   public EchoServer() throws IOException {
     super("EchoServer");
-    serverSocket = new ServerSocket(0);
+    serverSocket = new ServerSocket(0, 1024);
     stop = new AtomicBoolean(false);
+    clientSockets = ConcurrentHashMap.newKeySet();
   }
 
   @Override
@@ -32,16 +40,13 @@ class EchoServer extends Thread {
     while (!stop.get()) {
       try {
         Socket clientSocket = serverSocket.accept();
-
-        byte[] serverReceivedData = new byte[1024];
-        int len = clientSocket.getInputStream().read(serverReceivedData);
-        if (len < 0) {
-          logger.debugf("Read %d from client", len);
-          continue;
+        clientSockets.add(clientSocket);
+        // Connections accepted while terminating aren't closed by terminate()
+        if (stop.get()) {
+          clientSocket.close();
+          break;
         }
-
-        clientSocket.getOutputStream().write(serverReceivedData, 0, len);
-        clientSocket.getOutputStream().flush();
+        Thread.ofVirtual().name("EchoServer-connection").start(() -> echo(clientSocket));
       } catch (IOException e) {
         if (!stop.get()) {
           logger.error(e.getMessage(), e);
@@ -50,6 +55,23 @@ class EchoServer extends Thread {
     }
   }
 
+  private void echo(Socket clientSocket) {
+    try (clientSocket) {
+      clientSocket.setTcpNoDelay(true);
+      byte[] serverReceivedData = new byte[64 * 1024];
+      int len;
+      while ((len = clientSocket.getInputStream().read(serverReceivedData)) >= 0) {
+        clientSocket.getOutputStream().write(serverReceivedData, 0, len);
+      }
+    } catch (IOException e) {
+      if (!stop.get()) {
+        logger.debug(e.getMessage(), e);
+      }
+    } finally {
+      clientSockets.remove(clientSocket);
+    }
+  }
+
   public void terminate() {
     if (!stop.compareAndSet(false, true)) {
       logger.info("Echo server had been stopped");
@@ -63,6 +85,13 @@ class EchoServer extends Thread {
     } catch (IOException e) {
       logger.error(e.getMessage(), e);
     }
+    for (Socket clientSocket : clientSockets) {
+      try {
+        clientSocket.close();
+      } catch (IOException e) {
+        logger.error(e.getMessage(), e);
+      }
+    }
 
     try {
       join(1000);
@@ -76,4 +105,11 @@ class EchoServer extends Thread {
   public int getPort() {
     return serverSocket.getLocalPort();
   }
+
+  /**
+   * @return connections being echoed
+   */
+  public int getConnections() {
+    return clientSockets.size();
+  }
 }
@@ -0,0 +1,216 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.metrics.LatencyHistogram;
+import com.lan.proxyserver.proxy.socks.Socks5Client.Credentials;
+import com.lan.proxyserver.proxy.socks.Socks5Client.Destination;
+import com.lan.proxyserver.proxy.socks.Socks5Client.HandshakeException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+/**
+ * Drives socks 5 sessions through a proxy to an {@link EchoServer}: every one of {@code
+ * concurrency} workers opens a session (at most {@code connectionRate} sessions start per second
+ * overall, 0 for as fast as the workers go), authenticates, connects, echoes {@code roundTrips}
+ * payloads of one of {@code payloadSizes} octets, closes it and starts over.
+ *
+ * <p>Workers are virtual threads, so that thousands of concurrent sessions load the proxy under
+ * test rather than the generator.
+ */
+public class LoadGenerator {
+  private final InetSocketAddress proxy;
+  private final Credentials credentials;
+  private final Destination dest;
+  private final int concurrency;
+  private final double connectionRate;
+  private final int[] payloadSizes;
+  private final int roundTrips;
+
+  LoadGenerator(
+      InetSocketAddress proxy,
+      Credentials credentials,
+      Destination dest,
+      int concurrency,
+      double connectionRate,
+      int[] payloadSizes,
+      int roundTrips) {
+    this.proxy = proxy;
+    this.credentials = credentials;
+    this.dest = dest;
+    this.concurrency = concurrency;
+    this.connectionRate = connectionRate;
+    this.payloadSizes = payloadSizes;
+    this.roundTrips = roundTrips;
+  }
+
+  /** What a run achieved, latencies in microseconds */
+  static class Report {
+    private final long nanos;
+    private final long sessions;
+    private final long roundTrips;
+    private final long bytes;
+    private final Map<String, Long> failures;
+    private final LatencyHistogram.Snapshot connectLatency;
+    private final LatencyHistogram.Snapshot roundTripLatency;
+
+    private Report(
+        long nanos,
+        long sessions,
+        long roundTrips,
+        long bytes,
+        Map<String, Long> failures,
+        LatencyHistogram.Snapshot connectLatency,
+        LatencyHistogram.Snapshot roundTripLatency) {
+      this.nanos = nanos;
+      this.sessions = sessions;
+      this.roundTrips = roundTrips;
+      this.bytes = bytes;
+      this.failures = failures;
+      this.connectLatency = connectLatency;
+      this.roundTripLatency = roundTripLatency;
+    }
+
+    /** Sessions which went through */
+    long getSessions() {
+      return sessions;
+    }
+
+    long getRoundTrips() {
+      return roundTrips;
+    }
+
+    /**
+     * @return failed sessions per reply code of the proxy, or per exception
+     */
+    Map<String, Long> getFailures() {
+      return failures;
+    }
+
+    long getFailureCount() {
+      return failures.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    LatencyHistogram.Snapshot getConnectLatency() {
+      return connectLatency;
+    }
+
+    LatencyHistogram.Snapshot getRoundTripLatency() {
+      return roundTripLatency;
+    }
+
+    @Override
+    public String toString() {
+      double seconds = nanos / 1e9;
+      return String.format(
+          "  %10.1f connects/s (%,d sessions, %,d failed %s)%n"
+              + "  %10.1f MiB/s echoed (%,d round trips)%n"
+              + "  connect    %s%n"
+              + "  round trip %s",
+          sessions / seconds,
+          sessions,
+          getFailureCount(),
+          failures,
+          bytes / 1024.0 / 1024.0 / seconds,
+          roundTrips,
+          latency(connectLatency),
+          latency(roundTripLatency));
+    }
+
+    private static String latency(LatencyHistogram.Snapshot snapshot) {
+      return String.format(
+          "p50 %,d us, p99 %,d us, p999 %,d us, max %,d us",
+          snapshot.getQuantile(0.5),
+          snapshot.getQuantile(0.99),
+          snapshot.getQuantile(0.999),
+          snapshot.getMax());
+    }
+  }
+
+  Report run(long duration, TimeUnit unit) throws InterruptedException {
+    long start = System.nanoTime();
+    long deadline = start + unit.toNanos(duration);
+    long interval = connectionRate > 0 ? (long) (1e9 / connectionRate) : 0;
+    AtomicLong nextStart = new AtomicLong(start);
+    LongAdder sessions = new LongAdder();
+    LongAdder roundTripCount = new LongAdder();
+    LongAdder bytes = new LongAdder();
+    Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+    LatencyHistogram connectLatency = new LatencyHistogram();
+    LatencyHistogram roundTripLatency = new LatencyHistogram();
+
+    try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < concurrency; i++) {
+        workers.submit(
+            () -> {
+              while (true) {
+                // Sessions are scheduled at the rate whether the previous ones were slow or not
+                long sessionStart =
+                    interval > 0 ? nextStart.getAndAdd(interval) : System.nanoTime();
+                if (sessionStart >= deadline) {
+                  return;
+                }
+                LockSupport.parkNanos(sessionStart - System.nanoTime());
+                try {
+                  session(connectLatency, roundTripLatency, roundTripCount, bytes);
+                  sessions.increment();
+                } catch (IOException e) {
+                  String reason =
+                      e instanceof HandshakeException he && he.getReplyCode() != null
+                          ? he.getReplyCode().name()
+                          : e.getClass().getSimpleName();
+                  failures.computeIfAbsent(reason, k -> new LongAdder()).increment();
+                }
+              }
+            });
+      }
+    }
+
+    return new Report(
+        System.nanoTime() - start,
+        sessions.sum(),
+        roundTripCount.sum(),
+        bytes.sum(),
+        failures.entrySet().stream()
+            .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().sum())),
+        connectLatency.snapshot(),
+        roundTripLatency.snapshot());
+  }
+
+  private void session(
+      LatencyHistogram connectLatency,
+      LatencyHistogram roundTripLatency,
+      LongAdder roundTripCount,
+      LongAdder bytes)
+      throws IOException {
+    long connectStart = System.nanoTime();
+    try (Socks5Client client = new Socks5Client(proxy)) {
+      client.connect(credentials, dest);
+      connectLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - connectStart));
+
+      for (int i = 0; i < roundTrips; i++) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] payload = new byte[payloadSizes[random.nextInt(payloadSizes.length)]];
+        random.nextBytes(payload);
+        long roundTripStart = System.nanoTime();
+        byte[] echoed = client.echo(payload);
+        long roundTripNanos = System.nanoTime() - roundTripStart;
+        roundTripLatency.record(TimeUnit.NANOSECONDS.toMicros(roundTripNanos));
+        if (!Arrays.equals(payload, echoed)) {
+          throw new IOException("Echoed octets differ from the sent ones");
+        }
+        roundTripCount.increment();
+        bytes.add(payload.length);
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.socks.Socks5Client.Credentials;
+import com.lan.proxyserver.proxy.socks.Socks5Client.Destination;
+import io.quarkus.test.junit.QuarkusTest;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class LoadGeneratorTest {
+  private static final Logger logger = Logger.getLogger(LoadGeneratorTest.class);
+  private static final InetSocketAddress proxy =
+      new InetSocketAddress("127.0.0.1", SocksServer.DEF_PORT);
+
+  private EchoServer destination;
+
+  @BeforeEach
+  void setUp() {
+    try {
+      destination = new EchoServer();
+    } catch (IOException e) {
+      logger.error(e.getMessage(), e);
+      Assumptions.assumeFalse(true);
+    }
+
+    destination.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    destination.terminate();
+  }
+
+  @Test
+  void testNoAuthIpV4() throws InterruptedException {
+    assertLoad(
+        Credentials.noAuth(),
+        Destination.of(InetAddress.getLoopbackAddress(), destination.getPort()));
+  }
+
+  @Test
+  void testUsrPwdDomainName() throws InterruptedException {
+    assertLoad(
+        Credentials.usernamePassword("username", "password"),
+        Destination.of("localhost", destination.getPort()));
+  }
+
+  @Test
+  void testNoAuthIpV6() throws IOException, InterruptedException {
+    InetAddress ipV6Loopback = InetAddress.getByName("::1");
+    Assumptions.assumeTrue(ipV6Loopback.isReachable(100), "No IPv6 loopback");
+    assertLoad(Credentials.noAuth(), Destination.of(ipV6Loopback, destination.getPort()));
+  }
+
+  @Test
+  void testConnectionRate() throws InterruptedException {
+    LoadGenerator generator =
+        new LoadGenerator(
+            proxy,
+            Credentials.noAuth(),
+            Destination.of(InetAddress.getLoopbackAddress(), destination.getPort()),
+            8,
+            20,
+            new int[] {16},
+            1);
+
+    LoadGenerator.Report report = generator.run(1, TimeUnit.SECONDS);
+
+    // 20 sessions are due within the second, give or take the last one
+    Assertions.assertEquals(0, report.getFailureCount(), report.toString());
+    Assertions.assertTrue(
+        report.getSessions() >= 19 && report.getSessions() <= 20, report.toString());
+  }
+
+  private void assertLoad(Credentials credentials, Destination dest) throws InterruptedException {
+    LoadGenerator generator =
+        new LoadGenerator(proxy, credentials, dest, 16, 0, new int[] {1, 1024, 64 * 1024}, 5);
+
+    LoadGenerator.Report report = generator.run(1, TimeUnit.SECONDS);
+
+    Assertions.assertEquals(0, report.getFailureCount(), report.toString());
+    Assertions.assertTrue(report.getSessions() > 0, report.toString());
+    Assertions.assertEquals(report.getSessions() * 5, report.getRoundTrips(), report.toString());
+    Assertions.assertEquals(report.getSessions(), report.getConnectLatency().getCount());
+  }
+}
@@ -0,0 +1,54 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.util.PortUtil;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A socks server of its own on a free port, for tests needing a configuration other than the
+ * application's. Settings are system properties, set only while the server reads its configuration.
+ */
+class LocalSocksServer implements Closeable {
+  private final SocksServer socksServer;
+  private final InetSocketAddress address;
+
+  /**
+   * @param settings configuration keys followed by their values
+   */
+  LocalSocksServer(String... settings) throws IOException {
+    Map<String, String> previous = new HashMap<>();
+    for (int i = 0; i < settings.length; i += 2) {
+      previous.put(settings[i], System.setProperty(settings[i], settings[i + 1]));
+    }
+    int port = PortUtil.pickFreePort();
+    try {
+      socksServer = new SocksServer(port);
+    } finally {
+      for (Map.Entry<String, String> setting : previous.entrySet()) {
+        if (setting.getValue() == null) {
+          System.clearProperty(setting.getKey());
+        } else {
+          System.setProperty(setting.getKey(), setting.getValue());
+        }
+      }
+    }
+    new Thread(socksServer, "LocalSocksServer").start();
+    address = new InetSocketAddress("127.0.0.1", port);
+  }
+
+  SocksServer get() {
+    return socksServer;
+  }
+
+  InetSocketAddress getAddress() {
+    return address;
+  }
+
+  @Override
+  public void close() {
+    socksServer.stop();
+  }
+}
@@ -0,0 +1,50 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.socks.Socks5Client.Credentials;
+import com.lan.proxyserver.proxy.socks.Socks5Client.Destination;
+import com.lan.proxyserver.util.PortUtil;
+import io.quarkus.test.junit.QuarkusTest;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class OptimisticReplyTest {
+  private static final String OPTIMISTIC_REPLY =
+      "proxy_server.socks.5.command.connect.optimistic_reply";
+
+  @Test
+  void testEarlyData() throws IOException {
+    EchoServer destination = new EchoServer();
+    destination.start();
+    try (LocalSocksServer server = new LocalSocksServer(OPTIMISTIC_REPLY, "true");
+        Socks5Client client = new Socks5Client(server.getAddress())) {
+      Assertions.assertTrue(server.get().getContext().isOptimisticConnectReply());
+
+      // Sent along with the request, before success is replied
+      byte[] earlyData = "early".getBytes();
+      client.connectWithEarlyData(
+          Destination.of(InetAddress.getLoopbackAddress(), destination.getPort()), earlyData);
+      Assertions.assertArrayEquals(earlyData, client.receive(earlyData.length));
+      byte[] data = "later".getBytes();
+      Assertions.assertArrayEquals(data, client.echo(data));
+    } finally {
+      destination.terminate();
+    }
+  }
+
+  @Test
+  void testUnreachableDestinationResets() throws IOException {
+    try (LocalSocksServer server = new LocalSocksServer(OPTIMISTIC_REPLY, "true");
+        Socks5Client client = new Socks5Client(server.getAddress())) {
+      // Nothing listens there, yet success is replied before connecting
+      client.connect(
+          Credentials.noAuth(),
+          Destination.of(InetAddress.getLoopbackAddress(), PortUtil.pickFreePort()));
+      // Reset rather than an orderly end of stream, which the client could take for a reply
+      Assertions.assertThrows(SocketException.class, () -> client.receive(1));
+    }
+  }
+}
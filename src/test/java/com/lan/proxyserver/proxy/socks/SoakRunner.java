@@ -0,0 +1,175 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.socks.Socks5Client.Credentials;
+import com.lan.proxyserver.proxy.socks.Socks5Client.Destination;
+import com.lan.proxyserver.proxy.socks.auth.UsernamePassword;
+import com.lan.proxyserver.util.PortUtil;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+/**
+ * Soaks a socks server of its own with a {@link LoadGenerator} for a while, reports what the load
+ * achieved, then fails if threads or file descriptors are left over once the sessions are gone.
+ * Run it through {@code ./gradlew soakTest -Pseconds=600 -Pauth=usr_pwd}, both the proxy and the
+ * clients live in this process.
+ */
+public class SoakRunner {
+  // Keep a strong reference, loggers are only weakly held by the log manager
+  private static final java.util.logging.Logger proxyLogger =
+      java.util.logging.Logger.getLogger("com.lan.proxyserver");
+
+  private static final String auth = System.getProperty("bench.auth", "no_auth");
+  private static final String address = System.getProperty("bench.address", "ipv4");
+  private static final int concurrency = Integer.getInteger("bench.concurrency", 64);
+  private static final int rate = Integer.getInteger("bench.rate", 0);
+  private static final String payloads = System.getProperty("bench.payloads", "64,1024,16384");
+  private static final int roundTrips = Integer.getInteger("bench.round_trips", 10);
+  private static final int seconds = Integer.getInteger("bench.seconds", 60);
+  // Threads and file descriptors above the baseline which don't count as a leak
+  private static final int tolerance = Integer.getInteger("bench.leak_tolerance", 8);
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("proxy_server.socks.5.auth.method.no_auth.enable", "true");
+    System.setProperty("proxy_server.socks.5.auth.method.usr_pwd.enable", "true");
+    proxyLogger.setLevel(Level.WARNING);
+    UsernamePassword.init();
+
+    EchoServer echoServer = new EchoServer();
+    echoServer.start();
+    int port = PortUtil.pickFreePort();
+    SocksServer socksServer = new SocksServer(port);
+    Thread socksServerThread = new Thread(socksServer, "SocksServer");
+    socksServerThread.start();
+
+    LoadGenerator generator =
+        new LoadGenerator(
+            new InetSocketAddress("127.0.0.1", port),
+            credentials(),
+            destination(echoServer.getPort()),
+            concurrency,
+            rate,
+            Arrays.stream(payloads.split(",")).mapToInt(Integer::parseInt).toArray(),
+            roundTrips);
+
+    System.out.printf(
+        "auth=%s, address=%s, concurrency=%d, rate=%s, payloads=%s, round trips=%d, threads=%s,"
+            + " relay=%s%n",
+        auth,
+        address,
+        concurrency,
+        rate > 0 ? rate + "/s" : "unlimited",
+        payloads,
+        roundTrips,
+        System.getProperty("proxy_server.socks.threads", "platform"),
+        System.getProperty("proxy_server.socks.relay.engine", "blocking"));
+    List<String> leaks;
+    try {
+      // Warm up, so that pools and caches filled once are part of the baseline
+      generator.run(2, TimeUnit.SECONDS);
+      Resources baseline = Resources.take();
+      System.out.printf("before: %s%n", baseline);
+
+      LoadGenerator.Report report = generator.run(seconds, TimeUnit.SECONDS);
+      System.out.printf("%d seconds%n%s%n", seconds, report);
+
+      leaks = Resources.leaked(baseline, tolerance, 30, TimeUnit.SECONDS);
+      System.out.printf("after:  %s%n", Resources.take());
+    } finally {
+      socksServer.stop();
+      echoServer.terminate();
+    }
+    if (!leaks.isEmpty()) {
+      System.out.printf("Leaked %s%n", String.join(", ", leaks));
+      System.exit(1);
+    }
+  }
+
+  private static Credentials credentials() {
+    return switch (auth) {
+      case "no_auth" -> Credentials.noAuth();
+      case "usr_pwd" ->
+          Credentials.usernamePassword(
+              System.getProperty(
+                  "proxy_server.socks.5.auth.method.usr_pwd.default_username", "username"),
+              System.getProperty(
+                  "proxy_server.socks.5.auth.method.usr_pwd.default_password", "password"));
+      case "gssapi" -> Credentials.gssapi(System.getProperty("bench.service_principal"));
+      default -> throw new IllegalArgumentException("Unknown authentication method " + auth);
+    };
+  }
+
+  private static Destination destination(int port) throws IOException {
+    return switch (address) {
+      case "ipv4" -> Destination.of(InetAddress.getByName("127.0.0.1"), port);
+      case "ipv6" -> Destination.of(InetAddress.getByName("::1"), port);
+      case "domainname" -> Destination.of("localhost", port);
+      default -> throw new IllegalArgumentException("Unknown address type " + address);
+    };
+  }
+
+  /** Live threads and open file descriptors of this process */
+  static class Resources {
+    private final int threads;
+    private final long fds;
+
+    private Resources(int threads, long fds) {
+      this.threads = threads;
+      this.fds = fds;
+    }
+
+    static Resources take() throws IOException {
+      return new Resources(ManagementFactory.getThreadMXBean().getThreadCount(), fds());
+    }
+
+    /**
+     * Waits up to {@code timeout} for the resources to get back to {@code baseline}, as sessions
+     * are released asynchronously
+     *
+     * @return the resources still above the baseline by more than {@code tolerance}, empty if none
+     */
+    static List<String> leaked(Resources baseline, int tolerance, long timeout, TimeUnit unit)
+        throws IOException, InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (true) {
+        Resources now = take();
+        List<String> leaks = new ArrayList<>();
+        if (now.threads > baseline.threads + tolerance) {
+          leaks.add(String.format("threads %d -> %d", baseline.threads, now.threads));
+        }
+        if (now.fds > baseline.fds + tolerance) {
+          leaks.add(String.format("file descriptors %d -> %d", baseline.fds, now.fds));
+        }
+        if (leaks.isEmpty() || System.nanoTime() >= deadline) {
+          return leaks;
+        }
+        Thread.sleep(200);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d threads, %d file descriptors", threads, fds);
+    }
+
+    /** 0 where /proc isn't available */
+    private static long fds() throws IOException {
+      Path fdDir = Path.of("/proc/self/fd");
+      if (!Files.isDirectory(fdDir)) {
+        return 0;
+      }
+      try (Stream<Path> fds = Files.list(fdDir)) {
+        return fds.count();
+      }
+    }
+  }
+}
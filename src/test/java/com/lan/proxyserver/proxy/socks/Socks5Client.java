@@ -0,0 +1,332 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.socks.auth.AuthMethod;
+import com.lan.proxyserver.proxy.socks.command.Command;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.MessageProp;
+import org.ietf.jgss.Oid;
+
+/**
+ * A blocking socks 5 client which, unlike the JDK's, offers exactly the authentication method it
+ * is given and sends any address type, so that every path of the server can be driven on purpose
+ */
+class Socks5Client implements Closeable {
+  private static final byte GSSAPI_VERSION = 1;
+  private static final byte GSSAPI_AUTHENTICATION = 1;
+  private static final byte GSSAPI_NEGOTIATION = 2;
+  private static final byte GSSAPI_ABORT = (byte) 0xFF;
+  private static final byte USR_PWD_VERSION = 1;
+
+  /** What the client authenticates with, a single method offered to the server */
+  static class Credentials {
+    private final AuthMethod method;
+    private final String username;
+    private final String password;
+    private final String servicePrincipal;
+
+    private Credentials(
+        AuthMethod method, String username, String password, String servicePrincipal) {
+      this.method = method;
+      this.username = username;
+      this.password = password;
+      this.servicePrincipal = servicePrincipal;
+    }
+
+    static Credentials noAuth() {
+      return new Credentials(AuthMethod.NO_AUTH, null, null, null);
+    }
+
+    static Credentials usernamePassword(String username, String password) {
+      return new Credentials(AuthMethod.USR_PWD, username, password, null);
+    }
+
+    /**
+     * @param servicePrincipal Kerberos principal of the proxy, e.g. {@code rcmd/0.0.0.0@REALM},
+     *     the client's own credentials come from the JAAS configuration
+     */
+    static Credentials gssapi(String servicePrincipal) {
+      return new Credentials(AuthMethod.GSSAPI, null, null, servicePrincipal);
+    }
+
+    AuthMethod getMethod() {
+      return method;
+    }
+
+    @Override
+    public String toString() {
+      return method.name();
+    }
+  }
+
+  /** Where the client asks the proxy to connect, in the form it is sent in */
+  static class Destination {
+    private final AddressType addressType;
+    private final byte[] addressOctets;
+    private final int port;
+
+    private Destination(AddressType addressType, byte[] addressOctets, int port) {
+      this.addressType = addressType;
+      this.addressOctets = addressOctets;
+      this.port = port;
+    }
+
+    static Destination of(InetAddress address, int port) {
+      return new Destination(AddressType.get(address), address.getAddress(), port);
+    }
+
+    static Destination of(String domainName, int port) {
+      return new Destination(
+          AddressType.DOMAINNAME, domainName.getBytes(StandardCharsets.US_ASCII), port);
+    }
+
+    AddressType getAddressType() {
+      return addressType;
+    }
+
+    @Override
+    public String toString() {
+      return addressType == AddressType.DOMAINNAME
+          ? new String(addressOctets, StandardCharsets.US_ASCII) + ":" + port
+          : addressType + ":" + port;
+    }
+  }
+
+  /** The server refused a step of the handshake */
+  static class HandshakeException extends IOException {
+    private final ReplyCode replyCode;
+
+    HandshakeException(String message) {
+      this(message, null);
+    }
+
+    HandshakeException(String message, ReplyCode replyCode) {
+      super(message);
+      this.replyCode = replyCode;
+    }
+
+    /**
+     * @return null unless the server replied a failure to the request
+     */
+    ReplyCode getReplyCode() {
+      return replyCode;
+    }
+  }
+
+  private final SocketChannel channel;
+  private InetSocketAddress boundAddress;
+
+  Socks5Client(SocketAddress proxy) throws IOException {
+    channel = SocketChannel.open(proxy);
+    channel.socket().setTcpNoDelay(true);
+  }
+
+  /** Negotiates the method of {@code credentials} and authenticates */
+  void authenticate(Credentials credentials) throws IOException {
+    write(new byte[] {SocksVersion.SOCKS5.get(), 1, credentials.method.get()});
+    byte[] selection = read(2);
+    if (selection[1] != credentials.method.get()) {
+      throw new HandshakeException("No acceptable method, server selected " + selection[1]);
+    }
+    switch (credentials.method) {
+      case NO_AUTH:
+        break;
+      case USR_PWD:
+        authenticate(credentials.username, credentials.password);
+        break;
+      case GSSAPI:
+        authenticate(credentials.servicePrincipal);
+        break;
+    }
+  }
+
+  /**
+   * Sends a request and reads the reply
+   *
+   * @throws HandshakeException if the server replied a failure
+   */
+  void request(Command command, Destination dest) throws IOException {
+    write(encodeRequest(command, dest));
+    readReply();
+  }
+
+  /**
+   * Sends the method selection (offering no authentication), a CONNECT request and the first
+   * octets of the tunnel at once, without waiting for any reply, then reads the replies
+   *
+   * @throws HandshakeException if the server replied a failure
+   */
+  void connectWithEarlyData(Destination dest, byte[] earlyData) throws IOException {
+    byte[] request = encodeRequest(Command.CONNECT, dest);
+    ByteBuffer octets = ByteBuffer.allocate(3 + request.length + earlyData.length);
+    octets.put(new byte[] {SocksVersion.SOCKS5.get(), 1, AuthMethod.NO_AUTH.get()});
+    octets.put(request).put(earlyData);
+    write(octets.array());
+    if (read(2)[1] != AuthMethod.NO_AUTH.get()) {
+      throw new HandshakeException("No acceptable method");
+    }
+    readReply();
+  }
+
+  private static byte[] encodeRequest(Command command, Destination dest) {
+    int addressLen =
+        (dest.addressType == AddressType.DOMAINNAME ? 1 : 0) + dest.addressOctets.length;
+    ByteBuffer request = ByteBuffer.allocate(4 + addressLen + 2);
+    request.put(SocksVersion.SOCKS5.get());
+    request.put(command.get());
+    request.put((byte) 0);
+    request.put(dest.addressType.get());
+    if (dest.addressType == AddressType.DOMAINNAME) {
+      request.put((byte) dest.addressOctets.length);
+    }
+    request.put(dest.addressOctets);
+    request.putShort((short) dest.port);
+    return request.array();
+  }
+
+  private void readReply() throws IOException {
+    byte[] reply = read(4);
+    AddressType boundAddressType = AddressType.get(reply[3]);
+    if (boundAddressType == null || boundAddressType == AddressType.DOMAINNAME) {
+      throw new HandshakeException("Unexpected bound address type " + reply[3]);
+    }
+    byte[] boundOctets = read(boundAddressType.getAddressLength() + 2);
+    if (reply[1] != ReplyCode.SUCCESS.get()) {
+      throw new HandshakeException("Server replied " + reply[1], ReplyCode.get(reply[1]));
+    }
+    byte[] address = new byte[boundAddressType.getAddressLength()];
+    System.arraycopy(boundOctets, 0, address, 0, address.length);
+    int port = (boundOctets[address.length] & 0xFF) << Byte.SIZE;
+    port |= boundOctets[address.length + 1] & 0xFF;
+    boundAddress = new InetSocketAddress(InetAddress.getByAddress(address), port);
+  }
+
+  /** Authenticates, then connects to {@code dest} */
+  void connect(Credentials credentials, Destination dest) throws IOException {
+    authenticate(credentials);
+    request(Command.CONNECT, dest);
+  }
+
+  /** Sends {@code data} through the tunnel and reads as many octets back */
+  byte[] echo(byte[] data) throws IOException {
+    write(data);
+    return read(data.length);
+  }
+
+  /** Reads {@code len} octets from the tunnel */
+  byte[] receive(int len) throws IOException {
+    return read(len);
+  }
+
+  /**
+   * @return the address the server replied with to the request
+   */
+  InetSocketAddress getBoundAddress() {
+    return boundAddress;
+  }
+
+  SocketChannel getChannel() {
+    return channel;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private void authenticate(String username, String password) throws IOException {
+    byte[] usernameOctets = username.getBytes(StandardCharsets.US_ASCII);
+    byte[] passwordOctets = password.getBytes(StandardCharsets.US_ASCII);
+    ByteBuffer request = ByteBuffer.allocate(3 + usernameOctets.length + passwordOctets.length);
+    request.put(USR_PWD_VERSION);
+    request.put((byte) usernameOctets.length).put(usernameOctets);
+    request.put((byte) passwordOctets.length).put(passwordOctets);
+    write(request.array());
+    if (read(2)[1] != 0) {
+      throw new HandshakeException("Username/password authentication failed");
+    }
+  }
+
+  // RFC 1961, without per-message protection of the tunnelled octets
+  private void authenticate(String servicePrincipal) throws IOException {
+    try {
+      GSSManager manager = GSSManager.getInstance();
+      GSSContext context =
+          manager.createContext(
+              manager.createName(servicePrincipal, GSSName.NT_USER_NAME),
+              new Oid("1.2.840.113554.1.2.2"), // Kerberos V5
+              null,
+              GSSContext.DEFAULT_LIFETIME);
+      context.requestMutualAuth(true);
+      try {
+        byte[] token = new byte[0];
+        while (true) {
+          byte[] clientToken = context.initSecContext(token, 0, token.length);
+          if (clientToken != null) {
+            writeGssapiMessage(GSSAPI_AUTHENTICATION, clientToken);
+          }
+          if (context.isEstablished()) {
+            break;
+          }
+          token = readGssapiMessage(GSSAPI_AUTHENTICATION);
+        }
+
+        byte[] protectionLevel = {0};
+        writeGssapiMessage(
+            GSSAPI_NEGOTIATION,
+            context.wrap(protectionLevel, 0, protectionLevel.length, new MessageProp(0, false)));
+        byte[] serverToken = readGssapiMessage(GSSAPI_NEGOTIATION);
+        context.unwrap(serverToken, 0, serverToken.length, new MessageProp(0, false));
+      } finally {
+        context.dispose();
+      }
+    } catch (GSSException e) {
+      throw new HandshakeException("GSSAPI authentication failed: " + e.getMessage());
+    }
+  }
+
+  private void writeGssapiMessage(byte type, byte[] token) throws IOException {
+    ByteBuffer message = ByteBuffer.allocate(4 + token.length);
+    message.put(GSSAPI_VERSION).put(type).putShort((short) token.length).put(token);
+    write(message.array());
+  }
+
+  private byte[] readGssapiMessage(byte type) throws IOException {
+    byte[] header = read(2);
+    if (header[1] == GSSAPI_ABORT) {
+      throw new HandshakeException("Server aborted the security context establishment");
+    }
+    if (header[1] != type) {
+      throw new HandshakeException("Unexpected GSSAPI message type " + header[1]);
+    }
+    byte[] len = read(2);
+    return read((len[0] & 0xFF) << Byte.SIZE | (len[1] & 0xFF));
+  }
+
+  private void write(byte[] data) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private byte[] read(int len) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(len);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new IOException("Server closed the connection");
+      }
+    }
+    return buffer.array();
+  }
+}
@@ -0,0 +1,153 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.socks.command.Command;
+import com.lan.proxyserver.proxy.socks.handshake.Handshake;
+import com.lan.proxyserver.proxy.socks.handshake.HandshakeOutput;
+import io.quarkus.test.junit.QuarkusTest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class Socks5HandshakeTest {
+  // Method selection (version octet excluded), username/password sub-negotiation, CONNECT request
+  // to 127.0.0.1:8080, and 3 octets of early data
+  private static final byte[] handshakeOctets = {
+    1, 2, //
+    1, 8, 'u', 's', 'e', 'r', 'n', 'a', 'm', 'e', 8, 'p', 'a', 's', 's', 'w', 'o', 'r', 'd', //
+    5, 1, 0, 1, 127, 0, 0, 1, 0x1F, (byte) 0x90, //
+    0xA, 0xB, 0xC
+  };
+  private static final byte[] expectedResponse = {5, 2, 1, 0};
+
+  @Test
+  void testWholeHandshakeInOneRead() throws IOException {
+    Socks5Handshake handshake = new Socks5Handshake();
+    HandshakeOutput out = new HandshakeOutput();
+    ByteBuffer in = ByteBuffer.wrap(handshakeOctets);
+
+    Assertions.assertEquals(Handshake.Status.DONE, advance(handshake, in, out));
+    assertRequest(handshake);
+    Assertions.assertArrayEquals(expectedResponse, drain(out));
+    Assertions.assertEquals(3, in.remaining());
+  }
+
+  @Test
+  void testHandshakeOneOctetAtATime() throws IOException {
+    Socks5Handshake handshake = new Socks5Handshake();
+    HandshakeOutput out = new HandshakeOutput();
+
+    int requestEnd = handshakeOctets.length - 3;
+    for (int i = 0; i < requestEnd - 1; i++) {
+      ByteBuffer in = ByteBuffer.wrap(handshakeOctets, i, 1);
+      Assertions.assertEquals(Handshake.Status.NEED_MORE, advance(handshake, in, out));
+      Assertions.assertFalse(in.hasRemaining());
+    }
+    ByteBuffer in = ByteBuffer.wrap(handshakeOctets, requestEnd - 1, 1);
+    Assertions.assertEquals(Handshake.Status.DONE, advance(handshake, in, out));
+    assertRequest(handshake);
+    Assertions.assertArrayEquals(expectedResponse, drain(out));
+  }
+
+  @Test
+  void testVerificationIsLeftToTheCaller() throws IOException {
+    Socks5Handshake handshake = new Socks5Handshake();
+    HandshakeOutput out = new HandshakeOutput();
+    ByteBuffer in = ByteBuffer.wrap(handshakeOctets);
+
+    // The password isn't hashed on the thread advancing the handshake, e.g. a reactor
+    Assertions.assertEquals(Handshake.Status.BLOCKING, handshake.advance(in, out));
+    Assertions.assertEquals(Handshake.Status.BLOCKING, handshake.advance(in, out));
+    Assertions.assertArrayEquals(new byte[] {5, 2}, drain(out));
+    handshake.runBlocking();
+    Assertions.assertEquals(Handshake.Status.DONE, handshake.advance(in, out));
+    assertRequest(handshake);
+    Assertions.assertArrayEquals(new byte[] {1, 0}, drain(out));
+  }
+
+  @Test
+  void testSecurityContextIsLeftToTheCaller() throws IOException {
+    Socks5Handshake handshake = new Socks5Handshake();
+    HandshakeOutput out = new HandshakeOutput();
+    // GSSAPI method selection, then an authentication message carrying a malformed token
+    ByteBuffer in = ByteBuffer.wrap(new byte[] {1, 1, 1, 1, 0, 3, 0x60, 0, 0});
+
+    // The token isn't accepted on the thread advancing the handshake, e.g. a reactor
+    Assertions.assertEquals(Handshake.Status.BLOCKING, handshake.advance(in, out));
+    Assertions.assertEquals(Handshake.Status.BLOCKING, handshake.advance(in, out));
+    Assertions.assertArrayEquals(new byte[] {5, 1}, drain(out));
+    handshake.runBlocking();
+    Assertions.assertEquals(Handshake.Status.FAILED, handshake.advance(in, out));
+    Assertions.assertArrayEquals(new byte[] {1, (byte) 0xFF}, drain(out));
+  }
+
+  @Test
+  void testDomainName() throws IOException {
+    Socks5Handshake handshake = new Socks5Handshake();
+    HandshakeOutput out = new HandshakeOutput();
+    ByteBuffer in =
+        ByteBuffer.wrap(
+            new byte[] {
+              1, 0, //
+              5, 1, 0, 3, 11, 'e', 'x', 'a', 'm', 'p', 'l', 'e', '.', 'c', 'o', 'm', 1, (byte) 0xBB
+            });
+
+    Assertions.assertEquals(Handshake.Status.DONE, advance(handshake, in, out));
+    Assertions.assertEquals(ReplyCode.SUCCESS, handshake.getReplyCode());
+    Assertions.assertEquals(AddressType.DOMAINNAME, handshake.getDestAddressType());
+    Assertions.assertArrayEquals("example.com".getBytes(), handshake.getDestAddressOctets());
+    Assertions.assertArrayEquals(new byte[] {1, (byte) 0xBB}, handshake.getDestPortOctets());
+  }
+
+  @Test
+  void testIpV6() throws IOException {
+    Socks5Handshake handshake = new Socks5Handshake();
+    HandshakeOutput out = new HandshakeOutput();
+    byte[] address = new byte[16];
+    address[15] = 1; // ::1
+    ByteBuffer in = ByteBuffer.allocate(2 + 4 + address.length + 2);
+    in.put(new byte[] {1, 0, 5, 1, 0, 4}).put(address).put(new byte[] {0, 80}).flip();
+
+    Assertions.assertEquals(Handshake.Status.DONE, advance(handshake, in, out));
+    Assertions.assertEquals(ReplyCode.SUCCESS, handshake.getReplyCode());
+    Assertions.assertEquals(AddressType.IP_V6, handshake.getDestAddressType());
+    Assertions.assertArrayEquals(address, handshake.getDestAddressOctets());
+    Assertions.assertArrayEquals(new byte[] {0, 80}, handshake.getDestPortOctets());
+  }
+
+  @Test
+  void testNoSupportedMethods() throws IOException {
+    Socks5Handshake handshake = new Socks5Handshake();
+    HandshakeOutput out = new HandshakeOutput();
+
+    Assertions.assertEquals(
+        Handshake.Status.FAILED, advance(handshake, ByteBuffer.wrap(new byte[] {1, 0x7F}), out));
+    Assertions.assertArrayEquals(new byte[] {5, (byte) 0xFF}, drain(out));
+  }
+
+  /** Runs blocking steps inline, as a handler thread does */
+  private static Handshake.Status advance(Handshake handshake, ByteBuffer in, HandshakeOutput out) {
+    Handshake.Status status;
+    while ((status = handshake.advance(in, out)) == Handshake.Status.BLOCKING) {
+      handshake.runBlocking();
+    }
+    return status;
+  }
+
+  private static void assertRequest(Socks5Handshake handshake) {
+    Assertions.assertEquals(ReplyCode.SUCCESS, handshake.getReplyCode());
+    Assertions.assertEquals(Command.CONNECT, handshake.getCommand());
+    Assertions.assertEquals(AddressType.IP_V4, handshake.getDestAddressType());
+    Assertions.assertArrayEquals(new byte[] {127, 0, 0, 1}, handshake.getDestAddressOctets());
+    Assertions.assertArrayEquals(new byte[] {0x1F, (byte) 0x90}, handshake.getDestPortOctets());
+  }
+
+  private static byte[] drain(HandshakeOutput out) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    out.writeTo(Channels.newChannel(bytes));
+    return bytes.toByteArray();
+  }
+}
@@ -2,22 +2,27 @@ package com.lan.proxyserver.proxy.socks;
 
 import com.lan.proxyserver.lifecycle.ProxyServerLifecycleBean;
 import com.lan.proxyserver.proxy.ProxyServerThread;
+import com.lan.proxyserver.proxy.socks.Socks5Client.Credentials;
+import com.lan.proxyserver.proxy.socks.Socks5Client.Destination;
+import com.lan.proxyserver.proxy.socks.Socks5Client.HandshakeException;
+import com.lan.proxyserver.proxy.socks.SocksServerStat.Latency;
 import com.lan.proxyserver.util.PortUtil;
 import io.quarkus.test.junit.QuarkusTest;
 import java.io.IOException;
-import java.net.Authenticator;
-import java.net.PasswordAuthentication;
+import java.net.InetAddress;
 import org.jboss.logging.Logger;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.BeforeEach;
-import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 
 @QuarkusTest
 class SocksServerTest {
   private static final Logger logger = Logger.getLogger(SocksServerTest.class);
+  private static final String ENGINE = "proxy_server.socks.relay.engine";
 
   private EchoServer destination;
 
@@ -38,43 +43,60 @@ class SocksServerTest {
     destination.terminate();
   }
 
-  @Test
-  void testSocks5NoAuth() {
+  // Splice falls back to nio where Netty has no native transport, which is tested all the same
+  @ParameterizedTest
+  @ValueSource(strings = {"blocking", "nio", "splice"})
+  void testSocks5NoAuth(String engine) throws IOException {
     byte[] clientSentData = new byte[] {0xA, 0xB, 0xC};
 
-    try (EchoClient echoClient = new EchoClient(destination.getPort(), SocksServer.DEF_PORT)) {
+    try (LocalSocksServer server = new LocalSocksServer(ENGINE, engine);
+        EchoClient echoClient =
+            new EchoClient(destination.getPort(), server.getAddress().getPort())) {
       byte[] serverResponseData = echoClient.send(clientSentData);
       Assertions.assertArrayEquals(clientSentData, serverResponseData);
-    } catch (IOException e) {
-      logger.error(e.getMessage(), e);
-      Assumptions.assumeFalse(true);
     }
   }
 
-  @Test
-  @Disabled(
-      "JDK's SOCKS5 client prioritizes no authentication over username/password authentication, run"
-          + " this test when the proxy server does not support no authentication to enforce"
-          + " username/password authentication or after implementing our own SOCK5 client")
-  void testSocks5UsrPwdAuth() {
+  @ParameterizedTest
+  @ValueSource(strings = {"blocking", "nio", "splice"})
+  void testSocks5UsrPwdAuth(String engine) throws IOException {
     byte[] clientSentData = new byte[] {0xA, 0xB, 0xC};
-    Authenticator defaultAuthenticator = Authenticator.getDefault();
-    Authenticator.setDefault(
-        new Authenticator() {
-          @Override
-          protected PasswordAuthentication getPasswordAuthentication() {
-            return new PasswordAuthentication("username", "password".toCharArray());
-          }
-        });
 
-    try (EchoClient echoClient = new EchoClient(destination.getPort(), SocksServer.DEF_PORT)) {
-      byte[] serverResponseData = echoClient.send(clientSentData);
-      Assertions.assertArrayEquals(clientSentData, serverResponseData);
-    } catch (IOException e) {
-      logger.error(e.getMessage(), e);
-      Assumptions.assumeFalse(true);
-    } finally {
-      Authenticator.setDefault(defaultAuthenticator);
+    try (LocalSocksServer server = new LocalSocksServer(ENGINE, engine);
+        Socks5Client client = new Socks5Client(server.getAddress())) {
+      client.connect(
+          Credentials.usernamePassword("username", "password"),
+          Destination.of(InetAddress.getLoopbackAddress(), destination.getPort()));
+      Assertions.assertArrayEquals(clientSentData, client.echo(clientSentData));
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"blocking", "nio", "splice"})
+  void testSocks5UsrPwdAuthWrongPassword(String engine) throws IOException {
+    try (LocalSocksServer server = new LocalSocksServer(ENGINE, engine);
+        Socks5Client client = new Socks5Client(server.getAddress())) {
+      Assertions.assertThrows(
+          HandshakeException.class,
+          () -> client.authenticate(Credentials.usernamePassword("username", "wrong")));
+    }
+  }
+
+  /** Octets flow both ways at once through a tunnel of each engine, more than a buffer holds */
+  @ParameterizedTest
+  @ValueSource(strings = {"blocking", "nio", "splice"})
+  void testSocks5ConnectBulk(String engine) throws IOException {
+    byte[] clientSentData = new byte[64 * 1024];
+    for (int i = 0; i < clientSentData.length; i++) {
+      clientSentData[i] = (byte) (i * 31);
+    }
+
+    try (LocalSocksServer server = new LocalSocksServer(ENGINE, engine);
+        Socks5Client client = new Socks5Client(server.getAddress())) {
+      client.connect(
+          Credentials.noAuth(),
+          Destination.of(InetAddress.getLoopbackAddress(), destination.getPort()));
+      Assertions.assertArrayEquals(clientSentData, client.echo(clientSentData));
     }
   }
 
@@ -121,6 +143,36 @@ class SocksServerTest {
     }
   }
 
+  @Test
+  void testSessionStat() {
+    SocksServerStat stat = ProxyServerLifecycleBean.getProxyServerStat();
+    long forwardedBytes = stat.getForwardedBytes();
+    long backwardedBytes = stat.getBackwardedBytes();
+    long connects = stat.getLatency(Latency.CONNECT).getCount();
+    long firstBytes = stat.getLatency(Latency.FIRST_BYTE).getCount();
+    long sessions = stat.getLatency(Latency.SESSION).getCount();
+
+    try (EchoClient echoClient = new EchoClient(destination.getPort(), SocksServer.DEF_PORT)) {
+      byte[] clientSentData = new byte[] {0xA, 0xB, 0xC};
+      byte[] serverResponseData = echoClient.send(clientSentData);
+      Assertions.assertArrayEquals(clientSentData, serverResponseData);
+    } catch (IOException e) {
+      logger.error(e.getMessage(), e);
+      Assumptions.assumeFalse(true);
+    }
+    try {
+      Thread.sleep(1000);
+    } catch (InterruptedException e) {
+    }
+
+    // Other tests may run sessions of their own meanwhile
+    Assertions.assertTrue(stat.getForwardedBytes() - forwardedBytes >= 3);
+    Assertions.assertTrue(stat.getBackwardedBytes() - backwardedBytes >= 3);
+    Assertions.assertTrue(stat.getLatency(Latency.CONNECT).getCount() > connects);
+    Assertions.assertTrue(stat.getLatency(Latency.FIRST_BYTE).getCount() > firstBytes);
+    Assertions.assertTrue(stat.getLatency(Latency.SESSION).getCount() > sessions);
+  }
+
   @Test
   void testProxyTerminate() {
     int proxyPort = PortUtil.pickFreePort();
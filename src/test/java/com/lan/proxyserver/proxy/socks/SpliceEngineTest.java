@@ -0,0 +1,46 @@
+package com.lan.proxyserver.proxy.socks;
+
+import com.lan.proxyserver.proxy.relay.SpliceRelay;
+import com.lan.proxyserver.proxy.socks.Socks5Client.Credentials;
+import com.lan.proxyserver.proxy.socks.Socks5Client.Destination;
+import io.netty.channel.epoll.Epoll;
+import io.quarkus.test.junit.QuarkusTest;
+import java.io.IOException;
+import java.net.InetAddress;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class SpliceEngineTest {
+  @Test
+  void testConnectIsSpliced() throws IOException {
+    // The native transport only ships for Linux
+    Assumptions.assumeTrue(Epoll.isAvailable(), "No native epoll transport");
+
+    EchoServer destination = new EchoServer();
+    destination.start();
+    try (LocalSocksServer server =
+        new LocalSocksServer("proxy_server.socks.relay.engine", "splice")) {
+      Assertions.assertInstanceOf(
+          SpliceRelay.class,
+          server.get().getRelay(),
+          "Splice engine fell back, is java.base/sun.nio.ch exported?");
+      SpliceRelay relay = (SpliceRelay) server.get().getRelay();
+
+      byte[] data = new byte[32768];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) i;
+      }
+      try (Socks5Client client = new Socks5Client(server.getAddress())) {
+        client.connect(
+            Credentials.noAuth(),
+            Destination.of(InetAddress.getLoopbackAddress(), destination.getPort()));
+        Assertions.assertArrayEquals(data, client.echo(data));
+      }
+      Assertions.assertEquals(1, relay.getSplicedTunnels());
+    } finally {
+      destination.terminate();
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package com.lan.proxyserver.proxy.socks;
+
+import io.quarkus.test.junit.QuarkusTest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class UdpAssociateTest {
+  private static final Logger logger = Logger.getLogger(UdpAssociateTest.class);
+  private static final byte[] payload = "hello".getBytes(StandardCharsets.US_ASCII);
+
+  private DatagramSocket destination;
+  private Thread echo;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    destination = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    echo =
+        new Thread(
+            () -> {
+              byte[] buffer = new byte[1024];
+              try {
+                while (true) {
+                  DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                  destination.receive(packet);
+                  destination.send(packet);
+                }
+              } catch (IOException e) {
+                // Closed
+              }
+            });
+    echo.start();
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    destination.close();
+    echo.join();
+  }
+
+  /**
+   * @return the address datagrams are to be sent to
+   */
+  private static InetSocketAddress associate(Socket control) throws IOException {
+    control.getOutputStream().write(new byte[] {5, 1, 0, 5, 3, 0, 1, 0, 0, 0, 0, 0, 0});
+    byte[] reply = control.getInputStream().readNBytes(2 + 10);
+    Assertions.assertEquals(12, reply.length);
+    Assertions.assertEquals(ReplyCode.SUCCESS.get(), reply[3]);
+    Assertions.assertEquals(AddressType.IP_V4.get(), reply[5]);
+    return new InetSocketAddress(
+        InetAddress.getByAddress(Arrays.copyOfRange(reply, 6, 10)),
+        (reply[10] & 0xFF) << Byte.SIZE | (reply[11] & 0xFF));
+  }
+
+  private static byte[] datagram(byte addressType, byte[] address, int port) {
+    ByteArrayOutputStream datagram = new ByteArrayOutputStream();
+    datagram.write(new byte[] {0, 0, 0, addressType}, 0, 4);
+    if (addressType == AddressType.DOMAINNAME.get()) {
+      datagram.write(address.length);
+    }
+    datagram.write(address, 0, address.length);
+    datagram.write(port >> Byte.SIZE);
+    datagram.write(port);
+    datagram.write(payload, 0, payload.length);
+    return datagram.toByteArray();
+  }
+
+  private static byte[] exchange(DatagramSocket client, InetSocketAddress relay, byte[] datagram)
+      throws IOException {
+    client.send(new DatagramPacket(datagram, datagram.length, relay));
+    DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+    client.receive(packet);
+    return Arrays.copyOf(packet.getData(), packet.getLength());
+  }
+
+  @Test
+  void testRelay() throws IOException, InterruptedException {
+    Socket control;
+    try {
+      control = new Socket(InetAddress.getLoopbackAddress(), SocksServer.DEF_PORT);
+    } catch (IOException e) {
+      logger.error(e.getMessage(), e);
+      Assumptions.assumeFalse(true);
+      return;
+    }
+
+    try (DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      client.setSoTimeout(1000);
+      InetSocketAddress relay;
+      try (control) {
+        relay = associate(control);
+        byte[] loopback = InetAddress.getLoopbackAddress().getAddress();
+        int port = destination.getLocalPort();
+
+        // Datagrams come back with the header of their source
+        byte[] expected = datagram(AddressType.IP_V4.get(), loopback, port);
+        Assertions.assertArrayEquals(expected, exchange(client, relay, expected));
+        Assertions.assertArrayEquals(
+            expected,
+            exchange(
+                client,
+                relay,
+                datagram(
+                    AddressType.DOMAINNAME.get(),
+                    "localhost".getBytes(StandardCharsets.US_ASCII),
+                    port)));
+      }
+
+      // Closing the controlling connection ends the association
+      Thread.sleep(200);
+      byte[] datagram =
+          ByteBuffer.allocate(10)
+              .put(new byte[] {0, 0, 0, 1})
+              .put(InetAddress.getLoopbackAddress().getAddress())
+              .putShort((short) destination.getLocalPort())
+              .array();
+      Assertions.assertThrows(
+          SocketTimeoutException.class, () -> exchange(client, relay, datagram));
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package com.lan.proxyserver.proxy.socks.auth;
+
+import io.quarkus.test.junit.QuarkusTest;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class CredentialVerifierTest {
+  private static final int ITERATIONS = 1000;
+
+  private static class MapStore implements CredentialStore {
+    private final Map<String, String> hashes = new HashMap<>();
+
+    @Override
+    public String getHash(String username) {
+      return hashes.get(username);
+    }
+
+    @Override
+    public int size() {
+      return hashes.size();
+    }
+  }
+
+  @Test
+  void testPasswordHash() {
+    String hash = PasswordHash.hash("secret", ITERATIONS);
+    Assertions.assertTrue(hash.startsWith("$pbkdf2-sha256$1000$"));
+    Assertions.assertTrue(PasswordHash.verify("secret", hash));
+    Assertions.assertFalse(PasswordHash.verify("Secret", hash));
+    // Salted
+    Assertions.assertNotEquals(hash, PasswordHash.hash("secret", ITERATIONS));
+    Assertions.assertFalse(PasswordHash.verify("secret", "secret"));
+    Assertions.assertFalse(PasswordHash.verify("secret", "$pbkdf2-sha256$x$y$z"));
+  }
+
+  @Test
+  void testCachesVerifiedCredentials() {
+    long[] now = {0};
+    MapStore store = new MapStore();
+    store.hashes.put("alice", PasswordHash.hash("secret", ITERATIONS));
+    CredentialVerifier verifier = new CredentialVerifier(store, 10, 1000, ITERATIONS, () -> now[0]);
+
+    Assertions.assertTrue(verifier.verify("alice", "secret"));
+    Assertions.assertTrue(verifier.verify("alice", "secret"));
+    Assertions.assertEquals(1, verifier.getHits());
+    Assertions.assertEquals(1, verifier.getMisses());
+    // Neither a wrong password nor an unknown user is served from the cache
+    Assertions.assertFalse(verifier.verify("alice", "guess"));
+    Assertions.assertFalse(verifier.verify("bob", "secret"));
+    Assertions.assertEquals(3, verifier.getMisses());
+    Assertions.assertEquals(1, verifier.getCacheSize());
+
+    // Expired
+    now[0] += TimeUnit.SECONDS.toNanos(1);
+    Assertions.assertTrue(verifier.verify("alice", "secret"));
+    Assertions.assertEquals(4, verifier.getMisses());
+
+    // A changed password misses the cache
+    store.hashes.put("alice", PasswordHash.hash("changed", ITERATIONS));
+    Assertions.assertFalse(verifier.verify("alice", "secret"));
+    Assertions.assertTrue(verifier.verify("alice", "changed"));
+    Assertions.assertEquals(1, verifier.getHits());
+    Assertions.assertEquals(6, verifier.getMisses());
+    Assertions.assertEquals(1, verifier.getHitLatency().getCount());
+    Assertions.assertEquals(6, verifier.getMissLatency().getCount());
+  }
+
+  @Test
+  void testCacheIsBounded() {
+    MapStore store = new MapStore();
+    for (int i = 0; i < 3; i++) {
+      store.hashes.put("user" + i, PasswordHash.hash("password" + i, ITERATIONS));
+    }
+    CredentialVerifier verifier =
+        new CredentialVerifier(store, 2, 60000, ITERATIONS, System::nanoTime);
+
+    for (int i = 0; i < 3; i++) {
+      Assertions.assertTrue(verifier.verify("user" + i, "password" + i));
+    }
+    Assertions.assertEquals(2, verifier.getCacheSize());
+    // The least recently verified was evicted
+    Assertions.assertTrue(verifier.verify("user0", "password0"));
+    Assertions.assertEquals(0, verifier.getHits());
+    Assertions.assertTrue(verifier.verify("user2", "password2"));
+    Assertions.assertEquals(1, verifier.getHits());
+  }
+
+  @Test
+  void testFileStoreReloads() throws IOException {
+    Path file = Files.createTempFile("users", null);
+    try {
+      Files.writeString(
+          file, "# users\nalice:" + PasswordHash.hash("secret", ITERATIONS) + "\nmalformed\n");
+      FileCredentialStore store = new FileCredentialStore(file, 0);
+      Assertions.assertEquals(1, store.size());
+      Assertions.assertTrue(PasswordHash.verify("secret", store.getHash("alice")));
+      Assertions.assertFalse(store.reload());
+
+      Files.writeString(file, "bob:" + PasswordHash.hash("secret", ITERATIONS) + "\n");
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 60000));
+      Assertions.assertTrue(store.reload());
+      Assertions.assertNull(store.getHash("alice"));
+      Assertions.assertNotNull(store.getHash("bob"));
+
+      // A file gone leaves the users in place
+      Files.delete(file);
+      Assertions.assertFalse(store.reload());
+      Assertions.assertEquals(1, store.size());
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package com.lan.proxyserver.proxy.socks.auth;
+
+import io.quarkus.test.junit.QuarkusTest;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchResult;
+import javax.naming.spi.InitialContextFactory;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class DirectoryCredentialStoreTest {
+  private static final int ITERATIONS = 1000;
+  // userPassword of the entries by uid
+  private static final Map<String, String> entries = new ConcurrentHashMap<>();
+
+  /** A directory answering searches by uid, standing in for an LDAP server */
+  public static class ContextFactory implements InitialContextFactory {
+    @Override
+    public Context getInitialContext(Hashtable<?, ?> environment) {
+      return (Context)
+          Proxy.newProxyInstance(
+              ContextFactory.class.getClassLoader(),
+              new Class<?>[] {DirContext.class},
+              (proxy, method, args) ->
+                  switch (method.getName()) {
+                    case "search" -> search(args);
+                    case "close" -> null;
+                    default -> throw new UnsupportedOperationException(method.getName());
+                  });
+    }
+
+    /** Either the filter with its arguments and controls, or the filter and controls */
+    private static NamingEnumeration<SearchResult> search(Object[] args) {
+      List<SearchResult> results = new ArrayList<>();
+      entries.forEach(
+          (uid, hash) -> {
+            if (args.length == 3 || uid.equals(((Object[]) args[2])[0])) {
+              BasicAttributes attributes = new BasicAttributes();
+              attributes.put("userPassword", hash.getBytes(StandardCharsets.UTF_8));
+              results.add(new SearchResult("uid=" + uid, null, attributes));
+            }
+          });
+      Iterator<SearchResult> it = results.iterator();
+      return new NamingEnumeration<>() {
+        @Override
+        public boolean hasMore() {
+          return it.hasNext();
+        }
+
+        @Override
+        public SearchResult next() {
+          return it.next();
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+          return it.hasNext();
+        }
+
+        @Override
+        public SearchResult nextElement() {
+          return it.next();
+        }
+
+        @Override
+        public void close() {}
+      };
+    }
+  }
+
+  @Test
+  void testPluggedInByClassName() throws InterruptedException {
+    entries.put("alice", PasswordHash.hash("secret", ITERATIONS));
+    entries.put("bob", PasswordHash.hash("password", ITERATIONS));
+    Map<String, String> settings =
+        Map.of(
+            UsernamePassword.cfgStrPrefix + ".store",
+            DirectoryCredentialStore.class.getName(),
+            UsernamePassword.cfgStrPrefix + ".iterations",
+            String.valueOf(ITERATIONS),
+            DirectoryCredentialStore.cfgStrPrefix + ".factory",
+            ContextFactory.class.getName());
+    settings.forEach(System::setProperty);
+    try {
+      UsernamePassword.init();
+      CredentialVerifier verifier = UsernamePassword.getVerifier();
+      Assertions.assertInstanceOf(DirectoryCredentialStore.class, verifier.getStore());
+      // Counted in the background, unknown until then
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (verifier.getStore().size() != 2 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      Assertions.assertEquals(2, verifier.getStore().size());
+
+      Assertions.assertTrue(verifier.verify("alice", "secret"));
+      Assertions.assertFalse(verifier.verify("alice", "password"));
+      Assertions.assertFalse(verifier.verify("carol", "secret"));
+      // Removed from the directory, though verified lately
+      entries.remove("alice");
+      Assertions.assertFalse(verifier.verify("alice", "secret"));
+      Assertions.assertTrue(verifier.verify("bob", "password"));
+    } finally {
+      settings.keySet().forEach(System::clearProperty);
+      entries.clear();
+      UsernamePassword.init();
+    }
+  }
+}
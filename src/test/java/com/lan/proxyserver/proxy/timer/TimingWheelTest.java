@@ -0,0 +1,75 @@
+package com.lan.proxyserver.proxy.timer;
+
+import io.quarkus.test.junit.QuarkusTest;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class TimingWheelTest {
+  @Test
+  void testExpire() throws InterruptedException {
+    TimingWheel wheel = new TimingWheel("test-timer", 10, 8);
+    wheel.start();
+    try {
+      CountDownLatch latch = new CountDownLatch(1);
+      AtomicLong expiredAt = new AtomicLong();
+      long start = System.nanoTime();
+      // Further than a turn of the wheel (80 ms)
+      wheel.schedule(
+          () -> {
+            expiredAt.set(System.nanoTime());
+            latch.countDown();
+          },
+          200);
+      Assertions.assertEquals(1, wheel.getPending());
+
+      Assertions.assertTrue(latch.await(1, TimeUnit.SECONDS));
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(expiredAt.get() - start);
+      Assertions.assertTrue(elapsed >= 200, "expired after " + elapsed + " ms");
+      Assertions.assertEquals(0, wheel.getPending());
+      Assertions.assertEquals(1, wheel.getExpired());
+    } finally {
+      wheel.terminate();
+    }
+  }
+
+  @Test
+  void testCancel() throws InterruptedException {
+    TimingWheel wheel = new TimingWheel("test-timer", 10, 8);
+    wheel.start();
+    try {
+      AtomicBoolean expired = new AtomicBoolean();
+      Timeout timeout = wheel.schedule(() -> expired.set(true), 50);
+      Thread.sleep(20);
+      Assertions.assertTrue(timeout.cancel());
+      Assertions.assertFalse(timeout.cancel());
+      Assertions.assertEquals(0, wheel.getPending());
+
+      Thread.sleep(100);
+      Assertions.assertFalse(expired.get());
+      Assertions.assertEquals(0, wheel.getExpired());
+    } finally {
+      wheel.terminate();
+    }
+  }
+
+  @Test
+  void testTerminateReturnsPendingTimeouts() {
+    TimingWheel wheel = new TimingWheel("test-timer", 10, 8);
+    wheel.start();
+    AtomicLong expired = new AtomicLong();
+    wheel.schedule(expired::incrementAndGet, 60000);
+    wheel.schedule(expired::incrementAndGet, 60000).cancel();
+
+    List<Timeout> pending = wheel.terminate();
+    Assertions.assertEquals(1, pending.size());
+    pending.get(0).expireNow();
+    pending.get(0).expireNow();
+    Assertions.assertEquals(1, expired.get());
+  }
+}
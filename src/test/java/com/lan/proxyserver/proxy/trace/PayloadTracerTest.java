@@ -0,0 +1,79 @@
+package com.lan.proxyserver.proxy.trace;
+
+import io.quarkus.test.junit.QuarkusTest;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class PayloadTracerTest {
+  private static final InetAddress clientAddress = InetAddress.getLoopbackAddress();
+  private static final ByteBuffer payload = ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6});
+
+  private final List<TraceRecord> records = new ArrayList<>();
+  private final PayloadTracer tracer =
+      new PayloadTracer(
+          new TraceSink() {
+            @Override
+            public boolean offer(TraceRecord record) {
+              return records.add(record);
+            }
+
+            @Override
+            public void close() {}
+          });
+
+  private PayloadTrace newTrace(long sessionId) {
+    return new PayloadTrace(tracer, sessionId, clientAddress, clientAddress, 80, "test");
+  }
+
+  @Test
+  void testNothingRecordedWithoutRule() {
+    PayloadTrace trace = newTrace(1);
+    trace.record(payload, 0, payload.remaining());
+
+    Assertions.assertTrue(records.isEmpty());
+  }
+
+  @Test
+  void testRuleAppliesToEstablishedTunnels() {
+    PayloadTrace trace = newTrace(1);
+    trace.record(payload, 0, 2);
+
+    TraceRule rule = new TraceRule(1L, null, null, 0, 1, 1024);
+    tracer.addRule(rule);
+    trace.record(payload, 2, 4);
+    Assertions.assertEquals(1, records.size());
+    Assertions.assertEquals(2, records.get(0).getOffset());
+    Assertions.assertArrayEquals(new byte[] {3, 4, 5, 6}, records.get(0).getPayload());
+
+    tracer.removeRule(rule.getId());
+    trace.record(payload, 0, 6);
+    Assertions.assertEquals(1, records.size());
+  }
+
+  @Test
+  void testRuleCriteria() {
+    tracer.addRule(new TraceRule(null, clientAddress, null, 443, 1, 1024));
+
+    newTrace(1).record(payload, 0, 6);
+    Assertions.assertTrue(records.isEmpty());
+  }
+
+  @Test
+  void testByteCap() {
+    tracer.addRule(new TraceRule(null, clientAddress, null, 0, 1, 4));
+
+    PayloadTrace trace = newTrace(1);
+    trace.record(payload, 0, 3);
+    trace.record(payload, 3, 3);
+    trace.record(payload, 0, 6);
+
+    Assertions.assertEquals(2, records.size());
+    Assertions.assertArrayEquals(new byte[] {4}, records.get(1).getPayload());
+    Assertions.assertEquals(3, records.get(1).getLen());
+  }
+}